@@ -10,27 +10,38 @@ LOCAL_C_INCLUDES := \
         $(LOCAL_PATH)/feature_mos/src/mosaic
 
 LOCAL_CFLAGS := -O3 -DNDEBUG -fstrict-aliasing
+# Add -DDB_STAGE_TIMING to time the stages of db_stage_timer.h (panorama_bench
+# then reports them). The YuvConvert kernels and the Harris corner detector
+# use NEON when the target enables it (-mfpu=neon) and SSE2 on x86.
 
 LOCAL_SRC_FILES := \
         feature_mos_jni.cpp \
+        feature_stab_jni.cpp \
         mosaic_renderer_jni.cpp \
         feature_mos/src/mosaic/trsMatrix.cpp \
         feature_mos/src/mosaic/AlignFeatures.cpp \
         feature_mos/src/mosaic/Blend.cpp \
         feature_mos/src/mosaic/Delaunay.cpp \
+        feature_mos/src/mosaic/FrameSpillStore.cpp \
+        feature_mos/src/mosaic/JpegStripEncoder.cpp \
         feature_mos/src/mosaic/ImageUtils.cpp \
         feature_mos/src/mosaic/Mosaic.cpp \
+        feature_mos/src/mosaic/MosaicSession.cpp \
         feature_mos/src/mosaic/Pyramid.cpp \
+        feature_mos/src/mosaic/Stabilizer.cpp \
+        feature_mos/src/mosaic/YuvConvert.cpp \
         feature_mos/src/mosaic_renderer/Renderer.cpp \
         feature_mos/src/mosaic_renderer/WarpRenderer.cpp \
         feature_mos/src/mosaic_renderer/SurfaceTextureRenderer.cpp \
         feature_mos/src/mosaic_renderer/YVURenderer.cpp \
         feature_mos/src/mosaic_renderer/FrameBuffer.cpp \
+        feature_mos/src/mosaic_renderer/PixelPackBuffer.cpp \
         feature_stab/db_vlvm/db_feature_detection.cpp \
         feature_stab/db_vlvm/db_feature_matching.cpp \
         feature_stab/db_vlvm/db_framestitching.cpp \
         feature_stab/db_vlvm/db_image_homography.cpp \
         feature_stab/db_vlvm/db_rob_image_homography.cpp \
+        feature_stab/db_vlvm/db_stage_timer.cpp \
         feature_stab/db_vlvm/db_utilities.cpp \
         feature_stab/db_vlvm/db_utilities_camera.cpp \
         feature_stab/db_vlvm/db_utilities_indexing.cpp \
@@ -38,6 +49,7 @@ LOCAL_SRC_FILES := \
         feature_stab/db_vlvm/db_utilities_poly.cpp \
         feature_stab/src/dbreg/dbreg.cpp \
         feature_stab/src/dbreg/dbstabsmooth.cpp \
+        feature_stab/src/dbreg/dbwarp.cpp \
         feature_stab/src/dbreg/vp_motionmodel.c
 
 ifeq ($(TARGET_ARCH), arm)
@@ -52,7 +64,7 @@ ifeq ($(TARGET_ARCH), mips)
         LOCAL_SDK_VERSION := 9
 endif
 
-LOCAL_LDFLAGS := -llog -lGLESv2
+LOCAL_LDFLAGS := -llog -lGLESv2 -lEGL
 
 LOCAL_MODULE_TAGS := optional
 
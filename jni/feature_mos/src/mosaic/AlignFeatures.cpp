@@ -30,11 +30,15 @@
 
 #define LOG_TAG "AlignFeatures"
 
+const double Align::DEFAULT_MAX_DISPARITY = 0.1; // 0.4;
+
 Align::Align()
 {
   width = height = 0;
   frame_number = 0;
   num_frames_captured = 0;
+  tail_pending = false;
+  num_inliers = 0;
   reference_frame_index = 0;
   db_Identity3x3(Hcurr);
   db_Identity3x3(Hprev);
@@ -43,7 +47,7 @@ Align::Align()
 Align::~Align()
 {
   // Free gray-scale image
-  if (imageGray != ImageUtils::IMAGE_TYPE_NOIMAGE)
+  if (imageGray != NULL)
     ImageUtils::freeImage(imageGray);
 }
 
@@ -70,9 +74,12 @@ int Align::initialize(int width, int height, bool _quarter_res, float _thresh_st
 
   quarter_res = _quarter_res;
   thresh_still = _thresh_still;
+  max_overlap = 1.0f;
 
   frame_number = 0;
   num_frames_captured = 0;
+  tail_pending = false;
+  num_inliers = 0;
   reference_frame_index = 0;
   db_Identity3x3(Hcurr);
   db_Identity3x3(Hprev);
@@ -83,6 +90,8 @@ int Align::initialize(int width, int height, bool _quarter_res, float _thresh_st
             scale, reference_update_period, false, 0, nrsamples, chunk_size,
             nr_corners, max_disparity, use_smaller_matching_window,
             nrhorz, nrvert);
+    reg.ResetMotionPrediction(DEFAULT_MOTION_PREDICTION);
+    reg.ResetAdaptiveSampling(DEFAULT_ADAPTIVE_SAMPLING);
   }
   this->width = width;
   this->height = height;
@@ -104,6 +113,7 @@ int Align::addFrameRGB(ImageType imageRGB)
 int Align::addFrame(ImageType imageGray_)
 {
   int ret_code = ALIGN_RET_OK;
+  tail_pending = false;
 
  // Obtain a vector of pointers to rows in image and pass in to dbreg
   ImageType *m_rows = ImageUtils::imageTypeToRowPointers(imageGray_, width, height);
@@ -133,7 +143,7 @@ int Align::addFrame(ImageType imageGray_)
 
   if (frame_number != 0)
   {
-    int num_inliers = reg.GetNrInliers();
+    num_inliers = reg.GetNrInliers();
 
     if(num_inliers < MIN_NR_INLIERS)
     {
@@ -158,35 +168,86 @@ int Align::addFrame(ImageType imageGray_)
         return ALIGN_RET_ERROR;
     }
 
-    // compute the homography:
-    double Hinv33[3][3];
-    double Hprev33[3][3];
-    double Hcurr33[3][3];
+    // Too close to the last frame added to widen the mosaic by a strip of its
+    // own; the reference stays, so that the next frames are measured from it.
+    // The frame is kept aside as the tail of the sweep (see keepTail()).
+    if(fabs(Hcurr[2])<(1.0f-max_overlap)*width && fabs(Hcurr[5])<(1.0f-max_overlap)*height)
+    {
+        tail_pending = true;
+        return ALIGN_RET_ERROR;
+    }
+
+    keepFrame(m_rows);
+  }
+
+  frame_number++;
 
-    // Invert and multiple with previous transformation
-    Matrix33::convert9to33(Hcurr33, Hcurr);
-    Matrix33::convert9to33(Hprev33, Hprev);
-    normProjMat33d(Hcurr33);
+  return ret_code;
+}
 
-    inv33d(Hcurr33, Hinv33);
+// Makes the frame whose homography to the reference is Hcurr the new reference.
+void Align::keepFrame(ImageType *m_rows)
+{
+  // compute the homography:
+  double Hinv33[3][3];
+  double Hprev33[3][3];
+  double Hcurr33[3][3];
 
-    mult33d(Hcurr33, Hprev33, Hinv33);
-    normProjMat33d(Hcurr33);
-    Matrix9::convert33to9(Hprev, Hcurr33);
-    // Since we have already factored the current transformation
-    // into Hprev, we can reset the Hcurr to identity
-    db_Identity3x3(Hcurr);
+  // Invert and multiple with previous transformation
+  Matrix33::convert9to33(Hcurr33, Hcurr);
+  Matrix33::convert9to33(Hprev33, Hprev);
+  normProjMat33d(Hcurr33);
 
-    // Update the reference frame to be the current frame
-    reg.UpdateReference(m_rows,quarter_res,false);
+  inv33d(Hcurr33, Hinv33);
 
-    // Update the reference frame index
-    reference_frame_index = num_frames_captured;
-  }
+  mult33d(Hcurr33, Hprev33, Hinv33);
+  normProjMat33d(Hcurr33);
+  Matrix9::convert33to9(Hprev, Hcurr33);
+  // Since we have already factored the current transformation
+  // into Hprev, we can reset the Hcurr to identity
+  db_Identity3x3(Hcurr);
+
+  // Update the reference frame to be the current frame
+  reg.UpdateReference(m_rows,quarter_res,false);
+
+  // Update the reference frame index
+  reference_frame_index = num_frames_captured;
+}
+
+int Align::keepTail(ImageType image)
+{
+  if (!tail_pending)
+    return ALIGN_RET_ERROR;
+
+  ImageType *m_rows = ImageUtils::imageTypeToRowPointers(image, width, height);
+  keepFrame(m_rows);
+  delete[] m_rows;
 
+  tail_pending = false;
   frame_number++;
 
-  return ret_code;
+  return ALIGN_RET_OK;
+}
+
+int Align::resume(ImageType image, double trs[3][3], int nframes)
+{
+  ImageType *m_rows = ImageUtils::imageTypeToRowPointers(image, width, height);
+
+  // The last frame becomes the reference of the next ones, as it did when it
+  // was added.
+  db_Identity3x3(Hcurr);
+  reg.AddFrame(m_rows, Hcurr, true);
+  delete[] m_rows;
+
+  Matrix9::convert33to9(Hprev, trs);
+  db_Identity3x3(Hcurr);
+
+  frame_number = nframes;
+  num_frames_captured = nframes;
+  reference_frame_index = nframes;
+  num_inliers = 0;
+
+  return ALIGN_RET_OK;
 }
 
 // Get current transformation
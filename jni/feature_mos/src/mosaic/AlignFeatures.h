@@ -44,12 +44,20 @@ public:
   ///// Settings for feature-based alignment
   // Number of features to use from corner detection
   static const int DEFAULT_NR_CORNERS=750;
-  static const double DEFAULT_MAX_DISPARITY=0.1;//0.4;
+  static const double DEFAULT_MAX_DISPARITY;
   // Type of homography to model
   static const int DEFAULT_MOTION_MODEL=DB_HOMOGRAPHY_TYPE_R_T;
 // static const int DEFAULT_MOTION_MODEL=DB_HOMOGRAPHY_TYPE_PROJECTIVE;
 //  static const int DEFAULT_MOTION_MODEL=DB_HOMOGRAPHY_TYPE_AFFINE;
   static const unsigned int DEFAULT_REFERENCE_UPDATE_PERIOD=1500; //  Manual reference frame update so set this to a large number
+  // Match the corners around the motion predicted from the last frame, falling
+  // back to the full search range (see db_FrameToReferenceRegistration::
+  // ResetMotionPrediction()). The mosaic differs slightly from the full search.
+  static const bool DEFAULT_MOTION_PREDICTION = true;
+  // Stop drawing RANSAC samples once one without outliers has been drawn with
+  // enough confidence. It is tuned on the predicted matches, so it is only
+  // used with DEFAULT_MOTION_PREDICTION.
+  static const bool DEFAULT_ADAPTIVE_SAMPLING = DEFAULT_MOTION_PREDICTION;
 
   static const int MIN_NR_REF_CORNERS = 25;
   static const int MIN_NR_INLIERS = 10;
@@ -65,12 +73,34 @@ public:
   int addFrameRGB(ImageType image);
   int addFrame(ImageType image);
 
+  // Reject frames that share more than this fraction of their width and of
+  // their height with the last frame added, as redundant for the strips of
+  // the mosaic. 1 (the default) only rejects frames of a still camera.
+  void setMaxOverlap(float overlap) { max_overlap = overlap; }
+
+  // Whether the last frame was rejected for its overlap only. It is the tail
+  // of the sweep: the frames before it may cover less than the sweep did.
+  bool hasTail() { return tail_pending; }
+
+  // Add the tail frame after all, given its image again, so that the mosaic
+  // reaches the end of the sweep.
+  int keepTail(ImageType image);
+
+  // Continue a sweep of nframes frames, whose last frame and its TRS matrix
+  // are given, as if they had just been added; e.g. after loading the sweep
+  // from a session. Call right after initialize().
+  int resume(ImageType image, double trs[3][3], int nframes);
+
   // Obtain the TRS matrix from the last two frames
   int getLastTRS(double trs[3][3]);
+  // Obtain the number of inlier matches of the last frame (0 for the first)
+  int getNumInliers() { return num_inliers; }
   char* getRegProfileString();
 
 protected:
 
+  void keepFrame(ImageType *m_rows);
+
   db_FrameToReferenceRegistration reg;
 
   int frame_number;
@@ -80,12 +110,15 @@ protected:
 
   int reference_frame_index; // Index of the reference frame from all captured frames
   int num_frames_captured; // Total number of frames captured (different from frame_number)
+  int num_inliers; // Number of inlier matches of the last frame to its reference
   double average_tx_per_frame; // Average pixel translation per captured frame
 
   int width,height;
 
   bool quarter_res;     // Whether to process at quarter resolution
   float thresh_still;   // Translation threshold in pixels to detect still camera
+  float max_overlap;    // Largest overlap of a frame with the last one added
+  bool tail_pending;    // Whether the last frame was rejected for its overlap
   ImageType imageGray;
 };
 
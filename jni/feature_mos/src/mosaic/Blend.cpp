@@ -25,10 +25,14 @@
 
 #include "Geometry.h"
 #include "trsMatrix.h"
+#include "db_stage_timer.h"
 
 #include "Log.h"
 #define LOG_TAG "BLEND"
 
+const float Blend::LIMIT_SIZE_MULTIPLIER = 5.0f * 2.0f;
+const float Blend::LIMIT_HEIGHT_MULTIPLIER = 2.5f;
+
 Blend::Blend()
 {
   m_wb.blendingType = BLEND_TYPE_NONE;
@@ -99,7 +103,7 @@ void Blend::AlignToMiddleFrame(MosaicFrame **frames, int frames_size)
 int Blend::runBlend(MosaicFrame **oframes, MosaicFrame **rframes,
         int frames_size,
         ImageType &imageMosaicYVU, int &mosaicWidth, int &mosaicHeight,
-        float &progress, bool &cancelComputation)
+        MosaicProgress &progress)
 {
     int ret;
     int numCenters;
@@ -260,10 +264,17 @@ int Blend::runBlend(MosaicFrame **oframes, MosaicFrame **rframes,
     // Set the v and u images to black
     memset(imgMos->V.ptr[0], 128, (imgMos->V.width * imgMos->V.height) << 1);
 
-    // Do the triangulation.  It returns a sorted list of edges
+    // Do the triangulation.  It returns a sorted list of edges.  The centers
+    // of a sweep are triangulated in order, others by divide and conquer.
+    DB_STAGE_BEGIN(DB_STAGE_SEAMS);
     SEdgeVector *edge;
-    int n = m_Triangulator.triangulate(&edge, numCenters, width, height);
+    int n = m_Triangulator.triangulateSweep(&edge, numCenters, width, height);
+    if (n < 0)
+    {
+        n = m_Triangulator.triangulate(&edge, numCenters, width, height);
+    }
     m_Triangulator.linkNeighbors(edge, n, numCenters);
+    DB_STAGE_END(DB_STAGE_SEAMS);
 
     // Bounding rectangle that determines the positioning of the rectangle that is
     // cropped out of the computed mosaic to get rid of the gray borders.
@@ -282,10 +293,15 @@ int Blend::runBlend(MosaicFrame **oframes, MosaicFrame **rframes,
 
     // Do merging and blending :
     ret = DoMergeAndBlend(frames, numCenters, width, height, *imgMos, fullRect,
-            cropping_rect, progress, cancelComputation);
+            cropping_rect, progress);
 
-    if (m_wb.blendingType == BLEND_TYPE_HORZ)
+    // A cancelled mosaic is thrown away, so do not spend time cropping it.
+    if (m_wb.blendingType == BLEND_TYPE_HORZ && ret != BLEND_RET_CANCELLED)
+    {
+        DB_STAGE_BEGIN(DB_STAGE_CROP);
         CropFinalMosaic(*imgMos, cropping_rect);
+        DB_STAGE_END(DB_STAGE_CROP);
+    }
 
 
     m_Triangulator.freeMemory();    // note: can be called even if delaunay_alloc() wasn't successful
@@ -373,7 +389,7 @@ int Blend::FillFramePyramid(MosaicFrame *mb)
 
 int Blend::DoMergeAndBlend(MosaicFrame **frames, int nsite,
              int width, int height, YUVinfo &imgMos, MosaicRect &rect,
-             MosaicRect &cropping_rect, float &progress, bool &cancelComputation)
+             MosaicRect &cropping_rect, MosaicProgress &progress)
 {
     m_pMosaicYPyr = NULL;
     m_pMosaicUPyr = NULL;
@@ -397,7 +413,7 @@ int Blend::DoMergeAndBlend(MosaicFrame **frames, int nsite,
     site_idx = 0;
     for(CSite *csite = m_AllSites; csite < esite; csite++)
     {
-        if(cancelComputation)
+        if(progress.isCancelled())
         {
             if (m_pMosaicVPyr) free(m_pMosaicVPyr);
             if (m_pMosaicUPyr) free(m_pMosaicUPyr);
@@ -554,7 +570,7 @@ int Blend::DoMergeAndBlend(MosaicFrame **frames, int nsite,
     site_idx = 0;
     for(CSite *csite = m_AllSites; csite < esite; csite++)
     {
-        if(cancelComputation)
+        if(progress.isCancelled())
         {
             if (m_pMosaicVPyr) free(m_pMosaicVPyr);
             if (m_pMosaicUPyr) free(m_pMosaicUPyr);
@@ -565,16 +581,28 @@ int Blend::DoMergeAndBlend(MosaicFrame **frames, int nsite,
         mb = csite->getMb();
 
 
-        if(FillFramePyramid(mb)!=BLEND_RET_OK)
+        DB_STAGE_BEGIN(DB_STAGE_PYRAMID);
+        int pyramidRet = FillFramePyramid(mb);
+        DB_STAGE_END(DB_STAGE_PYRAMID);
+
+        if(pyramidRet!=BLEND_RET_OK)
             return BLEND_RET_ERROR;
 
         ProcessPyramidForThisFrame(csite, mb->vcrect, mb->brect, rect, imgMos, mb->trs, site_idx);
 
-        progress += TIME_PERCENT_BLEND/nsite;
+        progress.add(TIME_PERCENT_BLEND/nsite);
 
         site_idx++;
     }
 
+    // The final blending cannot be interrupted, so check once more before it.
+    if(progress.isCancelled())
+    {
+        if (m_pMosaicVPyr) free(m_pMosaicVPyr);
+        if (m_pMosaicUPyr) free(m_pMosaicUPyr);
+        if (m_pMosaicYPyr) free(m_pMosaicYPyr);
+        return BLEND_RET_CANCELLED;
+    }
 
     // Blend
     PerformFinalBlending(imgMos, cropping_rect);
@@ -590,7 +618,7 @@ int Blend::DoMergeAndBlend(MosaicFrame **frames, int nsite,
     if (m_pMosaicUPyr) free(m_pMosaicUPyr);
     if (m_pMosaicYPyr) free(m_pMosaicYPyr);
 
-    progress += TIME_PERCENT_FINAL;
+    progress.add(TIME_PERCENT_FINAL);
 
     return BLEND_RET_OK;
 }
@@ -636,8 +664,13 @@ void Blend::CropFinalMosaic(YUVinfo &imgMos, MosaicRect &cropping_rect)
 
 int Blend::PerformFinalBlending(YUVinfo &imgMos, MosaicRect &cropping_rect)
 {
-    if (!PyramidShort::BorderExpand(m_pMosaicYPyr, m_wb.nlevs, 1) || !PyramidShort::BorderExpand(m_pMosaicUPyr, m_wb.nlevsC, 1) ||
-        !PyramidShort::BorderExpand(m_pMosaicVPyr, m_wb.nlevsC, 1))
+    DB_STAGE_BEGIN(DB_STAGE_PYRAMID);
+    bool expanded = PyramidShort::BorderExpand(m_pMosaicYPyr, m_wb.nlevs, 1) &&
+            PyramidShort::BorderExpand(m_pMosaicUPyr, m_wb.nlevsC, 1) &&
+            PyramidShort::BorderExpand(m_pMosaicVPyr, m_wb.nlevsC, 1);
+    DB_STAGE_END(DB_STAGE_PYRAMID);
+
+    if (!expanded)
     {
       LOGE("Error: Could not BorderExpand!");
       return BLEND_RET_ERROR;
@@ -717,6 +750,8 @@ int Blend::PerformFinalBlending(YUVinfo &imgMos, MosaicRect &cropping_rect)
         }
     }
 
+    DB_STAGE_BEGIN(DB_STAGE_CROP);
+
     if(m_wb.horizontal)
     {
         //Scan through each row and increment top if the row contains any gray
@@ -797,12 +832,14 @@ int Blend::PerformFinalBlending(YUVinfo &imgMos, MosaicRect &cropping_rect)
 
     RoundingCroppingSizeToMultipleOf8(cropping_rect);
 
+    DB_STAGE_END(DB_STAGE_CROP);
+
     for(int j=0; j<imgMos.Y.height; j++)
     {
-        delete b[j];
+        delete[] b[j];
     }
 
-    delete b;
+    delete[] b;
 
     return BLEND_RET_OK;
 }
@@ -24,6 +24,7 @@
 #include "MosaicTypes.h"
 #include "Pyramid.h"
 #include "Delaunay.h"
+#include "MosaicProgress.h"
 
 #define BLEND_RANGE_DEFAULT 6
 #define BORDER 8
@@ -74,7 +75,7 @@ public:
   int initialize(int blendingType, int stripType, int frame_width, int frame_height);
 
   int runBlend(MosaicFrame **frames, MosaicFrame **rframes, int frames_size, ImageType &imageMosaicYVU,
-        int &mosaicWidth, int &mosaicHeight, float &progress, bool &cancelComputation);
+        int &mosaicWidth, int &mosaicHeight, MosaicProgress &progress);
 
 protected:
 
@@ -104,7 +105,7 @@ protected:
   void ClipBlendRect(CSite *csite, BlendRect &brect);
   void AlignToMiddleFrame(MosaicFrame **frames, int frames_size);
 
-  int  DoMergeAndBlend(MosaicFrame **frames, int nsite,  int width, int height, YUVinfo &imgMos, MosaicRect &rect, MosaicRect &cropping_rect, float &progress, bool &cancelComputation);
+  int  DoMergeAndBlend(MosaicFrame **frames, int nsite,  int width, int height, YUVinfo &imgMos, MosaicRect &rect, MosaicRect &cropping_rect, MosaicProgress &progress);
   void ComputeMask(CSite *csite, BlendRect &vcrect, BlendRect &brect, MosaicRect &rect, YUVinfo &imgMos, int site_idx);
   void ProcessPyramidForThisFrame(CSite *csite, BlendRect &vcrect, BlendRect &brect, MosaicRect &rect, YUVinfo &imgMos, double trs[3][3], int site_idx);
 
@@ -119,8 +120,8 @@ protected:
   void CropFinalMosaic(YUVinfo &imgMos, MosaicRect &cropping_rect);
 
 private:
-   static const float LIMIT_SIZE_MULTIPLIER = 5.0f * 2.0f;
-   static const float LIMIT_HEIGHT_MULTIPLIER = 2.5f;
+   static const float LIMIT_SIZE_MULTIPLIER;
+   static const float LIMIT_HEIGHT_MULTIPLIER;
    int MosaicSizeCheck(float sizeMultiplier, float heightMultiplier);
    void RoundingCroppingSizeToMultipleOf8(MosaicRect& rect);
 };
@@ -194,13 +194,26 @@ CSite *CDelaunay::allocMemory(int n)
   size = ((sizeof(CSite) + sizeof(SitePointer)) * n +
           (sizeof(SitePointer) + sizeof(EdgePointer)) * 12
           ) * n;
+  // Sweep triangulation: at most 2n triangles, the hull and the counts
+  size += (sizeof(double) * 2 + sizeof(STriangle) * 2 + sizeof(int) +
+           sizeof(SitePointer) * 2 +
+           sizeof(TrianglePointer) * 3) * n + sizeof(int);
   if (!(sa = (CSite*) malloc(size))) {
     return NULL;
   }
-  sp = (SitePointer *) (sa + n);
+  su = (double *) (sa + n);
+  sv = su + n;
+  tri = (STriangle *) (sv + n);
+  ecount = (int *) (tri + 2 * n);
+  sp = (SitePointer *) (ecount + n + 1);
   ev = (SEdgeVector *) (org = sp + n);
   next = (EdgePointer *) (org + 12 * n);
   ei = (struct EDGE_INFO *) (next + 12 * n);
+  hnext = (SitePointer *) (next + 12 * n);
+  hprev = hnext + n;
+  htri = (TrianglePointer *) (hprev + n);
+  tstack = htri + n;
+  nsites = n;
   return sa;
 }
 
@@ -307,7 +320,12 @@ int CDelaunay::ycmpsp(int i, int j)
 
 int CDelaunay::cmpev(int i, int j)
 {
-  return (ev[i].first - ev[j].first);
+  // The order of the neighbors of a site changes the clipping of its blend
+  // rectangle, so it is fixed, as in sweepEdgeList()
+  if (ev[i].first != ev[j].first) {
+    return (ev[i].first - ev[j].first);
+  }
+  return (ev[i].second - ev[j].second);
 }
 
 void CDelaunay::swapsp(int i, int j)
@@ -631,3 +649,325 @@ void CDelaunay::linkNeighbors(SEdgeVector *edge, int nedge, int nsite)
     }
   }
 }
+
+//
+// Sweep triangulation.
+//
+// The sites of a panorama sweep are in frame order along the sweep, nearly on
+// a line. Inserted in that order, every site is outside the convex hull of the
+// ones before it and sees only a few hull edges next to the last one, and the
+// edge flips that make the new triangles Delaunay stay near it. This builds
+// the triangulation in time linear in practice, in flat arrays, without the
+// sort and the quad-edge splicing of the divide and conquer.
+//
+
+// Relative size below which a determinant is taken as zero: the sign of a
+// near-degenerate test could differ from the one of the general path.
+#define SWEEP_EPSILON 1e-9
+
+// Triangulate the sites of a sweep, with the same edges and edge list as
+// triangulate(). Returns -1, without touching the edge list, if the sites are
+// not monotone along x or y in order, or are near a degenerate configuration
+// (collinear or cocircular), where triangulate() is to be used instead.
+int CDelaunay::triangulateSweep(SEdgeVector **edges, int n_sites, int width, int height)
+{
+  int i, step, inc, dec, axis;
+
+  if (n_sites < 3 || n_sites > nsites) {
+    return -1;
+  }
+  for (axis = 0; axis < 2; axis++) {
+    inc = dec = 1;
+    for (i = 0; i < n_sites; i++) {
+      su[i] = axis ? sa[i].Y() : sa[i].X();
+      sv[i] = axis ? sa[i].X() : sa[i].Y();
+      if (i > 0) {
+        inc &= su[i] > su[i - 1];
+        dec &= su[i] < su[i - 1];
+      }
+    }
+    if (inc || dec) {
+      break;
+    }
+  }
+  if (axis == 2) {
+    return -1;
+  }
+
+  // Insert the sites by increasing u
+  SitePointer s0 = inc ? 0 : n_sites - 1;
+  step = inc ? 1 : -1;
+  SitePointer s1 = s0 + step, s2 = s1 + step;
+  ntri = 0;
+  switch (sweepOrient(s0, s1, s2)) {
+    case 1:
+      newTriangle(s0, s1, s2);
+      break;
+    case -1:
+      newTriangle(s0, s2, s1);
+      break;
+    default:
+      return -1;
+  }
+  for (i = 0; i < 3; i++) {
+    setAdj(0, i, NYL);
+    hnext[tri[0].v[i]] = tri[0].v[(i + 1) % 3];
+    hprev[tri[0].v[(i + 1) % 3]] = tri[0].v[i];
+  }
+
+  SitePointer last = s2;
+  for (i = 3; i < n_sites; i++) {
+    SitePointer p = last + step;
+    if (!insertSweepSite(p, last)) {
+      return -1;
+    }
+    last = p;
+  }
+  if (!checkSweepTriangulation(last)) {
+    return -1;
+  }
+
+  *edges = ev;
+  return sweepEdgeList(width, height);
+}
+
+// 1 if A, B, C turn counterclockwise in (u, v), -1 if clockwise, 0 if nearly
+// collinear
+int CDelaunay::sweepOrient(SitePointer a, SitePointer b, SitePointer c)
+{
+  double acu = su[a] - su[c], acv = sv[a] - sv[c];
+  double bcu = su[b] - su[c], bcv = sv[b] - sv[c];
+  double val = acu * bcv - bcu * acv;
+  double mag = fabs(acu * bcv) + fabs(bcu * acv);
+
+  if (fabs(val) <= SWEEP_EPSILON * mag) {
+    return 0;
+  }
+  return (val > 0.0) ? 1 : -1;
+}
+
+// 1 if D is inside the circle through the counterclockwise A, B, C, -1 if
+// outside, 0 if nearly on it
+int CDelaunay::sweepIncircle(SitePointer a, SitePointer b, SitePointer c, SitePointer d)
+{
+  double adu = su[a] - su[d], adv = sv[a] - sv[d];
+  double bdu = su[b] - su[d], bdv = sv[b] - sv[d];
+  double cdu = su[c] - su[d], cdv = sv[c] - sv[d];
+  double nad = adu * adu + adv * adv;
+  double nbd = bdu * bdu + bdv * bdv;
+  double ncd = cdu * cdu + cdv * cdv;
+  double val = nad * (bdu * cdv - bdv * cdu) + nbd * (cdu * adv - cdv * adu) +
+      ncd * (adu * bdv - adv * bdu);
+  double mag = nad * (fabs(bdu * cdv) + fabs(bdv * cdu)) +
+      nbd * (fabs(cdu * adv) + fabs(cdv * adu)) +
+      ncd * (fabs(adu * bdv) + fabs(adv * bdu));
+
+  if (fabs(val) <= SWEEP_EPSILON * mag) {
+    return 0;
+  }
+  return (val > 0.0) ? 1 : -1;
+}
+
+TrianglePointer CDelaunay::newTriangle(SitePointer a, SitePointer b, SitePointer c)
+{
+  STriangle *t = tri + ntri;
+  t->v[0] = a;
+  t->v[1] = b;
+  t->v[2] = c;
+  return (TrianglePointer) ntri++;
+}
+
+// Set the neighbor of T across the edge opposite its vertex I; an edge without
+// one is on the hull, where it starts at v[I+1]
+void CDelaunay::setAdj(TrianglePointer t, int i, TrianglePointer u)
+{
+  tri[t].adj[i] = u;
+  if (u == NYL) {
+    htri[tri[t].v[(i + 1) % 3]] = t;
+  }
+}
+
+void CDelaunay::replaceAdj(TrianglePointer t, TrianglePointer from, TrianglePointer to)
+{
+  if (t == NYL) {
+    return;
+  }
+  for (int i = 0; i < 3; i++) {
+    if (tri[t].adj[i] == from) {
+      tri[t].adj[i] = to;
+      return;
+    }
+  }
+}
+
+// Add P, beyond all the sites so far along u, to the triangulation whose last
+// site is LAST
+bool CDelaunay::insertSweepSite(SitePointer p, SitePointer last)
+{
+  SitePointer lo = last, hi = last;
+  int o;
+
+  // The hull edges visible from P are a chain from LO to HI through LAST
+  while ((o = sweepOrient(hi, hnext[hi], p)) < 0) {
+    hi = hnext[hi];
+  }
+  if (o == 0) {
+    return false;
+  }
+  while ((o = sweepOrient(hprev[lo], lo, p)) < 0) {
+    lo = hprev[lo];
+  }
+  if (o == 0 || lo == hi) {
+    return false;
+  }
+
+  // A triangle on every visible edge, P first and the edge reversed, joined
+  // to the triangle inside the edge and to each other
+  int nstack = 0;
+  TrianglePointer prev = NYL;
+  for (SitePointer e = lo; e != hi; e = hnext[e]) {
+    TrianglePointer inside = htri[e];
+    TrianglePointer t = newTriangle(p, hnext[e], e);
+    setAdj(t, 0, inside);
+    for (int i = 0; i < 3; i++) {
+      if (tri[inside].v[(i + 1) % 3] == e) {
+        tri[inside].adj[i] = t;
+      }
+    }
+    setAdj(t, 1, prev);
+    if (prev != NYL) {
+      tri[prev].adj[2] = t;
+    }
+    tstack[nstack++] = t;
+    prev = t;
+  }
+  setAdj(prev, 2, NYL);
+  hnext[lo] = p;
+  hprev[p] = lo;
+  hnext[p] = hi;
+  hprev[hi] = p;
+
+  return legalize(nstack);
+}
+
+// Flip the edges opposite the new site, v[0] of the triangles on the stack,
+// until they are all Delaunay
+bool CDelaunay::legalize(int depth)
+{
+  while (depth > 0) {
+    TrianglePointer t = tstack[--depth];
+    TrianglePointer u = tri[t].adj[0];
+    if (u == NYL) {
+      continue;
+    }
+    int j;
+    for (j = 0; tri[u].adj[j] != t; j++)
+      ;
+    SitePointer p = tri[t].v[0], a = tri[t].v[1], b = tri[t].v[2];
+    SitePointer d = tri[u].v[j];
+    int in = sweepIncircle(p, a, b, d);
+    if (in == 0) {
+      return false;
+    }
+    if (in < 0) {
+      continue;
+    }
+
+    // (p, a, b) and (b, a, d) become (p, a, d) and (p, d, b)
+    TrianglePointer ta = tri[t].adj[1], tb = tri[t].adj[2];
+    TrianglePointer ua = tri[u].adj[(j + 1) % 3], ub = tri[u].adj[(j + 2) % 3];
+    tri[t].v[2] = d;
+    tri[u].v[0] = p;
+    tri[u].v[1] = d;
+    tri[u].v[2] = b;
+    setAdj(t, 0, ua);
+    setAdj(t, 1, u);
+    setAdj(t, 2, tb);
+    setAdj(u, 0, ub);
+    setAdj(u, 1, ta);
+    setAdj(u, 2, t);
+    replaceAdj(ua, u, t);
+    replaceAdj(ta, t, u);
+
+    if (depth + 2 > 2 * nsites) {
+      return false;
+    }
+    tstack[depth++] = t;
+    tstack[depth++] = u;
+  }
+  return true;
+}
+
+// Check that every edge is Delaunay and the hull strictly convex by a margin,
+// so that the triangulation is the one triangulate() builds
+bool CDelaunay::checkSweepTriangulation(SitePointer last)
+{
+  for (int t = 0; t < ntri; t++) {
+    for (int i = 0; i < 3; i++) {
+      TrianglePointer u = tri[t].adj[i];
+      if (u > t) {
+        int j;
+        for (j = 0; tri[u].adj[j] != t; j++)
+          ;
+        if (sweepIncircle(tri[t].v[0], tri[t].v[1], tri[t].v[2], tri[u].v[j]) >= 0) {
+          return false;
+        }
+      }
+    }
+  }
+  SitePointer s = last;
+  do {
+    if (sweepOrient(hprev[s], s, hnext[s]) <= 0) {
+      return false;
+    }
+    s = hnext[s];
+  } while (s != last);
+  return true;
+}
+
+// Fill the edge list as constructList() does: both directions of every edge
+// between sites at most WIDTH and HEIGHT apart, sorted by site and neighbor
+int CDelaunay::sweepEdgeList(int width, int height)
+{
+  SEdgeVector *tmp = (SEdgeVector *) next;
+  int c = 0, i, t;
+
+  for (t = 0; t < ntri; t++) {
+    for (i = 0; i < 3; i++) {
+      if (tri[t].adj[i] == NYL || tri[t].adj[i] > t) {
+        SitePointer a = tri[t].v[(i + 1) % 3], b = tri[t].v[(i + 2) % 3];
+        if ((int) fabs(sa[a].getVCenter().x - sa[b].getVCenter().x) <= width &&
+            (int) fabs(sa[a].getVCenter().y - sa[b].getVCenter().y) <= height) {
+          tmp[c].first = a;
+          tmp[c++].second = b;
+          tmp[c].first = b;
+          tmp[c++].second = a;
+        }
+      }
+    }
+  }
+
+  // Counting sort by neighbor, then stably by site
+  memset(ecount, 0, (nsites + 1) * sizeof(int));
+  for (i = 0; i < c; i++) {
+    ecount[tmp[i].second + 1]++;
+  }
+  for (i = 0; i < nsites; i++) {
+    ecount[i + 1] += ecount[i];
+  }
+  for (i = 0; i < c; i++) {
+    ev[ecount[tmp[i].second]++] = tmp[i];
+  }
+  memset(ecount, 0, (nsites + 1) * sizeof(int));
+  for (i = 0; i < c; i++) {
+    ecount[ev[i].first + 1]++;
+  }
+  for (i = 0; i < nsites; i++) {
+    ecount[i + 1] += ecount[i];
+  }
+  for (i = 0; i < c; i++) {
+    tmp[ecount[ev[i].first]++] = ev[i];
+  }
+  memcpy(ev, tmp, c * sizeof(SEdgeVector));
+  return c;
+}
@@ -45,6 +45,13 @@
 typedef short SitePointer;
 typedef short TrianglePointer;
 
+// Triangle of the sweep triangulation, see CDelaunay::triangulateSweep()
+typedef struct
+{
+  SitePointer v[3];        // counterclockwise
+  TrianglePointer adj[3];  // across the edge opposite v[i], -1 on the hull
+} STriangle;
+
 class CDelaunay
 {
 private:
@@ -60,6 +67,18 @@ private:
   EdgePointer nextEdge;
   EdgePointer availEdge;
 
+  // Sweep triangulation: site coordinates along and across the sweep,
+  // triangles, convex hull as a counterclockwise list with the triangle
+  // inside each hull edge, and edge sorting counts
+  double *su, *sv;
+  STriangle *tri;
+  int ntri;
+  SitePointer *hnext, *hprev;
+  TrianglePointer *htri;
+  TrianglePointer *tstack;
+  int *ecount;
+  int nsites;
+
 private:
   void build(int lo, int hi, EdgePointer *le, EdgePointer *re, int rows);
   void buildTriangulation(int size);
@@ -99,6 +118,16 @@ private:
   int incircle(SitePointer a, SitePointer b, SitePointer c, SitePointer d);
   int constructList(EdgePointer e, int width, int height);
 
+  int sweepOrient(SitePointer a, SitePointer b, SitePointer c);
+  int sweepIncircle(SitePointer a, SitePointer b, SitePointer c, SitePointer d);
+  TrianglePointer newTriangle(SitePointer a, SitePointer b, SitePointer c);
+  void setAdj(TrianglePointer t, int i, TrianglePointer u);
+  void replaceAdj(TrianglePointer t, TrianglePointer from, TrianglePointer to);
+  bool insertSweepSite(SitePointer p, SitePointer last);
+  bool legalize(int depth);
+  bool checkSweepTriangulation(SitePointer last);
+  int sweepEdgeList(int width, int height);
+
 public:
   CDelaunay();
   ~CDelaunay();
@@ -106,6 +135,7 @@ public:
   CSite *allocMemory(int nsite);
   void freeMemory();
   int triangulate(SEdgeVector **edge, int nsite, int width, int height);
+  int triangulateSweep(SEdgeVector **edge, int nsite, int width, int height);
   void linkNeighbors(SEdgeVector *edge, int nedge, int nsite);
 };
 
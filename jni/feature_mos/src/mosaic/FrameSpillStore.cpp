@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// FrameSpillStore.cpp
+
+#include <errno.h>
+#include <fcntl.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
+
+#include "FrameSpillStore.h"
+
+#include "Log.h"
+#define LOG_TAG "FrameSpillStore"
+
+// ImageUtils::allocateImage() over-allocates every image by this many bytes
+// and some of the processing code relies on it; keep the same slack per slot.
+static const size_t SLOT_OVERALLOCATION = 256;
+
+FrameSpillStore::FrameSpillStore()
+{
+    base = NULL;
+    slotSize = 0;
+    mappedSize = 0;
+    maxFrames = 0;
+    fd = -1;
+    filePath = NULL;
+    kept = false;
+}
+
+FrameSpillStore::~FrameSpillStore()
+{
+    close();
+}
+
+bool FrameSpillStore::open(const char *path, int width, int height, int maxFrames,
+        bool persistent)
+{
+    if (!mapFile(path, width, height, maxFrames, true))
+        return false;
+
+    // The mapping keeps the file alive. Unlinking it now frees the space even
+    // if the process dies, and lets another store open the same path while
+    // this one is still in use.
+    if (!persistent)
+    {
+        unlink(filePath);
+        free(filePath);
+        filePath = NULL;
+    }
+
+    LOGI("Spill store %s: %d frames of %u bytes", path, maxFrames,
+            (unsigned int) slotSize);
+    return true;
+}
+
+bool FrameSpillStore::reopen(const char *path, int width, int height, int maxFrames)
+{
+    if (!mapFile(path, width, height, maxFrames, false))
+        return false;
+
+    kept = true;
+    return true;
+}
+
+bool FrameSpillStore::mapFile(const char *path, int width, int height, int maxFrames,
+        bool create)
+{
+    close();
+
+    size_t pageSize = (size_t) sysconf(_SC_PAGESIZE);
+    size_t frameSize = (size_t) width * height * ImageUtils::IMAGE_TYPE_NUM_CHANNELS
+            + SLOT_OVERALLOCATION;
+
+    slotSize = (frameSize + pageSize - 1) & ~(pageSize - 1);
+    mappedSize = slotSize * maxFrames;
+
+    fd = ::open(path, create ? O_RDWR | O_CREAT | O_TRUNC : O_RDWR, 0600);
+    if (fd < 0)
+    {
+        LOGE("Cannot open spill file %s: %s", path, strerror(errno));
+        return false;
+    }
+
+    filePath = strdup(path);
+
+    if (create)
+    {
+        // Reserve the blocks of every slot. A write through the mapping into
+        // a hole the file system has no room for raises SIGBUS, so the store
+        // fails here instead, and the frames are kept in memory.
+        int error = posix_fallocate(fd, 0, (off_t) mappedSize);
+        if (error != 0)
+        {
+            LOGE("Cannot reserve %u bytes for spill file %s: %s",
+                    (unsigned int) mappedSize, path, strerror(error));
+            close();
+            return false;
+        }
+    }
+    else
+    {
+        struct stat st;
+        if (fstat(fd, &st) != 0 || (size_t) st.st_size < mappedSize)
+        {
+            LOGE("Spill file %s is smaller than %u bytes", path,
+                    (unsigned int) mappedSize);
+            // Not ours to delete.
+            kept = true;
+            close();
+            return false;
+        }
+    }
+
+    void *addr = mmap(NULL, mappedSize, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
+    if (addr == MAP_FAILED)
+    {
+        LOGE("Cannot map spill file %s: %s", path, strerror(errno));
+        kept = !create;
+        close();
+        return false;
+    }
+
+    base = (ImageType) addr;
+    this->maxFrames = maxFrames;
+    return true;
+}
+
+bool FrameSpillStore::moveTo(const char *path)
+{
+    if (base == NULL || filePath == NULL)
+        return false;
+
+    if (strcmp(path, filePath) != 0 && rename(filePath, path) != 0)
+    {
+        LOGE("Cannot move spill file %s to %s: %s", filePath, path, strerror(errno));
+        return false;
+    }
+
+    free(filePath);
+    filePath = strdup(path);
+    kept = true;
+    return true;
+}
+
+void FrameSpillStore::close()
+{
+    if (base != NULL)
+    {
+        munmap(base, mappedSize);
+        base = NULL;
+    }
+
+    if (fd >= 0)
+    {
+        ::close(fd);
+        fd = -1;
+    }
+
+    if (filePath != NULL)
+    {
+        if (!kept)
+            unlink(filePath);
+        free(filePath);
+        filePath = NULL;
+    }
+    kept = false;
+
+    mappedSize = 0;
+    maxFrames = 0;
+}
+
+ImageType FrameSpillStore::getFrame(int index)
+{
+    if (base == NULL || index < 0 || index >= maxFrames)
+        return NULL;
+
+    return base + slotSize * index;
+}
+
+void FrameSpillStore::release(int index)
+{
+    ImageType frame = getFrame(index);
+    if (frame == NULL)
+        return;
+
+    // The mapping is shared, so dirty pages stay in the page cache after
+    // MADV_DONTNEED and are written back to the file; they only leave our
+    // resident set.
+    msync(frame, slotSize, MS_ASYNC);
+    madvise(frame, slotSize, MADV_DONTNEED);
+}
+
+void FrameSpillStore::prefetch(int index)
+{
+    ImageType frame = getFrame(index);
+    if (frame == NULL)
+        return;
+
+    madvise(frame, slotSize, MADV_WILLNEED);
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// FrameSpillStore.h
+
+#ifndef FRAME_SPILL_STORE_H
+#define FRAME_SPILL_STORE_H
+
+#include "ImageUtils.h"
+
+/**
+ *  Fixed-size store of YVU frames backed by a memory-mapped file.
+ *
+ *  Every frame occupies a page-aligned slot in the file, so a frame that has
+ *  been written can be dropped from the resident set with release() and is
+ *  paged back in by the kernel the next time it is read (i.e. during the
+ *  final blending). The disk space of every slot is reserved when the file
+ *  is created, so that writing a frame cannot fail once the store is open.
+ *
+ *  A persistent store keeps its file in the file system while it is open, so
+ *  that a saved MosaicSession can refer to the frames in it (see moveTo()).
+ */
+class FrameSpillStore
+{
+public:
+
+  FrameSpillStore();
+  ~FrameSpillStore();
+
+  /**
+   *  Creates the spill file, maps it into memory and, unless persistent is
+   *  set, removes it from the file system again, so the path can be reused
+   *  right away.
+   *  \param path         Path of the spill file, typically in the app cache dir.
+   *  \param width        Width of the frames to be stored.
+   *  \param height       Height of the frames to be stored.
+   *  \param maxFrames    Number of frame slots to reserve.
+   *  \param persistent   Whether to keep the file until close(); the path
+   *                      must then differ from that of any other open store.
+   *  \return             true on success, false if the file could not be
+   *                      created, its space reserved or mapped.
+   */
+  bool open(const char *path, int width, int height, int maxFrames,
+          bool persistent = false);
+
+  /**
+   *  Maps a spill file that has been moved with moveTo(), keeping its frames.
+   *  The file is kept by close().
+   *  \return             false if the file is missing or too small.
+   */
+  bool reopen(const char *path, int width, int height, int maxFrames);
+
+  /**
+   *  Renames the file of a persistent store, which close() then keeps, e.g.
+   *  next to a session that refers to it.
+   *  \return             false if the store is not persistent or the file
+   *                      could not be renamed.
+   */
+  bool moveTo(const char *path);
+
+  /**
+   *  Unmaps the spill file, which frees its space unless it has been moved
+   *  or reopened. Safe to call if open() failed.
+   */
+  void close();
+
+  /**
+   *  Returns a pointer to the given frame slot, usable as a regular YVU
+   *  ImageType of the configured size. Returns NULL if index is out of range.
+   */
+  ImageType getFrame(int index);
+
+  /**
+   *  Schedules the write-back of the given frame slot and drops its pages from
+   *  the resident set. The contents stay valid and are paged back in on access.
+   */
+  void release(int index);
+
+  /**
+   *  Hints the kernel to start paging the given frame slot back in.
+   */
+  void prefetch(int index);
+
+  bool isOpen() { return base != NULL; }
+  int getMaxFrames() { return maxFrames; }
+
+protected:
+
+  ImageType base;
+  size_t slotSize;
+  size_t mappedSize;
+  int maxFrames;
+  int fd;
+  char *filePath;
+  // Whether close() leaves the file in the file system.
+  bool kept;
+
+  bool mapFile(const char *path, int width, int height, int maxFrames, bool create);
+};
+
+#endif
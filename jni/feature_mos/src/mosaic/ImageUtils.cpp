@@ -24,6 +24,7 @@
 #include <sys/time.h>
 
 #include "ImageUtils.h"
+#include "db_stage_timer.h"
 
 void ImageUtils::rgba2yvu(ImageType out, ImageType in, int width, int height)
 {
@@ -78,6 +79,8 @@ void ImageUtils::rgb2yvu(ImageType out, ImageType in, int width, int height)
   ImageType uimg = vimg + width*height;
   ImageType image = in;
 
+  DB_STAGE_BEGIN(DB_STAGE_YUV_CONVERSION);
+
   for (int ii = 0; ii < height; ii++) {
     for (int ij = 0; ij < width; ij++) {
       r = (*image++);
@@ -111,6 +114,8 @@ void ImageUtils::rgb2yvu(ImageType out, ImageType in, int width, int height)
       vimg++;
     }
   }
+
+  DB_STAGE_END(DB_STAGE_YUV_CONVERSION);
 }
 
 ImageType ImageUtils::rgb2gray(ImageType in, int width, int height)
@@ -283,7 +288,7 @@ ImageType ImageUtils::readBinaryPPM(const char *filename, int &width, int &heigh
 
   FILE *imgin = NULL;
   int mval=0, format=0, eret;
-  ImageType ret = IMAGE_TYPE_NOIMAGE;
+  ImageType ret = NULL;
 
   imgin = fopen(filename, "r");
   if (imgin == NULL) {
@@ -0,0 +1,610 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// JpegStripEncoder.cpp
+
+#include <stdlib.h>
+#include <string.h>
+
+#include "JpegStripEncoder.h"
+
+#include "Log.h"
+#define LOG_TAG "JpegStripEncoder"
+
+// Position in the zig-zag sequence of each coefficient in natural order.
+static const unsigned char ZIGZAG[64] =
+{
+    0,  1,  5,  6, 14, 15, 27, 28,
+    2,  4,  7, 13, 16, 26, 29, 42,
+    3,  8, 12, 17, 25, 30, 41, 43,
+    9, 11, 18, 24, 31, 40, 44, 53,
+   10, 19, 23, 32, 39, 45, 52, 54,
+   20, 22, 33, 38, 46, 51, 55, 60,
+   21, 34, 37, 47, 50, 56, 59, 61,
+   35, 36, 48, 49, 57, 58, 62, 63
+};
+
+// Quantization tables from the JPEG standard (Annex K), in natural order.
+static const unsigned char STD_LUMINANCE_QT[64] =
+{
+    16, 11, 10, 16, 24, 40, 51, 61,
+    12, 12, 14, 19, 26, 58, 60, 55,
+    14, 13, 16, 24, 40, 57, 69, 56,
+    14, 17, 22, 29, 51, 87, 80, 62,
+    18, 22, 37, 56, 68,109,103, 77,
+    24, 35, 55, 64, 81,104,113, 92,
+    49, 64, 78, 87,103,121,120,101,
+    72, 92, 95, 98,112,100,103, 99
+};
+
+static const unsigned char STD_CHROMINANCE_QT[64] =
+{
+    17, 18, 24, 47, 99, 99, 99, 99,
+    18, 21, 26, 66, 99, 99, 99, 99,
+    24, 26, 56, 99, 99, 99, 99, 99,
+    47, 66, 99, 99, 99, 99, 99, 99,
+    99, 99, 99, 99, 99, 99, 99, 99,
+    99, 99, 99, 99, 99, 99, 99, 99,
+    99, 99, 99, 99, 99, 99, 99, 99,
+    99, 99, 99, 99, 99, 99, 99, 99
+};
+
+// Huffman tables from the JPEG standard (Annex K): number of codes of each
+// length from 1 to 16, followed by the symbols.
+static const unsigned char STD_DC_LUMINANCE_BITS[16] =
+    { 0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0 };
+static const unsigned char STD_DC_LUMINANCE_VALUES[12] =
+    { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11 };
+
+static const unsigned char STD_DC_CHROMINANCE_BITS[16] =
+    { 0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0 };
+static const unsigned char STD_DC_CHROMINANCE_VALUES[12] =
+    { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11 };
+
+static const unsigned char STD_AC_LUMINANCE_BITS[16] =
+    { 0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d };
+static const unsigned char STD_AC_LUMINANCE_VALUES[162] =
+{
+    0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06,
+    0x13, 0x51, 0x61, 0x07, 0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08,
+    0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0, 0x24, 0x33, 0x62, 0x72,
+    0x82, 0x09, 0x0a, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+    0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45,
+    0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59,
+    0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a, 0x73, 0x74, 0x75,
+    0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+    0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3,
+    0xa4, 0xa5, 0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6,
+    0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9,
+    0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+    0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2, 0xf3, 0xf4,
+    0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa
+};
+
+static const unsigned char STD_AC_CHROMINANCE_BITS[16] =
+    { 0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77 };
+static const unsigned char STD_AC_CHROMINANCE_VALUES[162] =
+{
+    0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41,
+    0x51, 0x07, 0x61, 0x71, 0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91,
+    0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0, 0x15, 0x62, 0x72, 0xd1,
+    0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+    0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44,
+    0x45, 0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58,
+    0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a, 0x73, 0x74,
+    0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+    0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a,
+    0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4,
+    0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5, 0xc6, 0xc7,
+    0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+    0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2, 0xf3, 0xf4,
+    0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa
+};
+
+// Scale factors of the AAN forward DCT, times sqrt(8).
+static const float AAN_SCALE[8] =
+{
+    1.0f * 2.828427125f, 1.387039845f * 2.828427125f,
+    1.306562965f * 2.828427125f, 1.175875602f * 2.828427125f,
+    1.0f * 2.828427125f, 0.785694958f * 2.828427125f,
+    0.541196100f * 2.828427125f, 0.275899379f * 2.828427125f
+};
+
+static const int MARKER_SOI = 0xd8;
+static const int MARKER_EOI = 0xd9;
+static const int MARKER_APP0 = 0xe0;
+static const int MARKER_DQT = 0xdb;
+static const int MARKER_SOF0 = 0xc0;
+static const int MARKER_DHT = 0xc4;
+static const int MARKER_SOS = 0xda;
+
+// Builds the canonical Huffman codes of a standard table (JPEG Annex C).
+static void buildHuffmanTable(const unsigned char *bits, const unsigned char *values,
+        unsigned short *codes, unsigned char *sizes)
+{
+    int code = 0;
+    int k = 0;
+    for (int length = 1; length <= 16; length++)
+    {
+        for (int i = 0; i < bits[length - 1]; i++)
+        {
+            codes[values[k]] = (unsigned short) code;
+            sizes[values[k]] = (unsigned char) length;
+            code++;
+            k++;
+        }
+        code <<= 1;
+    }
+}
+
+static void buildQuantizationTable(const unsigned char *stdTable, int scale,
+        unsigned char *qtable, float *fdtbl)
+{
+    for (int i = 0; i < 64; i++)
+    {
+        int q = (stdTable[i] * scale + 50) / 100;
+        q = (q < 1) ? 1 : ((q > 255) ? 255 : q);
+        qtable[ZIGZAG[i]] = (unsigned char) q;
+    }
+
+    for (int row = 0, k = 0; row < 8; row++)
+    {
+        for (int col = 0; col < 8; col++, k++)
+        {
+            fdtbl[k] = 1.0f / (qtable[ZIGZAG[k]] * AAN_SCALE[row] * AAN_SCALE[col]);
+        }
+    }
+}
+
+// One dimensional AAN forward DCT over 8 samples spaced by stride.
+static inline void forwardDCT(float *d, int stride)
+{
+    float tmp0 = d[0] + d[7 * stride];
+    float tmp7 = d[0] - d[7 * stride];
+    float tmp1 = d[stride] + d[6 * stride];
+    float tmp6 = d[stride] - d[6 * stride];
+    float tmp2 = d[2 * stride] + d[5 * stride];
+    float tmp5 = d[2 * stride] - d[5 * stride];
+    float tmp3 = d[3 * stride] + d[4 * stride];
+    float tmp4 = d[3 * stride] - d[4 * stride];
+
+    // Even part
+    float tmp10 = tmp0 + tmp3;
+    float tmp13 = tmp0 - tmp3;
+    float tmp11 = tmp1 + tmp2;
+    float tmp12 = tmp1 - tmp2;
+
+    d[0] = tmp10 + tmp11;
+    d[4 * stride] = tmp10 - tmp11;
+
+    float z1 = (tmp12 + tmp13) * 0.707106781f;
+    d[2 * stride] = tmp13 + z1;
+    d[6 * stride] = tmp13 - z1;
+
+    // Odd part
+    tmp10 = tmp4 + tmp5;
+    tmp11 = tmp5 + tmp6;
+    tmp12 = tmp6 + tmp7;
+
+    float z5 = (tmp10 - tmp12) * 0.382683433f;
+    float z2 = tmp10 * 0.541196100f + z5;
+    float z4 = tmp12 * 1.306562965f + z5;
+    float z3 = tmp11 * 0.707106781f;
+
+    float z11 = tmp7 + z3;
+    float z13 = tmp7 - z3;
+
+    d[5 * stride] = z13 + z2;
+    d[3 * stride] = z13 - z2;
+    d[stride] = z11 + z4;
+    d[7 * stride] = z11 - z4;
+}
+
+JpegStripEncoder::JpegStripEncoder()
+{
+    image = NULL;
+    width = 0;
+    height = 0;
+    nextRow = 0;
+    headerWritten = false;
+    finished = false;
+    bitBuffer = 0;
+    bitCount = 0;
+    pending = NULL;
+    pendingSize = 0;
+    pendingPos = 0;
+    pendingCapacity = 0;
+    peakCapacity = 0;
+
+    buildHuffmanTable(STD_DC_LUMINANCE_BITS, STD_DC_LUMINANCE_VALUES, dcCodeY, dcSizeY);
+    buildHuffmanTable(STD_DC_CHROMINANCE_BITS, STD_DC_CHROMINANCE_VALUES, dcCodeC, dcSizeC);
+    buildHuffmanTable(STD_AC_LUMINANCE_BITS, STD_AC_LUMINANCE_VALUES, acCodeY, acSizeY);
+    buildHuffmanTable(STD_AC_CHROMINANCE_BITS, STD_AC_CHROMINANCE_VALUES, acCodeC, acSizeC);
+}
+
+JpegStripEncoder::~JpegStripEncoder()
+{
+    end();
+}
+
+bool JpegStripEncoder::begin(ImageType imageYVU, int width, int height, int quality)
+{
+    end();
+
+    if (imageYVU == NULL || width <= 0 || height <= 0 || width > 65535 || height > 65535)
+    {
+        LOGE("Invalid image %p of size %dx%d", imageYVU, width, height);
+        return false;
+    }
+
+    quality = (quality < 1) ? 1 : ((quality > 100) ? 100 : quality);
+    int scale = (quality < 50) ? (5000 / quality) : (200 - quality * 2);
+    buildQuantizationTable(STD_LUMINANCE_QT, scale, qtableY, fdtblY);
+    buildQuantizationTable(STD_CHROMINANCE_QT, scale, qtableC, fdtblC);
+
+    this->image = imageYVU;
+    this->width = width;
+    this->height = height;
+    nextRow = 0;
+    headerWritten = false;
+    finished = false;
+    lastDC[0] = lastDC[1] = lastDC[2] = 0;
+    bitBuffer = 0;
+    bitCount = 0;
+    pendingSize = 0;
+    pendingPos = 0;
+    peakCapacity = 0;
+    return true;
+}
+
+void JpegStripEncoder::end()
+{
+    image = NULL;
+    if (pending != NULL)
+    {
+        free(pending);
+        pending = NULL;
+    }
+    pendingCapacity = 0;
+    pendingSize = 0;
+    pendingPos = 0;
+}
+
+int JpegStripEncoder::read(unsigned char *out, int capacity)
+{
+    int copied = 0;
+
+    while (image != NULL && copied < capacity)
+    {
+        if (pendingPos == pendingSize)
+        {
+            if (finished)
+                break;
+
+            pendingSize = 0;
+            pendingPos = 0;
+
+            // A baseline block takes at most ~410 bytes with byte stuffing,
+            // so 512 bytes per block bound a strip (six blocks per MCU).
+            size_t needed = 1024;
+            if (headerWritten && nextRow < height)
+                needed = (size_t) ((width + STRIP_HEIGHT - 1) / STRIP_HEIGHT) * 6 * 512;
+            if (!reserve(needed))
+            {
+                end();
+                return -1;
+            }
+
+            if (!headerWritten)
+            {
+                writeHeader();
+                headerWritten = true;
+            }
+            else if (nextRow < height)
+            {
+                encodeStrip();
+            }
+            else
+            {
+                flushBits();
+                putMarker(MARKER_EOI, 0);
+                finished = true;
+            }
+            continue;
+        }
+
+        int count = (int) (pendingSize - pendingPos);
+        if (count > capacity - copied)
+            count = capacity - copied;
+
+        memcpy(out + copied, pending + pendingPos, count);
+        pendingPos += count;
+        copied += count;
+    }
+
+    return copied;
+}
+
+bool JpegStripEncoder::reserve(size_t bytes)
+{
+    if (pendingSize + bytes <= pendingCapacity)
+        return true;
+
+    size_t capacity = pendingCapacity * 2;
+    if (capacity < pendingSize + bytes)
+        capacity = pendingSize + bytes;
+
+    unsigned char *buffer = (unsigned char *) realloc(pending, capacity);
+    if (buffer == NULL)
+    {
+        LOGE("Cannot grow JPEG strip buffer to %u bytes", (unsigned int) capacity);
+        return false;
+    }
+
+    pending = buffer;
+    pendingCapacity = capacity;
+    if (pendingCapacity > peakCapacity)
+        peakCapacity = pendingCapacity;
+    return true;
+}
+
+inline void JpegStripEncoder::putByte(unsigned char c)
+{
+    pending[pendingSize++] = c;
+}
+
+void JpegStripEncoder::putMarker(int marker, int length)
+{
+    putByte(0xff);
+    putByte((unsigned char) marker);
+    if (length > 0)
+    {
+        putByte((unsigned char) ((length + 2) >> 8));
+        putByte((unsigned char) ((length + 2) & 0xff));
+    }
+}
+
+inline void JpegStripEncoder::writeBits(unsigned int code, int size)
+{
+    bitCount += size;
+    bitBuffer |= code << (24 - bitCount);
+    while (bitCount >= 8)
+    {
+        unsigned char c = (unsigned char) ((bitBuffer >> 16) & 0xff);
+        putByte(c);
+        if (c == 0xff)
+            putByte(0);
+        bitBuffer <<= 8;
+        bitCount -= 8;
+    }
+}
+
+void JpegStripEncoder::flushBits()
+{
+    // Pad the last byte with 1 bits, as required by the standard.
+    writeBits(0x7f, 7);
+    bitBuffer = 0;
+    bitCount = 0;
+}
+
+void JpegStripEncoder::writeHeader()
+{
+    putMarker(MARKER_SOI, 0);
+
+    static const unsigned char jfif[] =
+        { 'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0 };
+    putMarker(MARKER_APP0, sizeof(jfif));
+    for (size_t i = 0; i < sizeof(jfif); i++)
+        putByte(jfif[i]);
+
+    putMarker(MARKER_DQT, 2 * 65);
+    putByte(0);
+    for (int i = 0; i < 64; i++)
+        putByte(qtableY[i]);
+    putByte(1);
+    for (int i = 0; i < 64; i++)
+        putByte(qtableC[i]);
+
+    // Y is sampled 2x2 per MCU, Cb and Cr once.
+    putMarker(MARKER_SOF0, 6 + 3 * 3);
+    putByte(8);
+    putByte((unsigned char) (height >> 8));
+    putByte((unsigned char) (height & 0xff));
+    putByte((unsigned char) (width >> 8));
+    putByte((unsigned char) (width & 0xff));
+    putByte(3);
+    putByte(1); putByte(0x22); putByte(0);
+    putByte(2); putByte(0x11); putByte(1);
+    putByte(3); putByte(0x11); putByte(1);
+
+    putMarker(MARKER_DHT, 4 * 17 + 12 + 12 + 162 + 162);
+    const unsigned char *tables[4][2] =
+    {
+        { STD_DC_LUMINANCE_BITS, STD_DC_LUMINANCE_VALUES },
+        { STD_AC_LUMINANCE_BITS, STD_AC_LUMINANCE_VALUES },
+        { STD_DC_CHROMINANCE_BITS, STD_DC_CHROMINANCE_VALUES },
+        { STD_AC_CHROMINANCE_BITS, STD_AC_CHROMINANCE_VALUES }
+    };
+    static const unsigned char tableClass[4] = { 0x00, 0x10, 0x01, 0x11 };
+    for (int t = 0; t < 4; t++)
+    {
+        putByte(tableClass[t]);
+        int count = 0;
+        for (int i = 0; i < 16; i++)
+        {
+            putByte(tables[t][0][i]);
+            count += tables[t][0][i];
+        }
+        for (int i = 0; i < count; i++)
+            putByte(tables[t][1][i]);
+    }
+
+    putMarker(MARKER_SOS, 1 + 3 * 2 + 3);
+    putByte(3);
+    putByte(1); putByte(0x00);
+    putByte(2); putByte(0x11);
+    putByte(3); putByte(0x11);
+    putByte(0);
+    putByte(63);
+    putByte(0);
+}
+
+void JpegStripEncoder::encodeStrip()
+{
+    const int planeSize = width * height;
+    const ImageType planeY = image;
+    const ImageType planeV = image + planeSize;
+    const ImageType planeU = image + 2 * planeSize;
+
+    const int mcuCount = (width + STRIP_HEIGHT - 1) / STRIP_HEIGHT;
+
+    int rows[STRIP_HEIGHT];
+    for (int i = 0; i < STRIP_HEIGHT; i++)
+    {
+        int y = nextRow + i;
+        rows[i] = ((y < height) ? y : height - 1) * width;
+    }
+
+    float block[64];
+    float blockU[64];
+    float blockV[64];
+
+    for (int mcu = 0; mcu < mcuCount; mcu++)
+    {
+        int x0 = mcu * STRIP_HEIGHT;
+
+        int cols[STRIP_HEIGHT];
+        for (int i = 0; i < STRIP_HEIGHT; i++)
+        {
+            int x = x0 + i;
+            cols[i] = (x < width) ? x : width - 1;
+        }
+
+        for (int by = 0; by < STRIP_HEIGHT; by += 8)
+        {
+            for (int bx = 0; bx < STRIP_HEIGHT; bx += 8)
+            {
+                for (int y = 0; y < 8; y++)
+                {
+                    const ImageType row = planeY + rows[by + y];
+                    for (int x = 0; x < 8; x++)
+                        block[y * 8 + x] = (float) row[cols[bx + x]] - 128.0f;
+                }
+                encodeBlock(block, fdtblY, lastDC[0], dcCodeY, dcSizeY, acCodeY, acSizeY);
+            }
+        }
+
+        // 2x2 box filter for the 4:2:0 chroma planes.
+        for (int y = 0; y < 8; y++)
+        {
+            int row0 = rows[2 * y];
+            int row1 = rows[2 * y + 1];
+            for (int x = 0; x < 8; x++)
+            {
+                int col0 = cols[2 * x];
+                int col1 = cols[2 * x + 1];
+                int u = planeU[row0 + col0] + planeU[row0 + col1]
+                        + planeU[row1 + col0] + planeU[row1 + col1];
+                int v = planeV[row0 + col0] + planeV[row0 + col1]
+                        + planeV[row1 + col0] + planeV[row1 + col1];
+                blockU[y * 8 + x] = u * 0.25f - 128.0f;
+                blockV[y * 8 + x] = v * 0.25f - 128.0f;
+            }
+        }
+        encodeBlock(blockU, fdtblC, lastDC[1], dcCodeC, dcSizeC, acCodeC, acSizeC);
+        encodeBlock(blockV, fdtblC, lastDC[2], dcCodeC, dcSizeC, acCodeC, acSizeC);
+    }
+
+    nextRow += STRIP_HEIGHT;
+}
+
+// Computes the magnitude category and the additional bits of a coefficient.
+static inline int categorize(int value, unsigned int &bits)
+{
+    int magnitude = (value < 0) ? -value : value;
+    bits = (unsigned int) ((value < 0) ? value - 1 : value);
+
+    int size = 0;
+    while (magnitude)
+    {
+        size++;
+        magnitude >>= 1;
+    }
+
+    bits &= (1u << size) - 1;
+    return size;
+}
+
+void JpegStripEncoder::encodeBlock(float *block, const float *fdtbl, int &dc,
+        const unsigned short *dcCode, const unsigned char *dcSize,
+        const unsigned short *acCode, const unsigned char *acSize)
+{
+    for (int i = 0; i < 64; i += 8)
+        forwardDCT(block + i, 1);
+    for (int i = 0; i < 8; i++)
+        forwardDCT(block + i, 8);
+
+    int coefficients[64];
+    for (int i = 0; i < 64; i++)
+    {
+        float value = block[i] * fdtbl[i];
+        int coefficient = (int) ((value < 0) ? value - 0.5f : value + 0.5f);
+        // Baseline Huffman tables only code AC magnitudes up to 10 bits.
+        if (i > 0)
+            coefficient = (coefficient < -1023) ? -1023 : ((coefficient > 1023) ? 1023 : coefficient);
+        coefficients[ZIGZAG[i]] = coefficient;
+    }
+
+    unsigned int bits;
+    int size;
+
+    int diff = coefficients[0] - dc;
+    dc = coefficients[0];
+    size = categorize(diff, bits);
+    writeBits(dcCode[size], dcSize[size]);
+    if (size > 0)
+        writeBits(bits, size);
+
+    int last = 63;
+    while (last > 0 && coefficients[last] == 0)
+        last--;
+
+    int zeroRun = 0;
+    for (int i = 1; i <= last; i++)
+    {
+        if (coefficients[i] == 0)
+        {
+            zeroRun++;
+            continue;
+        }
+
+        while (zeroRun >= 16)
+        {
+            writeBits(acCode[0xf0], acSize[0xf0]);
+            zeroRun -= 16;
+        }
+
+        size = categorize(coefficients[i], bits);
+        int symbol = (zeroRun << 4) + size;
+        writeBits(acCode[symbol], acSize[symbol]);
+        writeBits(bits, size);
+        zeroRun = 0;
+    }
+
+    if (last != 63)
+        writeBits(acCode[0x00], acSize[0x00]);
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// JpegStripEncoder.h
+
+#ifndef JPEG_STRIP_ENCODER_H
+#define JPEG_STRIP_ENCODER_H
+
+#include "ImageUtils.h"
+
+/**
+ *  Baseline JPEG encoder (4:2:0, standard Huffman tables) that compresses a
+ *  YVU image one MCU row (16 image rows) at a time.
+ *
+ *  The compressed data is pulled with read(), which only encodes as many
+ *  strips as needed to fill the caller's buffer. The memory used besides the
+ *  input image is therefore bounded by the compressed size of a single strip,
+ *  and the output can be streamed straight to its destination.
+ */
+class JpegStripEncoder
+{
+public:
+
+  /**
+   *  Height of the row strips, i.e. of a 4:2:0 MCU.
+   */
+  static const int STRIP_HEIGHT = 16;
+
+  JpegStripEncoder();
+  ~JpegStripEncoder();
+
+  /**
+   *  Starts encoding an image.
+   *  \param imageYVU     Y, V and U planes (in that order) of width x height
+   *                      pixels each. The image must stay valid until the
+   *                      encoding is done or end() is called.
+   *  \param width        Width of the image.
+   *  \param height       Height of the image.
+   *  \param quality      JPEG quality from 1 to 100, as for libjpeg.
+   *  \return             false if the parameters are invalid.
+   */
+  bool begin(ImageType imageYVU, int width, int height, int quality);
+
+  /**
+   *  Copies the next compressed bytes into out, encoding more strips if needed.
+   *  \param out          Output buffer.
+   *  \param capacity     Size of the output buffer.
+   *  \return             The number of bytes copied; 0 once the whole image
+   *                      has been returned, -1 if memory ran out (the
+   *                      encoding is then stopped as by end()).
+   */
+  int read(unsigned char *out, int capacity);
+
+  /**
+   *  Stops encoding and releases the strip buffer.
+   */
+  void end();
+
+  bool isDone() { return image == NULL || (finished && pendingPos == pendingSize); }
+
+  /**
+   *  Largest amount of memory used for compressed data, for measurements.
+   */
+  int getPeakBufferSize() { return (int) peakCapacity; }
+
+protected:
+
+  ImageType image;
+  int width, height;
+  int nextRow;
+  bool headerWritten;
+  bool finished;
+
+  // Quantization tables (in zig-zag order) and the corresponding scaled
+  // divisors for the AAN DCT (in natural order).
+  unsigned char qtableY[64], qtableC[64];
+  float fdtblY[64], fdtblC[64];
+
+  // Huffman codes and code lengths indexed by symbol.
+  unsigned short dcCodeY[12], dcCodeC[12], acCodeY[256], acCodeC[256];
+  unsigned char dcSizeY[12], dcSizeC[12], acSizeY[256], acSizeC[256];
+
+  int lastDC[3];
+  unsigned int bitBuffer;
+  int bitCount;
+
+  // Compressed bytes not returned by read() yet.
+  unsigned char *pending;
+  size_t pendingSize, pendingPos, pendingCapacity, peakCapacity;
+
+  bool reserve(size_t bytes);
+  void putByte(unsigned char c);
+  void putMarker(int marker, int length);
+  void writeBits(unsigned int code, int size);
+  void flushBits();
+
+  void writeHeader();
+  void encodeStrip();
+  void encodeBlock(float *block, const float *fdtbl, int &dc,
+          const unsigned short *dcCode, const unsigned char *dcSize,
+          const unsigned short *acCode, const unsigned char *acSize);
+};
+
+#endif
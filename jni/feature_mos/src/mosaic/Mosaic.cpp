@@ -25,6 +25,7 @@
 
 #include "Mosaic.h"
 #include "trsMatrix.h"
+#include "db_stage_timer.h"
 
 #include "Log.h"
 #define LOG_TAG "MOSAIC"
@@ -50,6 +51,8 @@ Mosaic::~Mosaic()
     for (int j = 0; j < owned_size; j++)
         delete owned_frames[j];
     delete owned_frames;
+    if (owned_tail != NULL)
+        ImageUtils::freeImage(owned_tail);
 
     if (aligner != NULL)
         delete aligner;
@@ -76,6 +79,13 @@ int Mosaic::initialize(int blendingType, int stripType, int width, int height, i
     mosaicWidth = mosaicHeight = 0;
     imageMosaicYVU = NULL;
 
+    // Make room for all the pre-allocated frames, e.g. long sweeps whose
+    // high-res frames are spilled to a file.
+    if (nframes > max_frames)
+    {
+        max_frames = nframes;
+    }
+
     frames = new MosaicFrame *[max_frames];
     rframes = new MosaicFrame *[max_frames];
 
@@ -96,6 +106,7 @@ int Mosaic::initialize(int blendingType, int stripType, int width, int height, i
 
     owned_frames = new ImageType[max_frames];
     owned_size = 0;
+    owned_tail = NULL;
 
     LOGV("Initialize %d %d", width, height);
     LOGV("Frame width %d,%d", width, height);
@@ -121,6 +132,12 @@ int Mosaic::initialize(int blendingType, int stripType, int width, int height, i
     return MOSAIC_RET_OK;
 }
 
+void Mosaic::setMaxOverlap(float overlap)
+{
+    if (aligner != NULL)
+        aligner->setMaxOverlap(overlap);
+}
+
 int Mosaic::addFrameRGB(ImageType imageRGB)
 {
     ImageType imageYVU;
@@ -131,8 +148,17 @@ int Mosaic::addFrameRGB(ImageType imageRGB)
     int existing_frames_size = frames_size;
     int ret = addFrame(imageYVU);
 
+    // A tail frame is replaced by any frame added after it.
+    if (owned_tail != NULL)
+    {
+        ImageUtils::freeImage(owned_tail);
+        owned_tail = NULL;
+    }
+
     if (frames_size > existing_frames_size)
         owned_frames[owned_size++] = imageYVU;
+    else if (aligner->hasTail())
+        owned_tail = imageYVU;
     else
         ImageUtils::freeImage(imageYVU);
 
@@ -188,14 +214,61 @@ int Mosaic::addFrame(ImageType imageYVU)
     return ret;
 }
 
+int Mosaic::resume(ImageType *images, const double *trs, int count)
+{
+    if (count > max_frames || aligner == NULL)
+        return MOSAIC_RET_ERROR;
+
+    for (int i = 0; i < count; i++)
+    {
+        if(frames[i]==NULL)
+            frames[i] = new MosaicFrame(this->width,this->height,false);
 
-int Mosaic::createMosaic(float &progress, bool &cancelComputation)
+        frames[i]->image = images[i];
+        Matrix33::convert9to33(frames[i]->trs, (double *) trs + 9 * i);
+    }
+    frames_size = count;
+
+    if (count > 0)
+        aligner->resume(images[count - 1], frames[count - 1]->trs, count);
+
+    return MOSAIC_RET_OK;
+}
+
+int Mosaic::addTailFrame()
 {
+    if (aligner == NULL || !aligner->hasTail() || frames_size >= max_frames)
+        return MOSAIC_RET_ERROR;
+
+    // addFrame() left the tail in the first free frame.
+    MosaicFrame *frame = frames[frames_size];
+    aligner->keepTail(frame->image);
+    aligner->getLastTRS(frame->trs);
+    frames_size++;
+
+    if (owned_tail != NULL)
+    {
+        owned_frames[owned_size++] = owned_tail;
+        owned_tail = NULL;
+    }
+
+    return MOSAIC_RET_OK;
+}
+
+void Mosaic::getFrameTRS(int index, double trs[9])
+{
+    Matrix9::convert33to9(trs, frames[index]->trs);
+}
+
+int Mosaic::createMosaic(MosaicProgress &progress)
+{
+    addTailFrame();
+
     if (frames_size <= 0)
     {
         // Haven't accepted any frame in aligner. No need to do blending.
-        progress = TIME_PERCENT_ALIGN + TIME_PERCENT_BLEND
-                + TIME_PERCENT_FINAL;
+        progress.set(TIME_PERCENT_ALIGN + TIME_PERCENT_BLEND
+                + TIME_PERCENT_FINAL);
         return MOSAIC_RET_OK;
     }
 
@@ -211,9 +284,11 @@ int Mosaic::createMosaic(float &progress, bool &cancelComputation)
     // Blend the mosaic (alignment has already been done)
     if (blender != NULL)
     {
+        DB_STAGE_BEGIN(DB_STAGE_BLEND);
         ret = blender->runBlend((MosaicFrame **) frames, (MosaicFrame **) rframes, 
                 frames_size, imageMosaicYVU,
-                mosaicWidth, mosaicHeight, progress, cancelComputation);
+                mosaicWidth, mosaicHeight, progress);
+        DB_STAGE_END(DB_STAGE_BLEND);
     }
 
     switch(ret)
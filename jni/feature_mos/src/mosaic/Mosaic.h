@@ -97,6 +97,16 @@ public:
     */
   int initialize(int blendingType, int stripType, int width, int height, int nframes = -1, bool quarter_res = false, float thresh_still = 0.0);
 
+   /*!
+    *   Rejects the frames that overlap the last frame added by more than the
+    *   given fraction of their width and of their height, before they are
+    *   added. Their strips would be too thin to matter. If the last frame of
+    *   the sweep is rejected that way, createMosaic() adds it after all (see
+    *   addTailFrame()). Call after initialize().
+    *   \param overlap      Largest overlap, 1 to reject only the frames of a still camera (default)
+    */
+  void setMaxOverlap(float overlap);
+
    /*!
     *   Adds a YVU frame to the mosaic.
     *   \param imageYVU     Pointer to a YVU image.
@@ -111,12 +121,45 @@ public:
     */
   int addFrameRGB(ImageType imageRGB);
 
+   /*!
+    *   Adds frames that have already been aligned, e.g. by the mosaic of a
+    *   saved session, so that frames added afterwards continue the sweep.
+    *   Call right after initialize().
+    *   \param images       count YVU images, which are neither copied nor freed.
+    *   \param trs          count TRS matrices of 9 elements each, as returned
+    *                       by getFrameTRS().
+    *   \param count        Number of frames.
+    *   \return             Return code signifying success or failure.
+    */
+  int resume(ImageType *images, const double *trs, int count);
+
+   /*!
+    *   Obtains the TRS matrix of a frame added to the mosaic.
+    *   \param index        Index of the frame, less than getNumFrames().
+    *   \param trs          Receives the 9 elements of the matrix.
+    */
+  void getFrameTRS(int index, double trs[9]);
+
+   /*!
+    *   Obtains the number of frames added to the mosaic.
+    */
+  int getNumFrames() { return frames_size; }
+
+   /*!
+    *   Adds the last frame passed to addFrame() if it was rejected for its
+    *   overlap only, so that the mosaic reaches the end of the sweep. Its
+    *   image must still be valid. createMosaic() calls this first.
+    *   \return             MOSAIC_RET_OK if the frame was added, MOSAIC_RET_ERROR if there is none.
+    */
+  int addTailFrame();
+
    /*!
     *   After adding all frames, call this function to perform the final blending.
-    *   \param progress     Variable to set the current progress in.
+    *   \param progress     Receives the progress of the blending, which
+    *                       stops early if it is cancelled.
     *   \return             Return code signifying success or failure.
     */
-  int createMosaic(float &progress, bool &cancelComputation);
+  int createMosaic(MosaicProgress &progress);
 
     /*!
     *   Obtains the resulting mosaic and its dimensions.
@@ -148,6 +191,8 @@ public:
   static const int MOSAIC_RET_CANCELLED = -2;
   static const int MOSAIC_RET_LOW_TEXTURE = -3;
   static const int MOSAIC_RET_FEW_INLIERS = 2;
+  //! No frame to add: the renderer has not read one back (feature_mos_jni)
+  static const int MOSAIC_RET_NO_FRAME = -4;
 
 protected:
 
@@ -187,6 +232,11 @@ protected:
   ImageType *owned_frames;
   int owned_size;
 
+  /**
+    * Implicitly created image of the tail frame, see addTailFrame().
+    */
+  ImageType owned_tail;
+
   /**
    * Initialization state.
    */
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// MosaicProgress.h
+
+#ifndef MOSAIC_PROGRESS_H
+#define MOSAIC_PROGRESS_H
+
+#include <stddef.h>
+
+/**
+ *  Progress and cancellation state of one mosaic computation.
+ *
+ *  The thread computing the mosaic advances the progress with set()/add() and
+ *  polls isCancelled() between units of work. Every time the progress has
+ *  advanced by at least the configured step, the callback is invoked on that
+ *  thread, so no other thread needs to poll for progress. cancel() and get()
+ *  may be called from any thread.
+ */
+class MosaicProgress
+{
+public:
+
+  /**
+   *  \param cookie       The cookie passed to setCallback().
+   *  \param percent      The progress, from 0 to 100.
+   */
+  typedef void (*Callback)(void *cookie, int percent);
+
+  MosaicProgress() : value(0.0f), cancelled(false), callback(NULL),
+      cookie(NULL), step(1), reported(0) {}
+
+  /**
+   *  Sets the function to be called when the progress advances.
+   *  \param callback     The function to call, or NULL for none.
+   *  \param cookie       Passed to the callback.
+   *  \param step         Minimum advance in percent between two calls. The
+   *                      call at 100 percent is always made.
+   */
+  void setCallback(Callback callback, void *cookie, int step)
+  {
+    this->callback = callback;
+    this->cookie = cookie;
+    this->step = step < 1 ? 1 : step;
+  }
+
+  /**
+   *  Sets the progress back to 0 without calling the callback. A pending
+   *  cancellation request is kept.
+   */
+  void reset()
+  {
+    value = 0.0f;
+    reported = 0;
+  }
+
+  void set(float percent)
+  {
+    value = percent;
+    int current = (int) percent;
+    if (callback != NULL && (current >= reported + step ||
+            (current >= 100 && reported < 100)))
+    {
+      reported = current;
+      callback(cookie, current);
+    }
+  }
+
+  void add(float percent) { set(value + percent); }
+
+  int get() const { return (int) value; }
+
+  /**
+   *  Asks the computation to stop at the next check. The request stays in
+   *  effect until clearCancel().
+   */
+  void cancel() { cancelled = true; }
+
+  void clearCancel() { cancelled = false; }
+
+  bool isCancelled() const { return cancelled; }
+
+protected:
+
+  volatile float value;
+  volatile bool cancelled;
+  Callback callback;
+  void *cookie;
+  int step;
+  int reported;
+};
+
+#endif
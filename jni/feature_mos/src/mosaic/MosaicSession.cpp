@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// MosaicSession.cpp
+
+#include <errno.h>
+#include <fcntl.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
+
+#include "MosaicSession.h"
+
+#include "Log.h"
+#define LOG_TAG "MosaicSession"
+
+static const uint32_t SESSION_MAGIC = 0x5345534d; // "MSES"
+static const uint32_t SESSION_VERSION = 1;
+
+static const uint32_t HAS_LOW_RES = 1;
+static const uint32_t HAS_HIGH_RES = 2;
+
+// Same slack as the images of ImageUtils::allocateImage() and the slots of
+// FrameSpillStore.
+static const size_t SLOT_OVERALLOCATION = 256;
+
+struct SessionHeader
+{
+    uint32_t magic;
+    uint32_t version;
+    MosaicSessionInfo info;
+    int32_t frameCount;
+    uint32_t flags;
+};
+
+static size_t PageAlign(size_t size)
+{
+    size_t pageSize = (size_t) sysconf(_SC_PAGESIZE);
+    return (size + pageSize - 1) & ~(pageSize - 1);
+}
+
+static size_t SlotSize(int width, int height)
+{
+    return PageAlign((size_t) width * height * ImageUtils::IMAGE_TYPE_NUM_CHANNELS
+            + SLOT_OVERALLOCATION);
+}
+
+// Offset of the TRS matrices, which follow the header.
+static size_t TRSOffset()
+{
+    return (sizeof(SessionHeader) + sizeof(double) - 1) & ~(sizeof(double) - 1);
+}
+
+static bool WriteFully(int fd, const void *data, size_t size, off_t offset)
+{
+    const unsigned char *bytes = (const unsigned char *) data;
+    while (size > 0)
+    {
+        ssize_t written = pwrite(fd, bytes, size, offset);
+        if (written < 0)
+        {
+            if (errno == EINTR)
+                continue;
+            return false;
+        }
+        bytes += written;
+        offset += written;
+        size -= written;
+    }
+    return true;
+}
+
+MosaicSession::MosaicSession()
+{
+    base = NULL;
+    mappedSize = 0;
+    memset(&info, 0, sizeof(info));
+    frameCount = 0;
+    trs = NULL;
+    lowResOffset = highResOffset = 0;
+    lowResSlotSize = highResSlotSize = 0;
+}
+
+MosaicSession::~MosaicSession()
+{
+    close();
+}
+
+bool MosaicSession::save(const char *path, const MosaicSessionInfo &info, int frameCount,
+        const double *trs, ImageType *lowRes, ImageType *highRes)
+{
+    SessionHeader header;
+    memset(&header, 0, sizeof(header));
+    header.magic = SESSION_MAGIC;
+    header.version = SESSION_VERSION;
+    header.info = info;
+    header.frameCount = frameCount;
+    header.flags = (lowRes != NULL ? HAS_LOW_RES : 0) | (highRes != NULL ? HAS_HIGH_RES : 0);
+
+    size_t lowResSlotSize = SlotSize(info.lowResWidth, info.lowResHeight);
+    size_t highResSlotSize = SlotSize(info.width, info.height);
+    size_t lowResOffset = PageAlign(TRSOffset() + sizeof(double) * 9 * frameCount);
+    size_t highResOffset = lowResOffset + (lowRes != NULL ? lowResSlotSize * frameCount : 0);
+    size_t fileSize = highResOffset + (highRes != NULL ? highResSlotSize * frameCount : 0);
+
+    // The session being replaced may still be mapped, e.g. by the mosaic
+    // whose frames are saved, so it is never written in place.
+    size_t length = strlen(path);
+    char *tmpPath = (char *) malloc(length + 5);
+    memcpy(tmpPath, path, length);
+    strcpy(tmpPath + length, ".tmp");
+
+    int fd = ::open(tmpPath, O_WRONLY | O_CREAT | O_TRUNC, 0600);
+    if (fd < 0)
+    {
+        LOGE("Cannot create session file %s: %s", tmpPath, strerror(errno));
+        free(tmpPath);
+        return false;
+    }
+
+    bool ok = WriteFully(fd, &header, sizeof(header), 0) &&
+            WriteFully(fd, trs, sizeof(double) * 9 * frameCount, TRSOffset());
+    for (int i = 0; ok && i < frameCount; i++)
+    {
+        if (lowRes != NULL)
+            ok = WriteFully(fd, lowRes[i], (size_t) info.lowResWidth * info.lowResHeight *
+                    ImageUtils::IMAGE_TYPE_NUM_CHANNELS, lowResOffset + lowResSlotSize * i);
+        if (ok && highRes != NULL)
+            ok = WriteFully(fd, highRes[i], (size_t) info.width * info.height *
+                    ImageUtils::IMAGE_TYPE_NUM_CHANNELS, highResOffset + highResSlotSize * i);
+    }
+    // The slack of the last slot has to be in the file too.
+    ok = ok && ftruncate(fd, (off_t) fileSize) == 0;
+    if (!ok)
+    {
+        LOGE("Cannot write session file %s: %s", tmpPath, strerror(errno));
+    }
+
+    ::close(fd);
+    if (ok && rename(tmpPath, path) != 0)
+    {
+        LOGE("Cannot rename session file to %s: %s", path, strerror(errno));
+        ok = false;
+    }
+    if (ok)
+    {
+        LOGI("Session %s: %d frames, %u bytes", path, frameCount, (unsigned int) fileSize);
+    }
+    else
+    {
+        unlink(tmpPath);
+    }
+    free(tmpPath);
+    return ok;
+}
+
+bool MosaicSession::open(const char *path)
+{
+    close();
+
+    int fd = ::open(path, O_RDONLY);
+    if (fd < 0)
+    {
+        LOGE("Cannot open session file %s: %s", path, strerror(errno));
+        return false;
+    }
+
+    SessionHeader header;
+    struct stat st;
+    bool ok = fstat(fd, &st) == 0 &&
+            pread(fd, &header, sizeof(header), 0) == (ssize_t) sizeof(header) &&
+            header.magic == SESSION_MAGIC && header.version == SESSION_VERSION &&
+            header.frameCount > 0 && header.info.width > 0 && header.info.height > 0 &&
+            header.info.lowResWidth > 0 && header.info.lowResHeight > 0;
+
+    if (ok)
+    {
+        info = header.info;
+        frameCount = header.frameCount;
+        lowResSlotSize = SlotSize(info.lowResWidth, info.lowResHeight);
+        highResSlotSize = SlotSize(info.width, info.height);
+        lowResOffset = PageAlign(TRSOffset() + sizeof(double) * 9 * frameCount);
+        highResOffset = lowResOffset +
+                ((header.flags & HAS_LOW_RES) ? lowResSlotSize * frameCount : 0);
+        mappedSize = highResOffset +
+                ((header.flags & HAS_HIGH_RES) ? highResSlotSize * frameCount : 0);
+        if (!(header.flags & HAS_LOW_RES))
+            lowResOffset = 0;
+        if (!(header.flags & HAS_HIGH_RES))
+            highResOffset = 0;
+        ok = (size_t) st.st_size >= mappedSize;
+    }
+    if (!ok)
+    {
+        LOGE("%s is not a session file", path);
+        ::close(fd);
+        close();
+        return false;
+    }
+
+    // Nothing is read but the header: the kernel pages the rest in on use.
+    void *addr = mmap(NULL, mappedSize, PROT_READ | PROT_WRITE, MAP_PRIVATE, fd, 0);
+    ::close(fd);
+    if (addr == MAP_FAILED)
+    {
+        LOGE("Cannot map session file %s: %s", path, strerror(errno));
+        close();
+        return false;
+    }
+
+    base = (ImageType) addr;
+    trs = (const double *) (base + TRSOffset());
+    return true;
+}
+
+void MosaicSession::close()
+{
+    if (base != NULL)
+    {
+        munmap(base, mappedSize);
+        base = NULL;
+    }
+    mappedSize = 0;
+    frameCount = 0;
+    trs = NULL;
+    lowResOffset = highResOffset = 0;
+}
+
+ImageType MosaicSession::getLowResFrame(int index)
+{
+    if (base == NULL || lowResOffset == 0 || index < 0 || index >= frameCount)
+        return NULL;
+
+    return base + lowResOffset + lowResSlotSize * index;
+}
+
+ImageType MosaicSession::getHighResFrame(int index)
+{
+    if (base == NULL || highResOffset == 0 || index < 0 || index >= frameCount)
+        return NULL;
+
+    return base + highResOffset + highResSlotSize * index;
+}
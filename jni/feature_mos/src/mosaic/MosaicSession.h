@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// MosaicSession.h
+
+#ifndef MOSAIC_SESSION_H
+#define MOSAIC_SESSION_H
+
+#include <stddef.h>
+
+#include "ImageUtils.h"
+
+/**
+ *  Settings of the sweep saved in a session.
+ */
+struct MosaicSessionInfo
+{
+  int width, height;          // Size of the high-res frames
+  int lowResWidth, lowResHeight;
+  int blendingType;
+  int stripType;
+  float maxFrameOverlap;
+  // Number of slots of the spill file holding the high-res frames, or 0 if
+  // they are in the session file itself.
+  int spillMaxFrames;
+};
+
+/**
+ *  File holding the frames of a panorama sweep, from which the sweep can be
+ *  resumed or rendered again after the process died.
+ *
+ *  A header and the TRS matrix of every frame are followed by the low-res and
+ *  the high-res frames in page-aligned slots, as in FrameSpillStore. Either
+ *  kind of frames can be left out: the low-res ones when only the high-res
+ *  mosaic is needed, the high-res ones when they are in a spill file kept
+ *  next to the session.
+ *
+ *  open() maps the file without reading any frame; the frames are paged in
+ *  by the kernel when they are first used, so opening a session takes the
+ *  same time whatever its number of frames.
+ */
+class MosaicSession
+{
+public:
+
+  MosaicSession();
+  ~MosaicSession();
+
+  /**
+   *  Writes a session, replacing the file only once it is complete.
+   *  \param path         Path of the session file.
+   *  \param info         Settings of the sweep.
+   *  \param frameCount   Number of frames.
+   *  \param trs          frameCount TRS matrices of 9 elements each.
+   *  \param lowRes       The low-res frames, or NULL to leave them out.
+   *  \param highRes      The high-res frames, or NULL to leave them out.
+   *  \return             true on success.
+   */
+  static bool save(const char *path, const MosaicSessionInfo &info, int frameCount,
+          const double *trs, ImageType *lowRes, ImageType *highRes);
+
+  /**
+   *  Maps a session file written by save().
+   *  \return             false if it cannot be read or is not a session.
+   */
+  bool open(const char *path);
+
+  /**
+   *  Unmaps the session file. The frames returned by getLowResFrame() and
+   *  getHighResFrame() cannot be used afterwards.
+   */
+  void close();
+
+  bool isOpen() { return base != NULL; }
+
+  const MosaicSessionInfo &getInfo() { return info; }
+  int getFrameCount() { return frameCount; }
+
+  /**
+   *  Returns the frameCount TRS matrices of 9 elements each.
+   */
+  const double *getTRS() { return trs; }
+
+  /**
+   *  Return the given frame, usable as a regular YVU ImageType of the size of
+   *  the session, or NULL if that kind of frames was left out. The frames are
+   *  mapped privately: writing to them does not change the file.
+   */
+  ImageType getLowResFrame(int index);
+  ImageType getHighResFrame(int index);
+
+protected:
+
+  ImageType base;
+  size_t mappedSize;
+  MosaicSessionInfo info;
+  int frameCount;
+  const double *trs;
+  size_t lowResOffset, highResOffset;
+  size_t lowResSlotSize, highResSlotSize;
+};
+
+#endif
@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// Stabilizer.cpp
+
+#include <time.h>
+
+#include "Stabilizer.h"
+#include "YuvConvert.h"
+#include "Log.h"
+
+#define LOG_TAG "Stabilizer"
+
+// Position in the frame of the center of the low-res pixel 0: the mean of the
+// frame pixels 0 to LOW_RES_FACTOR - 1.
+static const double LR_ORIGIN = 0.5 * (YuvConvert::LOW_RES_FACTOR - 1);
+
+// Largest shift searched by matchSums(), in low-res pixels: the disparity
+// searched by the matching of frames up to 640 low-res pixels wide.
+static const int MAX_SHIFT = 64;
+
+const double Stabilizer::DEFAULT_MAX_DISPARITY = 0.1;
+const double Stabilizer::DEFAULT_SMOOTHING = 0.9;
+const double Stabilizer::DEFAULT_CROP_RATIO = 0.1;
+const double Stabilizer::DEFAULT_BUDGET_MS = 11.0;
+
+static double now_ms()
+{
+  struct timespec t;
+  clock_gettime(CLOCK_MONOTONIC, &t);
+  return t.tv_sec * 1000.0 + t.tv_nsec / 1e6;
+}
+
+Stabilizer::Stabilizer()
+{
+  width = height = 0;
+  lr_width = lr_height = 0;
+  image_lr = NULL;
+  cols_ref = rows_ref = cols = rows = NULL;
+  smoothing = DEFAULT_SMOOTHING;
+  budget_ms = DEFAULT_BUDGET_MS;
+  reset();
+}
+
+Stabilizer::~Stabilizer()
+{
+  if (image_lr != NULL)
+    db_FreeImage_u(image_lr, lr_height);
+  delete[] cols_ref;
+  delete[] rows_ref;
+  delete[] cols;
+  delete[] rows;
+}
+
+int Stabilizer::initialize(int width, int height, double smoothing,
+        double crop_ratio, double budget_ms)
+{
+  const int f = YuvConvert::LOW_RES_FACTOR;
+
+  if (image_lr != NULL)
+  {
+    db_FreeImage_u(image_lr, lr_height);
+    image_lr = NULL;
+  }
+  delete[] cols_ref;
+  delete[] rows_ref;
+  delete[] cols;
+  delete[] rows;
+  cols_ref = rows_ref = cols = rows = NULL;
+  this->width = this->height = 0;
+
+  if (width < 48 * f || height < 60 * f || crop_ratio < 0.0 || crop_ratio >= 0.5)
+  {
+    LOGE("Cannot stabilize %dx%d frames with a crop of %g", width, height, crop_ratio);
+    return STAB_RET_ERROR;
+  }
+
+  this->smoothing = smoothing;
+  this->budget_ms = budget_ms;
+  lr_width = width / f;
+  lr_height = height / f;
+  image_lr = db_AllocImage_u(lr_width, lr_height);
+  cols_ref = new int[lr_width];
+  rows_ref = new int[lr_height];
+  cols = new int[lr_width];
+  rows = new int[lr_height];
+
+  crop[0] = crop_ratio * width;
+  crop[1] = crop_ratio * height;
+  crop[2] = width - crop[0];
+  crop[3] = height - crop[1];
+  for (int k = 0; k < 4; k++)
+    crop_lr[k] = (crop[k] - LR_ORIGIN) / f;
+
+  // The reference is updated to every frame (period 1), so that the frames
+  // are aligned to the one before them and the smoothing gets the motion of
+  // every frame.
+  reg.Init(lr_width, lr_height, DEFAULT_MOTION_MODEL, MAX_ITERATIONS, false, false,
+          DB_POINT_STANDARDDEV, 1, true, smoothing, DB_DEFAULT_NR_SAMPLES,
+          DB_DEFAULT_CHUNK_SIZE, DEFAULT_NR_CORNERS, DEFAULT_MAX_DISPARITY, false,
+          lr_width / 48, lr_height / 60);
+  reg.ResetMotionPrediction(DEFAULT_MOTION_PREDICTION);
+  reg.ResetAdaptiveSampling(DEFAULT_ADAPTIVE_SAMPLING);
+
+  this->width = width;
+  this->height = height;
+  reset();
+  return reg.Initialized() ? STAB_RET_OK : STAB_RET_ERROR;
+}
+
+void Stabilizer::reset()
+{
+  need_reference = true;
+  db_Identity3x3(H_dref_to_ins);
+  db_Identity3x3(H_last);
+  frames_since_aligned = 0;
+
+  debt_ms = 0.0;
+  frame_start_ms = 0.0;
+  frame_count = 0;
+  dropped_count = 0;
+  total_frame_ms = 0.0;
+  max_frame_ms = 0.0;
+}
+
+int Stabilizer::addFrame(ImageType nv21)
+{
+  reduceFrame(nv21);
+  return stabilizeFrame();
+}
+
+void Stabilizer::reduceFrame(ImageType nv21)
+{
+  frame_start_ms = now_ms();
+  YuvConvert::nv21ToLowResY(image_lr[0], nv21, width, height);
+}
+
+int Stabilizer::stabilizeFrame()
+{
+  bool behind = isBehind();
+  int ret_code = behind ? dropFrame() : alignFrame();
+  frame_count++;
+
+  double elapsed_ms = now_ms() - frame_start_ms;
+  if (behind)
+  {
+    dropped_count++;
+  }
+  else
+  {
+    total_frame_ms += elapsed_ms;
+    if (elapsed_ms > max_frame_ms)
+      max_frame_ms = elapsed_ms;
+  }
+  // Time left over pays back the debt but is not saved up: a frame that
+  // comes late because of an earlier one does not get more.
+  debt_ms += elapsed_ms - budget_ms;
+  if (debt_ms < 0.0)
+    debt_ms = 0.0;
+
+  return ret_code;
+}
+
+bool Stabilizer::isBehind() const
+{
+  return debt_ms > 0.0 && !need_reference && frames_since_aligned < MAX_DROPPED_FRAMES;
+}
+
+int Stabilizer::dropFrame()
+{
+  // Translate the last aligned frame's transform by the motion from it. Its
+  // homography is affine, so the translation is added as it is.
+  project(cols, rows);
+  double max_shift = DEFAULT_MAX_DISPARITY * lr_width;
+  db_Copy9(H_last, H_dref_to_ins);
+  H_last[2] += matchSums(cols, cols_ref, lr_width, (int) max_shift);
+  H_last[5] += matchSums(rows, rows_ref, lr_height, (int) max_shift);
+  clamp(H_last);
+  frames_since_aligned++;
+  return STAB_RET_DROPPED;
+}
+
+int Stabilizer::alignFrame()
+{
+  int ret_code = STAB_RET_OK;
+  double H[9];
+
+  if (need_reference)
+  {
+    reg.AddFrame(image_lr, H, true);
+    reg.ResetDisplayReference();
+    db_Identity3x3(H_dref_to_ins);
+    need_reference = false;
+  }
+  else
+  {
+    // AddFrame() makes the frame the reference of the next one, so the
+    // transform from the display reference to it is its transform.
+    reg.AddFrame(image_lr, H, false);
+    if (reg.GetNrInliers() < MIN_NR_INLIERS)
+    {
+      // Show the frame as the last one was shown until it aligns again.
+      ret_code = STAB_RET_LOST;
+    }
+    else
+    {
+      reg.Get_H_dref_to_ins(H_dref_to_ins);
+      clamp(H_dref_to_ins);
+    }
+    reg.Set_H_dref_to_ins(H_dref_to_ins);
+  }
+  db_Copy9(H_last, H_dref_to_ins);
+  frames_since_aligned = 0;
+  // The frames dropped until the next aligned frame are matched to this one.
+  project(cols_ref, rows_ref);
+  return ret_code;
+}
+
+void Stabilizer::project(int *cols, int *rows) const
+{
+  for (int i = 0; i < lr_width; i++)
+    cols[i] = 0;
+  for (int j = 0; j < lr_height; j++)
+  {
+    const unsigned char *row = image_lr[j];
+    int sum = 0;
+    for (int i = 0; i < lr_width; i++)
+    {
+      sum += row[i];
+      cols[i] += row[i];
+    }
+    rows[j] = sum;
+  }
+}
+
+double Stabilizer::matchSums(const int *sums, const int *sums_ref, int size,
+        int max_shift)
+{
+  // Mean absolute difference of the overlapping sums at every shift d, where
+  // sums[i] shows what sums_ref[i - d] did.
+  double cost[2 * MAX_SHIFT + 1];
+  if (max_shift > MAX_SHIFT) max_shift = MAX_SHIFT;
+  if (max_shift > size / 2) max_shift = size / 2;
+
+  int best = -max_shift;
+  for (int d = -max_shift; d <= max_shift; d++)
+  {
+    int start = d > 0 ? d : 0;
+    int end = d < 0 ? size + d : size;
+    long total = 0;
+    for (int i = start; i < end; i++)
+    {
+      int diff = sums[i] - sums_ref[i - d];
+      total += diff < 0 ? -diff : diff;
+    }
+    cost[d + max_shift] = (double) total / (end - start);
+    if (cost[d + max_shift] < cost[best + max_shift])
+      best = d;
+  }
+
+  // Fit a parabola through the best cost and its neighbours.
+  double shift = best;
+  if (best > -max_shift && best < max_shift)
+  {
+    double before = cost[best + max_shift - 1];
+    double at = cost[best + max_shift];
+    double after = cost[best + max_shift + 1];
+    double curvature = before - 2.0 * at + after;
+    if (curvature > 0.0)
+      shift += 0.5 * (before - after) / curvature;
+  }
+  return shift;
+}
+
+void Stabilizer::clamp(double H[9]) const
+{
+  double low[2] = { 0.0, 0.0 };
+  double high[2] = { 0.0, 0.0 };
+  for (int k = 0; k < 4; k++)
+  {
+    double corner[2] = { crop_lr[(k & 1) ? 2 : 0], crop_lr[(k & 2) ? 3 : 1] };
+    double moved[2];
+    db_ImageHomographyInhomogenous(moved, H, corner);
+    for (int c = 0; c < 2; c++)
+    {
+      if (k == 0 || moved[c] < low[c]) low[c] = moved[c];
+      if (k == 0 || moved[c] > high[c]) high[c] = moved[c];
+    }
+  }
+
+  // Shift the warped window back into the frame, or center it on the frame
+  // if it is too large to fit.
+  double size[2] = { lr_width - 1.0, lr_height - 1.0 };
+  double shift[2];
+  for (int c = 0; c < 2; c++)
+  {
+    if (high[c] - low[c] > size[c])
+      shift[c] = 0.5 * (size[c] - low[c] - high[c]);
+    else if (low[c] < 0.0)
+      shift[c] = -low[c];
+    else if (high[c] > size[c])
+      shift[c] = size[c] - high[c];
+    else
+      shift[c] = 0.0;
+  }
+
+  for (int i = 0; i < 3; i++)
+  {
+    H[i] += shift[0] * H[6 + i];
+    H[3 + i] += shift[1] * H[6 + i];
+  }
+}
+
+void Stabilizer::getTransform(double transform[TRANSFORM_SIZE]) const
+{
+  // The transform in frame pixels is S * H_last * S^-1, where S maps the
+  // low-res pixels to the frame.
+  const double f = YuvConvert::LOW_RES_FACTOR;
+  double S[9] = { f, 0.0, LR_ORIGIN, 0.0, f, LR_ORIGIN, 0.0, 0.0, 1.0 };
+  double Sinv[9] = { 1.0 / f, 0.0, -LR_ORIGIN / f, 0.0, 1.0 / f, -LR_ORIGIN / f,
+          0.0, 0.0, 1.0 };
+  double temp[9];
+  db_Multiply3x3_3x3(temp, H_last, Sinv);
+  db_Multiply3x3_3x3(transform, S, temp);
+
+  for (int k = 0; k < 4; k++)
+    transform[TRANSFORM_CROP_INDEX + k] = crop[k];
+}
+
+double Stabilizer::getMeanFrameTime() const
+{
+  int aligned = frame_count - dropped_count;
+  return aligned > 0 ? total_frame_ms / aligned : 0.0;
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// Stabilizer.h
+
+#ifndef STABILIZER_H
+#define STABILIZER_H
+
+#include "dbreg/dbreg.h"
+#include <db_utilities_camera.h>
+
+#include "ImageUtils.h"
+
+/**
+ *  Real-time stabilization of the preview frames of a video.
+ *
+ *  Every frame is reduced by YuvConvert::LOW_RES_FACTOR and aligned to the
+ *  frame before it by db_FrameToReferenceRegistration, whose motion smoothing
+ *  keeps a display reference that follows the camera with the high
+ *  frequencies of its motion removed. The transform of a frame maps the
+ *  display reference to the frame: showing the crop window of the display
+ *  reference, warped by it, shows the frame stabilized. The display reference
+ *  is kept close enough to the frame that the warped crop window stays inside
+ *  the frame.
+ *
+ *  The time spent on the frames is held to a budget per frame. A frame that
+ *  comes while the frames before took longer than their budget is dropped
+ *  from the feature alignment: only its translation from the last aligned
+ *  frame is estimated, by matching the column and row sums of their low-res
+ *  images, which takes a small part of the budget and gives the frames after
+ *  it their time back.
+ */
+class Stabilizer {
+
+public:
+  // Return codes
+  static const int STAB_RET_ERROR   = -1;
+  static const int STAB_RET_OK      = 0;
+  static const int STAB_RET_DROPPED = 1;   // Only translated, to keep within the budget
+  static const int STAB_RET_LOST    = 2;   // Too few inliers; the last transform is kept
+
+  ///// Settings for the alignment of the low-res frames
+  static const int DEFAULT_NR_CORNERS = 300;
+  static const double DEFAULT_MAX_DISPARITY;
+  static const int DEFAULT_MOTION_MODEL = DB_HOMOGRAPHY_TYPE_R_T;
+  static const int MAX_ITERATIONS = 20;
+  static const int MIN_NR_INLIERS = 10;
+  // Match the corners around the motion predicted from the last frame, falling
+  // back to the full search range.
+  static const bool DEFAULT_MOTION_PREDICTION = true;
+  // Stop drawing RANSAC samples once one without outliers has been drawn with
+  // enough confidence. It is tuned on the predicted matches, so it is only
+  // used with DEFAULT_MOTION_PREDICTION.
+  static const bool DEFAULT_ADAPTIVE_SAMPLING = DEFAULT_MOTION_PREDICTION;
+
+  // Fraction of the offset between the display reference and the frame that
+  // is kept at every frame; the closer to 1, the smoother the video and the
+  // later the display catches up with a pan.
+  static const double DEFAULT_SMOOTHING;
+  // Fraction of the frame width and height cropped on every side.
+  static const double DEFAULT_CROP_RATIO;
+  // Time budget per frame in ms, a third of a frame at 30 fps.
+  static const double DEFAULT_BUDGET_MS;
+  // Most frames dropped in a row. The next frame is aligned to the last one
+  // that was not dropped, and the motion has to stay within the disparity
+  // searched by the matching. Budgets below about a quarter of the time to
+  // align a frame are overrun.
+  static const int MAX_DROPPED_FRAMES = 3;
+
+  // Layout of the transform of a frame: the 3x3 homography from the display
+  // reference to the frame in pixels of the frame, followed by the crop
+  // window in the display reference (left, top, right, bottom).
+  static const int TRANSFORM_SIZE = 13;
+  static const int TRANSFORM_CROP_INDEX = 9;
+
+  Stabilizer();
+  ~Stabilizer();
+
+  // Allocates the low-res image and sets up the alignment for NV21 frames of
+  // width x height, dropping the state of any earlier frames.
+  int initialize(int width, int height, double smoothing, double crop_ratio,
+          double budget_ms);
+
+  // Starts over at the next frame, as at a cut of the video.
+  void reset();
+
+  // Stabilizes one NV21 frame. Returns one of the return codes above.
+  int addFrame(ImageType nv21);
+
+  // The steps of addFrame(), for callers which have to hand the frame back
+  // as soon as it is read: reduces the frame, then aligns it.
+  void reduceFrame(ImageType nv21);
+  int stabilizeFrame();
+
+  // Writes the TRANSFORM_SIZE values of the last frame.
+  void getTransform(double transform[TRANSFORM_SIZE]) const;
+
+  // Size of the frames, 0 until initialize() succeeds.
+  int getWidth() const { return width; }
+  int getHeight() const { return height; }
+
+  int getFrameCount() const { return frame_count; }
+  int getDroppedFrameCount() const { return dropped_count; }
+  // Mean and largest time spent on the frames that were not dropped, in ms.
+  // The dropped frames take a small fraction of it.
+  double getMeanFrameTime() const;
+  double getMaxFrameTime() const { return max_frame_ms; }
+
+protected:
+  // True if the frame is to be dropped to keep within the budget.
+  bool isBehind() const;
+  int alignFrame();
+  int dropFrame();
+  // Writes the column and row sums of the low-res frame.
+  void project(int *cols, int *rows) const;
+  // Shift of the sums from the ones of the last aligned frame, in low-res
+  // pixels, searched up to max_shift.
+  static double matchSums(const int *sums, const int *sums_ref, int size, int max_shift);
+  // Moves H so that the crop window warped by it stays in the low-res frame.
+  void clamp(double H[9]) const;
+
+  db_FrameToReferenceRegistration reg;
+
+  int width, height;            // Size of the frames
+  int lr_width, lr_height;      // Size of the low-res frames
+  unsigned char **image_lr;     // Low-res Y plane of the frame being aligned
+  double crop[4];               // Crop window in frame pixels
+  double crop_lr[4];            // Crop window in low-res pixels
+  int *cols_ref, *rows_ref;     // Column and row sums of the last aligned frame
+  int *cols, *rows;             // and of the frame being dropped
+  double smoothing;
+  double budget_ms;
+
+  bool need_reference;          // The next aligned frame starts over
+  double H_dref_to_ins[9];      // Transform of the last aligned frame, low-res pixels
+  double H_last[9];             // Transform of the last frame, low-res pixels
+  int frames_since_aligned;     // Frames dropped since the last aligned one
+
+  double debt_ms;               // Time over the budget not made up yet
+  double frame_start_ms;        // Time reduceFrame() was called
+  int frame_count;
+  int dropped_count;
+  double total_frame_ms;
+  double max_frame_ms;
+};
+
+#endif
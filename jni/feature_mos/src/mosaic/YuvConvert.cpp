@@ -0,0 +1,444 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// YuvConvert.cpp
+
+#include <pthread.h>
+#include <string.h>
+#include <unistd.h>
+
+#include "YuvConvert.h"
+
+#if defined(__ARM_NEON__)
+#include <arm_neon.h>
+#define YUV_CONVERT_NEON
+#elif defined(__SSE2__)
+#include <emmintrin.h>
+#define YUV_CONVERT_SSE2
+#endif
+
+static const int MAX_THREADS = 4;
+
+static int sMaxThreads = 0;     // 0 until set or first used
+
+static int GetMaxThreads()
+{
+  if (sMaxThreads == 0)
+  {
+    long cpus = sysconf(_SC_NPROCESSORS_ONLN);
+    sMaxThreads = cpus < 1 ? 1 : (cpus > MAX_THREADS ? MAX_THREADS : (int) cpus);
+  }
+  return sMaxThreads;
+}
+
+void YuvConvert::setMaxThreads(int threads)
+{
+  sMaxThreads = threads < 1 ? 1 : (threads > MAX_THREADS ? MAX_THREADS : threads);
+}
+
+/////////////////////////////////////////////////////////////////////////////
+// Row kernels. Each handles the bulk of a row with SIMD and the rest in C.
+
+// Copies the interlaced V and U samples of one NV21 chroma row into one row of
+// the V and U planes, each sample twice.
+static void UpsampleChromaRow(ImageType vOut, ImageType uOut, const ImageTypeBase *vu,
+        int width)
+{
+  int i = 0;
+#if defined(YUV_CONVERT_NEON)
+  for (; i + 32 <= width; i += 32)
+  {
+    uint8x16x2_t in = vld2q_u8(vu + i);
+    uint8x16x2_t v, u;
+    v.val[0] = v.val[1] = in.val[0];
+    u.val[0] = u.val[1] = in.val[1];
+    vst2q_u8(vOut + i, v);
+    vst2q_u8(uOut + i, u);
+  }
+#elif defined(YUV_CONVERT_SSE2)
+  const __m128i lowBytes = _mm_set1_epi16(0x00ff);
+  for (; i + 16 <= width; i += 16)
+  {
+    __m128i in = _mm_loadu_si128((const __m128i *) (vu + i));
+    __m128i v = _mm_and_si128(in, lowBytes);
+    __m128i u = _mm_srli_epi16(in, 8);
+    _mm_storeu_si128((__m128i *) (vOut + i), _mm_or_si128(v, _mm_slli_epi16(v, 8)));
+    _mm_storeu_si128((__m128i *) (uOut + i), _mm_or_si128(u, _mm_slli_epi16(u, 8)));
+  }
+#endif
+  for (; i < width; i += 2)
+  {
+    vOut[i] = vOut[i + 1] = vu[i];
+    uOut[i] = uOut[i + 1] = vu[i + 1];
+  }
+}
+
+#if defined(YUV_CONVERT_SSE2)
+// Packs byte 0 of each 32-bit lane of a..d into 16 bytes.
+static inline __m128i PackLowBytes(__m128i a, __m128i b, __m128i c, __m128i d)
+{
+  const __m128i lowByte = _mm_set1_epi32(0xff);
+  return _mm_packus_epi16(
+          _mm_packs_epi32(_mm_and_si128(a, lowByte), _mm_and_si128(b, lowByte)),
+          _mm_packs_epi32(_mm_and_si128(c, lowByte), _mm_and_si128(d, lowByte)));
+}
+#endif
+
+// Writes the rounded mean of each 4x4 block of the 4 rows starting at src, the
+// rows stride bytes apart, to out.
+static void BoxFilterRow(ImageType out, const ImageTypeBase *src, int stride,
+        int outWidth)
+{
+  const ImageTypeBase *r0 = src;
+  const ImageTypeBase *r1 = r0 + stride;
+  const ImageTypeBase *r2 = r1 + stride;
+  const ImageTypeBase *r3 = r2 + stride;
+  int i = 0;
+#if defined(YUV_CONVERT_NEON)
+  for (; i + 16 <= outWidth; i += 16)
+  {
+    // Sums of 2 columns of the 4 rows, then of adjacent pairs of those.
+    uint16x4_t quads[4];
+    for (int k = 0; k < 4; k++)
+    {
+      int x = 4 * i + 16 * k;
+      uint16x8_t pairs = vpaddlq_u8(vld1q_u8(r0 + x));
+      pairs = vpadalq_u8(pairs, vld1q_u8(r1 + x));
+      pairs = vpadalq_u8(pairs, vld1q_u8(r2 + x));
+      pairs = vpadalq_u8(pairs, vld1q_u8(r3 + x));
+      quads[k] = vpadd_u16(vget_low_u16(pairs), vget_high_u16(pairs));
+    }
+    vst1q_u8(out + i, vcombine_u8(
+            vrshrn_n_u16(vcombine_u16(quads[0], quads[1]), 4),
+            vrshrn_n_u16(vcombine_u16(quads[2], quads[3]), 4)));
+  }
+#elif defined(YUV_CONVERT_SSE2)
+  const __m128i zero = _mm_setzero_si128();
+  const __m128i ones = _mm_set1_epi16(1);
+  const __m128i round = _mm_set1_epi32(8);
+  for (; i + 16 <= outWidth; i += 16)
+  {
+    // Sums of the 4 rows per column, then of 2 and 4 adjacent columns.
+    __m128i quads[4];
+    for (int k = 0; k < 4; k++)
+    {
+      int x = 4 * i + 16 * k;
+      __m128i a = _mm_loadu_si128((const __m128i *) (r0 + x));
+      __m128i b = _mm_loadu_si128((const __m128i *) (r1 + x));
+      __m128i c = _mm_loadu_si128((const __m128i *) (r2 + x));
+      __m128i d = _mm_loadu_si128((const __m128i *) (r3 + x));
+      __m128i low = _mm_add_epi16(
+              _mm_add_epi16(_mm_unpacklo_epi8(a, zero), _mm_unpacklo_epi8(b, zero)),
+              _mm_add_epi16(_mm_unpacklo_epi8(c, zero), _mm_unpacklo_epi8(d, zero)));
+      __m128i high = _mm_add_epi16(
+              _mm_add_epi16(_mm_unpackhi_epi8(a, zero), _mm_unpackhi_epi8(b, zero)),
+              _mm_add_epi16(_mm_unpackhi_epi8(c, zero), _mm_unpackhi_epi8(d, zero)));
+      __m128i pairs = _mm_packs_epi32(_mm_madd_epi16(low, ones),
+              _mm_madd_epi16(high, ones));
+      quads[k] = _mm_srli_epi32(_mm_add_epi32(_mm_madd_epi16(pairs, ones), round), 4);
+    }
+    _mm_storeu_si128((__m128i *) (out + i), _mm_packus_epi16(
+            _mm_packs_epi32(quads[0], quads[1]), _mm_packs_epi32(quads[2], quads[3])));
+  }
+#endif
+  for (; i < outWidth; i++)
+  {
+    int x = 4 * i;
+    int sum = r0[x] + r0[x + 1] + r0[x + 2] + r0[x + 3]
+            + r1[x] + r1[x + 1] + r1[x + 2] + r1[x + 3]
+            + r2[x] + r2[x + 1] + r2[x + 2] + r2[x + 3]
+            + r3[x] + r3[x + 1] + r3[x + 2] + r3[x + 3];
+    out[i] = (ImageTypeBase) ((sum + 8) >> 4);
+  }
+}
+
+// Writes the rounded means of each 2x2 block of V and of U samples of the two
+// NV21 chroma rows starting at vu, the rows stride bytes apart, to the V and U
+// planes. The chroma is a small part of the low-res image, so this is left to
+// the compiler.
+static void BoxFilterChromaRow(ImageType vOut, ImageType uOut, const ImageTypeBase *vu,
+        int stride, int outWidth)
+{
+  const ImageTypeBase *r0 = vu;
+  const ImageTypeBase *r1 = vu + stride;
+  for (int i = 0; i < outWidth; i++)
+  {
+    int x = 4 * i;
+    vOut[i] = (ImageTypeBase) ((r0[x] + r0[x + 2] + r1[x] + r1[x + 2] + 2) >> 2);
+    uOut[i] = (ImageTypeBase) ((r0[x + 1] + r0[x + 3] + r1[x + 1] + r1[x + 3] + 2) >> 2);
+  }
+}
+
+// Splits count YVUA pixels into the Y, V and U planes.
+static void DeinterleaveYvuaRow(ImageType yOut, ImageType vOut, ImageType uOut,
+        const ImageTypeBase *yvua, int count)
+{
+  int i = 0;
+#if defined(YUV_CONVERT_NEON)
+  for (; i + 16 <= count; i += 16)
+  {
+    uint8x16x4_t in = vld4q_u8(yvua + 4 * i);
+    vst1q_u8(yOut + i, in.val[0]);
+    vst1q_u8(vOut + i, in.val[1]);
+    vst1q_u8(uOut + i, in.val[2]);
+  }
+#elif defined(YUV_CONVERT_SSE2)
+  for (; i + 16 <= count; i += 16)
+  {
+    const __m128i *in = (const __m128i *) (yvua + 4 * i);
+    __m128i a = _mm_loadu_si128(in);
+    __m128i b = _mm_loadu_si128(in + 1);
+    __m128i c = _mm_loadu_si128(in + 2);
+    __m128i d = _mm_loadu_si128(in + 3);
+    _mm_storeu_si128((__m128i *) (yOut + i), PackLowBytes(a, b, c, d));
+    _mm_storeu_si128((__m128i *) (vOut + i), PackLowBytes(_mm_srli_epi32(a, 8),
+            _mm_srli_epi32(b, 8), _mm_srli_epi32(c, 8), _mm_srli_epi32(d, 8)));
+    _mm_storeu_si128((__m128i *) (uOut + i), PackLowBytes(_mm_srli_epi32(a, 16),
+            _mm_srli_epi32(b, 16), _mm_srli_epi32(c, 16), _mm_srli_epi32(d, 16)));
+  }
+#endif
+  for (; i < count; i++)
+  {
+    yOut[i] = yvua[4 * i];
+    vOut[i] = yvua[4 * i + 1];
+    uOut[i] = yvua[4 * i + 2];
+  }
+}
+
+/////////////////////////////////////////////////////////////////////////////
+// Splitting a conversion into bands of rows.
+
+typedef void (*RowFunction)(void *args, int begin, int end);
+
+struct Band
+{
+  RowFunction function;
+  void *args;
+  int begin;
+  int end;
+};
+
+static void *RunBand(void *arg)
+{
+  Band *band = (Band *) arg;
+  band->function(band->args, band->begin, band->end);
+  return NULL;
+}
+
+// Calls function for consecutive bands of rows covering [0, rows), on up to
+// GetMaxThreads() threads. Every band starts at a multiple of align.
+static void ForEachBand(RowFunction function, void *args, int rows, int align,
+        int pixels)
+{
+  int threads = pixels < YuvConvert::MIN_PARALLEL_PIXELS ? 1 : GetMaxThreads();
+  if (threads > rows / align) threads = rows / align;
+  if (threads <= 1)
+  {
+    function(args, 0, rows);
+    return;
+  }
+
+  int bandRows = ((rows + threads - 1) / threads + align - 1) / align * align;
+  Band bands[MAX_THREADS];
+  pthread_t workers[MAX_THREADS];
+  bool started[MAX_THREADS];
+  int count = 0;
+  for (int begin = 0; begin < rows; begin += bandRows, count++)
+  {
+    bands[count].function = function;
+    bands[count].args = args;
+    bands[count].begin = begin;
+    bands[count].end = begin + bandRows < rows ? begin + bandRows : rows;
+  }
+
+  // The calling thread converts the first band. A band whose thread cannot be
+  // created is converted here too.
+  for (int i = 1; i < count; i++)
+  {
+    started[i] = pthread_create(&workers[i], NULL, RunBand, &bands[i]) == 0;
+  }
+  RunBand(&bands[0]);
+  for (int i = 1; i < count; i++)
+  {
+    if (started[i])
+      pthread_join(workers[i], NULL);
+    else
+      RunBand(&bands[i]);
+  }
+}
+
+/////////////////////////////////////////////////////////////////////////////
+// NV21 to YVU.
+
+struct Nv21Args
+{
+  ImageType outHR;
+  ImageType outLR;
+  const ImageTypeBase *nv21;
+  int width;
+  int height;
+};
+
+static void Nv21ToYvuRows(void *arg, int begin, int end)
+{
+  const Nv21Args *args = (const Nv21Args *) arg;
+  const int width = args->width;
+  const int frameSize = width * args->height;
+  const ImageTypeBase *nv21 = args->nv21;
+  const ImageTypeBase *vu = nv21 + frameSize;
+
+  const int f = YuvConvert::LOW_RES_FACTOR;
+  const int lrWidth = width / f;
+  const int lrSize = lrWidth * (args->height / f);
+
+  ImageType vPlane = args->outHR + frameSize;
+  ImageType uPlane = vPlane + frameSize;
+  for (int j = begin; j < end; j += 2)
+  {
+    memcpy(args->outHR + j * width, nv21 + j * width, 2 * width);
+
+    ImageType vRow = vPlane + j * width;
+    ImageType uRow = uPlane + j * width;
+    UpsampleChromaRow(vRow, uRow, vu + (j >> 1) * width, width);
+    memcpy(vRow + width, vRow, width);
+    memcpy(uRow + width, uRow, width);
+
+    // Once the 4 rows of a low-res row are done, average them while they
+    // are still in the cache. The low-res pixel (i, j) is the mean of the
+    // full-res pixels (4i..4i+3, 4j..4j+3), which keeps the fine detail of
+    // the frame from aliasing into the image used for the alignment.
+    if (args->outLR != NULL && (j & (f - 1)) == f - 2)
+    {
+      int lrRow = j / f;
+      ImageType lr = args->outLR + lrRow * lrWidth;
+      BoxFilterRow(lr, nv21 + lrRow * f * width, width, lrWidth);
+      BoxFilterChromaRow(lr + lrSize, lr + 2 * lrSize, vu + (lrRow * f >> 1) * width,
+              width, lrWidth);
+    }
+  }
+}
+
+void YuvConvert::nv21ToYvu(ImageType outHR, ImageType outLR, ImageType nv21,
+        int width, int height)
+{
+  Nv21Args args = { outHR, outLR, nv21, width, height };
+  ForEachBand(Nv21ToYvuRows, &args, height, outLR != NULL ? LOW_RES_FACTOR : 2,
+          width * height);
+}
+
+void YuvConvert::nv21ToLowResY(ImageType outLR, ImageType nv21, int width, int height)
+{
+  // Only a sixteenth of the frame is read, which is not worth the threads.
+  const int f = LOW_RES_FACTOR;
+  const int lrWidth = width / f;
+  for (int j = 0; j < height / f; j++)
+  {
+    BoxFilterRow(outLR + j * lrWidth, nv21 + j * f * width, width, lrWidth);
+  }
+}
+
+/////////////////////////////////////////////////////////////////////////////
+// YVUA to YVU.
+
+struct YvuaArgs
+{
+  ImageType out;
+  const ImageTypeBase *yvua;
+  int width;
+  int height;
+};
+
+static void YvuaToYvuRows(void *arg, int begin, int end)
+{
+  const YvuaArgs *args = (const YvuaArgs *) arg;
+  const int planeSize = args->width * args->height;
+  const int first = begin * args->width;
+  ImageType y = args->out + first;
+  DeinterleaveYvuaRow(y, y + planeSize, y + 2 * planeSize, args->yvua + 4 * first,
+          (end - begin) * args->width);
+}
+
+void YuvConvert::yvuaToYvu(ImageType out, ImageType yvua, int width, int height)
+{
+  YvuaArgs args = { out, yvua, width, height };
+  ForEachBand(YvuaToYvuRows, &args, height, 1, width * height);
+}
+
+/////////////////////////////////////////////////////////////////////////////
+// YVU to RGB.
+
+static inline unsigned char ClampRgb(int value)
+{
+  // value is in units of 1/1024 and saturates at 18 bits. Kept free of
+  // branches so that the compiler can vectorize the loop below.
+  value = value < 0 ? 0 : value;
+  value = value > 262143 ? 262143 : value;
+  return (unsigned char) (value >> 10);
+}
+
+void YuvConvert::yvuToRgb(ImageType rgb, ImageType yvu, int width, int height)
+{
+  const int frameSize = width * height;
+  const ImageTypeBase *yp = yvu;
+  const ImageTypeBase *vp = yvu + frameSize;
+  const ImageTypeBase *up = vp + frameSize;
+
+  int n = 0;
+#if defined(YUV_CONVERT_NEON)
+  // Saturating to 0 and narrowing with saturation to 255 is the same as
+  // clamping to 18 bits and shifting, as ClampRgb() does.
+  const int16x8_t offsetY = vdupq_n_s16(16);
+  const int16x8_t offsetC = vdupq_n_s16(128);
+  const int16x8_t zero = vdupq_n_s16(0);
+  for (; n + 8 <= frameSize; n += 8)
+  {
+    int16x8_t y = vmaxq_s16(vsubq_s16(
+            vreinterpretq_s16_u16(vmovl_u8(vld1_u8(yp + n))), offsetY), zero);
+    int16x8_t v = vsubq_s16(vreinterpretq_s16_u16(vmovl_u8(vld1_u8(vp + n))), offsetC);
+    int16x8_t u = vsubq_s16(vreinterpretq_s16_u16(vmovl_u8(vld1_u8(up + n))), offsetC);
+
+    int32x4_t yLow = vmull_n_s16(vget_low_s16(y), 1192);
+    int32x4_t yHigh = vmull_n_s16(vget_high_s16(y), 1192);
+    int32x4_t rLow = vmlal_n_s16(yLow, vget_low_s16(v), 1634);
+    int32x4_t rHigh = vmlal_n_s16(yHigh, vget_high_s16(v), 1634);
+    int32x4_t gLow = vmlal_n_s16(vmlal_n_s16(yLow, vget_low_s16(v), -833),
+            vget_low_s16(u), -400);
+    int32x4_t gHigh = vmlal_n_s16(vmlal_n_s16(yHigh, vget_high_s16(v), -833),
+            vget_high_s16(u), -400);
+    int32x4_t bLow = vmlal_n_s16(yLow, vget_low_s16(u), 2066);
+    int32x4_t bHigh = vmlal_n_s16(yHigh, vget_high_s16(u), 2066);
+
+    uint8x8x3_t out;
+    out.val[0] = vqmovn_u16(vcombine_u16(vqshrun_n_s32(rLow, 10), vqshrun_n_s32(rHigh, 10)));
+    out.val[1] = vqmovn_u16(vcombine_u16(vqshrun_n_s32(gLow, 10), vqshrun_n_s32(gHigh, 10)));
+    out.val[2] = vqmovn_u16(vcombine_u16(vqshrun_n_s32(bLow, 10), vqshrun_n_s32(bHigh, 10)));
+    vst3_u8(rgb + 3 * n, out);
+  }
+#endif
+  for (; n < frameSize; n++)
+  {
+    int y = yp[n] - 16;
+    y = y < 0 ? 0 : y;
+    int v = vp[n] - 128;
+    int u = up[n] - 128;
+
+    int y1192 = 1192 * y;
+    rgb[3 * n] = ClampRgb(y1192 + 1634 * v);
+    rgb[3 * n + 1] = ClampRgb(y1192 - 833 * v - 400 * u);
+    rgb[3 * n + 2] = ClampRgb(y1192 + 2066 * u);
+  }
+}
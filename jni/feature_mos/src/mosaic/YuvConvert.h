@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// YuvConvert.h
+
+#ifndef YUV_CONVERT_H
+#define YUV_CONVERT_H
+
+#include "ImageUtils.h"
+
+/**
+ *  Conversions of the camera frames into the planar YVU images used by the
+ *  mosaic, done on every preview frame.
+ *
+ *  The kernels use NEON on ARM when the build enables it and SSE2 on x86, and
+ *  split large frames into bands of rows converted on several threads. The
+ *  results are the same, bit for bit, on every path.
+ */
+class YuvConvert {
+public:
+
+  /**
+   *  Decimation factor of the low-res image made by nv21ToYvu(), the same as
+   *  H2L_FACTOR of the JNI layer.
+   */
+  static const int LOW_RES_FACTOR = 4;
+
+  /**
+   *  Converts an NV21 frame to a planar YVU image of the same size, where
+   *  every chroma sample covers 2x2 pixels, and in the same pass to a planar
+   *  YVU image reduced by LOW_RES_FACTOR, each pixel the rounded mean of a
+   *  4x4 block of the frame. If the size is not a multiple of 4, the
+   *  remaining columns and rows are left out of the low-res image.
+   *
+   *  Arguments:
+   *    outHR: Full-size YVU image (width x height x 3), preallocated
+   *    outLR: Low-res YVU image ((width / 4) x (height / 4) x 3), preallocated;
+   *           may be NULL to skip it
+   *    nv21: Input frame
+   *    width: Width of the frame, even
+   *    height: Height of the frame, even
+   */
+  static void nv21ToYvu(ImageType outHR, ImageType outLR, ImageType nv21,
+          int width, int height);
+
+  /**
+   *  Reduces the Y plane of an NV21 frame by LOW_RES_FACTOR to the same bytes
+   *  as the Y plane of the low-res image of nv21ToYvu(), for frames that are
+   *  only aligned, such as those of the video stabilizer.
+   *
+   *  Arguments:
+   *    outLR: Low-res gray image ((width / 4) x (height / 4)), preallocated
+   *    nv21: Input frame; only its Y plane is read
+   *    width: Width of the frame
+   *    height: Height of the frame
+   */
+  static void nv21ToLowResY(ImageType outLR, ImageType nv21, int width, int height);
+
+  /**
+   *  Converts a YVUA image (interlaced, as read back from the GPU) to planar
+   *  YVU, dropping the alpha channel.
+   */
+  static void yvuaToYvu(ImageType out, ImageType yvua, int width, int height);
+
+  /**
+   *  Converts a planar YVU image to interlaced RGB with the fixed-point
+   *  coefficients of the preview renderer.
+   */
+  static void yvuToRgb(ImageType rgb, ImageType yvu, int width, int height);
+
+  /**
+   *  Sets the maximum number of threads a conversion may use, including the
+   *  calling thread. The default is the number of online CPUs, up to 4.
+   *  Frames smaller than MIN_PARALLEL_PIXELS always use the calling thread.
+   */
+  static void setMaxThreads(int threads);
+
+  static const int MIN_PARALLEL_PIXELS = 640 * 480;
+};
+
+#endif
@@ -0,0 +1,97 @@
+#include "PixelPackBuffer.h"
+
+#include <stdio.h>
+
+// From GLES3/gl3.h
+#define GL_PIXEL_PACK_BUFFER 0x88EB
+#define GL_STREAM_READ 0x88E1
+#define GL_MAP_READ_BIT 0x0001
+
+typedef void* (GL_APIENTRYP MapBufferRangeProc)(GLenum target, GLintptr offset,
+        GLsizeiptr length, GLbitfield access);
+typedef GLboolean (GL_APIENTRYP UnmapBufferProc)(GLenum target);
+
+static MapBufferRangeProc sMapBufferRange = NULL;
+static UnmapBufferProc sUnmapBuffer = NULL;
+
+PixelPackBuffer::PixelPackBuffer()
+{
+    Reset();
+}
+
+PixelPackBuffer::~PixelPackBuffer() {
+}
+
+void PixelPackBuffer::Reset() {
+    mBufferName = -1;
+    mWidth = 0;
+    mHeight = 0;
+}
+
+bool PixelPackBuffer::IsSupported() {
+    const char* version = (const char*) glGetString(GL_VERSION);
+    int major = 0;
+    if (version == NULL || sscanf(version, "OpenGL ES %d.", &major) != 1 || major < 3) {
+        return false;
+    }
+    sMapBufferRange = (MapBufferRangeProc) eglGetProcAddress("glMapBufferRange");
+    sUnmapBuffer = (UnmapBufferProc) eglGetProcAddress("glUnmapBuffer");
+    return sMapBufferRange != NULL && sUnmapBuffer != NULL;
+}
+
+bool PixelPackBuffer::InitializeGLContext() {
+    Reset();
+    glGenBuffers(1, &mBufferName);
+    return checkGlError("buffer generation");
+}
+
+bool PixelPackBuffer::Init(int width, int height) {
+    if (mBufferName == (GLuint)-1 && !InitializeGLContext()) {
+        return false;
+    }
+    glBindBuffer(GL_PIXEL_PACK_BUFFER, mBufferName);
+    glBufferData(GL_PIXEL_PACK_BUFFER, width * height * 4, NULL, GL_STREAM_READ);
+    glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+    if (!checkGlError("pixel pack buffer data")) {
+        return false;
+    }
+    mWidth = width;
+    mHeight = height;
+    return true;
+}
+
+void PixelPackBuffer::Release() {
+    if (mBufferName != (GLuint)-1) {
+        glDeleteBuffers(1, &mBufferName);
+    }
+    Reset();
+}
+
+bool PixelPackBuffer::ReadPixels(const FrameBuffer *frameBuffer) {
+    glBindFramebuffer(GL_FRAMEBUFFER, frameBuffer->GetFrameBufferName());
+    glBindBuffer(GL_PIXEL_PACK_BUFFER, mBufferName);
+    // With a pack buffer bound, the last argument is an offset into it.
+    glReadPixels(0, 0, mWidth, mHeight, GL_RGBA, GL_UNSIGNED_BYTE, 0);
+    glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+    return checkGlError("glReadPixels into a pixel pack buffer");
+}
+
+const unsigned char* PixelPackBuffer::Map() {
+    glBindBuffer(GL_PIXEL_PACK_BUFFER, mBufferName);
+    const unsigned char* pixels = (const unsigned char*) sMapBufferRange(
+            GL_PIXEL_PACK_BUFFER, 0, GetSize(), GL_MAP_READ_BIT);
+    if (pixels == NULL) {
+        checkGlError("glMapBufferRange");
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+    }
+    return pixels;
+}
+
+void PixelPackBuffer::Unmap() {
+    sUnmapBuffer(GL_PIXEL_PACK_BUFFER);
+    glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+}
+
+int PixelPackBuffer::GetSize() const {
+    return mWidth * mHeight * 4;
+}
@@ -0,0 +1,43 @@
+#pragma once
+
+#include <EGL/egl.h>
+#include <GLES2/gl2.h>
+#include <GLES2/gl2ext.h>
+
+#include "FrameBuffer.h"
+
+// A pixel buffer object that glReadPixels() fills without waiting for the
+// GPU, to be mapped one frame later when the copy is done. Pixel buffer
+// objects are part of OpenGL ES 3.0; the library is built against the
+// OpenGL ES 2.0 headers, so the entry points are looked up at run time and
+// IsSupported() tells whether the current context has them.
+class PixelPackBuffer {
+  public:
+    PixelPackBuffer();
+    virtual ~PixelPackBuffer();
+
+    // Whether the current context is OpenGL ES 3.0 or later. Call with the
+    // context current, before anything else.
+    static bool IsSupported();
+
+    bool InitializeGLContext();
+    // (Re)allocates the buffer for RGBA frames of width by height.
+    bool Init(int width, int height);
+    void Release();
+
+    // Starts reading the RGBA pixels of the frame buffer into this buffer;
+    // returns at once.
+    bool ReadPixels(const FrameBuffer *frameBuffer);
+    // Waits for the pixels read by the last ReadPixels() and returns them, or
+    // NULL on an error. Unmap() before the next ReadPixels().
+    const unsigned char *Map();
+    void Unmap();
+
+    int GetSize() const;
+
+  private:
+    void Reset();
+    GLuint mBufferName;
+    int mWidth;
+    int mHeight;
+};
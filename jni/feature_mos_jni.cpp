@@ -19,14 +19,23 @@
  */
 #include <string.h>
 #include <jni.h>
+#include <stdint.h>
 #include <stdio.h>
 #include <stdlib.h>
 #include <time.h>
+#include <pthread.h>
+#include <sys/time.h>
 #include <db_utilities_camera.h>
+#include <db_stage_timer.h>
 
 #include "mosaic/AlignFeatures.h"
 #include "mosaic/Blend.h"
 #include "mosaic/Mosaic.h"
+#include "mosaic/MosaicProgress.h"
+#include "mosaic/YuvConvert.h"
+#include "mosaic/FrameSpillStore.h"
+#include "mosaic/MosaicSession.h"
+#include "mosaic/JpegStripEncoder.h"
 #include "mosaic/Log.h"
 #define LOG_TAG "FEATURE_MOS_JNI"
 
@@ -36,36 +45,82 @@ extern "C" {
 
 #include "mosaic_renderer_jni.h"
 
-char buffer[1024];
-
+// Maximum number of frames when all the frames are kept in memory.
 const int MAX_FRAMES = 100;
 
-static double mTx;
-
-int tWidth[NR];
-int tHeight[NR];
-
-ImageType tImage[NR][MAX_FRAMES];// = {{ImageUtils::IMAGE_TYPE_NOIMAGE}}; // YVU24 format image
-Mosaic *mosaic[NR] = {NULL,NULL};
-ImageType resultYVU = ImageUtils::IMAGE_TYPE_NOIMAGE;
-ImageType resultBGR = ImageUtils::IMAGE_TYPE_NOIMAGE;
-float gTRS[11]; // 9 elements of the transformation, 1 for frame-number, 1 for alignment error code.
-// Variables to keep track of the mosaic computation progress for both LR & HR.
-float gProgress[NR];
-// Variables to be able to cancel the mosaic computation when the GUI says so.
-bool gCancelComputation[NR];
-
-int c;
-int width=0, height=0;
-int mosaicWidth=0, mosaicHeight=0;
-
-//int blendingType = Blend::BLEND_TYPE_FULL;
-//int blendingType = Blend::BLEND_TYPE_CYLPAN;
-int blendingType = Blend::BLEND_TYPE_HORZ;
-int stripType = Blend::STRIP_TYPE_THIN;
-bool high_res = false;
-bool quarter_res[NR] = {false,false};
-float thresh_still[NR] = {5.0f,0.0f};
+const float thresh_still[NR] = {5.0f,0.0f};
+
+// State of one panorama. Every com.android.camera.Mosaic owns one context,
+// whose address is kept in its mNativeContext field, so several mosaics can
+// exist at the same time, e.g. a finished sweep being rendered in the
+// background while the next one is captured.
+struct MosaicContext
+{
+    int tWidth[NR];
+    int tHeight[NR];
+
+    // Maximum number of frames for the current allocation. This is MAX_FRAMES
+    // unless the high-res frames are spilled to a file (see spillStore).
+    int maxFrames;
+
+    ImageType *tImage[NR]; // maxFrames YVU24 format images per mode
+
+    // Optional memory-mapped file holding the high-res frames. When it is open,
+    // tImage[HR] points into the mapping instead of into malloc'ed memory.
+    FrameSpillStore spillStore;
+    char *spillFilePath;
+    int spillMaxFrames;
+    // Whether the spill file stays in the file system, so that a session can
+    // refer to it; see Mosaic.setSpillFile().
+    bool spillPersistent;
+
+    // Session loaded by loadSession(). The first sessionFrames frames of
+    // tImage point into its mapping, or into the spill file it refers to.
+    MosaicSession session;
+    int sessionFrames;
+
+    Mosaic *mosaic[NR];
+    ImageType resultYVU;
+    int mosaicWidth, mosaicHeight;
+
+    // Encoder streaming resultYVU to Java, see writeFinalMosaicJpeg().
+    JpegStripEncoder jpegEncoder;
+    double jpegStartTime;
+
+    float trs[11]; // 9 elements of the transformation, 1 for frame-number, 1 for alignment error code.
+    // Progress and cancellation of the mosaic computation for both LR & HR.
+    MosaicProgress progress[NR];
+    // Time at which the GUI asked to cancel the computation, to measure how
+    // long it takes to stop; 0 if it has not.
+    double cancelRequestTime;
+
+    // Mosaic.ProgressListener called by createMosaic(), and the JNIEnv of the
+    // thread running it, which is only valid during that call.
+    jobject progressListener;
+    jmethodID progressMethod;
+    JNIEnv *progressEnv;
+
+    int blendingType;
+    int stripType;
+    bool quarterRes[NR];
+    // Largest overlap of a frame with the last one kept, see
+    // Mosaic.setMaxFrameOverlap(); only the low-res aligner rejects frames.
+    float maxFrameOverlap;
+
+    int frameNumberHR;
+    int frameNumberLR;
+
+    MosaicContext();
+    ~MosaicContext();
+};
+
+// The preview images of the renderer exist once per process. They belong to
+// the context that allocated them last, which is the one being captured;
+// other contexts neither draw into them nor free them.
+static MosaicContext *gPreviewOwner = NULL;
+static pthread_mutex_t gPreviewOwnerLock = PTHREAD_MUTEX_INITIALIZER;
+
+static jfieldID gNativeContextField = NULL;
 
 /* return current time in milliseconds*/
 
@@ -81,36 +136,74 @@ now_ms(void)
 }
 #endif
 
+MosaicContext::MosaicContext()
+{
+    maxFrames = MAX_FRAMES;
+    tWidth[LR] = tWidth[HR] = 0;
+    tHeight[LR] = tHeight[HR] = 0;
+    tImage[LR] = tImage[HR] = NULL;
+    spillFilePath = NULL;
+    spillMaxFrames = 0;
+    spillPersistent = false;
+    sessionFrames = 0;
+    mosaic[LR] = mosaic[HR] = NULL;
+    resultYVU = NULL;
+    mosaicWidth = mosaicHeight = 0;
+    jpegStartTime = 0;
+    memset(trs, 0, sizeof(trs));
+    cancelRequestTime = 0;
+    progressListener = NULL;
+    progressMethod = NULL;
+    progressEnv = NULL;
+    //blendingType = Blend::BLEND_TYPE_FULL;
+    //blendingType = Blend::BLEND_TYPE_CYLPAN;
+    blendingType = Blend::BLEND_TYPE_HORZ;
+    stripType = Blend::STRIP_TYPE_THIN;
+    quarterRes[LR] = quarterRes[HR] = false;
+    maxFrameOverlap = 1.0f;
+    frameNumberHR = 0;
+    frameNumberLR = 0;
+}
 
-static int frame_number_HR = 0;
-static int frame_number_LR = 0;
+MosaicContext::~MosaicContext()
+{
+    jpegEncoder.end();
+    if (resultYVU != NULL)
+        ImageUtils::freeImage(resultYVU);
+    delete mosaic[LR];
+    delete mosaic[HR];
+    free(spillFilePath);
+}
 
-int Init(int mID, int nmax)
+int Init(MosaicContext *ctx, int mID, int nmax)
 {
         double  t0, t1, time_c;
 
-        if(mosaic[mID]!=NULL)
+        if(ctx->mosaic[mID]!=NULL)
         {
-                delete mosaic[mID];
-                mosaic[mID] = NULL;
+                delete ctx->mosaic[mID];
+                ctx->mosaic[mID] = NULL;
         }
 
-        mosaic[mID] = new Mosaic();
+        ctx->mosaic[mID] = new Mosaic();
 
         t0 = now_ms();
 
         // When processing higher than 720x480 video, process low-res at
         // quarter resolution
-        if(tWidth[LR]>180)
-            quarter_res[LR] = true;
+        if(ctx->tWidth[LR]>180)
+            ctx->quarterRes[LR] = true;
 
 
         // Check for initialization and if not, initialize
-        if (!mosaic[mID]->isInitialized())
+        if (!ctx->mosaic[mID]->isInitialized())
         {
-                mosaic[mID]->initialize(blendingType, stripType, tWidth[mID], tHeight[mID],
-                        nmax, quarter_res[mID], thresh_still[mID]);
+                ctx->mosaic[mID]->initialize(ctx->blendingType, ctx->stripType,
+                        ctx->tWidth[mID], ctx->tHeight[mID], nmax,
+                        ctx->quarterRes[mID], thresh_still[mID]);
         }
+        if (mID == LR)
+                ctx->mosaic[mID]->setMaxOverlap(ctx->maxFrameOverlap);
 
         t1 = now_ms();
         time_c = t1 - t0;
@@ -118,60 +211,21 @@ int Init(int mID, int nmax)
         return 1;
 }
 
-void GenerateQuarterResImagePlanar(ImageType im, int input_w, int input_h,
-        ImageType &out)
+int AddFrame(MosaicContext *ctx, int mID, int k, float* trs1d)
 {
-    ImageType imp;
-    ImageType outp;
-
-    int count = 0;
+    double trs[3][3];
 
-    for (int j = 0; j < input_h; j += H2L_FACTOR)
-    {
-        imp = im + j * input_w;
-        outp = out + (j / H2L_FACTOR) * (input_w / H2L_FACTOR);
+    int ret_code = ctx->mosaic[mID]->addFrame(ctx->tImage[mID][k]);
 
-        for (int i = 0; i < input_w; i += H2L_FACTOR)
-        {
-            *outp++ = *(imp + i);
-            count++;
-        }
-    }
+    ctx->mosaic[mID]->getAligner()->getLastTRS(trs);
 
-    for (int j = input_h; j < 2 * input_h; j += H2L_FACTOR)
+    // A spilled high-res frame is no longer needed in memory once it has been
+    // aligned; it is paged back in during blending.
+    if (mID == HR && ctx->spillStore.isOpen())
     {
-        imp = im + j * input_w;
-        outp = out + (j / H2L_FACTOR) * (input_w / H2L_FACTOR);
-
-        for (int i = 0; i < input_w; i += H2L_FACTOR)
-        {
-            *outp++ = *(imp + i);
-            count++;
-        }
+        ctx->spillStore.release(k);
     }
 
-    for (int j = 2 * input_h; j < 3 * input_h; j += H2L_FACTOR)
-    {
-        imp = im + j * input_w;
-        outp = out + (j / H2L_FACTOR) * (input_w / H2L_FACTOR);
-
-        for (int i = 0; i < input_w; i += H2L_FACTOR)
-        {
-            *outp++ = *(imp + i);
-            count++;
-        }
-    }
-}
-
-int AddFrame(int mID, int k, float* trs1d)
-{
-    double  t0, t1, time_c;
-    double trs[3][3];
-
-    int ret_code = mosaic[mID]->addFrame(tImage[mID][k]);
-
-    mosaic[mID]->getAligner()->getLastTRS(trs);
-
     if(trs1d!=NULL)
     {
 
@@ -189,380 +243,792 @@ int AddFrame(int mID, int k, float* trs1d)
     return ret_code;
 }
 
-int Finalize(int mID)
+// Adds the last frame of the sweep if the low-res aligner rejected it for its
+// overlap only, so that the mosaic reaches the end of the sweep. Its low-res
+// and high-res copies are still in the first free slots.
+static void CommitTailFrame(MosaicContext *ctx)
+{
+    if (ctx->mosaic[LR] != NULL && ctx->mosaic[LR]->isInitialized() &&
+            ctx->mosaic[LR]->addTailFrame() == Mosaic::MOSAIC_RET_OK)
+    {
+        ctx->frameNumberLR++;
+        ctx->frameNumberHR++;
+    }
+}
+
+int Finalize(MosaicContext *ctx, int mID)
 {
     double  t0, t1, time_c;
 
     t0 = now_ms();
     // Create the mosaic
-    int ret = mosaic[mID]->createMosaic(gProgress[mID], gCancelComputation[mID]);
+    int ret = ctx->mosaic[mID]->createMosaic(ctx->progress[mID]);
     t1 = now_ms();
     time_c = t1 - t0;
     LOGV("CreateMosaic: %g ms",time_c);
 
     // Get back the result
-    resultYVU = mosaic[mID]->getMosaic(mosaicWidth, mosaicHeight);
+    ctx->resultYVU = ctx->mosaic[mID]->getMosaic(ctx->mosaicWidth, ctx->mosaicHeight);
 
     return ret;
 }
 
-void YUV420toYVU24(ImageType yvu24, ImageType yuv420sp, int width, int height)
+static void ThrowIllegalArgument(JNIEnv* env, const char* message)
 {
-    int frameSize = width * height;
+    jclass clazz = env->FindClass("java/lang/IllegalArgumentException");
+    if (clazz != NULL)
+    {
+        env->ThrowNew(clazz, message);
+    }
+}
 
-    ImageType oyp = yvu24;
-    ImageType ovp = yvu24+frameSize;
-    ImageType oup = yvu24+frameSize+frameSize;
+// Returns the context of the given Mosaic, or NULL with an
+// IllegalStateException pending if it has been released.
+static MosaicContext* GetContext(JNIEnv* env, jobject thiz)
+{
+    if (gNativeContextField == NULL)
+    {
+        gNativeContextField = env->GetFieldID(env->GetObjectClass(thiz),
+                "mNativeContext", "J");
+    }
 
-    for (int j = 0, yp = 0; j < height; j++)
+    MosaicContext *ctx = (MosaicContext*) (intptr_t)
+            env->GetLongField(thiz, gNativeContextField);
+    if (ctx == NULL)
     {
-        unsigned char u = 0, v = 0;
-        int uvp = frameSize + (j >> 1) * width;
-        for (int i = 0; i < width; i++, yp++)
+        jclass clazz = env->FindClass("java/lang/IllegalStateException");
+        if (clazz != NULL)
         {
-            *oyp++ = yuv420sp[yp];
-            //int y = (0xff & (int)yuv420sp[yp]) -16;
-            //yvu24p[yp] = (y<0)?0:y;
-
-            if ((i & 1) == 0)
-            {
-                v = yuv420sp[uvp++];
-                u = yuv420sp[uvp++];
-            }
-
-            *ovp++ = v;
-            *oup++ = u;
+            env->ThrowNew(clazz, "Mosaic has been released");
         }
     }
+    return ctx;
 }
 
-void YUV420toYVU24_NEW(ImageType yvu24, ImageType yuv420sp, int width,
-        int height)
+JNIEXPORT jlong JNICALL Java_com_android_camera_Mosaic_createContext(
+        JNIEnv* /* env */, jclass /* clazz */)
 {
-    int frameSize = width * height;
-
-    ImageType oyp = yvu24;
-    ImageType ovp = yvu24 + frameSize;
-    ImageType oup = yvu24 + frameSize + frameSize;
-
-    memcpy(yvu24, yuv420sp, frameSize * sizeof(unsigned char));
+    return (jlong) (intptr_t) new MosaicContext();
+}
 
-    for (int j = 0; j < height; j += 2)
-    {
-        unsigned char u = 0, v = 0;
-        int uvp = frameSize + (j >> 1) * width;
-        ovp = yvu24 + frameSize + j * width;
-        oup = ovp + frameSize;
+static void FreeMosaicMemory(MosaicContext *ctx);
+static void SetProgressListener(JNIEnv* env, MosaicContext *ctx,
+        jobject listener, jint step);
 
-        ImageType iuvp = yuv420sp + uvp;
+JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_destroyContext(
+        JNIEnv* env, jclass /* clazz */, jlong context)
+{
+    MosaicContext *ctx = (MosaicContext*) (intptr_t) context;
+    if (ctx == NULL) return;
 
-        for (int i = 0; i < width; i += 2)
-        {
-            v = *iuvp++;
-            u = *iuvp++;
+    FreeMosaicMemory(ctx);
+    SetProgressListener(env, ctx, NULL, 1);
+    delete ctx;
+}
 
-            *ovp++ = v;
-            *oup++ = u;
+JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_setSpillFile(
+        JNIEnv* env, jobject thiz, jstring path, jint maxFrames, jboolean persistent)
+{
+    MosaicContext *ctx = GetContext(env, thiz);
+    if (ctx == NULL) return;
 
-            *ovp++ = v;
-            *oup++ = u;
+    if (ctx->spillFilePath != NULL)
+    {
+        free(ctx->spillFilePath);
+        ctx->spillFilePath = NULL;
+    }
 
-        }
-        memcpy(ovp, ovp - width, width * sizeof(unsigned char));
-        memcpy(oup, oup - width, width * sizeof(unsigned char));
+    if (path != NULL && maxFrames > 0)
+    {
+        const char *chars = env->GetStringUTFChars(path, NULL);
+        ctx->spillFilePath = strdup(chars);
+        env->ReleaseStringUTFChars(path, chars);
     }
+    ctx->spillMaxFrames = maxFrames;
+    ctx->spillPersistent = bool(persistent);
 }
 
+// The mosaic being allocated is the one about to be captured, so it takes
+// over the preview from a mosaic that may still be rendering.
+static void TakeOverPreview(MosaicContext *ctx)
+{
+    pthread_mutex_lock(&gPreviewOwnerLock);
+    if (gPreviewOwner != NULL)
+        FreeTextureMemory();
+    AllocateTextureMemory(ctx->tWidth[HR], ctx->tHeight[HR],
+            ctx->tWidth[LR], ctx->tHeight[LR]);
+    gPreviewOwner = ctx;
+    pthread_mutex_unlock(&gPreviewOwnerLock);
+}
 
-JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_allocateMosaicMemory(
+JNIEXPORT jint JNICALL Java_com_android_camera_Mosaic_allocateMosaicMemory(
         JNIEnv* env, jobject thiz, jint width, jint height)
 {
-    tWidth[HR] = width;
-    tHeight[HR] = height;
-    tWidth[LR] = int(width / H2L_FACTOR);
-    tHeight[LR] = int(height / H2L_FACTOR);
+    MosaicContext *ctx = GetContext(env, thiz);
+    if (ctx == NULL) return 0;
+
+    // Allocating twice would leak the frames of the first allocation.
+    FreeMosaicMemory(ctx);
 
-    for(int i=0; i<MAX_FRAMES; i++)
+    ctx->tWidth[HR] = width;
+    ctx->tHeight[HR] = height;
+    ctx->tWidth[LR] = int(width / H2L_FACTOR);
+    ctx->tHeight[LR] = int(height / H2L_FACTOR);
+
+    ctx->maxFrames = MAX_FRAMES;
+    if (ctx->spillFilePath != NULL && ctx->spillStore.open(ctx->spillFilePath,
+            ctx->tWidth[HR], ctx->tHeight[HR], ctx->spillMaxFrames, ctx->spillPersistent))
     {
-            tImage[LR][i] = ImageUtils::allocateImage(tWidth[LR], tHeight[LR],
-                    ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
-            tImage[HR][i] = ImageUtils::allocateImage(tWidth[HR], tHeight[HR],
-                    ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
+        ctx->maxFrames = ctx->spillMaxFrames;
     }
 
-    AllocateTextureMemory(tWidth[HR], tHeight[HR], tWidth[LR], tHeight[LR]);
+    ctx->tImage[LR] = new ImageType[ctx->maxFrames];
+    ctx->tImage[HR] = new ImageType[ctx->maxFrames];
+
+    for(int i=0; i<ctx->maxFrames; i++)
+    {
+            ctx->tImage[LR][i] = ImageUtils::allocateImage(ctx->tWidth[LR],
+                    ctx->tHeight[LR], ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
+            if (ctx->spillStore.isOpen())
+                ctx->tImage[HR][i] = ctx->spillStore.getFrame(i);
+            else
+                ctx->tImage[HR][i] = ImageUtils::allocateImage(ctx->tWidth[HR],
+                        ctx->tHeight[HR], ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
+    }
+
+    TakeOverPreview(ctx);
+
+    return (jint) ctx->maxFrames;
 }
 
-JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_freeMosaicMemory(
-        JNIEnv* env, jobject thiz)
+static void FreeMosaicMemory(MosaicContext *ctx)
 {
-    for(int i = 0; i < MAX_FRAMES; i++)
+    if (ctx->tImage[LR] != NULL)
+    {
+        // The frames of a session are in its mapping.
+        for(int i = ctx->sessionFrames; i < ctx->maxFrames; i++)
+        {
+            ImageUtils::freeImage(ctx->tImage[LR][i]);
+            if (!ctx->spillStore.isOpen())
+                ImageUtils::freeImage(ctx->tImage[HR][i]);
+        }
+
+        delete[] ctx->tImage[LR];
+        delete[] ctx->tImage[HR];
+        ctx->tImage[LR] = NULL;
+        ctx->tImage[HR] = NULL;
+    }
+
+    ctx->spillStore.close();
+    ctx->session.close();
+    ctx->sessionFrames = 0;
+
+    pthread_mutex_lock(&gPreviewOwnerLock);
+    if (gPreviewOwner == ctx)
     {
-        ImageUtils::freeImage(tImage[LR][i]);
-        ImageUtils::freeImage(tImage[HR][i]);
+        FreeTextureMemory();
+        gPreviewOwner = NULL;
     }
+    pthread_mutex_unlock(&gPreviewOwnerLock);
+}
+
+JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_freeMosaicMemory(
+        JNIEnv* env, jobject thiz)
+{
+    MosaicContext *ctx = GetContext(env, thiz);
+    if (ctx == NULL) return;
 
-    FreeTextureMemory();
+    FreeMosaicMemory(ctx);
 }
 
+static void SetIdentityTransformation(MosaicContext *ctx);
+
+// Suffix of the name of the spill file kept next to a session.
+static const char SESSION_FRAMES_SUFFIX[] = ".frames";
 
-void decodeYUV444SP(unsigned char* rgb, unsigned char* yuv420sp, int width,
-        int height)
+// Returns the path of the spill file of the given session; free() it.
+static char* GetSessionFramesPath(const char *sessionPath)
 {
-    int frameSize = width * height;
+    char *path = (char *) malloc(strlen(sessionPath) + sizeof(SESSION_FRAMES_SUFFIX));
+    strcpy(path, sessionPath);
+    strcat(path, SESSION_FRAMES_SUFFIX);
+    return path;
+}
 
-    for (int j = 0, yp = 0; j < height; j++)
+JNIEXPORT jboolean JNICALL Java_com_android_camera_Mosaic_isSpilled(
+        JNIEnv* env, jobject thiz)
+{
+    MosaicContext *ctx = GetContext(env, thiz);
+    if (ctx == NULL) return JNI_FALSE;
+
+    return ctx->spillStore.isOpen() ? JNI_TRUE : JNI_FALSE;
+}
+
+JNIEXPORT jboolean JNICALL Java_com_android_camera_Mosaic_saveSession(
+        JNIEnv* env, jobject thiz, jstring path, jboolean lowRes)
+{
+    MosaicContext *ctx = GetContext(env, thiz);
+    if (ctx == NULL) return JNI_FALSE;
+
+    int frames = ctx->frameNumberHR;
+    if (ctx->tImage[LR] == NULL || ctx->mosaic[LR] == NULL || frames == 0)
+        return JNI_FALSE;
+    // A session loaded without its low-res frames has no more to save.
+    if (bool(lowRes) && ctx->tImage[LR][0] == NULL)
+        return JNI_FALSE;
+
+    // The matrices of the frames aligned by this mosaic, or of the session
+    // it was loaded from if its low-res frames were left out.
+    double *trs = new double[9 * frames];
+    for (int i = 0; i < frames; i++)
     {
-        int vp = frameSize + j * width, u = 0, v = 0;
-        int up = vp + frameSize;
+        if (i < ctx->mosaic[LR]->getNumFrames())
+            ctx->mosaic[LR]->getFrameTRS(i, trs + 9 * i);
+        else
+            memcpy(trs + 9 * i, ctx->session.getTRS() + 9 * i, 9 * sizeof(double));
+    }
 
-        for (int i = 0; i < width; i++, yp++, vp++, up++)
+    MosaicSessionInfo info;
+    info.width = ctx->tWidth[HR];
+    info.height = ctx->tHeight[HR];
+    info.lowResWidth = ctx->tWidth[LR];
+    info.lowResHeight = ctx->tHeight[LR];
+    info.blendingType = ctx->blendingType;
+    info.stripType = ctx->stripType;
+    info.maxFrameOverlap = ctx->maxFrameOverlap;
+    info.spillMaxFrames = 0;
+
+    const char *chars = env->GetStringUTFChars(path, NULL);
+
+    // Spilled high-res frames stay in their file, which is moved next to the
+    // session. A spill file that is not persistent has no name any more, so
+    // its frames are copied.
+    ImageType *highRes = ctx->tImage[HR];
+    if (ctx->spillStore.isOpen())
+    {
+        char *framesPath = GetSessionFramesPath(chars);
+        if (ctx->spillStore.moveTo(framesPath))
         {
-            int y = (0xff & ((int) yuv420sp[yp])) - 16;
-            if (y < 0) y = 0;
-
-            v = (0xff & yuv420sp[vp]) - 128;
-            u = (0xff & yuv420sp[up]) - 128;
-
-            int y1192 = 1192 * y;
-            int r = (y1192 + 1634 * v);
-            int g = (y1192 - 833 * v - 400 * u);
-            int b = (y1192 + 2066 * u);
-
-            if (r < 0) r = 0; else if (r > 262143) r = 262143;
-            if (g < 0) g = 0; else if (g > 262143) g = 262143;
-            if (b < 0) b = 0; else if (b > 262143) b = 262143;
-
-            //rgb[yp] = 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
-            int p = j*width*3+i*3;
-            rgb[p+0] = (r<<6 & 0xFF0000)>>16;
-            rgb[p+1] = (g>>2 & 0xFF00)>>8;
-            rgb[p+2] =  b>>10 & 0xFF;
+            info.spillMaxFrames = ctx->spillStore.getMaxFrames();
+            highRes = NULL;
         }
+        free(framesPath);
+    }
+
+    double t0 = now_ms();
+    bool ok = MosaicSession::save(chars, info, frames, trs,
+            bool(lowRes) ? ctx->tImage[LR] : NULL, highRes);
+    LOGV("saveSession: %d frames in %g ms", frames, now_ms() - t0);
+
+    env->ReleaseStringUTFChars(path, chars);
+    delete[] trs;
+    return ok ? JNI_TRUE : JNI_FALSE;
+}
+
+JNIEXPORT jint JNICALL Java_com_android_camera_Mosaic_loadSession(
+        JNIEnv* env, jobject thiz, jstring path, jint width, jint height, jboolean resume)
+{
+    MosaicContext *ctx = GetContext(env, thiz);
+    if (ctx == NULL) return 0;
+
+    FreeMosaicMemory(ctx);
+
+    double t0 = now_ms();
+    const char *chars = env->GetStringUTFChars(path, NULL);
+    bool ok = ctx->session.open(chars);
+    MosaicSessionInfo info = ctx->session.getInfo();
+    int frames = ctx->session.getFrameCount();
+
+    // Capture can only go on from the low-res frames.
+    ok = ok && ((width == 0 && height == 0 && !bool(resume)) ||
+            (info.width == width && info.height == height)) &&
+            (!bool(resume) || ctx->session.getLowResFrame(0) != NULL);
+    bool spilled = info.spillMaxFrames > 0;
+    if (ok && spilled)
+    {
+        char *framesPath = GetSessionFramesPath(chars);
+        ok = frames <= info.spillMaxFrames && ctx->spillStore.reopen(framesPath,
+                info.width, info.height, info.spillMaxFrames);
+        free(framesPath);
+    }
+    else if (ok)
+    {
+        ok = ctx->session.getHighResFrame(0) != NULL;
+    }
+    env->ReleaseStringUTFChars(path, chars);
+
+    if (!ok)
+    {
+        ctx->session.close();
+        return 0;
+    }
+
+    ctx->tWidth[HR] = info.width;
+    ctx->tHeight[HR] = info.height;
+    ctx->tWidth[LR] = info.lowResWidth;
+    ctx->tHeight[LR] = info.lowResHeight;
+    ctx->blendingType = info.blendingType;
+    ctx->stripType = info.stripType;
+    ctx->maxFrameOverlap = info.maxFrameOverlap;
+
+    // Only the frames still to be captured are allocated.
+    ctx->maxFrames = frames;
+    if (bool(resume))
+        ctx->maxFrames = spilled ? info.spillMaxFrames :
+                (frames > MAX_FRAMES ? frames : MAX_FRAMES);
+
+    ctx->tImage[LR] = new ImageType[ctx->maxFrames];
+    ctx->tImage[HR] = new ImageType[ctx->maxFrames];
+
+    for(int i=0; i<ctx->maxFrames; i++)
+    {
+        if (i < frames)
+            ctx->tImage[LR][i] = ctx->session.getLowResFrame(i);
+        else
+            ctx->tImage[LR][i] = ImageUtils::allocateImage(ctx->tWidth[LR],
+                    ctx->tHeight[LR], ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
+        if (spilled)
+            ctx->tImage[HR][i] = ctx->spillStore.getFrame(i);
+        else if (i < frames)
+            ctx->tImage[HR][i] = ctx->session.getHighResFrame(i);
+        else
+            ctx->tImage[HR][i] = ImageUtils::allocateImage(ctx->tWidth[HR],
+                    ctx->tHeight[HR], ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
+    }
+    ctx->sessionFrames = frames;
+
+    if (bool(resume))
+        TakeOverPreview(ctx);
+
+    // As reset(), except that the sweep goes on after the frames of the
+    // session instead of starting over.
+    ctx->frameNumberHR = frames;
+    ctx->frameNumberLR = frames;
+
+    ctx->progress[LR].reset();
+    ctx->progress[HR].reset();
+    ctx->progress[LR].clearCancel();
+    ctx->progress[HR].clearCancel();
+    ctx->cancelRequestTime = 0;
+
+    Init(ctx, LR, ctx->maxFrames);
+    SetIdentityTransformation(ctx);
+    if (ctx->tImage[LR][0] != NULL)
+    {
+        // Only the last low-res frame is read, to align the next frames to.
+        const double *trs = ctx->session.getTRS();
+        ctx->mosaic[LR]->resume(ctx->tImage[LR], trs, frames);
+        for (int i = 0; i < 9; i++)
+            ctx->trs[i] = trs[9 * (frames - 1) + i];
     }
+
+    LOGV("loadSession: %d frames in %g ms", frames, now_ms() - t0);
+    return (jint) ctx->maxFrames;
 }
 
-static int count = 0;
 
-void ConvertYVUAiToPlanarYVU(unsigned char *planar, unsigned char *in, int width,
-        int height)
+// Number of entries in the frame data array returned by setSourceImage*:
+// 9 elements of the transformation, 1 for frame-number, 1 for alignment error
+// code.
+const int FRAME_DATA_SIZE = 11;
+
+// Updates the preview warp with the context's transformation and copies it,
+// the frame number and the alignment return code into the caller-owned
+// frameData array.
+static jint ReturnFrameData(JNIEnv* env, MosaicContext *ctx, jfloatArray frameData,
+        int ret_code)
 {
-    int planeSize = width * height;
-    unsigned char* Yptr = planar;
-    unsigned char* Vptr = planar + planeSize;
-    unsigned char* Uptr = Vptr + planeSize;
+    pthread_mutex_lock(&gPreviewOwnerLock);
+    if (gPreviewOwner == ctx)
+        UpdateWarpTransformation(ctx->trs);
+    pthread_mutex_unlock(&gPreviewOwnerLock);
 
-    for (int i = 0; i < planeSize; i++)
+    ctx->trs[9] = ctx->frameNumberHR;
+    ctx->trs[10] = ret_code;
+
+    if (frameData != NULL)
     {
-        *Yptr++ = *in++;
-        *Vptr++ = *in++;
-        *Uptr++ = *in++;
-        in++;   // Alpha
+        // Throws ArrayIndexOutOfBoundsException if frameData is too short.
+        env->SetFloatArrayRegion(frameData, 0, FRAME_DATA_SIZE, (jfloat*) ctx->trs);
     }
+    return (jint) ret_code;
 }
 
-JNIEXPORT jfloatArray JNICALL Java_com_android_camera_Mosaic_setSourceImageFromGPU(
-        JNIEnv* env, jobject thiz)
+static void SetIdentityTransformation(MosaicContext *ctx)
 {
+    ctx->trs[1] = ctx->trs[2] = ctx->trs[3] = ctx->trs[5] = ctx->trs[6] = ctx->trs[7] = 0.0f;
+    ctx->trs[0] = ctx->trs[4] = ctx->trs[8] = 1.0f;
+}
+
+JNIEXPORT jint JNICALL Java_com_android_camera_Mosaic_setSourceImageFromGPU(
+        JNIEnv* env, jobject thiz, jfloatArray frameData)
+{
+    MosaicContext *ctx = GetContext(env, thiz);
+    if (ctx == NULL) return Mosaic::MOSAIC_RET_ERROR;
+
     double  t0, t1, time_c;
     t0 = now_ms();
     int ret_code = Mosaic::MOSAIC_RET_OK;
 
-    if(frame_number_HR<MAX_FRAMES && frame_number_LR<MAX_FRAMES)
+    // The preview images belong to the mosaic being captured; any other
+    // mosaic would read frames that are not its own.
+    pthread_mutex_lock(&gPreviewOwnerLock);
+    if (gPreviewOwner != ctx)
+    {
+        LOGE("setSourceImageFromGPU: the preview belongs to another mosaic");
+        SetIdentityTransformation(ctx);
+        ret_code = Mosaic::MOSAIC_RET_ERROR;
+    }
+    else if(ctx->frameNumberHR<ctx->maxFrames && ctx->frameNumberLR<ctx->maxFrames)
     {
-        double last_tx = mTx;
-
         sem_wait(&gPreviewImage_semaphore);
-        ConvertYVUAiToPlanarYVU(tImage[LR][frame_number_LR], gPreviewImage[LR],
-                tWidth[LR], tHeight[LR]);
-
+        bool ready = gPreviewImageReady;
+        if (ready)
+        {
+            // The frame is held until its high-res copy; the renderer drops
+            // the frames it reads back meanwhile.
+            gPreviewImageReady = false;
+            gPreviewImageInUse = true;
+            DB_STAGE_BEGIN(DB_STAGE_YUV_CONVERSION);
+            YuvConvert::yvuaToYvu(ctx->tImage[LR][ctx->frameNumberLR], gPreviewImage[LR],
+                    ctx->tWidth[LR], ctx->tHeight[LR]);
+            DB_STAGE_END(DB_STAGE_YUV_CONVERSION);
+        }
         sem_post(&gPreviewImage_semaphore);
 
-        ret_code = AddFrame(LR, frame_number_LR, gTRS);
-
-        if(ret_code == Mosaic::MOSAIC_RET_OK || ret_code == Mosaic::MOSAIC_RET_FEW_INLIERS)
+        if (!ready)
+        {
+            // No frame was read back since the last one, as for the first
+            // frame of a sweep when the renderer reads back a frame late. The
+            // transformation of the last frame is returned again.
+            ret_code = Mosaic::MOSAIC_RET_NO_FRAME;
+        }
+        else
         {
-            // Copy into HR buffer only if this is a valid frame
+            ret_code = AddFrame(ctx, LR, ctx->frameNumberLR, ctx->trs);
+            bool valid = ret_code == Mosaic::MOSAIC_RET_OK ||
+                    ret_code == Mosaic::MOSAIC_RET_FEW_INLIERS;
+            // A frame rejected for its overlap may end the sweep, see
+            // CommitTailFrame(); the next frame takes its place otherwise.
+            bool tail = !valid && ctx->mosaic[LR]->getAligner()->hasTail();
+
             sem_wait(&gPreviewImage_semaphore);
-            ConvertYVUAiToPlanarYVU(tImage[HR][frame_number_HR], gPreviewImage[HR],
-                    tWidth[HR], tHeight[HR]);
+            if (valid || tail)
+            {
+                // Copy into HR buffer only if this is a valid frame
+                DB_STAGE_BEGIN(DB_STAGE_YUV_CONVERSION);
+                YuvConvert::yvuaToYvu(ctx->tImage[HR][ctx->frameNumberHR], gPreviewImage[HR],
+                        ctx->tWidth[HR], ctx->tHeight[HR]);
+                DB_STAGE_END(DB_STAGE_YUV_CONVERSION);
+            }
+            gPreviewImageInUse = false;
             sem_post(&gPreviewImage_semaphore);
 
-            frame_number_LR++;
-            frame_number_HR++;
+            if (valid || tail)
+            {
+                if (ctx->spillStore.isOpen())
+                    ctx->spillStore.release(ctx->frameNumberHR);
+            }
+
+            if (valid)
+            {
+                ctx->frameNumberLR++;
+                ctx->frameNumberHR++;
+            }
         }
     }
     else
     {
-        gTRS[1] = gTRS[2] = gTRS[3] = gTRS[5] = gTRS[6] = gTRS[7] = 0.0f;
-        gTRS[0] = gTRS[4] = gTRS[8] = 1.0f;
+        SetIdentityTransformation(ctx);
     }
+    pthread_mutex_unlock(&gPreviewOwnerLock);
 
-    UpdateWarpTransformation(gTRS);
-
-    gTRS[9] = frame_number_HR;
-    gTRS[10] = ret_code;
+    t1 = now_ms();
+    time_c = t1 - t0;
+    LOGV("setSourceImage: %g ms", time_c);
 
-    jfloatArray bytes = env->NewFloatArray(11);
-    if(bytes != 0)
-    {
-        env->SetFloatArrayRegion(bytes, 0, 11, (jfloat*) gTRS);
-    }
-    return bytes;
+    return ReturnFrameData(env, ctx, frameData, ret_code);
 }
 
 
 
-JNIEXPORT jfloatArray JNICALL Java_com_android_camera_Mosaic_setSourceImage(
-        JNIEnv* env, jobject thiz, jbyteArray photo_data)
+JNIEXPORT jint JNICALL Java_com_android_camera_Mosaic_setSourceImage(
+        JNIEnv* env, jobject thiz, jobject pixelBuffer, jfloatArray frameData)
 {
+    MosaicContext *ctx = GetContext(env, thiz);
+    if (ctx == NULL) return Mosaic::MOSAIC_RET_ERROR;
+
     double  t0, t1, time_c;
     t0 = now_ms();
 
     int ret_code = Mosaic::MOSAIC_RET_OK;
 
-    if(frame_number_HR<MAX_FRAMES && frame_number_LR<MAX_FRAMES)
+    // The NV21 frame is read in place; direct buffers are never copied.
+    ImageType pixels = (ImageType) env->GetDirectBufferAddress(pixelBuffer);
+    if (pixels == NULL || env->GetDirectBufferCapacity(pixelBuffer) <
+            ctx->tWidth[HR] * ctx->tHeight[HR] * 3 / 2)
     {
-        jbyte *pixels = env->GetByteArrayElements(photo_data, 0);
-
-        YUV420toYVU24_NEW(tImage[HR][frame_number_HR], (ImageType)pixels,
-                tWidth[HR], tHeight[HR]);
+        ThrowIllegalArgument(env, "pixels must be a direct buffer holding an NV21 frame");
+        return Mosaic::MOSAIC_RET_ERROR;
+    }
 
-        env->ReleaseByteArrayElements(photo_data, pixels, 0);
+    if(ctx->frameNumberHR<ctx->maxFrames && ctx->frameNumberLR<ctx->maxFrames)
+    {
+        ImageType frameHR = ctx->tImage[HR][ctx->frameNumberHR];
+        ImageType frameLR = ctx->tImage[LR][ctx->frameNumberLR];
 
-        double last_tx = mTx;
+        // The high-res and low-res frames are made in a single pass.
+        DB_STAGE_BEGIN(DB_STAGE_YUV_CONVERSION);
+        YuvConvert::nv21ToYvu(frameHR, frameLR, pixels, ctx->tWidth[HR], ctx->tHeight[HR]);
+        DB_STAGE_END(DB_STAGE_YUV_CONVERSION);
 
-        t0 = now_ms();
-        GenerateQuarterResImagePlanar(tImage[HR][frame_number_HR], tWidth[HR],
-                tHeight[HR], tImage[LR][frame_number_LR]);
+        if (ctx->spillStore.isOpen())
+            ctx->spillStore.release(ctx->frameNumberHR);
 
 
-        sem_wait(&gPreviewImage_semaphore);
-        decodeYUV444SP(gPreviewImage[LR], tImage[LR][frame_number_LR],
-                gPreviewImageWidth[LR], gPreviewImageHeight[LR]);
-        sem_post(&gPreviewImage_semaphore);
+        pthread_mutex_lock(&gPreviewOwnerLock);
+        if (gPreviewOwner == ctx)
+        {
+            sem_wait(&gPreviewImage_semaphore);
+            YuvConvert::yvuToRgb(gPreviewImage[LR], frameLR,
+                    gPreviewImageWidth[LR], gPreviewImageHeight[LR]);
+            sem_post(&gPreviewImage_semaphore);
+        }
+        pthread_mutex_unlock(&gPreviewOwnerLock);
 
-        ret_code = AddFrame(LR, frame_number_LR, gTRS);
+        ret_code = AddFrame(ctx, LR, ctx->frameNumberLR, ctx->trs);
 
         if(ret_code == Mosaic::MOSAIC_RET_OK || ret_code == Mosaic::MOSAIC_RET_FEW_INLIERS)
         {
-            frame_number_LR++;
-            frame_number_HR++;
+            ctx->frameNumberLR++;
+            ctx->frameNumberHR++;
         }
 
     }
     else
     {
-        gTRS[1] = gTRS[2] = gTRS[3] = gTRS[5] = gTRS[6] = gTRS[7] = 0.0f;
-        gTRS[0] = gTRS[4] = gTRS[8] = 1.0f;
+        SetIdentityTransformation(ctx);
     }
 
-    UpdateWarpTransformation(gTRS);
-
-    gTRS[9] = frame_number_HR;
-    gTRS[10] = ret_code;
+    t1 = now_ms();
+    time_c = t1 - t0;
+    LOGV("setSourceImage: %g ms", time_c);
 
-    jfloatArray bytes = env->NewFloatArray(11);
-    if(bytes != 0)
-    {
-        env->SetFloatArrayRegion(bytes, 0, 11, (jfloat*) gTRS);
-    }
-    return bytes;
+    return ReturnFrameData(env, ctx, frameData, ret_code);
 }
 
 JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_setBlendingType(
         JNIEnv* env, jobject thiz, jint type)
 {
-    blendingType = int(type);
+    MosaicContext *ctx = GetContext(env, thiz);
+    if (ctx == NULL) return;
+
+    ctx->blendingType = int(type);
 }
 
 JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_setStripType(
         JNIEnv* env, jobject thiz, jint type)
 {
-    stripType = int(type);
+    MosaicContext *ctx = GetContext(env, thiz);
+    if (ctx == NULL) return;
+
+    ctx->stripType = int(type);
+}
+
+JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_setMaxFrameOverlap(
+        JNIEnv* env, jobject thiz, jfloat overlap)
+{
+    MosaicContext *ctx = GetContext(env, thiz);
+    if (ctx == NULL) return;
+
+    if (!(overlap >= 0.9f && overlap <= 1.0f))
+    {
+        ThrowIllegalArgument(env, "overlap must be between 0.9 and 1");
+        return;
+    }
+    ctx->maxFrameOverlap = overlap;
+    if (ctx->mosaic[LR] != NULL)
+        ctx->mosaic[LR]->setMaxOverlap(overlap);
 }
 
 JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_reset(
         JNIEnv* env, jobject thiz)
 {
-    frame_number_HR = 0;
-    frame_number_LR = 0;
+    MosaicContext *ctx = GetContext(env, thiz);
+    if (ctx == NULL) return;
+
+    ctx->frameNumberHR = 0;
+    ctx->frameNumberLR = 0;
+    SetIdentityTransformation(ctx);
 
-    gProgress[LR] = 0.0;
-    gProgress[HR] = 0.0;
+    ctx->progress[LR].reset();
+    ctx->progress[HR].reset();
 
-    gCancelComputation[LR] = false;
-    gCancelComputation[HR] = false;
+    ctx->progress[LR].clearCancel();
+    ctx->progress[HR].clearCancel();
+    ctx->cancelRequestTime = 0;
 
-    Init(LR,MAX_FRAMES);
+    Init(ctx, LR, ctx->maxFrames);
+}
+
+// Records the first request to cancel the computation of this context.
+static void RequestCancel(MosaicContext *ctx)
+{
+    if (ctx->cancelRequestTime == 0)
+        ctx->cancelRequestTime = now_ms();
+    ctx->progress[LR].cancel();
+    ctx->progress[HR].cancel();
 }
 
 JNIEXPORT jint JNICALL Java_com_android_camera_Mosaic_reportProgress(
         JNIEnv* env, jobject thiz, jboolean hires, jboolean cancel_computation)
 {
-    if(bool(hires))
-        gCancelComputation[HR] = cancel_computation;
-    else
-        gCancelComputation[LR] = cancel_computation;
+    MosaicContext *ctx = GetContext(env, thiz);
+    if (ctx == NULL) return 0;
 
-    if(bool(hires))
-        return (jint) gProgress[HR];
+    int mID = bool(hires) ? HR : LR;
+    if (bool(cancel_computation))
+    {
+        if (ctx->cancelRequestTime == 0)
+            ctx->cancelRequestTime = now_ms();
+        ctx->progress[mID].cancel();
+    }
     else
-        return (jint) gProgress[LR];
+    {
+        ctx->progress[mID].clearCancel();
+    }
+
+    return (jint) ctx->progress[mID].get();
+}
+
+JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_cancelCreateMosaic(
+        JNIEnv* env, jobject thiz)
+{
+    MosaicContext *ctx = GetContext(env, thiz);
+    if (ctx == NULL) return;
+
+    RequestCancel(ctx);
+}
+
+// Called by MosaicProgress on the thread running createMosaic().
+static void NotifyProgress(void *cookie, int percent)
+{
+    MosaicContext *ctx = (MosaicContext *) cookie;
+    JNIEnv *env = ctx->progressEnv;
+    if (env == NULL || ctx->progressListener == NULL) return;
+    if (env->ExceptionCheck()) return;
+
+    env->CallVoidMethod(ctx->progressListener, ctx->progressMethod, (jint) percent);
+
+    // No more JNI calls can be made with the exception pending, so stop the
+    // computation and let createMosaic() rethrow it.
+    if (env->ExceptionCheck())
+        RequestCancel(ctx);
+}
+
+static void SetProgressListener(JNIEnv* env, MosaicContext *ctx,
+        jobject listener, jint step)
+{
+    if (ctx->progressListener != NULL)
+    {
+        env->DeleteGlobalRef(ctx->progressListener);
+        ctx->progressListener = NULL;
+    }
+
+    if (listener != NULL)
+    {
+        ctx->progressMethod = env->GetMethodID(env->GetObjectClass(listener),
+                "onMosaicProgress", "(I)V");
+        if (ctx->progressMethod == NULL) return;
+        ctx->progressListener = env->NewGlobalRef(listener);
+    }
+
+    for (int mID = 0; mID < NR; mID++)
+    {
+        ctx->progress[mID].setCallback(listener != NULL ? NotifyProgress : NULL,
+                ctx, step);
+    }
+}
+
+JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_setProgressListener(
+        JNIEnv* env, jobject thiz, jobject listener, jint step)
+{
+    MosaicContext *ctx = GetContext(env, thiz);
+    if (ctx == NULL) return;
+
+    SetProgressListener(env, ctx, listener, step);
 }
 
 JNIEXPORT jint JNICALL Java_com_android_camera_Mosaic_createMosaic(
         JNIEnv* env, jobject thiz, jboolean value)
 {
-    high_res = bool(value);
+    MosaicContext *ctx = GetContext(env, thiz);
+    if (ctx == NULL) return Mosaic::MOSAIC_RET_ERROR;
+
+    bool high_res = bool(value);
 
     int ret;
 
+    ctx->progressEnv = env;
+
+    CommitTailFrame(ctx);
+
     if(high_res)
     {
         LOGV("createMosaic() - High-Res Mode");
         double  t0, t1, time_c;
+        int frames = ctx->frameNumberHR;
 
-        gProgress[HR] = 0.0;
+        ctx->progress[HR].reset();
         t0 = now_ms();
 
-        Init(HR, frame_number_HR);
+        Init(ctx, HR, frames);
 
-        for(int k = 0; k < frame_number_HR; k++)
+        for(int k = 0; k < frames; k++)
         {
-            if (gCancelComputation[HR])
+            if (ctx->progress[HR].isCancelled())
                 break;
-            AddFrame(HR, k, NULL);
-            gProgress[HR] += TIME_PERCENT_ALIGN/frame_number_HR;
+            if (ctx->spillStore.isOpen())
+                ctx->spillStore.prefetch(k + 1);
+            AddFrame(ctx, HR, k, NULL);
+            ctx->progress[HR].add(TIME_PERCENT_ALIGN/frames);
         }
 
-        if (gCancelComputation[HR])
+        if (ctx->progress[HR].isCancelled())
         {
             ret = Mosaic::MOSAIC_RET_CANCELLED;
         }
         else
         {
-            gProgress[HR] = TIME_PERCENT_ALIGN;
+            ctx->progress[HR].set(TIME_PERCENT_ALIGN);
 
             t1 = now_ms();
             time_c = t1 - t0;
-            LOGV("AlignAll - %d frames [HR]: %g ms", frame_number_HR, time_c);
+            LOGV("AlignAll - %d frames [HR]: %g ms", frames, time_c);
 
-            ret = Finalize(HR);
+            ret = Finalize(ctx, HR);
 
-            gProgress[HR] = 100.0;
+            if (ret != Mosaic::MOSAIC_RET_CANCELLED)
+                ctx->progress[HR].set(100.0);
         }
-
-        high_res = false;
     }
     else
     {
         LOGV("createMosaic() - Low-Res Mode");
-        gProgress[LR] = TIME_PERCENT_ALIGN;
+        ctx->progress[LR].set(TIME_PERCENT_ALIGN);
+
+        ret = Finalize(ctx, LR);
+
+        if (ret != Mosaic::MOSAIC_RET_CANCELLED)
+            ctx->progress[LR].set(100.0);
+    }
 
-        ret = Finalize(LR);
+    ctx->progressEnv = NULL;
 
-        gProgress[LR] = 100.0;
+    if (ret == Mosaic::MOSAIC_RET_CANCELLED && ctx->cancelRequestTime != 0)
+    {
+        LOGI("createMosaic() - cancelled %g ms after the request",
+                now_ms() - ctx->cancelRequestTime);
     }
 
     return (jint) ret;
@@ -571,15 +1037,18 @@ JNIEXPORT jint JNICALL Java_com_android_camera_Mosaic_createMosaic(
 JNIEXPORT jintArray JNICALL Java_com_android_camera_Mosaic_getFinalMosaic(
         JNIEnv* env, jobject thiz)
 {
+    MosaicContext *ctx = GetContext(env, thiz);
+    if (ctx == NULL) return 0;
+
     int y,x;
-    int width = mosaicWidth;
-    int height = mosaicHeight;
+    int width = ctx->mosaicWidth;
+    int height = ctx->mosaicHeight;
     int imageSize = width * height;
 
     // Convert back to RGB24
-    resultBGR = ImageUtils::allocateImage(mosaicWidth, mosaicHeight,
+    ImageType resultBGR = ImageUtils::allocateImage(width, height,
             ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
-    ImageUtils::yvu2bgr(resultBGR, resultYVU, mosaicWidth, mosaicHeight);
+    ImageUtils::yvu2bgr(resultBGR, ctx->resultYVU, width, height);
 
     LOGV("MosBytes: %d, W = %d, H = %d", imageSize, width, height);
 
@@ -613,55 +1082,160 @@ JNIEXPORT jintArray JNICALL Java_com_android_camera_Mosaic_getFinalMosaic(
     return bytes;
 }
 
-JNIEXPORT jbyteArray JNICALL Java_com_android_camera_Mosaic_getFinalMosaicNV21(
+JNIEXPORT jint JNICALL Java_com_android_camera_Mosaic_getMosaicWidth(
         JNIEnv* env, jobject thiz)
 {
-    int y,x;
-    int width;
-    int height;
+    MosaicContext *ctx = GetContext(env, thiz);
+    if (ctx == NULL) return 0;
 
-    width = mosaicWidth;
-    height = mosaicHeight;
+    return (jint) ctx->mosaicWidth;
+}
 
-    int imageSize = 1.5*width * height;
+JNIEXPORT jint JNICALL Java_com_android_camera_Mosaic_getMosaicHeight(
+        JNIEnv* env, jobject thiz)
+{
+    MosaicContext *ctx = GetContext(env, thiz);
+    if (ctx == NULL) return 0;
+
+    return (jint) ctx->mosaicHeight;
+}
 
-    // Convert YVU to NV21 format in-place
-    ImageType V = resultYVU+mosaicWidth*mosaicHeight;
-    ImageType U = V+mosaicWidth*mosaicHeight;
-    for(int j=0; j<mosaicHeight/2; j++)
+// Copies the YVU planes of a mosaic to dst in the NV21 format: the Y plane,
+// then the V and U values of every other pixel of every other row,
+// interleaved. The mosaic itself is left as it is.
+static void CopyYVUToNV21(ImageType yvu, int width, int height, unsigned char* dst)
+{
+    int planeSize = width * height;
+    memcpy(dst, yvu, planeSize);
+    ImageType V = yvu + planeSize;
+    ImageType U = V + planeSize;
+    unsigned char* VU = dst + planeSize;
+    for(int j=0; j<height/2; j++)
     {
-        for(int i=0; i<mosaicWidth; i+=2)
+        for(int i=0; i<width; i+=2)
         {
-            V[j*mosaicWidth+i] = V[(2*j)*mosaicWidth+i];        // V
-            V[j*mosaicWidth+i+1] = U[(2*j)*mosaicWidth+i];        // U
+            VU[j*width+i] = V[(2*j)*width+i];        // V
+            VU[j*width+i+1] = U[(2*j)*width+i];      // U
         }
     }
+}
 
-    LOGV("MosBytes: %d, W = %d, H = %d", imageSize, width, height);
+JNIEXPORT jboolean JNICALL Java_com_android_camera_Mosaic_getFinalMosaicNV21(
+        JNIEnv* env, jobject thiz, jobject buffer)
+{
+    MosaicContext *ctx = GetContext(env, thiz);
+    if (ctx == NULL) return false;
 
-    unsigned char* dims = new unsigned char[8];
+    double  t0, t1, time_c;
+    int mosaicWidth = ctx->mosaicWidth;
+    int mosaicHeight = ctx->mosaicHeight;
+    ImageType resultYVU = ctx->resultYVU;
+    int imageSize = 1.5 * mosaicWidth * mosaicHeight;
 
-    dims[0] = (unsigned char)(width >> 24);
-    dims[1] = (unsigned char)(width >> 16);
-    dims[2] = (unsigned char)(width >> 8);
-    dims[3] = (unsigned char)width;
+    if (resultYVU == NULL || imageSize <= 0)
+    {
+        LOGE("No final mosaic available.");
+        return false;
+    }
 
-    dims[4] = (unsigned char)(height >> 24);
-    dims[5] = (unsigned char)(height >> 16);
-    dims[6] = (unsigned char)(height >> 8);
-    dims[7] = (unsigned char)height;
+    LOGV("MosBytes: %d, W = %d, H = %d", imageSize, mosaicWidth, mosaicHeight);
 
-    jbyteArray bytes = env->NewByteArray(imageSize+8);
-    if (bytes == 0) {
-        LOGE("Error in creating the image.");
-        ImageUtils::freeImage(resultYVU);
-        return 0;
+    // The mosaic is written from the position of the buffer, which must have
+    // imageSize bytes remaining. It is checked before anything is written, so
+    // that a caller whose buffer is too small can retry with a larger one.
+    jclass clazz = env->GetObjectClass(buffer);
+    jint position = env->CallIntMethod(buffer, env->GetMethodID(clazz, "position", "()I"));
+    jint limit = env->CallIntMethod(buffer, env->GetMethodID(clazz, "limit", "()I"));
+    if (limit - position < imageSize)
+    {
+        LOGE("Buffer too small for the final mosaic (%d bytes).", imageSize);
+        return false;
+    }
+
+    t0 = now_ms();
+
+    unsigned char* dst = (unsigned char*) env->GetDirectBufferAddress(buffer);
+    if (dst != NULL)
+    {
+        CopyYVUToNV21(resultYVU, mosaicWidth, mosaicHeight, dst + position);
+    }
+    else
+    {
+        // Not a direct buffer: write into its backing array, if any.
+        jmethodID hasArray = env->GetMethodID(clazz, "hasArray", "()Z");
+        if (!env->CallBooleanMethod(buffer, hasArray))
+        {
+            LOGE("The buffer for the final mosaic has no backing array.");
+            return false;
+        }
+        jbyteArray bytes = (jbyteArray) env->CallObjectMethod(buffer,
+                env->GetMethodID(clazz, "array", "()[B"));
+        jint offset = env->CallIntMethod(buffer,
+                env->GetMethodID(clazz, "arrayOffset", "()I"));
+        unsigned char* array = (unsigned char*) env->GetPrimitiveArrayCritical(bytes, NULL);
+        if (array == NULL) return false;
+        CopyYVUToNV21(resultYVU, mosaicWidth, mosaicHeight, array + offset + position);
+        env->ReleasePrimitiveArrayCritical(bytes, array, 0);
+    }
+
+    t1 = now_ms();
+    time_c = t1 - t0;
+    LOGV("getFinalMosaicNV21: %g ms", time_c);
+
+    ImageUtils::freeImage(ctx->resultYVU);
+    ctx->resultYVU = NULL;
+    return true;
+}
+
+JNIEXPORT jboolean JNICALL Java_com_android_camera_Mosaic_startFinalMosaicJpeg(
+        JNIEnv* env, jobject thiz, jint quality)
+{
+    MosaicContext *ctx = GetContext(env, thiz);
+    if (ctx == NULL) return false;
+
+    if (ctx->resultYVU == NULL || ctx->mosaicWidth <= 0 || ctx->mosaicHeight <= 0)
+    {
+        LOGE("No final mosaic available.");
+        return false;
+    }
+
+    ctx->jpegStartTime = now_ms();
+    return ctx->jpegEncoder.begin(ctx->resultYVU, ctx->mosaicWidth, ctx->mosaicHeight,
+            quality);
+}
+
+JNIEXPORT jint JNICALL Java_com_android_camera_Mosaic_readFinalMosaicJpeg(
+        JNIEnv* env, jobject thiz, jobject buffer)
+{
+    MosaicContext *ctx = GetContext(env, thiz);
+    if (ctx == NULL) return -1;
+
+    unsigned char* dst = (unsigned char*) env->GetDirectBufferAddress(buffer);
+    if (dst == NULL)
+    {
+        ThrowIllegalArgument(env, "JPEG buffer must be a direct buffer");
+        return -1;
+    }
+
+    return (jint) ctx->jpegEncoder.read(dst, (int) env->GetDirectBufferCapacity(buffer));
+}
+
+JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_endFinalMosaicJpeg(
+        JNIEnv* env, jobject thiz)
+{
+    MosaicContext *ctx = GetContext(env, thiz);
+    if (ctx == NULL) return;
+
+    LOGV("writeFinalMosaicJpeg: %g ms, strip buffer %d bytes",
+            now_ms() - ctx->jpegStartTime, ctx->jpegEncoder.getPeakBufferSize());
+
+    ctx->jpegEncoder.end();
+
+    if (ctx->resultYVU != NULL)
+    {
+        ImageUtils::freeImage(ctx->resultYVU);
+        ctx->resultYVU = NULL;
     }
-    env->SetByteArrayRegion(bytes, 0, imageSize, (jbyte*) resultYVU);
-    env->SetByteArrayRegion(bytes, imageSize, 8, (jbyte*) dims);
-    delete[] dims;
-    ImageUtils::freeImage(resultYVU);
-    return bytes;
 }
 
 #ifdef __cplusplus
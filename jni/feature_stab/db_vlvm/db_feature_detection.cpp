@@ -26,6 +26,15 @@
 #include <iostream>
 #endif
 #include <float.h>
+#include <string.h>
+
+#if defined(__ARM_NEON__)
+#include <arm_neon.h>
+#define DB_HARRIS_NEON
+#elif defined(__SSE2__)
+#include <emmintrin.h>
+#define DB_HARRIS_SSE2
+#endif
 
 #define DB_SUB_PIXEL
 
@@ -201,7 +210,45 @@ loopstart:
     int c;
     int Ix,Iy;
 
-    for(c=0;c<nc;c++)
+    c=0;
+#if defined(DB_HARRIS_NEON)
+    const unsigned char *up=img[i-1]+j,*mid=img[i]+j,*down=img[i+1]+j;
+    for(;c+8<=nc;c+=8)
+    {
+        int16x8_t ix=vshrq_n_s16(vreinterpretq_s16_u16(vsubl_u8(vld1_u8(mid+c-1),vld1_u8(mid+c+1))),1);
+        int16x8_t iy=vshrq_n_s16(vreinterpretq_s16_u16(vsubl_u8(vld1_u8(up+c),vld1_u8(down+c))),1);
+        vst1q_s32(dxx+c,vmull_s16(vget_low_s16(ix),vget_low_s16(ix)));
+        vst1q_s32(dxx+c+4,vmull_s16(vget_high_s16(ix),vget_high_s16(ix)));
+        vst1q_s32(dxx+c+128,vmull_s16(vget_low_s16(ix),vget_low_s16(iy)));
+        vst1q_s32(dxx+c+132,vmull_s16(vget_high_s16(ix),vget_high_s16(iy)));
+        vst1q_s32(dxx+c+256,vmull_s16(vget_low_s16(iy),vget_low_s16(iy)));
+        vst1q_s32(dxx+c+260,vmull_s16(vget_high_s16(iy),vget_high_s16(iy)));
+    }
+#elif defined(DB_HARRIS_SSE2)
+    /*The derivatives are within [-128,127], so their products fit in 16 bits before
+    they are sign extended*/
+    const unsigned char *up=img[i-1]+j,*mid=img[i]+j,*down=img[i+1]+j;
+    const __m128i zero=_mm_setzero_si128();
+    for(;c+8<=nc;c+=8)
+    {
+        __m128i ix=_mm_srai_epi16(_mm_sub_epi16(
+            _mm_unpacklo_epi8(_mm_loadl_epi64((const __m128i*)(mid+c-1)),zero),
+            _mm_unpacklo_epi8(_mm_loadl_epi64((const __m128i*)(mid+c+1)),zero)),1);
+        __m128i iy=_mm_srai_epi16(_mm_sub_epi16(
+            _mm_unpacklo_epi8(_mm_loadl_epi64((const __m128i*)(up+c)),zero),
+            _mm_unpacklo_epi8(_mm_loadl_epi64((const __m128i*)(down+c)),zero)),1);
+        __m128i xx=_mm_mullo_epi16(ix,ix);
+        __m128i xy=_mm_mullo_epi16(ix,iy);
+        __m128i yy=_mm_mullo_epi16(iy,iy);
+        _mm_storeu_si128((__m128i*)(dxx+c),_mm_srai_epi32(_mm_unpacklo_epi16(xx,xx),16));
+        _mm_storeu_si128((__m128i*)(dxx+c+4),_mm_srai_epi32(_mm_unpackhi_epi16(xx,xx),16));
+        _mm_storeu_si128((__m128i*)(dxx+c+128),_mm_srai_epi32(_mm_unpacklo_epi16(xy,xy),16));
+        _mm_storeu_si128((__m128i*)(dxx+c+132),_mm_srai_epi32(_mm_unpackhi_epi16(xy,xy),16));
+        _mm_storeu_si128((__m128i*)(dxx+c+256),_mm_srai_epi32(_mm_unpacklo_epi16(yy,yy),16));
+        _mm_storeu_si128((__m128i*)(dxx+c+260),_mm_srai_epi32(_mm_unpackhi_epi16(yy,yy),16));
+    }
+#endif
+    for(;c<nc;c++)
     {
         Ix=(img[i][j+c-1]-img[i][j+c+1])>>1;
         Iy=(img[i-1][j+c]-img[i+1][j+c])>>1;
@@ -344,7 +391,33 @@ loopstart:
 #else
     int c,dd;
 
-    for(c=0;c<nc;c++)
+    c=0;
+#if defined(DB_HARRIS_NEON)
+    for(;c+4<=nc;c+=4)
+    {
+        for(int p=c;p<=c+256;p+=128)
+        {
+            int32x4_t sum=vaddq_s32(vld1q_s32(d0+p),vld1q_s32(d4+p));
+            sum=vaddq_s32(sum,vshlq_n_s32(vaddq_s32(vld1q_s32(d1+p),vld1q_s32(d3+p)),2));
+            vst1q_s32(g+p,vmlaq_n_s32(sum,vld1q_s32(d2+p),6));
+        }
+    }
+#elif defined(DB_HARRIS_SSE2)
+    for(;c+4<=nc;c+=4)
+    {
+        for(int p=c;p<=c+256;p+=128)
+        {
+            __m128i d=_mm_loadu_si128((const __m128i*)(d2+p));
+            __m128i sum=_mm_add_epi32(_mm_loadu_si128((const __m128i*)(d0+p)),
+                _mm_loadu_si128((const __m128i*)(d4+p)));
+            sum=_mm_add_epi32(sum,_mm_slli_epi32(_mm_add_epi32(_mm_loadu_si128((const __m128i*)(d1+p)),
+                _mm_loadu_si128((const __m128i*)(d3+p))),2));
+            sum=_mm_add_epi32(sum,_mm_add_epi32(_mm_slli_epi32(d,2),_mm_slli_epi32(d,1)));
+            _mm_storeu_si128((__m128i*)(g+p),sum);
+        }
+    }
+#endif
+    for(;c<nc;c++)
     {
         /*Filter vertically*/
         dd=d2[c];
@@ -497,6 +570,62 @@ inline void db_HarrisStrength_row_s(float *s,int *gxx,int *gxy,int *gyy,int nc)
 
     k=0.06f;
 
+#if defined(DB_HARRIS_NEON) || defined(DB_HARRIS_SSE2)
+    /*Filter horizontally on the fly instead of in place, with the same integer
+    sums and the same float operations as the C version below*/
+    float Gxx,Gxy,Gyy,det,trc;
+    int c;
+
+    c=0;
+#if defined(DB_HARRIS_NEON)
+    for(;c+4<=nc-4;c+=4)
+    {
+        float32x4_t G[3];
+        int *rows[3]={gxx,gxy,gyy};
+        for(int r=0;r<3;r++)
+        {
+            const int *g=rows[r]+c;
+            int32x4_t sum=vaddq_s32(vld1q_s32(g),vld1q_s32(g+4));
+            sum=vaddq_s32(sum,vshlq_n_s32(vaddq_s32(vld1q_s32(g+1),vld1q_s32(g+3)),2));
+            G[r]=vcvtq_f32_s32(vmlaq_n_s32(sum,vld1q_s32(g+2),6));
+        }
+        float32x4_t vdet=vsubq_f32(vmulq_f32(G[0],G[2]),vmulq_f32(G[1],G[1]));
+        float32x4_t vtrc=vaddq_f32(G[0],G[2]);
+        vst1q_f32(s+c,vsubq_f32(vdet,vmulq_f32(vmulq_n_f32(vtrc,k),vtrc)));
+    }
+#else
+    const __m128 vk=_mm_set1_ps(k);
+    for(;c+4<=nc-4;c+=4)
+    {
+        __m128 G[3];
+        int *rows[3]={gxx,gxy,gyy};
+        for(int r=0;r<3;r++)
+        {
+            const int *g=rows[r]+c;
+            __m128i m=_mm_loadu_si128((const __m128i*)(g+2));
+            __m128i sum=_mm_add_epi32(_mm_loadu_si128((const __m128i*)g),
+                _mm_loadu_si128((const __m128i*)(g+4)));
+            sum=_mm_add_epi32(sum,_mm_slli_epi32(_mm_add_epi32(_mm_loadu_si128((const __m128i*)(g+1)),
+                _mm_loadu_si128((const __m128i*)(g+3))),2));
+            sum=_mm_add_epi32(sum,_mm_add_epi32(_mm_slli_epi32(m,2),_mm_slli_epi32(m,1)));
+            G[r]=_mm_cvtepi32_ps(sum);
+        }
+        __m128 vdet=_mm_sub_ps(_mm_mul_ps(G[0],G[2]),_mm_mul_ps(G[1],G[1]));
+        __m128 vtrc=_mm_add_ps(G[0],G[2]);
+        _mm_storeu_ps(s+c,_mm_sub_ps(vdet,_mm_mul_ps(_mm_mul_ps(vk,vtrc),vtrc)));
+    }
+#endif
+    for(;c<nc-4;c++)
+    {
+        Gxx=(float)(gxx[c]+(gxx[c+1]<<2)+(gxx[c+2]<<2)+(gxx[c+2]<<1)+(gxx[c+3]<<2)+gxx[c+4]);
+        Gxy=(float)(gxy[c]+(gxy[c+1]<<2)+(gxy[c+2]<<2)+(gxy[c+2]<<1)+(gxy[c+3]<<2)+gxy[c+4]);
+        Gyy=(float)(gyy[c]+(gyy[c+1]<<2)+(gyy[c+2]<<2)+(gyy[c+2]<<1)+(gyy[c+3]<<2)+gyy[c+4]);
+
+        det=Gxx*Gyy-Gxy*Gxy;
+        trc=Gxx+Gyy;
+        s[c]=det-k*trc*trc;
+    }
+#else
     db_Filter14641_128_i(gxx,nc);
     db_Filter14641_128_i(gxy,nc);
     db_Filter14641_128_i(gyy,nc);
@@ -608,6 +737,7 @@ loopstart:
         s[c]=det-k*trc*trc;
     }
 #endif /*DB_USE_SIMD*/
+#endif /*DB_HARRIS_NEON || DB_HARRIS_SSE2*/
 }
 
 /*Compute the Harris corner strength of the chunk [left,top,right,bottom] of img and
@@ -716,20 +846,22 @@ void db_HarrisStrength_f(float **s,const float * const *img,int w,int h,
     }
 }
 
-/*Compute Harris corner strength of img. Strength is returned for the region
-with (3,3) as upper left and (w-4,h-4) as lower right, positioned in the
-same place in s. In other words,image should be at least 7 pixels wide and 7 pixels high
-for a meaningful result.Moreover, the image should be overallocated by 256 bytes.
-s[i][3] should by 16 byte aligned for any i*/
-void db_HarrisStrength_u(float **s, const unsigned char * const *img,int w,int h,
-                                    /*temp should point to at least
-                                    18*128 of allocated memory*/
-                                    int *temp)
+struct db_HarrisStrengthArgs_u
 {
+    float **s;
+    const unsigned char * const *img;
+    int w;
+    int *temp;
+};
+
+/*Compute the Harris corner strength of the rows [begin,end) of img*/
+static void db_HarrisStrengthBand_u(void *arg,int begin,int end,int band)
+{
+    db_HarrisStrengthArgs_u *a=(db_HarrisStrengthArgs_u*) arg;
     int x,next_x,last;
     int nc;
 
-    last=w-4;
+    last=a->w-4;
     for(x=3;x<=last;x=next_x)
     {
         next_x=x+124;
@@ -739,10 +871,31 @@ void db_HarrisStrength_u(float **s, const unsigned char * const *img,int w,int h
         //nc = 128;
 
         /*Compute the Harris strength of a chunk*/
-        db_HarrisStrengthChunk_u(s,img,x,3,h-4,temp,nc);
+        db_HarrisStrengthChunk_u(a->s,a->img,x,begin,end-1,a->temp+band*18*128,nc);
     }
 }
 
+/*Compute Harris corner strength of img. Strength is returned for the region
+with (3,3) as upper left and (w-4,h-4) as lower right, positioned in the
+same place in s. In other words,image should be at least 7 pixels wide and 7 pixels high
+for a meaningful result.Moreover, the image should be overallocated by 256 bytes.
+s[i][3] should by 16 byte aligned for any i. The rows are split into bands computed
+on several threads*/
+void db_HarrisStrength_u(float **s, const unsigned char * const *img,int w,int h,
+                                    /*temp should point to at least
+                                    18*128*DB_MAX_THREADS of allocated memory*/
+                                    int *temp)
+{
+    db_HarrisStrengthArgs_u a;
+
+    a.s=s;
+    a.img=img;
+    a.w=w;
+    a.temp=temp;
+    /*Each band computes the derivatives of 4 rows more than its own*/
+    db_ParallelBands(db_HarrisStrengthBand_u,&a,3,h-3,16);
+}
+
 inline float db_Max_128Aligned16_f(float *v)
 {
 #ifdef DB_USE_SIMD
@@ -1419,35 +1572,137 @@ void db_MaxSuppressFilter_5x5_Aligned16_f(float **sf,float **s,int left,int top,
     }
 }
 
-/*Extract corners from the chunk (left,top) to (right,bottom). Store in x_temp,y_temp and s_temp
-which should point to space of at least as many positions as there are pixels in the chunk*/
-inline int db_CornersFromChunk(float **strength,int left,int top,int right,int bottom,float threshold,double *x_temp,double *y_temp,double *s_temp)
+/*Return true if strength[i][j] is greater than all its neighbors in the 5x5 window around it*/
+inline bool db_IsStrictMax5x5(float **strength,int i,int j)
 {
-    int i,j,nr;
     float s;
 
-    nr=0;
-    for(i=top;i<=bottom;i++) for(j=left;j<=right;j++)
+    s=strength[i][j];
+    return(s>strength[i-2][j-2] && s>strength[i-2][j-1] && s>strength[i-2][j] && s>strength[i-2][j+1] && s>strength[i-2][j+2] &&
+        s>strength[i-1][j-2] && s>strength[i-1][j-1] && s>strength[i-1][j] && s>strength[i-1][j+1] && s>strength[i-1][j+2] &&
+        s>strength[  i][j-2] && s>strength[  i][j-1] &&                       s>strength[  i][j+1] && s>strength[  i][j+2] &&
+        s>strength[i+1][j-2] && s>strength[i+1][j-1] && s>strength[i+1][j] && s>strength[i+1][j+1] && s>strength[i+1][j+2] &&
+        s>strength[i+2][j-2] && s>strength[i+2][j-1] && s>strength[i+2][j] && s>strength[i+2][j+1] && s>strength[i+2][j+2]);
+}
+
+/*Store the maximum of s[j-2..j+2] into m[j] for j in [0,n)*/
+inline void db_MaxFilterRow5_f(float *m,const float *s,int n)
+{
+    int j;
+    float a,b;
+
+    j=0;
+#if defined(DB_HARRIS_NEON)
+    for(;j+4<=n;j+=4)
     {
-        s=strength[i][j];
+        vst1q_f32(m+j,vmaxq_f32(vmaxq_f32(vmaxq_f32(vld1q_f32(s+j-2),vld1q_f32(s+j-1)),
+            vmaxq_f32(vld1q_f32(s+j),vld1q_f32(s+j+1))),vld1q_f32(s+j+2)));
+    }
+#elif defined(DB_HARRIS_SSE2)
+    for(;j+4<=n;j+=4)
+    {
+        _mm_storeu_ps(m+j,_mm_max_ps(_mm_max_ps(_mm_max_ps(_mm_loadu_ps(s+j-2),_mm_loadu_ps(s+j-1)),
+            _mm_max_ps(_mm_loadu_ps(s+j),_mm_loadu_ps(s+j+1))),_mm_loadu_ps(s+j+2)));
+    }
+#endif
+    for(;j<n;j++)
+    {
+        a=(s[j-2]>s[j-1])?s[j-2]:s[j-1];
+        b=(s[j]>s[j+1])?s[j]:s[j+1];
+        a=(a>b)?a:b;
+        m[j]=(a>s[j+2])?a:s[j+2];
+    }
+}
+
+/*Extract corners from the chunk (left,top) to (right,bottom). Store in x_temp,y_temp and s_temp
+which should point to space of at least as many positions as there are pixels in the chunk.
+A corner is a pixel of at least threshold strength that is greater than all others in the 5x5
+window around it. The maximum of each window is computed first, separably, into the five rows
+of temp_f (of at least 5*(right-left+1) floats), and only the pixels equal to it and above the
+threshold are tested further. The corners are returned in raster order*/
+inline int db_CornersFromChunk(float **strength,int left,int top,int right,int bottom,float threshold,double *x_temp,double *y_temp,double *s_temp,
+                               float *temp_f)
+{
+    int i,j,c,nr,cw;
+    float *m[5],*m0,*m1,*m2,*m3,*m4;
+    const float *srow;
+    float s,a,b;
+
+    cw=right-left+1;
+    for(i=0;i<5;i++) m[i]=temp_f+i*cw;
+
+    /*Fill four rows of the wrap-around horizontal max buffers*/
+    for(i=top-2;i<top+2;i++) db_MaxFilterRow5_f(m[i%5],strength[i]+left,cw);
 
-        if(s>=threshold &&
-            s>strength[i-2][j-2] && s>strength[i-2][j-1] && s>strength[i-2][j] && s>strength[i-2][j+1] && s>strength[i-2][j+2] &&
-            s>strength[i-1][j-2] && s>strength[i-1][j-1] && s>strength[i-1][j] && s>strength[i-1][j+1] && s>strength[i-1][j+2] &&
-            s>strength[  i][j-2] && s>strength[  i][j-1] &&                       s>strength[  i][j+1] && s>strength[  i][j+2] &&
-            s>strength[i+1][j-2] && s>strength[i+1][j-1] && s>strength[i+1][j] && s>strength[i+1][j+1] && s>strength[i+1][j+2] &&
-            s>strength[i+2][j-2] && s>strength[i+2][j-1] && s>strength[i+2][j] && s>strength[i+2][j+1] && s>strength[i+2][j+2])
+    nr=0;
+    for(i=top;i<=bottom;i++)
+    {
+        /*Step the horizontal max buffers*/
+        db_MaxFilterRow5_f(m[(i+2)%5],strength[i+2]+left,cw);
+
+        m0=m[0]; m1=m[1]; m2=m[2]; m3=m[3]; m4=m[4];
+        srow=strength[i]+left;
+        c=0;
+#if defined(DB_HARRIS_NEON)
+        const float32x4_t vthreshold=vdupq_n_f32(threshold);
+        for(;c+4<=cw;c+=4)
+        {
+            float32x4_t vs=vld1q_f32(srow+c);
+            float32x4_t vm=vmaxq_f32(vmaxq_f32(vmaxq_f32(vld1q_f32(m0+c),vld1q_f32(m1+c)),
+                vmaxq_f32(vld1q_f32(m2+c),vld1q_f32(m3+c))),vld1q_f32(m4+c));
+            uint32x4_t mask=vandq_u32(vcgeq_f32(vs,vm),vcgeq_f32(vs,vthreshold));
+            uint32x2_t any=vorr_u32(vget_low_u32(mask),vget_high_u32(mask));
+            if(vget_lane_u32(vpmax_u32(any,any),0)==0) continue;
+            for(j=c;j<c+4;j++)
+            {
+                if(srow[j]>=threshold && db_IsStrictMax5x5(strength,i,left+j))
+                {
+                    x_temp[nr]=(double) (left+j);
+                    y_temp[nr]=(double) i;
+                    s_temp[nr]=(double) srow[j];
+                    nr++;
+                }
+            }
+        }
+#elif defined(DB_HARRIS_SSE2)
+        const __m128 vthreshold=_mm_set1_ps(threshold);
+        for(;c+4<=cw;c+=4)
         {
-            x_temp[nr]=(double) j;
-            y_temp[nr]=(double) i;
-            s_temp[nr]=(double) s;
-            nr++;
+            __m128 vs=_mm_loadu_ps(srow+c);
+            __m128 vm=_mm_max_ps(_mm_max_ps(_mm_max_ps(_mm_loadu_ps(m0+c),_mm_loadu_ps(m1+c)),
+                _mm_max_ps(_mm_loadu_ps(m2+c),_mm_loadu_ps(m3+c))),_mm_loadu_ps(m4+c));
+            int mask=_mm_movemask_ps(_mm_and_ps(_mm_cmpge_ps(vs,vm),_mm_cmpge_ps(vs,vthreshold)));
+            for(j=c;mask;j++,mask>>=1)
+            {
+                if((mask&1) && db_IsStrictMax5x5(strength,i,left+j))
+                {
+                    x_temp[nr]=(double) (left+j);
+                    y_temp[nr]=(double) i;
+                    s_temp[nr]=(double) srow[j];
+                    nr++;
+                }
+            }
+        }
+#endif
+        for(;c<cw;c++)
+        {
+            s=srow[c];
+            a=(m0[c]>m1[c])?m0[c]:m1[c];
+            b=(m2[c]>m3[c])?m2[c]:m3[c];
+            a=(a>b)?a:b;
+            a=(a>m4[c])?a:m4[c];
+            if(s>=threshold && s>=a && db_IsStrictMax5x5(strength,i,left+c))
+            {
+                x_temp[nr]=(double) (left+c);
+                y_temp[nr]=(double) i;
+                s_temp[nr]=(double) s;
+                nr++;
+            }
         }
     }
     return(nr);
 }
 
-
 //Sub-pixel accuracy using 2D quadratic interpolation.(YCJ)
 inline void db_SubPixel(float **strength, const double xd, const double yd, double &xs, double &ys)
 {
@@ -1489,56 +1744,74 @@ inline void db_SubPixel(float **strength, const double xd, const double yd, doub
     return;
 }
 
-/*Extract corners from the image part from (left,top) to (right,bottom).
-Store in x and y, extracting at most satnr corners in each block of size (bw,bh).
-The pointer temp_d should point to at least 5*bw*bh positions.
-area_factor holds how many corners max to extract per 10000 pixels*/
-void db_ExtractCornersSaturated(float **strength,int left,int top,int right,int bottom,
-                                int bw,int bh,unsigned long area_factor,
-                                float threshold,double *temp_d,
-                                double *x_coord,double *y_coord,int *nr_corners)
+struct db_ExtractCornersArgs
+{
+    float **strength;
+    int left,top,right,bottom,bw,bh;
+    unsigned long area_factor;
+    float threshold;
+    double *temp_d;
+    float *temp_f;
+    double *x_coord,*y_coord;
+    int band_start[DB_MAX_THREADS];
+    int band_nr[DB_MAX_THREADS];
+};
+
+/*Return the largest number of corners extracted from the row of blocks starting at y*/
+inline int db_CornerCapacityOfBlockRow(const db_ExtractCornersArgs *a,int y)
+{
+    int x,last_x,last_y,nr;
+
+    last_y=db_mini(y+a->bh-1,a->bottom);
+    nr=0;
+    for(x=a->left;x<=a->right;x+=a->bw)
+    {
+        last_x=db_mini(x+a->bw-1,a->right);
+        nr+=(int) (((unsigned long) ((last_x-x+1)*(last_y-y+1))*a->area_factor)/10000);
+    }
+    return(nr);
+}
+
+/*Extract the corners of the rows of blocks [begin,end). They are stored from the position
+in x_coord and y_coord that the rows of blocks before them would use at most*/
+static void db_ExtractCornersBand(void *arg,int begin,int end,int band)
 {
+    db_ExtractCornersArgs *a=(db_ExtractCornersArgs*) arg;
     double *x_temp,*y_temp,*s_temp,*select_temp;
     double loc_thresh;
     unsigned long bwbh,area,saturation;
     int x,next_x,last_x;
-    int y,next_y,last_y;
+    int y,last_y,r;
     int nr,nr_points,i,stop;
 
-    bwbh=bw*bh;
-    x_temp=temp_d;
+    bwbh=a->bw*a->bh;
+    x_temp=a->temp_d+band*5*bwbh;
     y_temp=x_temp+bwbh;
     s_temp=y_temp+bwbh;
     select_temp=s_temp+bwbh;
 
-#ifdef DB_SUB_PIXEL
-    // subpixel processing may sometimes push the corner ourside the real border
-    // increasing border size:
-    left++;
-    top++;
-    bottom--;
-    right--;
-#endif /*DB_SUB_PIXEL*/
-
     nr_points=0;
-    for(y=top;y<=bottom;y=next_y)
+    for(r=0;r<begin;r++) nr_points+=db_CornerCapacityOfBlockRow(a,a->top+r*a->bh);
+    a->band_start[band]=nr_points;
+
+    for(r=begin;r<end;r++)
     {
-        next_y=y+bh;
-        last_y=next_y-1;
-        if(last_y>bottom) last_y=bottom;
-        for(x=left;x<=right;x=next_x)
+        y=a->top+r*a->bh;
+        last_y=db_mini(y+a->bh-1,a->bottom);
+        for(x=a->left;x<=a->right;x=next_x)
         {
-            next_x=x+bw;
+            next_x=x+a->bw;
             last_x=next_x-1;
-            if(last_x>right) last_x=right;
+            if(last_x>a->right) last_x=a->right;
 
             area=(last_x-x+1)*(last_y-y+1);
-            saturation=(area*area_factor)/10000;
-            nr=db_CornersFromChunk(strength,x,y,last_x,last_y,threshold,x_temp,y_temp,s_temp);
+            saturation=(area*a->area_factor)/10000;
+            nr=db_CornersFromChunk(a->strength,x,y,last_x,last_y,a->threshold,x_temp,y_temp,s_temp,
+                a->temp_f+band*5*a->bw);
             if(nr)
             {
                 if(((unsigned long)nr)>saturation) loc_thresh=db_LeanQuickSelect(s_temp,nr,nr-saturation,select_temp);
-                else loc_thresh=threshold;
+                else loc_thresh=a->threshold;
 
                 stop=nr_points+saturation;
                 for(i=0;(i<nr)&&(nr_points<stop);i++)
@@ -1546,10 +1819,10 @@ void db_ExtractCornersSaturated(float **strength,int left,int top,int right,int
                     if(s_temp[i]>=loc_thresh)
                     {
                         #ifdef DB_SUB_PIXEL
-                               db_SubPixel(strength, x_temp[i], y_temp[i], x_coord[nr_points], y_coord[nr_points]);
+                               db_SubPixel(a->strength, x_temp[i], y_temp[i], a->x_coord[nr_points], a->y_coord[nr_points]);
                         #else
-                               x_coord[nr_points]=x_temp[i];
-                               y_coord[nr_points]=y_temp[i];
+                               a->x_coord[nr_points]=x_temp[i];
+                               a->y_coord[nr_points]=y_temp[i];
                         #endif
 
                         nr_points++;
@@ -1558,6 +1831,53 @@ void db_ExtractCornersSaturated(float **strength,int left,int top,int right,int
             }
         }
     }
+    a->band_nr[band]=nr_points-a->band_start[band];
+}
+
+/*Extract corners from the image part from (left,top) to (right,bottom).
+Store in x and y, extracting at most satnr corners in each block of size (bw,bh).
+The pointer temp_d should point to at least 5*bw*bh*DB_MAX_THREADS positions and temp_f
+to at least 5*bw*DB_MAX_THREADS positions. The rows of blocks are split into bands
+extracted on several threads, and the corners are returned in the order of the blocks.
+area_factor holds how many corners max to extract per 10000 pixels*/
+void db_ExtractCornersSaturated(float **strength,int left,int top,int right,int bottom,
+                                int bw,int bh,unsigned long area_factor,
+                                float threshold,double *temp_d,float *temp_f,
+                                double *x_coord,double *y_coord,int *nr_corners)
+{
+    db_ExtractCornersArgs a;
+    int nr_bands,nr_points,b;
+
+#ifdef DB_SUB_PIXEL
+    // subpixel processing may sometimes push the corner ourside the real border
+    // increasing border size:
+    left++;
+    top++;
+    bottom--;
+    right--;
+#endif /*DB_SUB_PIXEL*/
+
+    a.strength=strength;
+    a.left=left; a.top=top; a.right=right; a.bottom=bottom;
+    a.bw=bw; a.bh=bh;
+    a.area_factor=area_factor;
+    a.threshold=threshold;
+    a.temp_d=temp_d;
+    a.temp_f=temp_f;
+    a.x_coord=x_coord;
+    a.y_coord=y_coord;
+    a.band_nr[0]=0;
+
+    nr_bands=db_ParallelBands(db_ExtractCornersBand,&a,0,db_maxi(0,(bottom-top+bh)/bh),1);
+
+    /*Close the gaps left between the bands*/
+    nr_points=a.band_nr[0];
+    for(b=1;b<nr_bands;b++)
+    {
+        memmove(x_coord+nr_points,x_coord+a.band_start[b],a.band_nr[b]*sizeof(double));
+        memmove(y_coord+nr_points,y_coord+a.band_start[b],a.band_nr[b]*sizeof(double));
+        nr_points+=a.band_nr[b];
+    }
     *nr_corners=nr_points;
 }
 
@@ -1619,8 +1939,9 @@ unsigned long db_CornerDetector_f::Start(int im_width,int im_height,
     m_a_thresh=absolute_threshold;
     m_max_nr=db_maxl(1,1+(m_w*m_h*m_area_factor)/10000);
 
-    m_temp_f=new float[13*(m_cw+4)];
-    m_temp_d=new double[5*m_bw*m_bh];
+    /*Harris strength temporary memory followed by that of the corner extraction*/
+    m_temp_f=new float[13*(m_cw+4)+5*m_bw*DB_MAX_THREADS];
+    m_temp_d=new double[5*m_bw*m_bh*DB_MAX_THREADS];
     m_strength=db_AllocStrengthImage_f(&m_strength_mem,m_w,m_h);
 
     return(m_max_nr);
@@ -1640,7 +1961,7 @@ void db_CornerDetector_f::DetectCorners(const float * const *img,double *x_coord
     else threshold= (float) m_a_thresh;
 
     db_ExtractCornersSaturated(m_strength,BORDER,BORDER,m_w-BORDER-1,m_h-BORDER-1,m_bw,m_bh,m_area_factor,threshold,
-        m_temp_d,x_coord,y_coord,nr_corners);
+        m_temp_d,m_temp_f+13*(m_cw+4),x_coord,y_coord,nr_corners);
 }
 
 db_CornerDetector_u::db_CornerDetector_u()
@@ -1676,6 +1997,7 @@ void db_CornerDetector_u::Clean()
     if(m_w!=0)
     {
         delete [] m_temp_i;
+        delete [] m_temp_f;
         delete [] m_temp_d;
         db_FreeStrengthImage_f(m_strength_mem,m_strength,m_h);
     }
@@ -1717,8 +2039,9 @@ unsigned long db_CornerDetector_u::Start(int im_width,int im_height,
     m_a_thresh=absolute_threshold;
     m_max_nr=db_maxl(1,1+(m_w*m_h*m_area_factor)/10000);
 
-    m_temp_i=new int[18*128];
-    m_temp_d=new double[5*m_bw*m_bh];
+    m_temp_i=new int[18*128*DB_MAX_THREADS];
+    m_temp_f=new float[5*m_bw*DB_MAX_THREADS];
+    m_temp_d=new double[5*m_bw*m_bh*DB_MAX_THREADS];
     m_strength=db_AllocStrengthImage_f(&m_strength_mem,m_w,m_h);
 
     return(m_max_nr);
@@ -1740,7 +2063,7 @@ void db_CornerDetector_u::DetectCorners(const unsigned char * const *img,double
     else threshold= (float) m_a_thresh;
 
     db_ExtractCornersSaturated(m_strength,BORDER,BORDER,m_w-BORDER-1,m_h-BORDER-1,m_bw,m_bh,m_area_factor,threshold,
-        m_temp_d,x_coord,y_coord,nr_corners);
+        m_temp_d,m_temp_f,x_coord,y_coord,nr_corners);
 
 
     if ( msk )
@@ -1765,6 +2088,6 @@ void db_CornerDetector_u::DetectCorners(const unsigned char * const *img,double
 void db_CornerDetector_u::ExtractCorners(float ** strength, double *x_coord, double *y_coord, int *nr_corners) {
     if ( m_w!=0 )
         db_ExtractCornersSaturated(strength,BORDER,BORDER,m_w-BORDER-1,m_h-BORDER-1,m_bw,m_bh,m_area_factor,float(m_a_thresh),
-            m_temp_d,x_coord,y_coord,nr_corners);
+            m_temp_d,m_temp_f,x_coord,y_coord,nr_corners);
 }
 
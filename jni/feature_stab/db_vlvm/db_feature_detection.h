@@ -94,6 +94,9 @@ protected:
  *
  *  This class performs Harris corner extraction on *byte* images managed
  * with functions in \ref LMImageBasicUtilities.
+ * The strength image and the corners are computed in bands of rows on up to
+ * db_GetMaxThreads() threads (see \ref LMParallel); the corners are the same
+ * for any number of threads.
  */
 class DB_API db_CornerDetector_u
 {
@@ -172,6 +175,7 @@ protected:
     unsigned long m_area_factor,m_max_nr;
     double m_a_thresh,m_r_thresh;
     int *m_temp_i;
+    float *m_temp_f;
     double *m_temp_d;
     float **m_strength,*m_strength_mem;
 };
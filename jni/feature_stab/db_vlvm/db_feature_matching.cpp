@@ -25,6 +25,16 @@
 #ifdef _VERBOSE_
 #include <iostream>
 #endif
+#include <math.h>
+#include <string.h>
+
+#if defined(__ARM_NEON__)
+#include <arm_neon.h>
+#define DB_MATCH_NEON
+#elif defined(__SSE2__)
+#include <emmintrin.h>
+#define DB_MATCH_SSE2
+#endif
 
 
 int AffineWarpPoint_NN_LUT_x[11][11];
@@ -655,15 +665,82 @@ inline void db_SignedSquareNormCorr21x21_PreAlign_u(short *patch,const unsigned
 
 }
 
+#if defined(DB_MATCH_NEON) || defined(DB_MATCH_SSE2)
+/*Lay out the 11x11 patch with top left corner (xm_f,y_f-5) and compute the
+sum and the sum of squares of its pixels, as the C code of
+db_SignedSquareNormCorr11x11_PreAlign_u() does. Every row is read as 16
+bytes, that is 5 bytes past the patch, which the over-allocation of the
+images allows, and stored as 16 shorts, the last 5 being overwritten by
+the next row or cleared*/
+inline void db_PatchLayout11x11_u(short *patch,const unsigned char * const *f_img,int xm_f,int y_f,int *f2sum,int *fsum)
+{
+    int i;
+#if defined(DB_MATCH_NEON)
+    static const short keep3[8]={-1,-1,-1,0,0,0,0,0};
+    int16x8_t mask=vld1q_s16(keep3);
+    int16x8_t s=vdupq_n_s16(0),lo,hi;
+    int32x4_t s2=vdupq_n_s32(0),s32;
+    int32x2_t acc2;
+    uint8x16_t row;
+
+    for(i=0;i<11;i++)
+    {
+        row=vld1q_u8(f_img[y_f-5+i]+xm_f);
+        lo=vreinterpretq_s16_u16(vmovl_u8(vget_low_u8(row)));
+        hi=vandq_s16(vreinterpretq_s16_u16(vmovl_u8(vget_high_u8(row))),mask);
+        vst1q_s16(patch+11*i,lo);
+        vst1q_s16(patch+11*i+8,hi);
+        /*At most 22 pixels per lane, so that the sums fit in 16 bits*/
+        s=vaddq_s16(s,vaddq_s16(lo,hi));
+        s2=vmlal_s16(s2,vget_low_s16(lo),vget_low_s16(lo));
+        s2=vmlal_s16(s2,vget_high_s16(lo),vget_high_s16(lo));
+        s2=vmlal_s16(s2,vget_low_s16(hi),vget_low_s16(hi));
+    }
+    s32=vpaddlq_s16(s);
+    acc2=vadd_s32(vget_low_s32(s32),vget_high_s32(s32));
+    *fsum=vget_lane_s32(vpadd_s32(acc2,acc2),0);
+    acc2=vadd_s32(vget_low_s32(s2),vget_high_s32(s2));
+    *f2sum=vget_lane_s32(vpadd_s32(acc2,acc2),0);
+#else
+    const __m128i zero=_mm_setzero_si128();
+    const __m128i mask=_mm_setr_epi16(-1,-1,-1,0,0,0,0,0);
+    const __m128i ones=_mm_set1_epi16(1);
+    __m128i s=zero,s2=zero,row,lo,hi;
+
+    for(i=0;i<11;i++)
+    {
+        row=_mm_loadu_si128((const __m128i*)(f_img[y_f-5+i]+xm_f));
+        lo=_mm_unpacklo_epi8(row,zero);
+        hi=_mm_and_si128(_mm_unpackhi_epi8(row,zero),mask);
+        _mm_storeu_si128((__m128i*)(patch+11*i),lo);
+        _mm_storeu_si128((__m128i*)(patch+11*i+8),hi);
+        /*At most 22 pixels per lane, so that the sums fit in 16 bits*/
+        s=_mm_add_epi16(s,_mm_add_epi16(lo,hi));
+        s2=_mm_add_epi32(s2,_mm_add_epi32(_mm_madd_epi16(lo,lo),_mm_madd_epi16(hi,hi)));
+    }
+    s=_mm_madd_epi16(s,ones);
+    s=_mm_add_epi32(s,_mm_shuffle_epi32(s,_MM_SHUFFLE(1,0,3,2)));
+    s=_mm_add_epi32(s,_mm_shuffle_epi32(s,_MM_SHUFFLE(2,3,0,1)));
+    *fsum=_mm_cvtsi128_si32(s);
+    s2=_mm_add_epi32(s2,_mm_shuffle_epi32(s2,_MM_SHUFFLE(1,0,3,2)));
+    s2=_mm_add_epi32(s2,_mm_shuffle_epi32(s2,_MM_SHUFFLE(2,3,0,1)));
+    *f2sum=_mm_cvtsi128_si32(s2);
+#endif
+    for(i=121;i<128;i++) patch[i]=0;
+}
+#endif /* DB_MATCH_NEON || DB_MATCH_SSE2 */
+
 /* Lay out the image in the patch, computing norm and
 */
-inline void db_SignedSquareNormCorr11x11_PreAlign_u(short *patch,const unsigned char * const *f_img,int x_f,int y_f,float *sum,float *recip)
+void db_SignedSquareNormCorr11x11_PreAlign_u(short *patch,const unsigned char * const *f_img,int x_f,int y_f,float *sum,float *recip)
 {
     float den;
     int f2sum,fsum;
     int xm_f=x_f-5;
 
-#ifndef DB_USE_SSE2
+#if defined(DB_MATCH_NEON) || defined(DB_MATCH_SSE2)
+    db_PatchLayout11x11_u(patch,f_img,xm_f,y_f,&f2sum,&fsum);
+#elif !defined(DB_USE_SSE2)
     const unsigned char *pf;
     short f;
 
@@ -1263,11 +1340,51 @@ inline float db_SignedSquareNormCorr11x11_Post_u(unsigned char **f_img,unsigned
     return(-fg_corr*fg_corr*f_recip_g_recip);
 }
 
+#if defined(DB_MATCH_NEON) || defined(DB_MATCH_SSE2)
+/*Scalar product of two patch layouts of n shorts, n a multiple of 8.
+The patches hold pixel values, so that the products and their sums fit in
+32 bits and the result is that of db_ScalarProduct128_s() and the like*/
+inline int db_PatchScalarProduct_s(const short *f,const short *g,int n)
+{
+    int i;
+#if defined(DB_MATCH_NEON)
+    int32x4_t acc=vdupq_n_s32(0);
+    int32x2_t acc2;
+    int16x8_t a,b;
+
+    for(i=0;i<n;i+=8)
+    {
+        a=vld1q_s16(f+i);
+        b=vld1q_s16(g+i);
+        acc=vmlal_s16(acc,vget_low_s16(a),vget_low_s16(b));
+        acc=vmlal_s16(acc,vget_high_s16(a),vget_high_s16(b));
+    }
+    acc2=vadd_s32(vget_low_s32(acc),vget_high_s32(acc));
+    return(vget_lane_s32(vpadd_s32(acc2,acc2),0));
+#else
+    __m128i acc=_mm_setzero_si128();
+
+    for(i=0;i<n;i+=8)
+    {
+        acc=_mm_add_epi32(acc,_mm_madd_epi16(_mm_loadu_si128((const __m128i*)(f+i)),
+            _mm_loadu_si128((const __m128i*)(g+i))));
+    }
+    acc=_mm_add_epi32(acc,_mm_shuffle_epi32(acc,_MM_SHUFFLE(1,0,3,2)));
+    acc=_mm_add_epi32(acc,_mm_shuffle_epi32(acc,_MM_SHUFFLE(2,3,0,1)));
+    return(_mm_cvtsi128_si32(acc));
+#endif
+}
+#endif /* DB_MATCH_NEON || DB_MATCH_SSE2 */
+
 float db_SignedSquareNormCorr21x21Aligned_Post_s(const short *f_patch,const short *g_patch,float fsum_gsum,float f_recip_g_recip)
 {
     float fgsum,fg_corr;
 
+#if defined(DB_MATCH_NEON) || defined(DB_MATCH_SSE2)
+    fgsum= (float) db_PatchScalarProduct_s(f_patch,g_patch,512);
+#else
     fgsum= (float) db_ScalarProduct512_s(f_patch,g_patch);
+#endif
 
     fg_corr=441.0f*fgsum-fsum_gsum;
     if(fg_corr>=0.0) return(fg_corr*fg_corr*f_recip_g_recip);
@@ -1279,7 +1396,11 @@ float db_SignedSquareNormCorr11x11Aligned_Post_s(const short *f_patch,const shor
 {
     float fgsum,fg_corr;
 
+#if defined(DB_MATCH_NEON) || defined(DB_MATCH_SSE2)
+    fgsum= (float) db_PatchScalarProduct_s(f_patch,g_patch,128);
+#else
     fgsum= (float) db_ScalarProduct128_s(f_patch,g_patch);
+#endif
 
     fg_corr=121.0f*fgsum-fsum_gsum;
     if(fg_corr>=0.0) return(fg_corr*fg_corr*f_recip_g_recip);
@@ -1290,7 +1411,11 @@ float db_SignedSquareNormCorr5x5Aligned_Post_s(const short *f_patch,const short
 {
     float fgsum,fg_corr;
 
+#if defined(DB_MATCH_NEON) || defined(DB_MATCH_SSE2)
+    fgsum= (float) db_PatchScalarProduct_s(f_patch,g_patch,32);
+#else
     fgsum= (float) db_ScalarProduct32_s(f_patch,g_patch);
+#endif
 
     fg_corr=25.0f*fgsum-fsum_gsum;
     if(fg_corr>=0.0) return(fg_corr*fg_corr*f_recip_g_recip);
@@ -3136,7 +3261,7 @@ void db_CollectMatches_f(db_Bucket_f **bp_l,int nr_h,int nr_v,unsigned long targ
     *nr_matches=count;
 }
 
-void db_CollectMatches_u(db_Bucket_u **bp_l,int nr_h,int nr_v,unsigned long target,int *id_l,int *id_r,int *nr_matches)
+void db_CollectMatches_u(db_Bucket_u **bp_l,int nr_h,int nr_v,unsigned long target,int *id_l,int *id_r,int *nr_matches,double *scores)
 {
     int i,j,k,br_nr;
     unsigned long count;
@@ -3164,6 +3289,7 @@ void db_CollectMatches_u(db_Bucket_u **bp_l,int nr_h,int nr_v,unsigned long targ
                     {
                         id_l[count]=pir->id;
                         id_r[count]=pir2->id;
+                        if(scores) scores[count]=pir->s;
                         count++;
                     }
                 }
@@ -3173,6 +3299,119 @@ void db_CollectMatches_u(db_Bucket_u **bp_l,int nr_h,int nr_v,unsigned long targ
     *nr_matches=count;
 }
 
+/*Floor of a/b for b>0*/
+inline int db_FloorDivi(int a,int b)
+{
+    return((a>=0)?(a/b):(-((b-1-a)/b)));
+}
+
+/*Coarse descriptor of the patch of half size half around (x_f,y_f):
+the sums of its four quadrants, less their mean and normalized.
+It is left zero, which never rejects a candidate, if the quadrants
+differ by less than a grey level per pixel*/
+inline void db_QuadrantDescriptor_u(float *desc,const unsigned char * const *f_img,int x_f,int y_f,int half)
+{
+    int i,j,q[4];
+    const unsigned char *pa,*pb;
+    float m,d2;
+
+    q[0]=q[1]=q[2]=q[3]=0;
+    for(i=1;i<=half;i++)
+    {
+        pa=f_img[y_f-i]+x_f;
+        pb=f_img[y_f+i]+x_f;
+        for(j=1;j<=half;j++)
+        {
+            q[0]+=pa[-j]; q[1]+=pa[j];
+            q[2]+=pb[-j]; q[3]+=pb[j];
+        }
+    }
+    m=0.25f*(float)(q[0]+q[1]+q[2]+q[3]);
+    d2=0.0f;
+    for(i=0;i<4;i++)
+    {
+        desc[i]=(float)q[i]-m;
+        d2+=desc[i]*desc[i];
+    }
+    if(d2<(float)(half*half*half*half))
+    {
+        desc[0]=desc[1]=desc[2]=desc[3]=0.0f;
+    }
+    else
+    {
+        m=1.0f/sqrtf(d2);
+        for(i=0;i<4;i++) desc[i]*=m;
+    }
+}
+
+/*Lay out the patches of the features and compute their descriptors.
+The features are placed at their positions moved by (dx,dy)*/
+short* db_FillPointsPredicted_u(short *patch_space,const unsigned char * const *f_img,db_PointInfo_u *points,float *desc,
+                                const double *x,const double *y,int nr,int dx,int dy,int use_smaller_matching_window,int use_21)
+{
+    int i,xi,yi,half;
+    db_PointInfo_u *pir;
+
+    for(i=0;i<nr;i++)
+    {
+        xi=(int)db_roundi(x[i]);
+        yi=(int)db_roundi(y[i]);
+        pir=points+i;
+        pir->x=xi+dx;
+        pir->y=yi+dy;
+        pir->id=i;
+        pir->pir=0;
+        pir->patch=patch_space;
+
+        if(use_21)
+        {
+            db_SignedSquareNormCorr21x21_PreAlign_u(patch_space,f_img,xi,yi,&(pir->sum),&(pir->recip));
+            patch_space+=512;
+            half=10;
+        }
+        else if(!use_smaller_matching_window)
+        {
+            db_SignedSquareNormCorr11x11_PreAlign_u(patch_space,f_img,xi,yi,&(pir->sum),&(pir->recip));
+            patch_space+=128;
+            half=5;
+        }
+        else
+        {
+            db_SignedSquareNormCorr5x5_PreAlign_u(patch_space,f_img,xi,yi,&(pir->sum),&(pir->recip));
+            patch_space+=32;
+            half=2;
+        }
+        db_QuadrantDescriptor_u(desc+4*i,f_img,xi,yi,half);
+    }
+    return(patch_space);
+}
+
+/*Sort the features into a grid of nr_pw by nr_ph cells of pw by ph pixels,
+so that the features of cell c are cell_points[cell_start[c]] to
+cell_points[cell_start[c+1]-1], in the order of their ids*/
+void db_IndexPoints_u(int *cell_start,int *cell_points,const db_PointInfo_u *points,int nr,
+                      int pw,int ph,int nr_pw,int nr_ph)
+{
+    int i,c,nr_cells;
+
+    nr_cells=nr_pw*nr_ph;
+    memset(cell_start,0,(nr_cells+1)*sizeof(int));
+    for(i=0;i<nr;i++)
+    {
+        c=db_maxi(0,db_mini(nr_ph-1,points[i].y/ph))*nr_pw+db_maxi(0,db_mini(nr_pw-1,points[i].x/pw));
+        cell_start[c+1]++;
+    }
+    for(c=0;c<nr_cells;c++) cell_start[c+1]+=cell_start[c];
+    /*Scatter, leaving cell_start[c] at the end of cell c, then shift back*/
+    for(i=0;i<nr;i++)
+    {
+        c=db_maxi(0,db_mini(nr_ph-1,points[i].y/ph))*nr_pw+db_maxi(0,db_mini(nr_pw-1,points[i].x/pw));
+        cell_points[cell_start[c]++]=i;
+    }
+    for(c=nr_cells;c>0;c--) cell_start[c]=cell_start[c-1];
+    cell_start[0]=0;
+}
+
 db_Matcher_f::db_Matcher_f()
 {
     m_w=0; m_h=0;
@@ -3247,6 +3486,10 @@ db_Matcher_u::db_Matcher_u()
     m_bw=m_bh=m_nr_h=m_nr_v=m_bd=m_target=0;
     m_bp_l=m_bp_r=0;
     m_patch_space=m_aligned_patch_space=0;
+    m_predict=m_pred_dx=m_pred_dy=0;
+    m_cell_start=m_cell_points=0;
+    m_points_l=m_points_r=0;
+    m_desc_l=m_desc_r=0;
 }
 
 db_Matcher_u::db_Matcher_u(const db_Matcher_u& cm)
@@ -3276,6 +3519,13 @@ void db_Matcher_u::Clean()
         db_FreeBuckets_u(m_bp_r,m_nr_h,m_nr_v);
         /*Free space for patch layouts*/
         delete [] m_patch_space;
+        /*Free the predicted search structures*/
+        delete [] m_cell_start;
+        delete [] m_cell_points;
+        delete [] m_points_l;
+        delete [] m_points_r;
+        delete [] m_desc_l;
+        delete [] m_desc_r;
     }
     m_w=0; m_h=0;
 }
@@ -3325,10 +3575,13 @@ unsigned long db_Matcher_u::Init(int im_width,int im_height,double max_disparity
     m_use_smaller_matching_window = use_smaller_matching_window;
     m_use_21 = use_21;
 
+    /*Patches of the buckets, or of all the features for the predicted search*/
+    int nr_patches=db_maxi(2*(m_nr_h+2)*(m_nr_v+2)*m_bd,2*m_target);
+
     if(m_use_21)
     {
         /*Alloc 64byte-aligned space for patch layouts*/
-        m_patch_space=new short [2*(m_nr_h+2)*(m_nr_v+2)*m_bd*512+64];
+        m_patch_space=new short [nr_patches*512+64];
         m_aligned_patch_space=db_AlignPointer_s(m_patch_space,64);
     }
     else
@@ -3336,26 +3589,56 @@ unsigned long db_Matcher_u::Init(int im_width,int im_height,double max_disparity
     if(!m_use_smaller_matching_window)
     {
         /*Alloc 16byte-aligned space for patch layouts*/
-        m_patch_space=new short [2*(m_nr_h+2)*(m_nr_v+2)*m_bd*128+16];
+        m_patch_space=new short [nr_patches*128+16];
         m_aligned_patch_space=db_AlignPointer_s(m_patch_space,16);
     }
     else
     {
         /*Alloc 4byte-aligned space for patch layouts*/
-        m_patch_space=new short [2*(m_nr_h+2)*(m_nr_v+2)*m_bd*32+4];
+        m_patch_space=new short [nr_patches*32+4];
         m_aligned_patch_space=db_AlignPointer_s(m_patch_space,4);
     }
     }
 
+    /*Predicted search: cells as large as the search range, so that the
+    candidates of a feature are in the 3x3 cells around it*/
+    m_predict=0;
+    m_pw=db_maxi(1,(int)ceil(DB_DEFAULT_PREDICTED_DISPARITY*((double)im_width)));
+    m_ph=db_maxi(1,(int)ceil(DB_DEFAULT_PREDICTED_DISPARITY*((double)im_height)));
+    m_nr_pw=1+(im_width-1)/m_pw;
+    m_nr_ph=1+(im_height-1)/m_ph;
+    if(m_rect_window)
+    {
+        m_pkA=db_maxi(1,(int)(DB_DEFAULT_PREDICTED_DISPARITY*m_w));
+        m_pkB=db_maxi(1,(int)(DB_DEFAULT_PREDICTED_DISPARITY*m_h));
+    }
+    else
+    {
+        m_pkA=m_kA;
+        m_pkB=(long)(256.0*DB_DEFAULT_PREDICTED_DISPARITY*DB_DEFAULT_PREDICTED_DISPARITY*((double)(m_w*m_w)));
+    }
+    m_cell_start=new int [m_nr_pw*m_nr_ph+1];
+    m_cell_points=new int [m_target];
+    m_points_l=new db_PointInfo_u [m_target];
+    m_points_r=new db_PointInfo_u [m_target];
+    m_desc_l=new float [4*m_target];
+    m_desc_r=new float [4*m_target];
+
     return(m_target);
 }
 
 void db_Matcher_u::Match(const unsigned char * const *l_img,const unsigned char * const *r_img,
         const double *x_l,const double *y_l,int nr_l,const double *x_r,const double *y_r,int nr_r,
-        int *id_l,int *id_r,int *nr_matches,const double H[9],int affine)
+        int *id_l,int *id_r,int *nr_matches,const double H[9],int affine,double *scores)
 {
     short *ps;
 
+    if(m_predict && H==0)
+    {
+        MatchPredicted(l_img,r_img,x_l,y_l,nr_l,x_r,y_r,nr_r,id_l,id_r,nr_matches,scores);
+        return;
+    }
+
     /*Insert the corners into bucket structure*/
     ps=db_FillBuckets_u(m_aligned_patch_space,l_img,m_bp_l,m_bw,m_bh,m_nr_h,m_nr_v,m_bd,x_l,y_l,nr_l,m_use_smaller_matching_window,m_use_21);
     if(H==0)
@@ -3401,7 +3684,80 @@ void db_Matcher_u::Match(const unsigned char * const *l_img,const unsigned char
     db_MatchBuckets_u(m_bp_l,m_bp_r,m_nr_h,m_nr_v,m_kA,m_kB, m_rect_window,m_use_smaller_matching_window,m_use_21);
 
     /*Collect the correspondences*/
-    db_CollectMatches_u(m_bp_l,m_nr_h,m_nr_v,m_target,id_l,id_r,nr_matches);
+    db_CollectMatches_u(m_bp_l,m_nr_h,m_nr_v,m_target,id_l,id_r,nr_matches,scores);
+}
+
+void db_Matcher_u::SetPredictedMotion(double dx,double dy)
+{
+    m_predict=1;
+    m_pred_dx=db_roundi(dx);
+    m_pred_dy=db_roundi(dy);
+}
+
+void db_Matcher_u::ClearPredictedMotion()
+{
+    m_predict=0;
+}
+
+void db_Matcher_u::MatchPredicted(const unsigned char * const *l_img,const unsigned char * const *r_img,
+        const double *x_l,const double *y_l,int nr_l,const double *x_r,const double *y_r,int nr_r,
+        int *id_l,int *id_r,int *nr_matches,double *scores)
+{
+    int i,k,k_end,a,b0,b1,cx,cy,count;
+    short *ps;
+    db_PointInfo_u *pir_l,*pir_r;
+    const float *dl,*dr;
+
+    nr_l=db_mini(nr_l,m_target);
+    nr_r=db_mini(nr_r,m_target);
+
+    /*Lay out the patches, with the left features at their predicted
+    positions in the right image, and index the right features*/
+    ps=db_FillPointsPredicted_u(m_aligned_patch_space,l_img,m_points_l,m_desc_l,x_l,y_l,nr_l,
+        m_pred_dx,m_pred_dy,m_use_smaller_matching_window,m_use_21);
+    db_FillPointsPredicted_u(ps,r_img,m_points_r,m_desc_r,x_r,y_r,nr_r,0,0,m_use_smaller_matching_window,m_use_21);
+    db_IndexPoints_u(m_cell_start,m_cell_points,m_points_r,nr_r,m_pw,m_ph,m_nr_pw,m_nr_ph);
+
+    /*Correlate every left feature with the right features of the 3x3 cells
+    around it whose descriptors agree*/
+    for(i=0;i<nr_l;i++)
+    {
+        pir_l=m_points_l+i;
+        dl=m_desc_l+4*i;
+        cx=db_FloorDivi(pir_l->x,m_pw);
+        cy=db_FloorDivi(pir_l->y,m_ph);
+        b0=db_maxi(cx-1,0);
+        b1=db_mini(cx+1,m_nr_pw-1);
+        if(b0>b1) continue;
+        for(a=db_maxi(cy-1,0);a<=db_mini(cy+1,m_nr_ph-1);a++)
+        {
+            /*The cells b0 to b1 of row a are contiguous in the index*/
+            k_end=m_cell_start[a*m_nr_pw+b1+1];
+            for(k=m_cell_start[a*m_nr_pw+b0];k<k_end;k++)
+            {
+                pir_r=m_points_r+m_cell_points[k];
+                dr=m_desc_r+4*m_cell_points[k];
+                if(dl[0]*dr[0]+dl[1]*dr[1]+dl[2]*dr[2]+dl[3]*dr[3]<DB_MIN_DESCRIPTOR_CORRELATION) continue;
+                db_MatchPointPair_u(pir_l,pir_r,m_pkA,m_pkB,m_rect_window,m_use_smaller_matching_window,m_use_21);
+            }
+        }
+    }
+
+    /*Collect the mutually consistent matches*/
+    count=0;
+    for(i=0;i<nr_l && count<m_target;i++)
+    {
+        pir_l=m_points_l+i;
+        pir_r=pir_l->pir;
+        if(pir_r && pir_r->pir==pir_l)
+        {
+            id_l[count]=pir_l->id;
+            id_r[count]=pir_r->id;
+            if(scores) scores[count]=pir_l->s;
+            count++;
+        }
+    }
+    *nr_matches=count;
 }
 
 int db_Matcher_u::IsAllocated()
@@ -163,6 +163,11 @@ protected:
  * If the prewarp matrix H is supplied, the feature coordinates are warped by H before being placed in
  * appropriate buckets. If H is an affine transform and the "affine" parameter is set to 1 or 2,
  * then the correlation patches themselves are warped before being placed in the patch space.
+ *
+ * If the motion between the images is known approximately (see SetPredictedMotion()), the matches
+ * are only looked for within DB_DEFAULT_PREDICTED_DISPARITY of the predicted position, in a grid
+ * of the right features, and candidates whose quadrant means disagree are rejected before being
+ * correlated. The correlations use NEON on ARM and SSE2 on x86, with the same results as the C code.
  */
 class DB_API db_Matcher_u
 {
@@ -228,10 +233,27 @@ public:
      * \param H         image homography (prewarp) to be applied to right image features
      * \param affine    prewarp the 11x11 patches by given affine transform. 0 means no warping,
                         1 means nearest neighbor, 2 means bilinear warping.
+     * \param scores    if not NULL, the correlation score of every match (at most 1, higher is better),
+                        in an array of size target_nr_corners
      */
     virtual void Match(const unsigned char * const *l_img,const unsigned char * const *r_img,
         const double *x_l,const double *y_l,int nr_l,const double *x_r,const double *y_r,int nr_r,
-        int *id_l,int *id_r,int *nr_matches,const double H[9]=0,int affine=0);
+        int *id_l,int *id_r,int *nr_matches,const double H[9]=0,int affine=0,double *scores=0);
+
+    /*!
+     * Set the expected motion of the features from the left to the right image for the
+     * next calls to Match() without prewarp: a left feature at (x,y) is matched to the right
+     * features around (x+dx,y+dy), within DB_DEFAULT_PREDICTED_DISPARITY rather than max_disparity.
+     * The matches may be further than max_disparity from the left features.
+     * \param dx        expected horizontal motion, in pixels
+     * \param dy        expected vertical motion, in pixels
+     */
+    void SetPredictedMotion(double dx,double dy);
+
+    /*!
+     * Go back to looking for the matches within max_disparity of the left features.
+     */
+    void ClearPredictedMotion();
 
     /*!
      * Checks if Init() was called.
@@ -241,6 +263,9 @@ public:
 
 protected:
     virtual void Clean();
+    void MatchPredicted(const unsigned char * const *l_img,const unsigned char * const *r_img,
+        const double *x_l,const double *y_l,int nr_l,const double *x_r,const double *y_r,int nr_r,
+        int *id_l,int *id_r,int *nr_matches,double *scores);
 
 
     int m_w,m_h,m_bw,m_bh,m_nr_h,m_nr_v,m_bd,m_target;
@@ -253,6 +278,14 @@ protected:
     int m_rect_window;
     bool m_use_smaller_matching_window;
     int m_use_21;
+
+    /*Predicted search: motion, cell size and grid of the right features*/
+    int m_predict,m_pred_dx,m_pred_dy;
+    int m_pw,m_ph,m_nr_pw,m_nr_ph;
+    unsigned long m_pkA,m_pkB;
+    int *m_cell_start,*m_cell_points;
+    db_PointInfo_u *m_points_l,*m_points_r;
+    float *m_desc_l,*m_desc_r;
 };
 
 
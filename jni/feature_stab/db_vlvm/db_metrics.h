@@ -38,7 +38,7 @@
 Compute function value fp and Jacobian J of robustifier given input value f*/
 inline void db_CauchyDerivative(double J[4],double fp[2],const double f[2],double one_over_scale2)
 {
-    double x2,y2,r,r2,r2s,one_over_r2,fu,r_fu,one_over_r_fu;
+    double x2,y2,r2,r2s,one_over_r2,fu,r_fu,one_over_r_fu;
     double one_plus_r2s,half_dfu_dx,half_dfu_dy,coeff,coeff2,coeff3;
     int at_zero;
 
@@ -73,7 +73,6 @@ inline void db_CauchyDerivative(double J[4],double fp[2],const double f[2],doubl
     x2=db_sqr(f[0]);
     y2=db_sqr(f[1]);
     r2=x2+y2;
-    r=sqrt(r2);
 
     if(r2<=0.0) at_zero=1;
     else
@@ -321,7 +320,7 @@ inline void db_DerivativeCauchyInhomRotationReprojection(double Jf_dx[6],double
 /*!
 // remove the outliers whose projection error is larger than pre-defined
 */
-inline int db_RemoveOutliers_Homography(const double H[9], double *x_i,double *xp_i, double *wp,double *im, double *im_p, double *im_r, double *im_raw,double *im_raw_p,int point_count,double scale, double thresh=DB_OUTLIER_THRESHOLD)
+inline int db_RemoveOutliers_Homography(const double H[9], double *x_i,double *xp_i, double *wp,double *im, double *im_p, double *im_r, double *im_raw,double *im_raw_p,int point_count,double /*scale*/, double thresh=DB_OUTLIER_THRESHOLD)
 {
     double temp_valueE, t2;
     int c;
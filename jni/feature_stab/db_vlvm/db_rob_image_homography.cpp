@@ -417,7 +417,7 @@ inline void db_RobImageHomographyJH_dRotFocal(double **JE_dx_ref,int j,int k,int
 inline double db_RobImageHomography_Jacobians_Generic(double *JtJ_ref[8],double min_Jtf[8],int *num_param,int *frozen_coord,double H[9],int point_count,double *x_i,double *xp_i,int homography_type,double one_over_scale2)
 {
     double back;
-    int i,j,fetch_vector[8],n;
+    int i,j,fetch_vector[8],n=0;
     double JtJ_temp[81],min_Jtf_temp[9],JE_dx[72];
     double *JE_dx_ref[9],*JtJ_temp_ref[9];
 
@@ -620,6 +620,157 @@ void db_RobCamRotation_Polish_Generic(double H[9],int point_count,int homography
         }
     }
 }
+/*Set the parameters of a similarity type homography*/
+inline void db_RobImageHomography_SimilarityType(int homography_type,int *orientation_preserving,int *allow_scaling,
+                                                 int *allow_rotation,int *allow_translation,int *sample_size)
+{
+    switch(homography_type)
+    {
+    case DB_HOMOGRAPHY_TYPE_SIMILARITY:
+        *orientation_preserving=1;
+        *allow_scaling=1;
+        *allow_rotation=1;
+        *allow_translation=1;
+        *sample_size=2;
+        break;
+    case DB_HOMOGRAPHY_TYPE_SIMILARITY_U:
+        *orientation_preserving=0;
+        *allow_scaling=1;
+        *allow_rotation=1;
+        *allow_translation=1;
+        *sample_size=3;
+        break;
+    case DB_HOMOGRAPHY_TYPE_TRANSLATION:
+        *orientation_preserving=1;
+        *allow_scaling=0;
+        *allow_rotation=0;
+        *allow_translation=1;
+        *sample_size=1;
+        break;
+    case DB_HOMOGRAPHY_TYPE_ROTATION:
+        *orientation_preserving=1;
+        *allow_scaling=0;
+        *allow_rotation=1;
+        *allow_translation=0;
+        *sample_size=1;
+        break;
+    case DB_HOMOGRAPHY_TYPE_ROTATION_U:
+        *orientation_preserving=0;
+        *allow_scaling=0;
+        *allow_rotation=1;
+        *allow_translation=0;
+        *sample_size=2;
+        break;
+    case DB_HOMOGRAPHY_TYPE_SCALING:
+        *orientation_preserving=1;
+        *allow_scaling=1;
+        *allow_rotation=0;
+        *allow_translation=0;
+        *sample_size=1;
+        break;
+    case DB_HOMOGRAPHY_TYPE_S_T:
+        *orientation_preserving=1;
+        *allow_scaling=1;
+        *allow_rotation=0;
+        *allow_translation=1;
+        *sample_size=2;
+        break;
+    case DB_HOMOGRAPHY_TYPE_R_T:
+        *orientation_preserving=1;
+        *allow_scaling=0;
+        *allow_rotation=1;
+        *allow_translation=1;
+        *sample_size=2;
+        break;
+    case DB_HOMOGRAPHY_TYPE_R_S:
+        *orientation_preserving=1;
+        *allow_scaling=1;
+        *allow_rotation=0;
+        *allow_translation=0;
+        *sample_size=1;
+        break;
+    }
+}
+
+/*Compute the hypotheses from the points of sample s into H. Return the number of hypotheses*/
+inline int db_RobImageHomography_Hypotheses(double *H,const int *s,int homography_type,double *x_i,double *xp_i,double *x_h,double *xp_h,
+                                            int sample_size,int orientation_preserving,int allow_scaling,int allow_rotation,int allow_translation)
+{
+    double *X[3],*Xp[3];
+
+    switch(homography_type)
+    {
+    case DB_HOMOGRAPHY_TYPE_SIMILARITY:
+    case DB_HOMOGRAPHY_TYPE_SIMILARITY_U:
+    case DB_HOMOGRAPHY_TYPE_TRANSLATION:
+    case DB_HOMOGRAPHY_TYPE_ROTATION:
+    case DB_HOMOGRAPHY_TYPE_ROTATION_U:
+    case DB_HOMOGRAPHY_TYPE_SCALING:
+    case DB_HOMOGRAPHY_TYPE_S_T:
+    case DB_HOMOGRAPHY_TYPE_R_T:
+    case DB_HOMOGRAPHY_TYPE_R_S:
+        X[0]= &x_i[s[0]<<1];
+        X[1]= &x_i[s[1]<<1];
+        X[2]= &x_i[s[2]<<1];
+        Xp[0]= &xp_i[s[0]<<1];
+        Xp[1]= &xp_i[s[1]<<1];
+        Xp[2]= &xp_i[s[2]<<1];
+        db_StitchSimilarity2D(H,Xp,X,sample_size,orientation_preserving,
+                              allow_scaling,allow_rotation,allow_translation);
+        return(1);
+
+    case DB_HOMOGRAPHY_TYPE_CAMROTATION:
+        db_StitchCameraRotation_2Points(H,&x_h[3*s[0]],&x_h[3*s[1]],
+                                        &xp_h[3*s[0]],&xp_h[3*s[1]]);
+        return(1);
+
+    case DB_HOMOGRAPHY_TYPE_CAMROTATION_F:
+        return(db_StitchRotationCommonFocalLength_3Points(H,
+                                  &x_h[3*s[0]],&x_h[3*s[1]],&x_h[3*s[2]],
+                                  &xp_h[3*s[0]],&xp_h[3*s[1]],&xp_h[3*s[2]]));
+
+    case DB_HOMOGRAPHY_TYPE_CAMROTATION_F_UD:
+        return(db_StitchRotationCommonFocalLength_3Points(H,
+                                  &x_h[3*s[0]],&x_h[3*s[1]],&x_h[3*s[2]],
+                                  &xp_h[3*s[0]],&xp_h[3*s[1]],&xp_h[3*s[2]],NULL,0));
+
+    case DB_HOMOGRAPHY_TYPE_AFFINE:
+        db_StitchAffine2D_3Points(H,&x_h[3*s[0]],&x_h[3*s[1]],&x_h[3*s[2]],
+                                  &xp_h[3*s[0]],&xp_h[3*s[1]],&xp_h[3*s[2]]);
+        return(1);
+
+    case DB_HOMOGRAPHY_TYPE_PROJECTIVE:
+    default:
+        db_StitchProjective2D_4Points(H,&x_h[3*s[0]],&x_h[3*s[1]],&x_h[3*s[2]],&x_h[3*s[3]],
+                                      &xp_h[3*s[0]],&xp_h[3*s[1]],&xp_h[3*s[2]],&xp_h[3*s[3]]);
+        return(1);
+    }
+}
+
+/*Count the points c=0,step,2*step... with squared reprojection error at most t2*/
+inline int db_RobImageHomography_CountInliers(double H[9],int point_count,int step,double *x_i,double *xp_i,double t2)
+{
+    int c,count;
+
+    for(count=0,c=0;c<point_count;c+=step)
+    {
+        count+=(db_SquaredInhomogenousHomographyError(xp_i+(c<<1),H,x_i+(c<<1))<=t2)?1:0;
+    }
+    return(count);
+}
+
+/*Number of samples needed to draw one without outliers with the given
+confidence, if the inlier fraction is inlier_fraction*/
+inline int db_RobImageHomography_NrNeeded(double inlier_fraction,int sample_size,double confidence)
+{
+    double p;
+
+    p=pow(inlier_fraction,sample_size);
+    if(p>=1.0) return(DB_MIN_ADAPTIVE_NR_SAMPLES);
+    if(p<=0.0) return(0x7fffffff);
+    return(db_maxi(DB_MIN_ADAPTIVE_NR_SAMPLES,(int)ceil(log(1.0-confidence)/log(1.0-p))));
+}
+
 void db_RobImageHomography(
                               /*Best homography*/
                               double H[9],
@@ -664,7 +815,9 @@ void db_RobImageHomography(
                               // raw image coordinates
                               double *im_raw, double *im_raw_p,
                               // final matches
-                              int *finalNumE)
+                              int *finalNumE,
+                              double confidence,
+                              int sorted_by_quality)
 {
     /*Random seed*/
     int r_seed;
@@ -698,10 +851,16 @@ void db_RobImageHomography(
     double H_temp[9],H_temp2[9];
     /*Pointers to homogenous coordinates*/
     double *x_h_point,*xp_h_point;
-    /*Array of pointers to inhomogenous coordinates*/
-    double *X[3],*Xp[3];
     /*Similarity parameters*/
     int orientation_preserving,allow_scaling,allow_rotation,allow_translation,sample_size;
+    /*Points drawn per sample and hypotheses from a sample*/
+    int draw_size,new_hyp;
+    /*Adaptive termination*/
+    int nr_needed,best_inliers,test_step,nr_test;
+    double test_t2;
+    /*Guided sampling*/
+    int prosac_n,prosac_T_prime;
+    double prosac_T;
 
     /*Homogenous coordinates of image points in first image*/
     double *x_h;
@@ -752,9 +911,14 @@ void db_RobImageHomography(
 
     for(last_point=nr_points-1,i=0;i<point_count;i++,last_point--)
     {
-        pos=db_RandomInt(r_seed,last_point);
-        point_pos=point_perm[pos];
-        point_perm[pos]=point_perm[last_point];
+        /*Points sorted by quality keep their order*/
+        if(sorted_by_quality) point_pos=i;
+        else
+        {
+            pos=db_RandomInt(r_seed,last_point);
+            point_pos=point_perm[pos];
+            point_perm[pos]=point_perm[last_point];
+        }
 
         /*Normalize image points with calibration
         matrices and move them to x_h and xp_h*/
@@ -776,8 +940,8 @@ void db_RobImageHomography(
     }
 
 
-    /*Generate Hypotheses*/
-    hyp_count=0;
+    /*Sample size of the homography type and number of points drawn per sample*/
+    orientation_preserving=allow_scaling=allow_rotation=allow_translation=0;
     switch(homography_type)
     {
     case DB_HOMOGRAPHY_TYPE_SIMILARITY:
@@ -789,140 +953,74 @@ void db_RobImageHomography(
     case DB_HOMOGRAPHY_TYPE_S_T:
     case DB_HOMOGRAPHY_TYPE_R_T:
     case DB_HOMOGRAPHY_TYPE_R_S:
-
-        switch(homography_type)
-        {
-        case DB_HOMOGRAPHY_TYPE_SIMILARITY:
-            orientation_preserving=1;
-            allow_scaling=1;
-            allow_rotation=1;
-            allow_translation=1;
-            sample_size=2;
-            break;
-        case DB_HOMOGRAPHY_TYPE_SIMILARITY_U:
-            orientation_preserving=0;
-            allow_scaling=1;
-            allow_rotation=1;
-            allow_translation=1;
-            sample_size=3;
-            break;
-        case DB_HOMOGRAPHY_TYPE_TRANSLATION:
-            orientation_preserving=1;
-            allow_scaling=0;
-            allow_rotation=0;
-            allow_translation=1;
-            sample_size=1;
-            break;
-        case DB_HOMOGRAPHY_TYPE_ROTATION:
-            orientation_preserving=1;
-            allow_scaling=0;
-            allow_rotation=1;
-            allow_translation=0;
-            sample_size=1;
-            break;
-        case DB_HOMOGRAPHY_TYPE_ROTATION_U:
-            orientation_preserving=0;
-            allow_scaling=0;
-            allow_rotation=1;
-            allow_translation=0;
-            sample_size=2;
-            break;
-        case DB_HOMOGRAPHY_TYPE_SCALING:
-            orientation_preserving=1;
-            allow_scaling=1;
-            allow_rotation=0;
-            allow_translation=0;
-            sample_size=1;
-            break;
-        case DB_HOMOGRAPHY_TYPE_S_T:
-            orientation_preserving=1;
-            allow_scaling=1;
-            allow_rotation=0;
-            allow_translation=1;
-            sample_size=2;
-            break;
-        case DB_HOMOGRAPHY_TYPE_R_T:
-            orientation_preserving=1;
-            allow_scaling=0;
-            allow_rotation=1;
-            allow_translation=1;
-            sample_size=2;
-            break;
-        case DB_HOMOGRAPHY_TYPE_R_S:
-            orientation_preserving=1;
-            allow_scaling=1;
-            allow_rotation=0;
-            allow_translation=0;
-            sample_size=1;
-            break;
-        }
-
-        if(point_count>=sample_size) for(i=0;i<nr_samples;i++)
-        {
-            db_RandomSample(s,3,point_count,r_seed);
-            X[0]= &x_i[s[0]<<1];
-            X[1]= &x_i[s[1]<<1];
-            X[2]= &x_i[s[2]<<1];
-            Xp[0]= &xp_i[s[0]<<1];
-            Xp[1]= &xp_i[s[1]<<1];
-            Xp[2]= &xp_i[s[2]<<1];
-            db_StitchSimilarity2D(&hyp_H_array[9*hyp_count],Xp,X,sample_size,orientation_preserving,
-                                  allow_scaling,allow_rotation,allow_translation);
-            hyp_count++;
-        }
+        db_RobImageHomography_SimilarityType(homography_type,&orientation_preserving,&allow_scaling,
+                                             &allow_rotation,&allow_translation,&sample_size);
+        draw_size=3;
         break;
-
     case DB_HOMOGRAPHY_TYPE_CAMROTATION:
-        if(point_count>=2) for(i=0;i<nr_samples;i++)
-        {
-            db_RandomSample(s,2,point_count,r_seed);
-            db_StitchCameraRotation_2Points(&hyp_H_array[9*hyp_count],
-                                      &x_h[3*s[0]],&x_h[3*s[1]],
-                                      &xp_h[3*s[0]],&xp_h[3*s[1]]);
-            hyp_count++;
-        }
+        sample_size=draw_size=2;
         break;
-
     case DB_HOMOGRAPHY_TYPE_CAMROTATION_F:
-        if(point_count>=3) for(i=0;i<nr_samples;i++)
-        {
-            db_RandomSample(s,3,point_count,r_seed);
-            hyp_count+=db_StitchRotationCommonFocalLength_3Points(&hyp_H_array[9*hyp_count],
-                                      &x_h[3*s[0]],&x_h[3*s[1]],&x_h[3*s[2]],
-                                      &xp_h[3*s[0]],&xp_h[3*s[1]],&xp_h[3*s[2]]);
-        }
-        break;
-
     case DB_HOMOGRAPHY_TYPE_CAMROTATION_F_UD:
-        if(point_count>=3) for(i=0;i<nr_samples;i++)
-        {
-            db_RandomSample(s,3,point_count,r_seed);
-            hyp_count+=db_StitchRotationCommonFocalLength_3Points(&hyp_H_array[9*hyp_count],
-                                      &x_h[3*s[0]],&x_h[3*s[1]],&x_h[3*s[2]],
-                                      &xp_h[3*s[0]],&xp_h[3*s[1]],&xp_h[3*s[2]],NULL,0);
-        }
-        break;
-
     case DB_HOMOGRAPHY_TYPE_AFFINE:
-        if(point_count>=3) for(i=0;i<nr_samples;i++)
-        {
-            db_RandomSample(s,3,point_count,r_seed);
-            db_StitchAffine2D_3Points(&hyp_H_array[9*hyp_count],
-                                      &x_h[3*s[0]],&x_h[3*s[1]],&x_h[3*s[2]],
-                                      &xp_h[3*s[0]],&xp_h[3*s[1]],&xp_h[3*s[2]]);
-            hyp_count++;
-        }
+        sample_size=draw_size=3;
         break;
-
     case DB_HOMOGRAPHY_TYPE_PROJECTIVE:
     default:
-        if(point_count>=4) for(i=0;i<nr_samples;i++)
+        sample_size=draw_size=4;
+    }
+
+    /*Generate Hypotheses*/
+    hyp_count=0;
+    if(point_count>=sample_size)
+    {
+        /*The inliers of the hypotheses are counted on every test_step:th point*/
+        test_step=db_maxi(1,point_count/chunk_size);
+        nr_test=(point_count+test_step-1)/test_step;
+        test_t2=DB_ADAPTIVE_INLIER_THRESHOLD*DB_ADAPTIVE_INLIER_THRESHOLD/one_over_scale2;
+        best_inliers=0;
+        /*PROSAC: draw from the prosac_n best points, T_n and T'_n of Chum and Matas*/
+        prosac_n=draw_size;
+        prosac_T=(double)nr_samples;
+        for(j=0;j<draw_size;j++) prosac_T*=((double)(draw_size-j))/((double)(point_count-j));
+        prosac_T_prime=1;
+
+        nr_needed=nr_samples;
+        for(i=0;i<nr_needed;i++)
         {
-            db_RandomSample(s,4,point_count,r_seed);
-            db_StitchProjective2D_4Points(&hyp_H_array[9*hyp_count],
-                                      &x_h[3*s[0]],&x_h[3*s[1]],&x_h[3*s[2]],&x_h[3*s[3]],
-                                      &xp_h[3*s[0]],&xp_h[3*s[1]],&xp_h[3*s[2]],&xp_h[3*s[3]]);
-            hyp_count++;
+            if(sorted_by_quality && point_count>=draw_size)
+            {
+                if(i+1>prosac_T_prime && prosac_n<point_count)
+                {
+                    acc=prosac_T*(prosac_n+1)/(prosac_n+1-draw_size);
+                    prosac_T_prime+=(int)ceil(acc-prosac_T);
+                    prosac_T=acc;
+                    prosac_n++;
+                }
+                if(i+1>prosac_T_prime) db_RandomSample(s,draw_size,prosac_n,r_seed);
+                else
+                {
+                    /*The newest point and the rest from the better ones*/
+                    db_RandomSample(s+1,draw_size-1,prosac_n-1,r_seed);
+                    s[0]=prosac_n-1;
+                }
+            }
+            else db_RandomSample(s,draw_size,point_count,r_seed);
+
+            hyp_point=hyp_H_array+9*hyp_count;
+            new_hyp=db_RobImageHomography_Hypotheses(hyp_point,s,homography_type,x_i,xp_i,x_h,xp_h,
+                sample_size,orientation_preserving,allow_scaling,allow_rotation,allow_translation);
+            hyp_count+=new_hyp;
+
+            if(confidence>0.0) for(j=0;j<new_hyp;j++)
+            {
+                c=db_RobImageHomography_CountInliers(hyp_point+9*j,point_count,test_step,x_i,xp_i,test_t2);
+                if(c>best_inliers)
+                {
+                    best_inliers=c;
+                    nr_needed=db_mini(nr_samples,db_RobImageHomography_NrNeeded(((double)c)/nr_test,sample_size,confidence));
+                }
+            }
         }
     }
 
@@ -83,6 +83,19 @@ Calibration matrices:
  \param scale           Cauchy scale coefficient (see db_ExpCauchyReprojectionError() )
  \param nr_samples      number of times to compute a hypothesis
  \param chunk_size      size of cost chunks
+
+ The hypotheses are scored preemptively: on a chunk of the points at a time,
+ keeping the better half after every chunk.
+
+ Adaptive termination and guided sampling:
+
+ \param confidence          if larger than 0, stop computing hypotheses once one of them has been
+                            computed from inliers only with this probability, as estimated from the
+                            inlier fraction (within DB_ADAPTIVE_INLIER_THRESHOLD) of the best one so far,
+                            and after at least DB_MIN_ADAPTIVE_NR_SAMPLES. At most nr_samples are computed
+ \param sorted_by_quality   if 1, the points are in decreasing order of match quality: the best
+                            ones are used rather than a random subset of them, and the samples are
+                            drawn from a growing number of the best points (PROSAC)
 */
 DB_API void db_RobImageHomography(
                               /*Best homography*/
@@ -127,7 +140,11 @@ DB_API void db_RobImageHomography(
                               // raw image coordinates
                               double *im_raw=NULL, double *im_raw_p=NULL,
                               // final matches
-                              int *final_NumE=0);
+                              int *final_NumE=0,
+                              ///////////////////////////////////////////////////
+                              // adaptive termination and guided sampling
+                              double confidence=0.0,
+                              int sorted_by_quality=0);
 
 DB_API double db_RobImageHomography_Cost(double H[9],int point_count,double *x_i,
                                                 double *xp_i,double one_over_scale2);
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <time.h>
+
+#include "db_stage_timer.h"
+
+static const char * const db_stage_names[DB_STAGE_COUNT] =
+{
+    "yuv",
+    "detect",
+    "match",
+    "ransac",
+    "pyramid",
+    "seams",
+    "blend",
+    "crop"
+};
+
+static const int DB_STAGE_MAX_DEPTH = 8;
+
+static double db_stage_total_ms[DB_STAGE_COUNT];
+static int db_stage_count[DB_STAGE_COUNT];
+
+// Stages currently entered, innermost last, and the time the innermost one
+// was last (re)started.
+static int db_stage_stack[DB_STAGE_MAX_DEPTH];
+static int db_stage_depth = 0;
+static double db_stage_start_ms = 0.0;
+
+static double db_StageTimerNowMs()
+{
+    struct timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return now.tv_sec * 1000.0 + now.tv_nsec / 1e6;
+}
+
+void db_StageTimerBegin(int stage)
+{
+    double now = db_StageTimerNowMs();
+
+    if (db_stage_depth > 0)
+        db_stage_total_ms[db_stage_stack[db_stage_depth - 1]] += now - db_stage_start_ms;
+
+    if (db_stage_depth < DB_STAGE_MAX_DEPTH)
+        db_stage_stack[db_stage_depth++] = stage;
+
+    db_stage_count[stage]++;
+    db_stage_start_ms = now;
+}
+
+void db_StageTimerEnd(int stage)
+{
+    double now = db_StageTimerNowMs();
+
+    if (db_stage_depth > 0 && db_stage_stack[db_stage_depth - 1] == stage)
+    {
+        db_stage_total_ms[stage] += now - db_stage_start_ms;
+        db_stage_depth--;
+    }
+
+    // Resume the enclosing stage, if any.
+    db_stage_start_ms = now;
+}
+
+void db_StageTimerReset()
+{
+    for (int i = 0; i < DB_STAGE_COUNT; i++)
+    {
+        db_stage_total_ms[i] = 0.0;
+        db_stage_count[i] = 0;
+    }
+    db_stage_depth = 0;
+}
+
+bool db_StageTimerEnabled()
+{
+#ifdef DB_STAGE_TIMING
+    return true;
+#else
+    return false;
+#endif
+}
+
+double db_StageTimerTotalMs(int stage)
+{
+    return db_stage_total_ms[stage];
+}
+
+int db_StageTimerCount(int stage)
+{
+    return db_stage_count[stage];
+}
+
+const char *db_StageTimerName(int stage)
+{
+    return db_stage_names[stage];
+}
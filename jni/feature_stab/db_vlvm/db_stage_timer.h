@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef DB_STAGE_TIMER
+#define DB_STAGE_TIMER
+
+/*!
+ * \defgroup StageTimer Per-stage timing of the alignment and blending code
+ *
+ * The DB_STAGE_BEGIN/DB_STAGE_END hooks accumulate the time spent in each
+ * stage of the mosaic pipeline. They compile to nothing unless the library is
+ * built with -DDB_STAGE_TIMING, so release builds are unaffected.
+ *
+ * Stages may nest; the time of an inner stage is not counted in the outer one,
+ * so the totals add up to the time spent in all the stages. The timers are
+ * global and meant for single-threaded benchmarks such as panorama_bench.
+ */
+/*\{*/
+
+enum
+{
+    DB_STAGE_YUV_CONVERSION,
+    DB_STAGE_FEATURE_DETECTION,
+    DB_STAGE_FEATURE_MATCHING,
+    DB_STAGE_RANSAC,
+    DB_STAGE_PYRAMID,
+    DB_STAGE_SEAMS,
+    DB_STAGE_BLEND,
+    DB_STAGE_CROP,
+    DB_STAGE_COUNT
+};
+
+#ifdef DB_STAGE_TIMING
+#define DB_STAGE_BEGIN(stage) db_StageTimerBegin(stage)
+#define DB_STAGE_END(stage) db_StageTimerEnd(stage)
+#else
+#define DB_STAGE_BEGIN(stage)
+#define DB_STAGE_END(stage)
+#endif
+
+void db_StageTimerBegin(int stage);
+void db_StageTimerEnd(int stage);
+
+/*!
+ * Clears the accumulated totals.
+ */
+void db_StageTimerReset();
+
+/*!
+ * Returns true if the library was built with the timing hooks.
+ */
+bool db_StageTimerEnabled();
+
+/*!
+ * Returns the time accumulated in the given stage since the last reset, in
+ * milliseconds.
+ */
+double db_StageTimerTotalMs(int stage);
+
+/*!
+ * Returns the number of times the given stage was entered since the last reset.
+ */
+int db_StageTimerCount(int stage);
+
+/*!
+ * Returns a short name of the stage, e.g. "ransac".
+ */
+const char *db_StageTimerName(int stage);
+
+/*\}*/
+
+#endif
@@ -19,6 +19,8 @@
 #include "db_utilities.h"
 #include <string.h>
 #include <stdio.h>
+#include <pthread.h>
+#include <unistd.h>
 
 float** db_SetupImageReferences_f(float *im,int w,int h)
 {
@@ -86,7 +88,7 @@ void db_FreeImage_u(unsigned char **img,int h)
 // ---> the size of the input and output images must be same
 //
 // ------------------------------------------------------------------------------------------------------------ ;
-void db_CopyImage_u(unsigned char **d,const unsigned char * const *s, int w, int h, int over_allocation)
+void db_CopyImage_u(unsigned char **d,const unsigned char * const *s, int w, int h, int /*over_allocation*/)
 {
     int i;
 
@@ -94,9 +96,6 @@ void db_CopyImage_u(unsigned char **d,const unsigned char * const *s, int w, int
     {
         memcpy(d[i],s[i],w*sizeof(unsigned char));
     }
-
-    memcpy(&d[h],&d[h],over_allocation);
-
 }
 
 inline void db_WarpImageLutFast_u(const unsigned char * const * src, unsigned char ** dst, int w, int h,
@@ -174,3 +173,70 @@ void db_PrintDoubleMatrix(double *a,long rows,long cols)
     }
     printf("]");
 }
+
+static int db_max_threads=0; /*0 until set or first used*/
+
+int db_GetMaxThreads()
+{
+    if(db_max_threads==0)
+    {
+        long cpus=sysconf(_SC_NPROCESSORS_ONLN);
+        db_max_threads=(int) db_maxl(1,db_minl(DB_MAX_THREADS,cpus));
+    }
+    return(db_max_threads);
+}
+
+void db_SetMaxThreads(int nr_threads)
+{
+    db_max_threads=db_maxi(1,db_mini(DB_MAX_THREADS,nr_threads));
+}
+
+struct db_Band
+{
+    db_BandFunction function;
+    void *arg;
+    int begin,end,band;
+};
+
+static void* db_RunBand(void *arg)
+{
+    db_Band *band=(db_Band*) arg;
+    band->function(band->arg,band->begin,band->end,band->band);
+    return(NULL);
+}
+
+int db_ParallelBands(db_BandFunction function,void *arg,int begin,int end,int min_rows)
+{
+    db_Band bands[DB_MAX_THREADS];
+    pthread_t threads[DB_MAX_THREADS];
+    bool started[DB_MAX_THREADS];
+    int nr_bands,band_rows,rows,i;
+
+    rows=end-begin;
+    nr_bands=db_mini(db_GetMaxThreads(),rows/db_maxi(1,min_rows));
+    if(nr_bands<=1)
+    {
+        if(rows>0) function(arg,begin,end,0);
+        return(1);
+    }
+
+    band_rows=(rows+nr_bands-1)/nr_bands;
+    nr_bands=(rows+band_rows-1)/band_rows;
+    for(i=0;i<nr_bands;i++)
+    {
+        bands[i].function=function;
+        bands[i].arg=arg;
+        bands[i].begin=begin+i*band_rows;
+        bands[i].end=db_mini(end,bands[i].begin+band_rows);
+        bands[i].band=i;
+    }
+
+    for(i=1;i<nr_bands;i++) started[i]=(pthread_create(&threads[i],NULL,db_RunBand,&bands[i])==0);
+    db_RunBand(&bands[0]);
+    for(i=1;i<nr_bands;i++)
+    {
+        if(started[i]) pthread_join(threads[i],NULL);
+        else db_RunBand(&bands[i]);
+    }
+    return(nr_bands);
+}
@@ -555,6 +555,45 @@ DB_API void db_WarpImageLut_u(const unsigned char * const * src,unsigned char **
 DB_API void db_PrintDoubleVector(double *a,long size);
 DB_API void db_PrintDoubleMatrix(double *a,long rows,long cols);
 
+/*!
+ * \defgroup LMParallel (LM) Parallel Bands
+
+ Splitting the rows of an image operation into bands computed on several
+threads. The calling thread computes the first band and waits for the others.
+
+ */
+/*\{*/
+/*!
+ * Maximum number of threads, and of bands, of db_ParallelBands().
+ */
+#define DB_MAX_THREADS 4
+/*!
+ * Function computing the rows [begin,end) of one band.
+ * \param arg   argument passed to db_ParallelBands()
+ * \param begin first row
+ * \param end   row after the last
+ * \param band  index of the band, from 0 in the order of the rows and less
+ *              than DB_MAX_THREADS, for instance to pick temporary memory
+ */
+typedef void (*db_BandFunction)(void *arg,int begin,int end,int band);
+/*!
+ * Split the rows [begin,end) into at most db_GetMaxThreads() bands of at least
+ * min_rows rows each and call function for every band, each on its own thread.
+ * A band whose thread cannot be started is computed on the calling thread.
+ * \return the number of bands
+ */
+DB_API int db_ParallelBands(db_BandFunction function,void *arg,int begin,int end,int min_rows);
+/*!
+ * Return the maximum number of threads of db_ParallelBands(), including the
+ * calling thread. The default is the number of online CPUs, up to DB_MAX_THREADS.
+ */
+DB_API int db_GetMaxThreads();
+/*!
+ * Set the maximum number of threads of db_ParallelBands(), from 1 to DB_MAX_THREADS.
+ */
+DB_API void db_SetMaxThreads(int nr_threads);
+/*\}*/
+
 #include "db_utilities_constants.h"
 #include "db_utilities_algebra.h"
 #include "db_utilities_indexing.h"
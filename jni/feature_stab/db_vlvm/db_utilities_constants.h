@@ -47,6 +47,9 @@
 #define DB_DEFAULT_NR_SAMPLES 500
 #define DB_DEFAULT_CHUNK_SIZE 100
 #define DB_DEFAULT_GROUP_SIZE 10
+#define DB_DEFAULT_CONFIDENCE 0.999 /*Probability of an outlier free sample for adaptive termination*/
+#define DB_MIN_ADAPTIVE_NR_SAMPLES 16 /*Fewest samples with adaptive termination*/
+#define DB_ADAPTIVE_INLIER_THRESHOLD 1.0 /*Inlier threshold for adaptive termination, in number of DB_POINT_STANDARDDEV's*/
 
 /*Optimisation parameters*/
 #define DB_DEFAULT_MAX_POINTS 1000
@@ -65,6 +68,8 @@
 #define DB_DEFAULT_REL_CORNER_THRESHOLD 0.00005
 #define DB_DEFAULT_MAX_DISPARITY 0.1
 #define DB_DEFAULT_NO_DISPARITY -1.0
+#define DB_DEFAULT_PREDICTED_DISPARITY 0.04 /*Search range around a predicted match (fraction of image size)*/
+#define DB_MIN_DESCRIPTOR_CORRELATION 0.5 /*Candidates with less coarse correlation are not correlated*/
 #define DB_DEFAULT_MAX_TRACK_LENGTH 300
 
 #define DB_DEFAULT_MAX_NR_CAMERAS 1000
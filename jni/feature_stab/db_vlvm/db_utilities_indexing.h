@@ -38,7 +38,7 @@ inline void db_SetupMatrixRefs(double **ar,long rows,long cols,double *a)
     for(i=0;i<rows;i++) ar[i]=&a[i*cols];
 }
 
-inline void db_SymmetricExtendUpperToLower(double **A,int rows,int cols)
+inline void db_SymmetricExtendUpperToLower(double **A,int rows,int /*cols*/)
 {
     int i,j;
     for(i=1;i<rows;i++) for(j=0;j<i;j++) A[i][j]=A[j][i];
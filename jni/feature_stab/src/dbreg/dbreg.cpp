@@ -16,6 +16,7 @@
 
 // $Id: dbreg.cpp,v 1.31 2011/06/17 14:04:32 mbansal Exp $
 #include "dbreg.h"
+#include "db_stage_timer.h"
 #include <string.h>
 #include <stdio.h>
 
@@ -42,6 +43,8 @@ db_FrameToReferenceRegistration::db_FrameToReferenceRegistration() :
 
   m_match_index_ref = NULL;
   m_match_index_ins = NULL;
+  m_match_score = NULL;
+  m_match_order = NULL;
 
   m_inlier_indices = NULL;
 
@@ -68,6 +71,13 @@ db_FrameToReferenceRegistration::db_FrameToReferenceRegistration() :
   m_reference_update_period = 0;
   m_nr_frames_processed = 0;
 
+  m_adaptive_sampling = false;
+
+  m_motion_prediction = false;
+  m_motion_predicted = false;
+  m_motion_velocity_valid = false;
+  m_nr_frames_since_reference = 0;
+
   return;
 }
 
@@ -102,6 +112,8 @@ void db_FrameToReferenceRegistration::Clean()
 
   delete [] m_match_index_ref;
   delete [] m_match_index_ins;
+  delete [] m_match_score;
+  delete [] m_match_order;
 
   delete [] m_temp_double;
   delete [] m_temp_int;
@@ -131,6 +143,8 @@ void db_FrameToReferenceRegistration::Clean()
 
   m_match_index_ref = NULL;
   m_match_index_ins = NULL;
+  m_match_score = NULL;
+  m_match_order = NULL;
 
   m_inlier_indices = NULL;
 
@@ -225,6 +239,8 @@ void db_FrameToReferenceRegistration::Init(int width, int height,
   // allocate space for match indices:
   m_match_index_ref = new int [m_max_nr_matches];
   m_match_index_ins = new int [m_max_nr_matches];
+  m_match_score = new double [m_max_nr_matches];
+  m_match_order = new int [m_max_nr_matches];
 
   m_temp_double = new double [12*DB_DEFAULT_NR_SAMPLES+10*m_max_nr_matches];
   m_temp_int = new int [db_maxi(DB_DEFAULT_NR_SAMPLES,m_max_nr_matches)];
@@ -244,6 +260,10 @@ void db_FrameToReferenceRegistration::Init(int width, int height,
   m_initialized = true;
 
   m_max_inlier_count = 0;
+
+  m_motion_predicted = false;
+  m_motion_velocity_valid = false;
+  m_nr_frames_since_reference = 0;
 }
 
 
@@ -268,6 +288,7 @@ int db_FrameToReferenceRegistration::UpdateReference(const unsigned char * const
 
   if(detect_corners)
   {
+    DB_STAGE_BEGIN(DB_STAGE_FEATURE_DETECTION);
     #if MB
     m_cd.DetectCorners(imptr, m_x_corners_ref,m_y_corners_ref,&m_nr_corners_ref);
     int nr = 0;
@@ -285,6 +306,7 @@ int db_FrameToReferenceRegistration::UpdateReference(const unsigned char * const
     #else
     m_cd.DetectCorners(imptr, m_x_corners_ref,m_y_corners_ref,&m_nr_corners_ref);
     #endif
+    DB_STAGE_END(DB_STAGE_FEATURE_DETECTION);
   }
   else
   {
@@ -301,6 +323,7 @@ int db_FrameToReferenceRegistration::UpdateReference(const unsigned char * const
   db_Identity3x3(m_H_ref_to_ins);
 
   m_max_inlier_count = 0;   // Reset to 0 as no inliers seen until now
+  m_nr_frames_since_reference = 0;
   m_sq_cost_computed = false;
   m_reference_set = true;
   m_current_is_reference = true;
@@ -350,6 +373,8 @@ int db_FrameToReferenceRegistration::AddFrame(const unsigned char * const * im,
       db_Copy9(H,m_H_ref_to_ins);
 
       UpdateReference(im,true,true);
+      m_motion_predicted = false;
+      m_motion_velocity_valid = false;
       return 0;
     }
 
@@ -386,7 +411,9 @@ int db_FrameToReferenceRegistration::AddFrame(const unsigned char * const * im,
 #if PROFILE
   iTimer1 = now_ms();
 #endif
+  DB_STAGE_BEGIN(DB_STAGE_FEATURE_DETECTION);
   m_cd.DetectCorners(imptr, m_x_corners_ins,m_y_corners_ins,&m_nr_corners_ins);
+  DB_STAGE_END(DB_STAGE_FEATURE_DETECTION);
   // @jke - Adding code to time the functions.  TODO: Remove after test
 # if PROFILE
   iTimer2 = now_ms();
@@ -395,62 +422,26 @@ int db_FrameToReferenceRegistration::AddFrame(const unsigned char * const * im,
   strcat(profile_string, str);
 #endif
 
-  // @jke - Adding code to time the functions.  TODO: Remove after test
-#if PROFILE
-  iTimer1 = now_ms();
-#endif
-    if(prewarp)
-  m_cm.Match(m_reference_image,imptr,m_x_corners_ref,m_y_corners_ref,m_nr_corners_ref,
-         m_x_corners_ins,m_y_corners_ins,m_nr_corners_ins,
-         m_match_index_ref,m_match_index_ins,&m_nr_matches,H,0);
-    else
-  m_cm.Match(m_reference_image,imptr,m_x_corners_ref,m_y_corners_ref,m_nr_corners_ref,
-         m_x_corners_ins,m_y_corners_ins,m_nr_corners_ins,
-         m_match_index_ref,m_match_index_ins,&m_nr_matches);
-  // @jke - Adding code to time the functions.  TODO: Remove after test
-# if PROFILE
-  iTimer2 = now_ms();
-  double elapsedTimeMatch = iTimer2 - iTimer1;
-  sprintf(str,"Matching [%d] = %g ms\n",m_nr_matches,elapsedTimeMatch);
-  strcat(profile_string, str);
-#endif
+  m_nr_frames_since_reference++;
 
+  // match around the motion predicted from the last frames if there is one:
+  m_motion_predicted = m_motion_prediction && m_motion_velocity_valid && !prewarp;
+  if(m_motion_predicted)
+    m_cm.SetPredictedMotion(m_motion_velocity[0]*m_nr_frames_since_reference,
+                            m_motion_velocity[1]*m_nr_frames_since_reference);
 
-  // copy out matching features:
-  for ( int i = 0; i < m_nr_matches; ++i )
-    {
-      int offset = 3*i;
-      m_corners_ref[offset  ] = m_x_corners_ref[m_match_index_ref[i]];
-      m_corners_ref[offset+1] = m_y_corners_ref[m_match_index_ref[i]];
-      m_corners_ref[offset+2] = 1.0;
+  MatchAndEstimate(imptr,H,prewarp);
+  m_cm.ClearPredictedMotion();
 
-      m_corners_ins[offset  ] = m_x_corners_ins[m_match_index_ins[i]];
-      m_corners_ins[offset+1] = m_y_corners_ins[m_match_index_ins[i]];
-      m_corners_ins[offset+2] = 1.0;
+  // if the prediction was off, match again within the full search range:
+  bool precise = IsAlignedPrecisely();
+  if(m_motion_predicted && !precise)
+    {
+      m_motion_predicted = false;
+      MatchAndEstimate(imptr,H,prewarp);
+      precise = IsAlignedPrecisely();
     }
 
-  // @jke - Adding code to time the functions.  TODO: Remove after test
-#if PROFILE
-  iTimer1 = now_ms();
-#endif
-  // perform the alignment:
-  db_RobImageHomography(m_H_ref_to_ins, m_corners_ref, m_corners_ins, m_nr_matches, m_K, m_K, m_temp_double, m_temp_int,
-            m_homography_type,NULL,m_max_iterations,m_max_nr_matches,m_scale,
-            m_nr_samples, m_chunk_size);
-  // @jke - Adding code to time the functions.  TODO: Remove after test
-# if PROFILE
-  iTimer2 = now_ms();
-  double elapsedTimeHomography = iTimer2 - iTimer1;
-  sprintf(str,"Homography = %g ms\n",elapsedTimeHomography);
-  strcat(profile_string, str);
-#endif
-
-
-  SetOutlierThreshold();
-
-  // Compute the inliers for the db compute m_H_ref_to_ins
-  ComputeInliers(m_H_ref_to_ins);
-
   // Update the max inlier count
   m_max_inlier_count = (m_max_inlier_count > m_num_inlier_indices)?m_max_inlier_count:m_num_inlier_indices;
 
@@ -458,6 +449,18 @@ int db_FrameToReferenceRegistration::AddFrame(const unsigned char * const * im,
   if(m_linear_polish)
     Polish(m_inlier_indices, m_num_inlier_indices);
 
+  // remember the motion per frame of the image center to predict the matches of the next frames:
+  m_motion_velocity_valid = precise;
+  if(m_motion_velocity_valid)
+    {
+      double center[2], moved[2];
+      center[0] = 0.5*m_im_width;
+      center[1] = 0.5*m_im_height;
+      db_ImageHomographyInhomogenous(moved,m_H_ref_to_ins,center);
+      m_motion_velocity[0] = (moved[0]-center[0])/m_nr_frames_since_reference;
+      m_motion_velocity[1] = (moved[1]-center[1])/m_nr_frames_since_reference;
+    }
+
   if (m_quarter_resolution)
   {
     m_H_ref_to_ins[2] *= 2.0;
@@ -511,6 +514,129 @@ int db_FrameToReferenceRegistration::AddFrame(const unsigned char * const * im,
   return 1;
 }
 
+void db_FrameToReferenceRegistration::MatchAndEstimate(const unsigned char * const * imptr, double H[9], bool prewarp)
+{
+#if PROFILE
+  double iTimer1, iTimer2;
+  char str[255];
+#endif
+
+  m_sq_cost_computed = false;
+
+  // @jke - Adding code to time the functions.  TODO: Remove after test
+#if PROFILE
+  iTimer1 = now_ms();
+#endif
+  DB_STAGE_BEGIN(DB_STAGE_FEATURE_MATCHING);
+    if(prewarp)
+  m_cm.Match(m_reference_image,imptr,m_x_corners_ref,m_y_corners_ref,m_nr_corners_ref,
+         m_x_corners_ins,m_y_corners_ins,m_nr_corners_ins,
+         m_match_index_ref,m_match_index_ins,&m_nr_matches,H,0,m_match_score);
+    else
+  m_cm.Match(m_reference_image,imptr,m_x_corners_ref,m_y_corners_ref,m_nr_corners_ref,
+         m_x_corners_ins,m_y_corners_ins,m_nr_corners_ins,
+         m_match_index_ref,m_match_index_ins,&m_nr_matches,0,0,m_match_score);
+  DB_STAGE_END(DB_STAGE_FEATURE_MATCHING);
+  // @jke - Adding code to time the functions.  TODO: Remove after test
+# if PROFILE
+  iTimer2 = now_ms();
+  double elapsedTimeMatch = iTimer2 - iTimer1;
+  sprintf(str,"Matching [%d] = %g ms\n",m_nr_matches,elapsedTimeMatch);
+  strcat(profile_string, str);
+#endif
+
+
+  // copy out matching features, the best matches first for the adaptive sampling:
+  if(m_adaptive_sampling)
+    SortMatchesByScore();
+  for ( int i = 0; i < m_nr_matches; ++i )
+    {
+      int offset = 3*i;
+      int m = m_adaptive_sampling ? m_match_order[i] : i;
+      m_corners_ref[offset  ] = m_x_corners_ref[m_match_index_ref[m]];
+      m_corners_ref[offset+1] = m_y_corners_ref[m_match_index_ref[m]];
+      m_corners_ref[offset+2] = 1.0;
+
+      m_corners_ins[offset  ] = m_x_corners_ins[m_match_index_ins[m]];
+      m_corners_ins[offset+1] = m_y_corners_ins[m_match_index_ins[m]];
+      m_corners_ins[offset+2] = 1.0;
+    }
+
+  // @jke - Adding code to time the functions.  TODO: Remove after test
+#if PROFILE
+  iTimer1 = now_ms();
+#endif
+  // perform the alignment:
+  DB_STAGE_BEGIN(DB_STAGE_RANSAC);
+  db_RobImageHomography(m_H_ref_to_ins, m_corners_ref, m_corners_ins, m_nr_matches, m_K, m_K, m_temp_double, m_temp_int,
+            m_homography_type,NULL,m_max_iterations,m_max_nr_matches,m_scale,
+            m_nr_samples, m_chunk_size, 0, NULL, NULL, NULL, NULL, NULL,
+            m_adaptive_sampling ? DB_DEFAULT_CONFIDENCE : 0.0, m_adaptive_sampling ? 1 : 0);
+  DB_STAGE_END(DB_STAGE_RANSAC);
+  // @jke - Adding code to time the functions.  TODO: Remove after test
+# if PROFILE
+  iTimer2 = now_ms();
+  double elapsedTimeHomography = iTimer2 - iTimer1;
+  sprintf(str,"Homography = %g ms\n",elapsedTimeHomography);
+  strcat(profile_string, str);
+#endif
+
+
+  SetOutlierThreshold();
+
+  // Compute the inliers for the db compute m_H_ref_to_ins
+  ComputeInliers(m_H_ref_to_ins);
+}
+
+bool db_FrameToReferenceRegistration::IsAlignedPrecisely()
+{
+  // the squared costs were computed for the outlier threshold
+  ComputeCostArray();
+
+  int count = 0;
+  for(int c=0; c < m_nr_matches; c++)
+    {
+      if (m_sq_cost[c] <= DB_PREDICTION_MAX_ERROR*DB_PREDICTION_MAX_ERROR)
+    count++;
+    }
+  return count >= DB_PREDICTION_MIN_INLIERS;
+}
+
+// bin of a correlation score for SortMatchesByScore()
+static inline int ScoreBin(double score)
+{
+  if (score <= 0.0)
+    return 0;
+  if (score >= 1.0)
+    return DB_NR_SCORE_BINS;
+  return (int) (score*DB_NR_SCORE_BINS);
+}
+
+void db_FrameToReferenceRegistration::SortMatchesByScore()
+{
+  // counting sort of the scores quantized to 1/DB_NR_SCORE_BINS, the negative ones last
+  int count[DB_NR_SCORE_BINS+1];
+  int bin;
+
+  for(bin=0; bin <= DB_NR_SCORE_BINS; bin++)
+    count[bin] = 0;
+
+  for(int i=0; i < m_nr_matches; i++)
+    count[ScoreBin(m_match_score[i])]++;
+
+  // start of every bin, the highest first
+  int start = 0;
+  for(bin=DB_NR_SCORE_BINS; bin >= 0; bin--)
+    {
+      int nr = count[bin];
+      count[bin] = start;
+      start += nr;
+    }
+
+  for(int i=0; i < m_nr_matches; i++)
+    m_match_order[count[ScoreBin(m_match_score[i])]++] = i;
+}
+
 //void db_FrameToReferenceRegistration::ComputeInliers(double H[9],std::vector<int> &inlier_indices)
 void db_FrameToReferenceRegistration::ComputeInliers(double H[9])
 {
@@ -590,9 +716,11 @@ void db_FrameToReferenceRegistration::EstimateSecondaryModel(double H[9])
   SelectOutliers();
 
   // perform the alignment:
+  DB_STAGE_BEGIN(DB_STAGE_RANSAC);
   db_RobImageHomography(m_H_ref_to_ins, m_corners_ref, m_corners_ins, m_nr_matches, m_K, m_K, m_temp_double, m_temp_int,
             m_homography_type,NULL,m_max_iterations,m_max_nr_matches,m_scale,
             m_nr_samples, m_chunk_size);
+  DB_STAGE_END(DB_STAGE_RANSAC);
 
   db_Copy9(H,m_H_ref_to_ins);
 }
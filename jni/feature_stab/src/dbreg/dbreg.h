@@ -30,6 +30,14 @@
 // @jke - the next few lines are for extracting timing data.  TODO: Remove after test
 #define PROFILE 0
 
+// Minimum number of matches within DB_PREDICTION_MAX_ERROR pixels of their estimated position for the
+// motion of a frame to predict the matches of the next frames, and for the predicted matches to be kept
+#define DB_PREDICTION_MIN_INLIERS 20
+#define DB_PREDICTION_MAX_ERROR 2.0
+
+// Number of bins of the correlation scores for sorting the matches
+#define DB_NR_SCORE_BINS 256
+
 #include "dbstabsmooth.h"
 
 #include <db_feature_detection.h>
@@ -180,6 +188,31 @@ public:
     */
     void ResetSmoothing(bool enable) { m_do_motion_smoothing = enable; }
 
+    /*!
+     * Enable/Disable motion prediction (disabled by default). With motion prediction, the corners of a frame are
+     * matched within DB_DEFAULT_PREDICTED_DISPARITY of the positions predicted from the motion per frame of the last
+     * frame (see db_Matcher_u::SetPredictedMotion()), if it was aligned precisely: with DB_PREDICTION_MIN_INLIERS
+     * matches within DB_PREDICTION_MAX_ERROR pixels. If the predicted matches do not align the frame precisely,
+     * it is matched again within the full search range. The frame motions then agree within a fraction of a pixel,
+     * but the blended mosaic is not identical to the one of the full search.
+     * \param enable    flag indicating whether to turn the motion prediction on or off.
+    */
+    void ResetMotionPrediction(bool enable) { m_motion_prediction = enable; }
+
+    /*!
+     * Enable/Disable adaptive sampling in the homography estimation (disabled by default). With adaptive sampling,
+     * the matches are sampled in decreasing order of correlation score (PROSAC) and no more samples are drawn once
+     * one without outliers has been drawn with DB_DEFAULT_CONFIDENCE, rather than always DB_DEFAULT_NR_SAMPLES.
+     * It is tuned on the matches around the predicted motion (see ResetMotionPrediction()).
+     * \param enable    flag indicating whether to turn the adaptive sampling on or off.
+    */
+    void ResetAdaptiveSampling(bool enable) { m_adaptive_sampling = enable; }
+
+    /*!
+     * Returns true if the last frame was aligned with the matches around its predicted motion.
+    */
+    bool IsMotionPredicted() const { return m_motion_predicted; }
+
     /*!
      * Align an inspection image to an existing reference image, update the reference image if due and perform motion smoothing if enabled.
      * \param im                new inspection image
@@ -343,6 +376,10 @@ protected:
     int * m_match_index_ins;
     int   m_nr_matches;
 
+    // correlation scores of the matches, and the matches in decreasing order of score:
+    double * m_match_score;
+    int * m_match_order;
+
     // pointer to internal copy of the reference image:
     unsigned char ** m_reference_image;
 
@@ -381,6 +418,15 @@ protected:
 
     void SetOutlierThreshold();
 
+    // match the corners of the inspection image to the reference corners and estimate m_H_ref_to_ins from them.
+    void MatchAndEstimate(const unsigned char * const * imptr, double H[9], bool prewarp);
+
+    // whether DB_PREDICTION_MIN_INLIERS matches are within DB_PREDICTION_MAX_ERROR of their estimated position.
+    bool IsAlignedPrecisely();
+
+    // sort the matches into m_match_order by decreasing m_match_score.
+    void SortMatchesByScore();
+
     // utility function for smoothing the motion parameters.
     void SmoothMotion(void);
 
@@ -415,6 +461,20 @@ private:
 
     // double to set the gain for motion smoothing
     double m_motion_smoothing_gain;
+
+    // whether to sample the matches adaptively in the homography estimation
+    bool m_adaptive_sampling;
+
+    // whether to match around the predicted motion, and whether the last frame was
+    bool m_motion_prediction;
+    bool m_motion_predicted;
+
+    // motion per frame of the image center in the last frame, if it was aligned precisely
+    bool m_motion_velocity_valid;
+    double m_motion_velocity[2];
+
+    // the number of frames added since the reference was updated.
+    unsigned int m_nr_frames_since_reference;
 };
 /*!
  Create look-up tables to undistort images. Only Bougeut (Matlab toolkit)
@@ -428,6 +488,8 @@ private:
  \param w       width
  \param h       height
  \param H       image homography from source to destination
+
+ db_HomographyWarper (dbwarp.h) warps by a homography without the tables.
  */
 inline void db_GenerateHomographyLut(float ** lut_x,float ** lut_y,int w,int h,const double H[9])
 {
@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <math.h>
+#include <string.h>
+#include "dbwarp.h"
+
+// Tile classes: the source positions of the pixels of the tile are all inside
+// the source, all outside on one side, on both sides of its border, or not
+// interpolated but computed at every pixel
+#define DB_WARP_TILE_INSIDE  0
+#define DB_WARP_TILE_OUTSIDE 1
+#define DB_WARP_TILE_EDGE    2
+#define DB_WARP_TILE_EXACT   3
+
+// Source positions are kept within +-DB_WARP_MAX_POSITION pixels, far
+// outside any image, so that the 16.16 fixed point steps do not overflow
+#define DB_WARP_MAX_POSITION 16384.0
+
+// The source position of the destination pixel (x,y) in 16.16 fixed point.
+// Returns false if the pixel maps to infinity or behind the camera.
+static bool db_WarpPosition(int *xs,int *ys,const double H[9],double x,double y)
+{
+    double z=H[6]*x+H[7]*y+H[8];
+    if(z<=1e-12)
+    {
+        *xs=*ys=-(int)(DB_WARP_MAX_POSITION*65536.0);
+        return(false);
+    }
+    double p[2]={(H[0]*x+H[1]*y+H[2])/z,(H[3]*x+H[4]*y+H[5])/z};
+    int *out[2]={xs,ys};
+    for(int c=0;c<2;c++)
+    {
+        if(p[c]>DB_WARP_MAX_POSITION) p[c]=DB_WARP_MAX_POSITION;
+        if(p[c]< -DB_WARP_MAX_POSITION) p[c]= -DB_WARP_MAX_POSITION;
+        *out[c]=(int)floor(p[c]*65536.0+0.5);
+    }
+    return(true);
+}
+
+// Samples n destination pixels from the source positions (x,y) stepping by
+// (dx,dy), in 16.16 fixed point. Without check, every position must be in
+// [0,max_x]x[0,max_y], which is [0,w-2]x[0,h-2] shifted.
+template <int channels,bool check>
+static inline void db_WarpSpan(const unsigned char * const * src,unsigned char *dst,int n,
+                               int x,int y,int dx,int dy,int max_x,int max_y)
+{
+    for(int k=0;k<n;k++,x+=dx,y+=dy,dst+=channels)
+    {
+        if(check && (x<0 || y<0 || x>max_x || y>max_y))
+        {
+            for(int c=0;c<channels;c++) dst[c]=0;
+            continue;
+        }
+        int fx=(x>>8)&255;
+        int fy=(y>>8)&255;
+        const unsigned char *r0=src[y>>16]+channels*(x>>16);
+        const unsigned char *r1=src[(y>>16)+1]+channels*(x>>16);
+        for(int c=0;c<channels;c++)
+        {
+            int top=(r0[c]<<8)+(r0[channels+c]-r0[c])*fx;
+            int bottom=(r1[c]<<8)+(r1[channels+c]-r1[c])*fx;
+            dst[c]=(unsigned char)(((top<<8)+(bottom-top)*fy)>>16);
+        }
+    }
+}
+
+db_HomographyWarper::db_HomographyWarper(int cache_size)
+{
+    m_cache_size=db_maxi(1,cache_size);
+    m_grids=new Grid[m_cache_size];
+    for(int i=0;i<m_cache_size;i++)
+    {
+        m_grids[i].x=m_grids[i].y=0;
+        m_grids[i].tile_class=0;
+        m_grids[i].w=m_grids[i].h=0;
+        m_grids[i].last_used=0;
+    }
+    m_clock=0;
+    m_nr_hits=m_nr_misses=0;
+}
+
+db_HomographyWarper::~db_HomographyWarper()
+{
+    ClearCache();
+    delete [] m_grids;
+}
+
+void db_HomographyWarper::ClearCache()
+{
+    for(int i=0;i<m_cache_size;i++)
+    {
+        delete [] m_grids[i].x;
+        delete [] m_grids[i].y;
+        delete [] m_grids[i].tile_class;
+        m_grids[i].x=m_grids[i].y=0;
+        m_grids[i].tile_class=0;
+        m_grids[i].w=m_grids[i].h=0;
+        m_grids[i].last_used=0;
+    }
+}
+
+db_HomographyWarper::Grid *db_HomographyWarper::GetGrid(int w,int h,const double H[9])
+{
+    Grid *oldest=&m_grids[0];
+    m_clock++;
+    for(int i=0;i<m_cache_size;i++)
+    {
+        Grid *grid=&m_grids[i];
+        if(grid->w==w && grid->h==h && grid->x && memcmp(grid->H,H,9*sizeof(double))==0)
+        {
+            grid->last_used=m_clock;
+            m_nr_hits++;
+            return(grid);
+        }
+        if(grid->last_used<oldest->last_used) oldest=grid;
+    }
+
+    m_nr_misses++;
+    ComputeGrid(oldest,w,h,H);
+    oldest->last_used=m_clock;
+    return(oldest);
+}
+
+void db_HomographyWarper::ComputeGrid(Grid *grid,int w,int h,const double H[9])
+{
+    const int T=DB_WARP_TILE_SIZE;
+    int tiles_x=(w+T-1)/T;
+    int tiles_y=(h+T-1)/T;
+    if(grid->w!=w || grid->h!=h || !grid->x)
+    {
+        delete [] grid->x;
+        delete [] grid->y;
+        delete [] grid->tile_class;
+        grid->x=new int[(tiles_x+1)*(tiles_y+1)];
+        grid->y=new int[(tiles_x+1)*(tiles_y+1)];
+        grid->tile_class=new unsigned char[tiles_x*tiles_y];
+    }
+    memcpy(grid->H,H,9*sizeof(double));
+    grid->w=w;
+    grid->h=h;
+    grid->tiles_x=tiles_x;
+    grid->tiles_y=tiles_y;
+    grid->nodes_x=tiles_x+1;
+    grid->nodes_y=tiles_y+1;
+    grid->error=0.0;
+    grid->nr_exact=0;
+
+    // The nodes of the last tiles lie beyond the image, which only extends
+    // the same mapping.
+    bool *finite=new bool[grid->nodes_x*grid->nodes_y];
+    for(int j=0;j<grid->nodes_y;j++)
+        for(int i=0;i<grid->nodes_x;i++)
+        {
+            int n=j*grid->nodes_x+i;
+            finite[n]=db_WarpPosition(&grid->x[n],&grid->y[n],H,double(i*T),double(j*T));
+        }
+
+    const int max_x=(w-2)<<16;
+    const int max_y=(h-2)<<16;
+    for(int j=0;j<tiles_y;j++)
+        for(int i=0;i<tiles_x;i++)
+        {
+            int n[4]={j*grid->nodes_x+i,j*grid->nodes_x+i+1,(j+1)*grid->nodes_x+i,(j+1)*grid->nodes_x+i+1};
+            unsigned char *tile_class=&grid->tile_class[j*tiles_x+i];
+
+            // Compare the interpolation with the exact position at the center.
+            int xc,yc;
+            bool exact=!(finite[n[0]] && finite[n[1]] && finite[n[2]] && finite[n[3]]);
+            if(!exact && db_WarpPosition(&xc,&yc,H,(i+0.5)*T,(j+0.5)*T))
+            {
+                double ex=0.25*((double)grid->x[n[0]]+grid->x[n[1]]+grid->x[n[2]]+grid->x[n[3]])-xc;
+                double ey=0.25*((double)grid->y[n[0]]+grid->y[n[1]]+grid->y[n[2]]+grid->y[n[3]])-yc;
+                double error=sqrt(ex*ex+ey*ey)/65536.0;
+                if(error>DB_WARP_MAX_GRID_ERROR) exact=true;
+                else if(error>grid->error) grid->error=error;
+            }
+            else exact=true;
+            if(exact)
+            {
+                *tile_class=DB_WARP_TILE_EXACT;
+                grid->nr_exact++;
+                continue;
+            }
+
+            // The interpolated positions lie in the quadrilateral of the corners.
+            int inside=0,left=0,right=0,above=0,below=0;
+            for(int k=0;k<4;k++)
+            {
+                int x=grid->x[n[k]],y=grid->y[n[k]];
+                left+=(x<0);
+                right+=(x>max_x);
+                above+=(y<0);
+                below+=(y>max_y);
+                inside+=(x>=0 && x<=max_x && y>=0 && y<=max_y);
+            }
+            if(inside==4) *tile_class=DB_WARP_TILE_INSIDE;
+            else if(left==4 || right==4 || above==4 || below==4) *tile_class=DB_WARP_TILE_OUTSIDE;
+            else *tile_class=DB_WARP_TILE_EDGE;
+        }
+    delete [] finite;
+}
+
+double db_HomographyWarper::GetGridError(int w,int h,const double H[9])
+{
+    return(GetGrid(w,h,H)->error);
+}
+
+int db_HomographyWarper::GetNrExactTiles(int w,int h,const double H[9])
+{
+    return(GetGrid(w,h,H)->nr_exact);
+}
+
+// Arguments of the bands of tile rows of a warp
+struct db_WarpBands
+{
+    const unsigned char * const *src;
+    unsigned char **dst;
+    int w,h;
+    const double *H;
+    const int *x,*y;
+    const unsigned char *tile_class;
+    int nodes_x,tiles_x;
+};
+
+template <int channels>
+static void db_WarpTileRows(void *arg,int begin,int end,int /*band*/)
+{
+    const db_WarpBands *b=(const db_WarpBands *)arg;
+    const int T=DB_WARP_TILE_SIZE;
+    const int max_x=(b->w-2)<<16;
+    const int max_y=(b->h-2)<<16;
+
+    for(int tj=begin;tj<end;tj++)
+    {
+        int rows=db_mini(T,b->h-tj*T);
+        for(int ti=0;ti<b->tiles_x;ti++)
+        {
+            int x0=ti*T;
+            int cols=db_mini(T,b->w-x0);
+            int tile_class=b->tile_class[tj*b->tiles_x+ti];
+            const int *nx=b->x+tj*b->nodes_x+ti;
+            const int *ny=b->y+tj*b->nodes_x+ti;
+
+            for(int r=0;r<rows;r++)
+            {
+                unsigned char *dst=b->dst[tj*T+r]+channels*x0;
+                if(tile_class==DB_WARP_TILE_OUTSIDE)
+                {
+                    memset(dst,0,channels*cols);
+                    continue;
+                }
+                if(tile_class==DB_WARP_TILE_EXACT)
+                {
+                    for(int k=0;k<cols;k++)
+                    {
+                        int xs,ys;
+                        db_WarpPosition(&xs,&ys,b->H,double(x0+k),double(tj*T+r));
+                        db_WarpSpan<channels,true>(b->src,dst+channels*k,1,xs,ys,0,0,max_x,max_y);
+                    }
+                    continue;
+                }
+
+                // Interpolate the ends of the row between the corners of the
+                // tile, then step along it.
+                long long xl=nx[0]+(((long long)(nx[b->nodes_x]-nx[0])*r)>>DB_WARP_TILE_LOG2);
+                long long yl=ny[0]+(((long long)(ny[b->nodes_x]-ny[0])*r)>>DB_WARP_TILE_LOG2);
+                long long xr=nx[1]+(((long long)(nx[b->nodes_x+1]-nx[1])*r)>>DB_WARP_TILE_LOG2);
+                long long yr=ny[1]+(((long long)(ny[b->nodes_x+1]-ny[1])*r)>>DB_WARP_TILE_LOG2);
+                int dx=(int)((xr-xl)>>DB_WARP_TILE_LOG2);
+                int dy=(int)((yr-yl)>>DB_WARP_TILE_LOG2);
+                if(tile_class==DB_WARP_TILE_INSIDE)
+                    db_WarpSpan<channels,false>(b->src,dst,cols,(int)xl,(int)yl,dx,dy,max_x,max_y);
+                else
+                    db_WarpSpan<channels,true>(b->src,dst,cols,(int)xl,(int)yl,dx,dy,max_x,max_y);
+            }
+        }
+    }
+}
+
+template <int channels>
+void db_HomographyWarper::Warp(const unsigned char * const * src,unsigned char ** dst,int w,int h,const double H[9])
+{
+    Grid *grid=GetGrid(w,h,H);
+
+    db_WarpBands b;
+    b.src=src;
+    b.dst=dst;
+    b.w=w;
+    b.h=h;
+    b.H=grid->H;
+    b.x=grid->x;
+    b.y=grid->y;
+    b.tile_class=grid->tile_class;
+    b.nodes_x=grid->nodes_x;
+    b.tiles_x=grid->tiles_x;
+    // Bands of at least 4 rows of tiles, so that small images stay on one thread.
+    db_ParallelBands(db_WarpTileRows<channels>,&b,0,grid->tiles_y,4);
+}
+
+void db_HomographyWarper::Warp_u(const unsigned char * const * src,unsigned char ** dst,int w,int h,const double H[9])
+{
+    Warp<1>(src,dst,w,h,H);
+}
+
+void db_HomographyWarper::Warp_rgb(const unsigned char * const * src,unsigned char ** dst,int w,int h,const double H[9])
+{
+    Warp<3>(src,dst,w,h,H);
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#pragma once
+
+#ifdef _WIN32
+#ifdef DBREG_EXPORTS
+#define DBREG_API __declspec(dllexport)
+#else
+#define DBREG_API __declspec(dllimport)
+#endif
+#else
+#define DBREG_API
+#endif
+
+#include <db_utilities.h>
+
+// Size in pixels of the square tiles in which the homography is interpolated
+#define DB_WARP_TILE_LOG2 4
+#define DB_WARP_TILE_SIZE (1<<DB_WARP_TILE_LOG2)
+// Largest error in pixels of the interpolated source position of a tile,
+// estimated at its center; tiles above it are mapped exactly at every pixel
+#define DB_WARP_MAX_GRID_ERROR 0.03125
+// Number of homographies whose grids are kept
+#define DB_WARP_DEFAULT_CACHE_SIZE 4
+
+/*!
+ * Warps images by a homography, as db_GenerateHomographyLut() followed by
+ * db_WarpImageLutBilinear_rgb() do, without a look-up table of the size of
+ * the image.
+ *
+ * The source position of every destination pixel is computed exactly only on
+ * a grid of DB_WARP_TILE_SIZE pixels and interpolated bilinearly inside the
+ * tiles, stepping in 16.16 fixed point. A tile where the interpolation is off
+ * by more than DB_WARP_MAX_GRID_ERROR pixels at its center, as near the
+ * horizon of a strong perspective, is mapped exactly instead. The source is
+ * sampled bilinearly with 8-bit weights, so a sample differs from the double
+ * precision interpolation of db_WarpImageLutBilinear_rgb() by the weight
+ * rounding, at most 1 gray level, plus the slope of the image times the
+ * position error. Positions outside [0,w-2]x[0,h-2] are black, as there.
+ *
+ * Tiles entirely inside or outside the source skip the bounds checks, and the
+ * rows of tiles are split into bands on up to db_GetMaxThreads() threads (see
+ * \ref LMParallel). The grid and the class of every tile are kept for the last
+ * few homographies, so that warping again by one of them, as the frames of a
+ * still camera or the same view in several images, starts at the pixels.
+ */
+class DBREG_API db_HomographyWarper
+{
+public:
+    db_HomographyWarper(int cache_size=DB_WARP_DEFAULT_CACHE_SIZE);
+    ~db_HomographyWarper();
+
+    /*!
+     * Warp a gray image.
+     * \param src   source image (w by h)
+     * \param dst   destination image (w by h)
+     * \param w     width
+     * \param h     height
+     * \param H     homography from the destination to the source pixels
+     */
+    void Warp_u(const unsigned char * const * src,unsigned char ** dst,int w,int h,const double H[9]);
+    /*!
+     * Warp a packed RGB ([rgbrgbrgb...]) image (w*3 by h); see Warp_u().
+     */
+    void Warp_rgb(const unsigned char * const * src,unsigned char ** dst,int w,int h,const double H[9]);
+
+    /*!
+     * Return the largest error in pixels, estimated at the tile centers, of
+     * the interpolated source positions of a warp of a w by h image by H. The
+     * tiles that are mapped exactly do not count.
+     */
+    double GetGridError(int w,int h,const double H[9]);
+    /*!
+     * Return the number of tiles of a warp of a w by h image by H that are
+     * mapped exactly.
+     */
+    int GetNrExactTiles(int w,int h,const double H[9]);
+
+    //! Number of warps whose grid was found in the cache, and computed
+    int GetNrCacheHits() const { return m_nr_hits; }
+    int GetNrCacheMisses() const { return m_nr_misses; }
+    //! Drop the cached grids
+    void ClearCache();
+
+protected:
+    // Source positions of the grid nodes in 16.16 fixed point, and the class
+    // of every tile, of a warp of a w by h image by H
+    struct Grid
+    {
+        double H[9];
+        int w,h;
+        int nodes_x,nodes_y;
+        int tiles_x,tiles_y;
+        int *x,*y;
+        unsigned char *tile_class;   // DB_WARP_TILE_* in dbwarp.cpp
+        double error;
+        int nr_exact;
+        unsigned int last_used;
+    };
+
+    Grid *GetGrid(int w,int h,const double H[9]);
+    void ComputeGrid(Grid *grid,int w,int h,const double H[9]);
+    template <int channels>
+    void Warp(const unsigned char * const * src,unsigned char ** dst,int w,int h,const double H[9]);
+
+    Grid *m_grids;
+    int m_cache_size;
+    unsigned int m_clock;
+    int m_nr_hits;
+    int m_nr_misses;
+};
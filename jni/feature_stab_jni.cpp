@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// JNI layer of com.android.camera.VideoStabilizer.
+
+#include <jni.h>
+#include <stdint.h>
+
+#include "mosaic/Stabilizer.h"
+#include "mosaic/Log.h"
+#define LOG_TAG "FEATURE_STAB_JNI"
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+// Layout of the array filled by getStatistics().
+enum
+{
+    STATISTICS_FRAME_COUNT,
+    STATISTICS_DROPPED_COUNT,
+    STATISTICS_MEAN_FRAME_MS,
+    STATISTICS_MAX_FRAME_MS,
+    STATISTICS_SIZE
+};
+
+// Every com.android.camera.VideoStabilizer owns one Stabilizer, whose address
+// is kept in its mNativeContext field.
+static jfieldID gNativeContextField = NULL;
+
+static void ThrowException(JNIEnv* env, const char* className, const char* message)
+{
+    jclass clazz = env->FindClass(className);
+    if (clazz != NULL)
+    {
+        env->ThrowNew(clazz, message);
+    }
+}
+
+// Returns the Stabilizer of the given VideoStabilizer, or NULL with an
+// IllegalStateException pending if it has been released.
+static Stabilizer* GetStabilizer(JNIEnv* env, jobject thiz)
+{
+    if (gNativeContextField == NULL)
+    {
+        gNativeContextField = env->GetFieldID(env->GetObjectClass(thiz),
+                "mNativeContext", "J");
+    }
+
+    Stabilizer *stab = (Stabilizer*) (intptr_t)
+            env->GetLongField(thiz, gNativeContextField);
+    if (stab == NULL)
+    {
+        ThrowException(env, "java/lang/IllegalStateException",
+                "VideoStabilizer has been released");
+    }
+    return stab;
+}
+
+JNIEXPORT jlong JNICALL Java_com_android_camera_VideoStabilizer_createContext(
+        JNIEnv* /* env */, jclass /* clazz */)
+{
+    return (jlong) (intptr_t) new Stabilizer();
+}
+
+JNIEXPORT void JNICALL Java_com_android_camera_VideoStabilizer_destroyContext(
+        JNIEnv* /* env */, jclass /* clazz */, jlong context)
+{
+    delete (Stabilizer*) (intptr_t) context;
+}
+
+JNIEXPORT void JNICALL Java_com_android_camera_VideoStabilizer_initialize(
+        JNIEnv* env, jobject thiz, jint width, jint height, jfloat smoothing,
+        jfloat cropRatio, jfloat budgetMs)
+{
+    Stabilizer *stab = GetStabilizer(env, thiz);
+    if (stab == NULL) return;
+
+    if (stab->initialize(width, height, smoothing, cropRatio, budgetMs) !=
+            Stabilizer::STAB_RET_OK)
+    {
+        ThrowException(env, "java/lang/IllegalArgumentException",
+                "frame size or crop ratio not supported");
+    }
+}
+
+JNIEXPORT void JNICALL Java_com_android_camera_VideoStabilizer_reset(
+        JNIEnv* env, jobject thiz)
+{
+    Stabilizer *stab = GetStabilizer(env, thiz);
+    if (stab == NULL) return;
+
+    stab->reset();
+}
+
+JNIEXPORT jint JNICALL Java_com_android_camera_VideoStabilizer_addFrame(
+        JNIEnv* env, jobject thiz, jbyteArray nv21, jfloatArray transform)
+{
+    Stabilizer *stab = GetStabilizer(env, thiz);
+    if (stab == NULL) return Stabilizer::STAB_RET_ERROR;
+
+    if (stab->getWidth() == 0)
+    {
+        ThrowException(env, "java/lang/IllegalStateException",
+                "VideoStabilizer has not been initialized");
+        return Stabilizer::STAB_RET_ERROR;
+    }
+    if (nv21 == NULL || env->GetArrayLength(nv21) <
+            stab->getWidth() * stab->getHeight() * 3 / 2)
+    {
+        ThrowException(env, "java/lang/IllegalArgumentException",
+                "nv21 must hold an NV21 frame");
+        return Stabilizer::STAB_RET_ERROR;
+    }
+
+    // The preview buffer is read in place, and held only while its Y plane is
+    // reduced, not during the alignment.
+    ImageType pixels = (ImageType) env->GetPrimitiveArrayCritical(nv21, NULL);
+    if (pixels == NULL) return Stabilizer::STAB_RET_ERROR;
+    stab->reduceFrame(pixels);
+    env->ReleasePrimitiveArrayCritical(nv21, pixels, JNI_ABORT);
+
+    int ret_code = stab->stabilizeFrame();
+
+    if (transform != NULL)
+    {
+        double values[Stabilizer::TRANSFORM_SIZE];
+        jfloat floats[Stabilizer::TRANSFORM_SIZE];
+        stab->getTransform(values);
+        for (int i = 0; i < Stabilizer::TRANSFORM_SIZE; i++)
+            floats[i] = (jfloat) values[i];
+        // Throws ArrayIndexOutOfBoundsException if transform is too short.
+        env->SetFloatArrayRegion(transform, 0, Stabilizer::TRANSFORM_SIZE, floats);
+    }
+
+    LOGV("addFrame: %d (%d of %d frames dropped)", ret_code,
+            stab->getDroppedFrameCount(), stab->getFrameCount());
+    return (jint) ret_code;
+}
+
+JNIEXPORT void JNICALL Java_com_android_camera_VideoStabilizer_getStatistics(
+        JNIEnv* env, jobject thiz, jfloatArray statistics)
+{
+    Stabilizer *stab = GetStabilizer(env, thiz);
+    if (stab == NULL) return;
+
+    jfloat values[STATISTICS_SIZE];
+    values[STATISTICS_FRAME_COUNT] = stab->getFrameCount();
+    values[STATISTICS_DROPPED_COUNT] = stab->getDroppedFrameCount();
+    values[STATISTICS_MEAN_FRAME_MS] = stab->getMeanFrameTime();
+    values[STATISTICS_MAX_FRAME_MS] = stab->getMaxFrameTime();
+    // Throws ArrayIndexOutOfBoundsException if statistics is too short.
+    env->SetFloatArrayRegion(statistics, 0, STATISTICS_SIZE, values);
+}
+
+#ifdef __cplusplus
+}
+#endif
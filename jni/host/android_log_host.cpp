@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <stdarg.h>
+#include <stdio.h>
+#include <stdlib.h>
+
+#include <android/log.h>
+
+// Lowest priority printed; set MOSAIC_LOG_PRIORITY (e.g. 6 for errors only) to
+// change it. Info and above by default, as with a default logcat filter.
+static int minPriority()
+{
+    static int priority = -1;
+    if (priority < 0)
+    {
+        const char *value = getenv("MOSAIC_LOG_PRIORITY");
+        priority = (value != NULL) ? atoi(value) : ANDROID_LOG_INFO;
+    }
+    return priority;
+}
+
+int __android_log_print(int prio, const char *tag, const char *fmt, ...)
+{
+    if (prio >= ANDROID_LOG_SILENT || prio < minPriority())
+        return 0;
+
+    static const char levels[] = "  VDIWEF";
+    va_list args;
+    va_start(args, fmt);
+    int count = fprintf(stderr, "%c/%s: ", levels[prio], tag);
+    count += vfprintf(stderr, fmt, args);
+    count += fprintf(stderr, "\n");
+    va_end(args);
+    return count;
+}
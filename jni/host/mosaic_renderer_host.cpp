@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Host replacement for mosaic_renderer_jni.cpp. It provides what
+// feature_mos_jni.cpp needs from the renderer (the preview images and their
+// semaphore) without any GL; the MosaicRenderer natives are not available, so
+// only Mosaic.setSourceImage() can feed frames on the host.
+
+#include <jni.h>
+#include <semaphore.h>
+#include "mosaic/ImageUtils.h"
+
+#include "mosaic_renderer_jni.h"
+
+unsigned char* gPreviewImage[NR];
+int gPreviewImageWidth[NR];
+int gPreviewImageHeight[NR];
+
+sem_t gPreviewImage_semaphore;
+
+// Never set, as no frame is read back on the host.
+bool gPreviewImageReady = false;
+bool gPreviewImageInUse = false;
+
+void AllocateTextureMemory(int widthHR, int heightHR, int widthLR, int heightLR)
+{
+    gPreviewImageWidth[HR] = widthHR;
+    gPreviewImageHeight[HR] = heightHR;
+
+    gPreviewImageWidth[LR] = widthLR;
+    gPreviewImageHeight[LR] = heightLR;
+
+    sem_wait(&gPreviewImage_semaphore);
+    gPreviewImage[LR] = ImageUtils::allocateImage(gPreviewImageWidth[LR],
+            gPreviewImageHeight[LR], 4);
+    gPreviewImage[HR] = ImageUtils::allocateImage(gPreviewImageWidth[HR],
+            gPreviewImageHeight[HR], 4);
+    sem_post(&gPreviewImage_semaphore);
+}
+
+void FreeTextureMemory()
+{
+    sem_wait(&gPreviewImage_semaphore);
+    ImageUtils::freeImage(gPreviewImage[LR]);
+    ImageUtils::freeImage(gPreviewImage[HR]);
+    sem_post(&gPreviewImage_semaphore);
+}
+
+void UpdateWarpTransformation(float * /* trs */)
+{
+    // There is no preview to warp on the host.
+}
+
+extern "C"
+{
+    JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM* vm, void* reserved);
+    JNIEXPORT void JNICALL JNI_OnUnload(JavaVM* vm, void* reserved);
+};
+
+JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM* /* vm */, void* /* reserved */)
+{
+    sem_init(&gPreviewImage_semaphore, 0, 1);
+
+    return JNI_VERSION_1_4;
+}
+
+JNIEXPORT void JNICALL JNI_OnUnload(JavaVM* /* vm */, void* /* reserved */)
+{
+    sem_destroy(&gPreviewImage_semaphore);
+}
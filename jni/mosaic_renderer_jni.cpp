@@ -18,11 +18,14 @@
 #include <GLES2/gl2ext.h>
 #include <jni.h>
 #include <math.h>
+#include <pthread.h>
 #include <stdio.h>
 #include <stdlib.h>
+#include <string.h>
 #include "db_utilities_camera.h"
 #include "mosaic/ImageUtils.h"
 #include "mosaic_renderer/FrameBuffer.h"
+#include "mosaic_renderer/PixelPackBuffer.h"
 #include "mosaic_renderer/WarpRenderer.h"
 #include "mosaic_renderer/SurfaceTextureRenderer.h"
 #include "mosaic_renderer/YVURenderer.h"
@@ -32,6 +35,19 @@
 
 #include "mosaic_renderer_jni.h"
 
+// Layout of the array filled by getTransferStatistics().
+enum
+{
+    TRANSFER_STATISTICS_FRAME_COUNT,
+    TRANSFER_STATISTICS_DROPPED_COUNT,
+    TRANSFER_STATISTICS_MEAN_INTERVAL_MS,
+    TRANSFER_STATISTICS_MAX_INTERVAL_MS,
+    TRANSFER_STATISTICS_MEAN_TRANSFER_MS,
+    TRANSFER_STATISTICS_MAX_TRANSFER_MS,
+    TRANSFER_STATISTICS_LATENCY_FRAMES,
+    TRANSFER_STATISTICS_SIZE
+};
+
 // Texture handle
 GLuint gSurfaceTextureID[1];
 
@@ -48,6 +64,9 @@ int gPreviewImageHeight[NR];
 // Semaphore to protect simultaneous read/writes from gPreviewImage
 sem_t gPreviewImage_semaphore;
 
+bool gPreviewImageReady = false;
+bool gPreviewImageInUse = false;
+
 // Off-screen preview FBO width (large enough to store the entire
 // preview mosaic). FBO is frame buffer object.
 int gPreviewFBOWidth;
@@ -74,8 +93,34 @@ FrameBuffer gBufferInput[NR];
 
 // Shader to convert RGBA textures into YVU textures for processing
 YVURenderer gYVURenderer[NR];
-// Off-screen FBOs to store the low-res and high-res YVU textures for processing
-FrameBuffer gBufferInputYVU[NR];
+// Off-screen FBOs (ping-pong) to store the low-res and high-res YVU textures
+// for processing, gBufferInputYVU[gReadbackIndex] being drawn this frame
+FrameBuffer gBufferInputYVU[2][NR];
+
+// Whether the YVU textures are read back through pixel pack buffers, which
+// glReadPixels fills without stalling the GL thread and which are copied to
+// gPreviewImage one frame later, or by a blocking glReadPixels in the frame
+// itself where the context has no pixel pack buffers.
+bool gAsyncTransfer = false;
+// Pixel pack buffers (ping-pong) the YVU FBOs of the same index are read into
+PixelPackBuffer gReadback[2][NR];
+// Index of the YVU FBOs and pixel pack buffers of this frame
+int gReadbackIndex = 0;
+// Whether gReadback[1-gReadbackIndex] holds a frame not copied out yet
+bool gReadbackPending = false;
+
+// Statistics of transferGPUtoCPU(), written by the GL thread and read by
+// getTransferStatistics() under gTransferStatsLock
+pthread_mutex_t gTransferStatsLock = PTHREAD_MUTEX_INITIALIZER;
+int gTransferCount = 0;
+int gTransferDropCount = 0;
+int gTransferIntervalCount = 0;
+double gTransferIntervalSum = 0.0;
+double gTransferIntervalMax = 0.0;
+double gTransferTimeSum = 0.0;
+double gTransferTimeMax = 0.0;
+// Start of the last transfer of the sweep in ms, 0 before its first one
+double gLastTransferStart = 0.0;
 
 // Shader to translate the flip-flop FBO - gBuffer[1-current] -> gBuffer[current]
 WarpRenderer gWarper1;
@@ -474,6 +519,70 @@ void FreeTextureMemory()
     sem_post(&gPreviewImage_semaphore);
 }
 
+// Hands the frame in gPreviewImage to the mosaic. Call with
+// gPreviewImage_semaphore held, after filling gPreviewImage.
+static void PublishPreviewImage()
+{
+    if (gPreviewImageReady)
+    {
+        // The mosaic did not take the last frame in time.
+        pthread_mutex_lock(&gTransferStatsLock);
+        gTransferDropCount++;
+        pthread_mutex_unlock(&gTransferStatsLock);
+    }
+    gPreviewImageReady = true;
+}
+
+// Copies the frame read into gReadback[index] to gPreviewImage. If the mosaic
+// is still reading the last frame, the new one is dropped instead of waiting.
+static void CopyReadback(int index)
+{
+    sem_wait(&gPreviewImage_semaphore);
+    bool drop = gPreviewImageInUse;
+    for (int mode = 0; mode < NR && !drop; mode++)
+    {
+        const unsigned char* pixels = gReadback[index][mode].Map();
+        if (pixels == NULL)
+        {
+            // A low-res frame copied already does not match the high-res one.
+            gPreviewImageReady = false;
+            drop = true;
+            break;
+        }
+        memcpy(gPreviewImage[mode], pixels, gReadback[index][mode].GetSize());
+        gReadback[index][mode].Unmap();
+    }
+    if (drop)
+    {
+        pthread_mutex_lock(&gTransferStatsLock);
+        gTransferDropCount++;
+        pthread_mutex_unlock(&gTransferStatsLock);
+    }
+    else
+    {
+        PublishPreviewImage();
+    }
+    sem_post(&gPreviewImage_semaphore);
+}
+
+// Drops the frames of the sweep that the mosaic has not taken, so that the
+// next sweep does not start with them.
+static void DiscardPendingFrames()
+{
+    int dropped = gReadbackPending ? 1 : 0;
+    gReadbackPending = false;
+
+    sem_wait(&gPreviewImage_semaphore);
+    if (gPreviewImageReady) dropped++;
+    gPreviewImageReady = false;
+    sem_post(&gPreviewImage_semaphore);
+
+    pthread_mutex_lock(&gTransferStatsLock);
+    gTransferDropCount += dropped;
+    gLastTransferStart = 0.0;
+    pthread_mutex_unlock(&gTransferStatsLock);
+}
+
 extern "C"
 {
     JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM* vm, void* reserved);
@@ -493,6 +602,8 @@ extern "C"
             JNIEnv * env, jobject obj);
     JNIEXPORT void JNICALL Java_com_android_camera_MosaicRenderer_setWarping(
             JNIEnv * env, jobject obj, jboolean flag);
+    JNIEXPORT void JNICALL Java_com_android_camera_MosaicRenderer_getTransferStatistics(
+            JNIEnv * env, jobject obj, jfloatArray statistics);
 };
 
 
@@ -522,8 +633,17 @@ JNIEXPORT jint JNICALL Java_com_android_camera_MosaicRenderer_init(
     gBuffer[1].InitializeGLContext();
     gBufferInput[LR].InitializeGLContext();
     gBufferInput[HR].InitializeGLContext();
-    gBufferInputYVU[LR].InitializeGLContext();
-    gBufferInputYVU[HR].InitializeGLContext();
+    gAsyncTransfer = PixelPackBuffer::IsSupported();
+    LOGI("Reading the frames back %s", gAsyncTransfer ?
+            "through pixel pack buffers" : "with glReadPixels");
+    for (int i = 0; i < 2; i++)
+    {
+        for (int mode = 0; mode < NR; mode++)
+        {
+            gBufferInputYVU[i][mode].InitializeGLContext();
+            if (gAsyncTransfer) gReadback[i][mode].InitializeGLContext();
+        }
+    }
 
     glBindFramebuffer(GL_FRAMEBUFFER, 0);
 
@@ -593,11 +713,30 @@ JNIEXPORT void JNICALL Java_com_android_camera_MosaicRenderer_reset(
     gBufferInput[HR].Init(gPreviewImageWidth[HR],
             gPreviewImageHeight[HR], GL_RGBA);
 
-    gBufferInputYVU[LR].Init(gPreviewImageWidth[LR],
-            gPreviewImageHeight[LR], GL_RGBA);
-
-    gBufferInputYVU[HR].Init(gPreviewImageWidth[HR],
-            gPreviewImageHeight[HR], GL_RGBA);
+    for (int i = 0; i < 2; i++)
+    {
+        for (int mode = 0; mode < NR; mode++)
+        {
+            gBufferInputYVU[i][mode].Init(gPreviewImageWidth[mode],
+                    gPreviewImageHeight[mode], GL_RGBA);
+            if (gAsyncTransfer)
+            {
+                gReadback[i][mode].Init(gPreviewImageWidth[mode],
+                        gPreviewImageHeight[mode]);
+            }
+        }
+    }
+    gReadbackIndex = 0;
+    gReadbackPending = false;
+
+    pthread_mutex_lock(&gTransferStatsLock);
+    gTransferCount = 0;
+    gTransferDropCount = 0;
+    gTransferIntervalCount = 0;
+    gTransferIntervalSum = gTransferIntervalMax = 0.0;
+    gTransferTimeSum = gTransferTimeMax = 0.0;
+    gLastTransferStart = 0.0;
+    pthread_mutex_unlock(&gTransferStatsLock);
 
     // bind the surface texture
     bindSurfaceTexture(gSurfaceTextureID[0]);
@@ -618,11 +757,11 @@ JNIEXPORT void JNICALL Java_com_android_camera_MosaicRenderer_reset(
     gSurfTexRenderer[HR].SetInputTextureName(gSurfaceTextureID[0]);
     gSurfTexRenderer[HR].SetInputTextureType(GL_TEXTURE_EXTERNAL_OES_ENUM);
 
-    gYVURenderer[LR].SetupGraphics(&gBufferInputYVU[LR]);
+    gYVURenderer[LR].SetupGraphics(&gBufferInputYVU[gReadbackIndex][LR]);
     gYVURenderer[LR].SetInputTextureName(gBufferInput[LR].GetTextureName());
     gYVURenderer[LR].SetInputTextureType(GL_TEXTURE_2D);
 
-    gYVURenderer[HR].SetupGraphics(&gBufferInputYVU[HR]);
+    gYVURenderer[HR].SetupGraphics(&gBufferInputYVU[gReadbackIndex][HR]);
     gYVURenderer[HR].SetInputTextureName(gBufferInput[HR].GetTextureName());
     gYVURenderer[HR].SetInputTextureType(GL_TEXTURE_2D);
 
@@ -691,39 +830,79 @@ now_ms(void)
 JNIEXPORT void JNICALL Java_com_android_camera_MosaicRenderer_transferGPUtoCPU(
         JNIEnv * env, jobject obj)
 {
-    double t0, t1, time_c;
+    double t0 = now_ms();
+    int index = gReadbackIndex;
 
+    gYVURenderer[LR].SetupGraphics(&gBufferInputYVU[index][LR]);
+    gYVURenderer[HR].SetupGraphics(&gBufferInputYVU[index][HR]);
     gYVURenderer[LR].DrawTexture();
     gYVURenderer[HR].DrawTexture();
 
-    sem_wait(&gPreviewImage_semaphore);
-    // Bind to the input LR FBO and read the Low-Res data from there...
-    glBindFramebuffer(GL_FRAMEBUFFER, gBufferInputYVU[LR].GetFrameBufferName());
-    t0 = now_ms();
-    glReadPixels(0,
-                 0,
-                 gBufferInput[LR].GetWidth(),
-                 gBufferInput[LR].GetHeight(),
-                 GL_RGBA,
-                 GL_UNSIGNED_BYTE,
-                 gPreviewImage[LR]);
-
-    checkGlError("glReadPixels LR (MosaicRenderer.transferGPUtoCPU())");
-
-    // Bind to the input HR FBO and read the high-res data from there...
-    glBindFramebuffer(GL_FRAMEBUFFER, gBufferInputYVU[HR].GetFrameBufferName());
-    t0 = now_ms();
-    glReadPixels(0,
-                 0,
-                 gBufferInput[HR].GetWidth(),
-                 gBufferInput[HR].GetHeight(),
-                 GL_RGBA,
-                 GL_UNSIGNED_BYTE,
-                 gPreviewImage[HR]);
-
-    checkGlError("glReadPixels HR (MosaicRenderer.transferGPUtoCPU())");
+    if (gAsyncTransfer)
+    {
+        // Start reading this frame, and hand the frame read in the last one,
+        // long done by now, to the mosaic. The YVU FBOs and pixel pack buffers
+        // alternate so that this frame does not wait for the last one.
+        gReadback[index][LR].ReadPixels(&gBufferInputYVU[index][LR]);
+        gReadback[index][HR].ReadPixels(&gBufferInputYVU[index][HR]);
+        if (gReadbackPending) CopyReadback(1 - index);
+        gReadbackPending = true;
+        gReadbackIndex = 1 - index;
+    }
+    else
+    {
+        sem_wait(&gPreviewImage_semaphore);
+        if (gPreviewImageInUse)
+        {
+            pthread_mutex_lock(&gTransferStatsLock);
+            gTransferDropCount++;
+            pthread_mutex_unlock(&gTransferStatsLock);
+        }
+        else
+        {
+            // Bind to the input LR FBO and read the Low-Res data from there...
+            glBindFramebuffer(GL_FRAMEBUFFER, gBufferInputYVU[index][LR].GetFrameBufferName());
+            glReadPixels(0,
+                         0,
+                         gBufferInput[LR].GetWidth(),
+                         gBufferInput[LR].GetHeight(),
+                         GL_RGBA,
+                         GL_UNSIGNED_BYTE,
+                         gPreviewImage[LR]);
+
+            checkGlError("glReadPixels LR (MosaicRenderer.transferGPUtoCPU())");
+
+            // Bind to the input HR FBO and read the high-res data from there...
+            glBindFramebuffer(GL_FRAMEBUFFER, gBufferInputYVU[index][HR].GetFrameBufferName());
+            glReadPixels(0,
+                         0,
+                         gBufferInput[HR].GetWidth(),
+                         gBufferInput[HR].GetHeight(),
+                         GL_RGBA,
+                         GL_UNSIGNED_BYTE,
+                         gPreviewImage[HR]);
+
+            checkGlError("glReadPixels HR (MosaicRenderer.transferGPUtoCPU())");
+
+            PublishPreviewImage();
+        }
+        sem_post(&gPreviewImage_semaphore);
+    }
 
-    sem_post(&gPreviewImage_semaphore);
+    double t1 = now_ms();
+    pthread_mutex_lock(&gTransferStatsLock);
+    gTransferCount++;
+    gTransferTimeSum += t1 - t0;
+    if (t1 - t0 > gTransferTimeMax) gTransferTimeMax = t1 - t0;
+    if (gLastTransferStart > 0.0)
+    {
+        double interval = t0 - gLastTransferStart;
+        gTransferIntervalCount++;
+        gTransferIntervalSum += interval;
+        if (interval > gTransferIntervalMax) gTransferIntervalMax = interval;
+    }
+    gLastTransferStart = t0;
+    pthread_mutex_unlock(&gTransferStatsLock);
 }
 
 JNIEXPORT void JNICALL Java_com_android_camera_MosaicRenderer_step(
@@ -781,6 +960,7 @@ JNIEXPORT void JNICALL Java_com_android_camera_MosaicRenderer_setWarping(
 
         db_Identity3x3(gThisH1t);
         db_Identity3x3(gLastH1t);
+        DiscardPendingFrames();
         // Make sure g_dAffinetransGL and g_dAffinetransPanGL are updated.
         // Otherwise, the first frame after setting the flag to true will be
         // incorrectly drawn.
@@ -802,3 +982,22 @@ JNIEXPORT void JNICALL Java_com_android_camera_MosaicRenderer_updateMatrix(
         g_dTranslationToFBOCenterGL[i] = g_dTranslationToFBOCenter[i];
     }
 }
+
+JNIEXPORT void JNICALL Java_com_android_camera_MosaicRenderer_getTransferStatistics(
+        JNIEnv * env, jobject obj, jfloatArray statistics)
+{
+    jfloat values[TRANSFER_STATISTICS_SIZE];
+    pthread_mutex_lock(&gTransferStatsLock);
+    values[TRANSFER_STATISTICS_FRAME_COUNT] = gTransferCount;
+    values[TRANSFER_STATISTICS_DROPPED_COUNT] = gTransferDropCount;
+    values[TRANSFER_STATISTICS_MEAN_INTERVAL_MS] = gTransferIntervalCount > 0 ?
+            gTransferIntervalSum / gTransferIntervalCount : 0.0;
+    values[TRANSFER_STATISTICS_MAX_INTERVAL_MS] = gTransferIntervalMax;
+    values[TRANSFER_STATISTICS_MEAN_TRANSFER_MS] = gTransferCount > 0 ?
+            gTransferTimeSum / gTransferCount : 0.0;
+    values[TRANSFER_STATISTICS_MAX_TRANSFER_MS] = gTransferTimeMax;
+    values[TRANSFER_STATISTICS_LATENCY_FRAMES] = gAsyncTransfer ? 1 : 0;
+    pthread_mutex_unlock(&gTransferStatsLock);
+    // Throws ArrayIndexOutOfBoundsException if statistics is too short.
+    env->SetFloatArrayRegion(statistics, 0, TRANSFER_STATISTICS_SIZE, values);
+}
@@ -33,3 +33,9 @@ extern int gPreviewImageWidth[NR];
 extern int gPreviewImageHeight[NR];
 
 extern sem_t gPreviewImage_semaphore;
+
+// Whether gPreviewImage holds a frame that the mosaic has not taken yet, and
+// whether the mosaic is still reading the frame it took; the renderer does
+// not overwrite a frame in use. Protected by gPreviewImage_semaphore.
+extern bool gPreviewImageReady;
+extern bool gPreviewImageInUse;
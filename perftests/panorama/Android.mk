@@ -24,3 +24,150 @@ LOCAL_MODULE := panorama_bench
 LOCAL_MODULE_PATH := $(local_target_dir)
 
 include $(BUILD_EXECUTABLE)
+
+include $(CLEAR_VARS)
+
+LOCAL_C_INCLUDES := \
+    $(LOCAL_PATH)/../../jni/feature_mos/src \
+    $(LOCAL_PATH)/../../jni/feature_stab/src \
+    $(LOCAL_PATH)/../../jni/feature_stab/db_vlvm
+
+LOCAL_CFLAGS := -O3 -DNDEBUG
+
+LOCAL_SRC_FILES := yuv_convert_test.cpp
+
+LOCAL_SHARED_LIBRARIES := libjni_mosaic
+
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_MODULE := yuv_convert_test
+
+LOCAL_MODULE_PATH := $(local_target_dir)
+
+include $(BUILD_EXECUTABLE)
+
+include $(CLEAR_VARS)
+
+LOCAL_C_INCLUDES := \
+    $(LOCAL_PATH)/../../jni/feature_mos/src \
+    $(LOCAL_PATH)/../../jni/feature_stab/src \
+    $(LOCAL_PATH)/../../jni/feature_stab/db_vlvm
+
+LOCAL_CFLAGS := -O3 -DNDEBUG
+
+LOCAL_SRC_FILES := corner_detection_test.cpp
+
+LOCAL_SHARED_LIBRARIES := libjni_mosaic
+
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_MODULE := corner_detection_test
+
+LOCAL_MODULE_PATH := $(local_target_dir)
+
+include $(BUILD_EXECUTABLE)
+
+include $(CLEAR_VARS)
+
+LOCAL_C_INCLUDES := \
+    $(LOCAL_PATH)/../../jni/feature_mos/src \
+    $(LOCAL_PATH)/../../jni/feature_stab/src \
+    $(LOCAL_PATH)/../../jni/feature_stab/db_vlvm
+
+LOCAL_CFLAGS := -O3 -DNDEBUG
+
+LOCAL_SRC_FILES := feature_matching_test.cpp
+
+LOCAL_SHARED_LIBRARIES := libjni_mosaic
+
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_MODULE := feature_matching_test
+
+LOCAL_MODULE_PATH := $(local_target_dir)
+
+include $(BUILD_EXECUTABLE)
+
+include $(CLEAR_VARS)
+
+LOCAL_C_INCLUDES := \
+    $(LOCAL_PATH)/../../jni/feature_mos/src \
+    $(LOCAL_PATH)/../../jni/feature_stab/src \
+    $(LOCAL_PATH)/../../jni/feature_stab/db_vlvm
+
+LOCAL_CFLAGS := -O3 -DNDEBUG
+
+LOCAL_SRC_FILES := homography_test.cpp
+
+LOCAL_SHARED_LIBRARIES := libjni_mosaic
+
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_MODULE := homography_test
+
+LOCAL_MODULE_PATH := $(local_target_dir)
+
+include $(BUILD_EXECUTABLE)
+
+include $(CLEAR_VARS)
+
+LOCAL_C_INCLUDES := \
+    $(LOCAL_PATH)/../../jni/feature_mos/src \
+    $(LOCAL_PATH)/../../jni/feature_stab/src \
+    $(LOCAL_PATH)/../../jni/feature_stab/db_vlvm
+
+LOCAL_CFLAGS := -O3 -DNDEBUG
+
+LOCAL_SRC_FILES := stabilization_test.cpp
+
+LOCAL_SHARED_LIBRARIES := libjni_mosaic
+
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_MODULE := stabilization_test
+
+LOCAL_MODULE_PATH := $(local_target_dir)
+
+include $(BUILD_EXECUTABLE)
+
+include $(CLEAR_VARS)
+
+LOCAL_C_INCLUDES := \
+    $(LOCAL_PATH)/../../jni/feature_mos/src \
+    $(LOCAL_PATH)/../../jni/feature_stab/src \
+    $(LOCAL_PATH)/../../jni/feature_stab/db_vlvm
+
+LOCAL_CFLAGS := -O3 -DNDEBUG
+
+LOCAL_SRC_FILES := warp_test.cpp
+
+LOCAL_SHARED_LIBRARIES := libjni_mosaic
+
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_MODULE := warp_test
+
+LOCAL_MODULE_PATH := $(local_target_dir)
+
+include $(BUILD_EXECUTABLE)
+
+include $(CLEAR_VARS)
+
+LOCAL_C_INCLUDES := \
+    $(LOCAL_PATH)/../../jni/feature_mos/src \
+    $(LOCAL_PATH)/../../jni/feature_stab/src \
+    $(LOCAL_PATH)/../../jni/feature_stab/db_vlvm
+
+LOCAL_CFLAGS := -O3 -DNDEBUG
+
+LOCAL_SRC_FILES := seam_sites_test.cpp
+
+LOCAL_SHARED_LIBRARIES := libjni_mosaic
+
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_MODULE := seam_sites_test
+
+LOCAL_MODULE_PATH := $(local_target_dir)
+
+include $(BUILD_EXECUTABLE)
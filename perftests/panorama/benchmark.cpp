@@ -14,118 +14,510 @@
  * limitations under the License.
  */
 
+#include <algorithm>
+#include <math.h>
+#include <stdlib.h>
+#include <string.h>
 #include <time.h>
 #include <sys/types.h>
 #include <sys/stat.h>
 #include <unistd.h>
+#include <vector>
 
 #include "mosaic/Mosaic.h"
 #include "mosaic/ImageUtils.h"
+#include "mosaic/FrameSpillStore.h"
+#include "mosaic/JpegStripEncoder.h"
+#include "db_stage_timer.h"
 
 #define MAX_FRAMES 200
 #define KERNEL_ITERATIONS 10
+#define JPEG_QUALITY 100
+#define JPEG_CHUNK_SIZE (64 * 1024)
+#define DEFAULT_MIN_PSNR 40.0
 
 const int blendingType = Blend::BLEND_TYPE_HORZ;
 const int stripType = Blend::STRIP_TYPE_WIDE;
 
-ImageType yvuFrames[MAX_FRAMES];
+// Metrics recorded for every measured iteration: the align, stitch and total
+// times, followed by the time of every stage of db_stage_timer.h.
+enum {
+    METRIC_TOTAL,
+    METRIC_ALIGN,
+    METRIC_STITCH,
+    METRIC_FIRST_STAGE,
+    METRIC_COUNT = METRIC_FIRST_STAGE + DB_STAGE_COUNT
+};
 
-int loadImages(const char* basename, int &width, int &height)
+struct Dataset {
+    const char *basename;
+    const char *outputFilename;
+    const char *goldenFilename;
+    int numFrames;
+    int keptFrames;
+    int mosaicWidth;
+    int mosaicHeight;
+    std::vector<double> samples[METRIC_COUNT];
+    double psnr;
+    bool goldenPassed;
+};
+
+struct Options {
+    int iterations;
+    int warmup;
+    int frameRepeat;
+    const char *spillFilename;
+    const char *jsonFilename;
+    const char *csvFilename;
+    double minPsnr;
+    float maxOverlap;
+};
+
+static const char *metricName(int metric)
+{
+    static char name[64];
+    switch (metric) {
+        case METRIC_TOTAL: return "total";
+        case METRIC_ALIGN: return "align";
+        case METRIC_STITCH: return "stitch";
+    }
+    snprintf(name, sizeof(name), "stage.%s",
+             db_StageTimerName(metric - METRIC_FIRST_STAGE));
+    return name;
+}
+
+static bool isReportedMetric(int metric)
+{
+    return metric < METRIC_FIRST_STAGE || db_StageTimerEnabled();
+}
+
+static double elapsedMs(const struct timespec &from, const struct timespec &to)
+{
+    return (to.tv_sec - from.tv_sec) * 1000.0 + (to.tv_nsec - from.tv_nsec) / 1e6;
+}
+
+// Nearest-rank percentile of sorted samples.
+static double percentile(const std::vector<double> &sorted, double p)
+{
+    int rank = (int) ceil(p / 100.0 * sorted.size());
+    if (rank < 1) rank = 1;
+    return sorted[rank - 1];
+}
+
+struct Summary {
+    double mean, min, p50, p90, max;
+};
+
+static Summary summarize(std::vector<double> samples)
+{
+    Summary s = { 0, 0, 0, 0, 0 };
+    if (samples.empty()) return s;
+
+    std::sort(samples.begin(), samples.end());
+    for (size_t i = 0; i < samples.size(); i++) s.mean += samples[i];
+    s.mean /= samples.size();
+    s.min = samples.front();
+    s.p50 = percentile(samples, 50);
+    s.p90 = percentile(samples, 90);
+    s.max = samples.back();
+    return s;
+}
+
+static int loadImages(const char* basename, ImageType *rgbFrames, int &width, int &height)
 {
     char filename[512];
     struct stat filestat;
     int i;
 
     for (i = 0; i < MAX_FRAMES; i++) {
-        sprintf(filename, "%s_%03d.ppm", basename, i + 1);
+        snprintf(filename, sizeof(filename), "%s_%03d.ppm", basename, i + 1);
         if (stat(filename, &filestat) != 0) break;
-        ImageType rgbFrame = ImageUtils::readBinaryPPM(filename, width, height);
-        yvuFrames[i] = ImageUtils::allocateImage(width, height,
-                                ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
-        ImageUtils::rgb2yvu(yvuFrames[i], rgbFrame, width, height);
-        ImageUtils::freeImage(rgbFrame);
+        rgbFrames[i] = ImageUtils::readBinaryPPM(filename, width, height);
     }
     return i;
 }
 
-int main(int argc, char **argv)
+// Streams the mosaic to a JPEG file the way the app does, in fixed-size chunks.
+static bool writeJpeg(const char *filename, ImageType imageYVU, int width, int height)
 {
-    struct timespec t1, t2, t3;
+    struct timespec t1, t2;
+    JpegStripEncoder encoder;
+    unsigned char *chunk = new unsigned char[JPEG_CHUNK_SIZE];
+    long total = 0;
+    int count;
 
-    int width, height;
-    float totalElapsedTime = 0;
+    FILE *file = fopen(filename, "wb");
+    if (file == NULL) {
+        delete[] chunk;
+        return false;
+    }
 
-    const char *basename;
-    const char *filename;
+    clock_gettime(CLOCK_MONOTONIC, &t1);
+    encoder.begin(imageYVU, width, height, JPEG_QUALITY);
+    while ((count = encoder.read(chunk, JPEG_CHUNK_SIZE)) > 0) {
+        fwrite(chunk, 1, count, file);
+        total += count;
+    }
+    clock_gettime(CLOCK_MONOTONIC, &t2);
 
-    if (argc != 3) {
-        printf("Usage: %s input_dir output_filename\n", argv[0]);
-        return 0;
-    } else {
-        basename = argv[1];
-        filename = argv[2];
+    printf("JPEG: %ld bytes in %.3f seconds, peak strip buffer %d bytes\n",
+           total, elapsedMs(t1, t2) / 1000.0, encoder.getPeakBufferSize());
+
+    fclose(file);
+    delete[] chunk;
+    return count == 0;
+}
+
+// PSNR over the RGB channels of two images of the same size. Unlike a byte
+// comparison this still verifies optimizations that change the rounding.
+static double computePsnr(ImageType a, ImageType b, int width, int height)
+{
+    double squaredError = 0;
+    long n = (long) width * height * 3;
+    for (long i = 0; i < n; i++) {
+        double d = (double) a[i] - b[i];
+        squaredError += d * d;
+    }
+    if (squaredError == 0) return INFINITY;
+    return 10.0 * log10(255.0 * 255.0 * n / squaredError);
+}
+
+static bool checkGolden(Dataset &dataset, ImageType imageRGB, double minPsnr)
+{
+    int width, height;
+    ImageType golden = ImageUtils::readBinaryPPM(dataset.goldenFilename, width, height);
+    if (golden == NULL) {
+        printf("Cannot read golden image %s\n", dataset.goldenFilename);
+        return false;
     }
 
-    // Load the images outside the computational kernel
-    int totalFrames = loadImages(basename, width, height);
+    if (width != dataset.mosaicWidth || height != dataset.mosaicHeight) {
+        printf("Golden check FAILED: mosaic is %dx%d, %s is %dx%d\n",
+               dataset.mosaicWidth, dataset.mosaicHeight, dataset.goldenFilename,
+               width, height);
+        ImageUtils::freeImage(golden);
+        return false;
+    }
 
+    dataset.psnr = computePsnr(imageRGB, golden, width, height);
+    bool passed = dataset.psnr >= minPsnr;
+    printf("Golden check %s: PSNR %.2f dB against %s (minimum %.2f dB)\n",
+           passed ? "passed" : "FAILED", dataset.psnr, dataset.goldenFilename, minPsnr);
+    ImageUtils::freeImage(golden);
+    return passed;
+}
+
+static bool runDataset(Dataset &dataset, const Options &options)
+{
+    struct timespec t0, t1, t2, t3;
+    int width, height;
+
+    ImageType rgbFrames[MAX_FRAMES];
+    int totalFrames = loadImages(dataset.basename, rgbFrames, width, height);
     if (totalFrames == 0) {
-        printf("Image files not found. Make sure %s exists.\n",
-               basename);
-        return 1;
+        printf("Image files not found. Make sure %s exists.\n", dataset.basename);
+        return false;
     }
 
-    printf("%d frames loaded\n", totalFrames);
+    printf("%s: %d frames loaded\n", dataset.basename, totalFrames);
 
+    // Build the sequence of frames to mosaic, optionally repeating each frame
+    // but the last one to simulate a longer sweep. Every frame gets its own
+    // copy, as the high-res frames do in the JNI layer. The blender always
+    // keeps the last frame, so copies of it would put two frames on the
+    // same spot and break the cropping.
+    int numFrames = (totalFrames - 1) * options.frameRepeat + 1;
+    ImageType *frames = new ImageType[numFrames];
+    FrameSpillStore spillStore;
+
+    if (options.spillFilename != NULL) {
+        if (!spillStore.open(options.spillFilename, width, height, numFrames)) {
+            printf("Cannot create spill file %s\n", options.spillFilename);
+            return false;
+        }
+    }
+
+    for (int i = 0; i < numFrames; i++) {
+        if (spillStore.isOpen()) {
+            frames[i] = spillStore.getFrame(i);
+        } else {
+            frames[i] = ImageUtils::allocateImage(width, height,
+                                ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
+        }
+    }
+
+    dataset.numFrames = numFrames;
+    printf("%d frames to mosaic (%s)\n", numFrames,
+           spillStore.isOpen() ? "spilled to file" : "in memory");
+
+    bool passed = true;
+    int totalIterations = options.warmup + options.iterations;
 
     // Interesting stuff is here
-    for (int iteration = 0; iteration < KERNEL_ITERATIONS; iteration++)  {
+    for (int iteration = 0; iteration < totalIterations; iteration++)  {
+        bool warmup = iteration < options.warmup;
         Mosaic mosaic;
 
-        mosaic.initialize(blendingType, stripType, width, height, -1, false, 0);
+        mosaic.initialize(blendingType, stripType, width, height, numFrames, false, 0);
+        mosaic.setMaxOverlap(options.maxOverlap);
+        db_StageTimerReset();
+
+        // Convert the input as the camera does for every preview frame.
+        clock_gettime(CLOCK_MONOTONIC, &t0);
+        for (int i = 0; i < numFrames; i++) {
+            ImageUtils::rgb2yvu(frames[i], rgbFrames[i / options.frameRepeat],
+                                width, height);
+            // Start with the spilled frames paged out.
+            if (spillStore.isOpen()) spillStore.release(i);
+        }
 
         clock_gettime(CLOCK_MONOTONIC, &t1);
-        for (int i = 0; i < totalFrames; i++) {
-            mosaic.addFrame(yvuFrames[i]);
+        for (int i = 0; i < numFrames; i++) {
+            mosaic.addFrame(frames[i]);
+            // Same as the JNI layer: page the frame out again once aligned.
+            if (spillStore.isOpen()) spillStore.release(i);
         }
         clock_gettime(CLOCK_MONOTONIC, &t2);
 
-        float progress = 0.0;
-        bool cancelComputation = false;
-
-        mosaic.createMosaic(progress, cancelComputation);
+        MosaicProgress progress;
+        mosaic.createMosaic(progress);
+        // Including the last frame, if it was rejected for its overlap.
+        int keptFrames = mosaic.getNumFrames();
 
         int mosaicWidth, mosaicHeight;
         ImageType resultYVU = mosaic.getMosaic(mosaicWidth, mosaicHeight);
 
-        ImageType imageRGB = ImageUtils::allocateImage(
-            mosaicWidth, mosaicHeight, ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
-
         clock_gettime(CLOCK_MONOTONIC, &t3);
 
-        float elapsedTime =
-            (t3.tv_sec - t1.tv_sec) + (t3.tv_nsec - t1.tv_nsec)/1e9;
-        float addImageTime =
-            (t2.tv_sec - t1.tv_sec) + (t2.tv_nsec - t1.tv_nsec)/1e9;
-        float stitchImageTime =
-            (t3.tv_sec - t2.tv_sec) + (t3.tv_nsec - t2.tv_nsec)/1e9;
+        double addImageTime = elapsedMs(t1, t2);
+        double stitchImageTime = elapsedMs(t2, t3);
+        double elapsedTime = addImageTime + stitchImageTime;
 
-        totalElapsedTime += elapsedTime;
+        printf("%s %d: %dx%d moasic created: "
+               "%.2f seconds (%.2f + %.2f), conversion %.2f seconds\n",
+               warmup ? "Warm-up" : "Iteration",
+               warmup ? iteration : iteration - options.warmup,
+               mosaicWidth, mosaicHeight, elapsedTime / 1000.0,
+               addImageTime / 1000.0, stitchImageTime / 1000.0,
+               elapsedMs(t0, t1) / 1000.0);
 
-        printf("Iteration %d: %dx%d moasic created: "
-               "%.2f seconds (%.2f + %.2f)\n",
-               iteration, mosaicWidth, mosaicHeight,
-               elapsedTime, addImageTime, stitchImageTime);
+        if (!warmup) {
+            dataset.samples[METRIC_TOTAL].push_back(elapsedTime);
+            dataset.samples[METRIC_ALIGN].push_back(addImageTime);
+            dataset.samples[METRIC_STITCH].push_back(stitchImageTime);
+            for (int stage = 0; stage < DB_STAGE_COUNT; stage++) {
+                dataset.samples[METRIC_FIRST_STAGE + stage].push_back(
+                        db_StageTimerTotalMs(stage));
+            }
+        }
 
-        // Write the output only once for correctness check
+        // Write and check the output only once for correctness check
         if (iteration == 0) {
-            ImageUtils::yvu2rgb(imageRGB, resultYVU, mosaicWidth,
-                                mosaicHeight);
-            ImageUtils::writeBinaryPPM(imageRGB, filename, mosaicWidth,
-                                       mosaicHeight);
+            dataset.mosaicWidth = mosaicWidth;
+            dataset.mosaicHeight = mosaicHeight;
+            dataset.keptFrames = keptFrames;
+
+            // The JNI layer copies a high-res frame only once it is kept.
+            double frameMb = width * height * 3 / (1024.0 * 1024.0);
+            printf("%d of %d frames kept (overlap at most %.2f), %.1f of %.1f MB of "
+                   "high-res frames\n", keptFrames, numFrames, options.maxOverlap,
+                   keptFrames * frameMb, numFrames * frameMb);
+
+            ImageType imageRGB = ImageUtils::allocateImage(
+                mosaicWidth, mosaicHeight, ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
+            ImageUtils::yvu2rgb(imageRGB, resultYVU, mosaicWidth, mosaicHeight);
+
+            const char *filename = dataset.outputFilename;
+            size_t length = strlen(filename);
+            if (length > 4 && strcmp(filename + length - 4, ".jpg") == 0) {
+                writeJpeg(filename, resultYVU, mosaicWidth, mosaicHeight);
+            } else {
+                ImageUtils::writeBinaryPPM(imageRGB, filename, mosaicWidth,
+                                           mosaicHeight);
+            }
+
+            if (dataset.goldenFilename != NULL) {
+                dataset.goldenPassed = checkGolden(dataset, imageRGB, options.minPsnr);
+                passed = dataset.goldenPassed;
+            }
+            ImageUtils::freeImage(imageRGB);
         }
+        ImageUtils::freeImage(resultYVU);
+    }
+
+    Summary total = summarize(dataset.samples[METRIC_TOTAL]);
+    printf("Total elapsed time: %.2f seconds\n",
+           total.mean * dataset.samples[METRIC_TOTAL].size() / 1000.0);
+
+    for (int i = 0; i < numFrames && !spillStore.isOpen(); i++) {
+        ImageUtils::freeImage(frames[i]);
+    }
+    spillStore.close();
+    delete[] frames;
+
+    for (int i = 0; i < totalFrames; i++) {
+        ImageUtils::freeImage(rgbFrames[i]);
+    }
+
+    return passed;
+}
+
+static void printSummary(const Dataset &dataset)
+{
+    printf("\n%s (%d frames, %d iterations), milliseconds:\n", dataset.basename,
+           dataset.numFrames, (int) dataset.samples[METRIC_TOTAL].size());
+    printf("%-16s %10s %10s %10s %10s %10s\n", "metric", "mean", "min", "p50", "p90", "max");
+    for (int metric = 0; metric < METRIC_COUNT; metric++) {
+        if (!isReportedMetric(metric)) continue;
+        Summary s = summarize(dataset.samples[metric]);
+        printf("%-16s %10.2f %10.2f %10.2f %10.2f %10.2f\n", metricName(metric),
+               s.mean, s.min, s.p50, s.p90, s.max);
+    }
+    if (!db_StageTimerEnabled()) {
+        printf("(build with -DDB_STAGE_TIMING for the per-stage times)\n");
+    }
+}
+
+static bool writeJson(const char *filename, const std::vector<Dataset> &datasets,
+                      const Options &options)
+{
+    FILE *file = fopen(filename, "w");
+    if (file == NULL) return false;
+
+    fprintf(file, "{\n  \"iterations\": %d,\n  \"warmup\": %d,\n  \"frame_repeat\": %d,\n"
+            "  \"max_overlap\": %.3f,\n  \"stage_timing\": %s,\n  \"datasets\": [\n",
+            options.iterations, options.warmup, options.frameRepeat, options.maxOverlap,
+            db_StageTimerEnabled() ? "true" : "false");
+    for (size_t d = 0; d < datasets.size(); d++) {
+        const Dataset &dataset = datasets[d];
+        fprintf(file, "    {\n      \"input\": \"%s\",\n      \"frames\": %d,\n"
+                "      \"kept_frames\": %d,\n      \"width\": %d,\n      \"height\": %d,\n"
+                "      \"metrics_ms\": {\n", dataset.basename, dataset.numFrames,
+                dataset.keptFrames, dataset.mosaicWidth, dataset.mosaicHeight);
+        bool first = true;
+        for (int metric = 0; metric < METRIC_COUNT; metric++) {
+            if (!isReportedMetric(metric)) continue;
+            Summary s = summarize(dataset.samples[metric]);
+            fprintf(file, "%s        \"%s\": { \"mean\": %.3f, \"min\": %.3f, "
+                    "\"p50\": %.3f, \"p90\": %.3f, \"max\": %.3f }",
+                    first ? "" : ",\n", metricName(metric), s.mean, s.min, s.p50,
+                    s.p90, s.max);
+            first = false;
+        }
+        fprintf(file, "\n      }");
+        if (dataset.goldenFilename != NULL) {
+            fprintf(file, ",\n      \"golden\": { \"file\": \"%s\", \"psnr_db\": ",
+                    dataset.goldenFilename);
+            if (isinf(dataset.psnr)) {
+                fprintf(file, "null");
+            } else {
+                fprintf(file, "%.3f", dataset.psnr);
+            }
+            fprintf(file, ", \"passed\": %s }", dataset.goldenPassed ? "true" : "false");
+        }
+        fprintf(file, "\n    }%s\n", d + 1 < datasets.size() ? "," : "");
+    }
+    fprintf(file, "  ]\n}\n");
+    fclose(file);
+    return true;
+}
+
+static bool writeCsv(const char *filename, const std::vector<Dataset> &datasets)
+{
+    FILE *file = fopen(filename, "w");
+    if (file == NULL) return false;
+
+    fprintf(file, "input,metric,mean_ms,min_ms,p50_ms,p90_ms,max_ms\n");
+    for (size_t d = 0; d < datasets.size(); d++) {
+        for (int metric = 0; metric < METRIC_COUNT; metric++) {
+            if (!isReportedMetric(metric)) continue;
+            Summary s = summarize(datasets[d].samples[metric]);
+            fprintf(file, "%s,%s,%.3f,%.3f,%.3f,%.3f,%.3f\n", datasets[d].basename,
+                    metricName(metric), s.mean, s.min, s.p50, s.p90, s.max);
+        }
+    }
+    fclose(file);
+    return true;
+}
+
+static void usage(const char *name)
+{
+    printf("Usage: %s [options] input_dir output_filename [input_dir output_filename ...]\n",
+           name);
+    printf("  -n iterations   measured iterations per dataset (default %d)\n",
+           KERNEL_ITERATIONS);
+    printf("  -w iterations   warm-up iterations, not measured (default 0)\n");
+    printf("  -r repeat       add each input frame but the last this many times (default 1)\n");
+    printf("  -s spill_file   keep the frames in this memory-mapped file\n");
+    printf("  -o overlap      reject frames overlapping the last one kept by more than\n"
+           "                  this fraction of the frame (default 1, only a still camera)\n");
+    printf("  -g golden.ppm   golden image of the next dataset without one\n");
+    printf("  -p psnr         minimum PSNR in dB of the golden check (default %.0f)\n",
+           DEFAULT_MIN_PSNR);
+    printf("  -j file.json    write the results as JSON\n");
+    printf("  -c file.csv     write the results as CSV\n");
+    printf("  output_filename ending in .jpg writes a JPEG instead of a PPM\n");
+}
+
+int main(int argc, char **argv)
+{
+    Options options = { KERNEL_ITERATIONS, 0, 1, NULL, NULL, NULL, DEFAULT_MIN_PSNR, 1.0f };
+    std::vector<const char *> goldens;
+    int opt;
+
+    while ((opt = getopt(argc, argv, "n:w:r:s:o:g:p:j:c:")) != -1) {
+        switch (opt) {
+            case 'n': options.iterations = atoi(optarg); break;
+            case 'w': options.warmup = atoi(optarg); break;
+            case 'r': options.frameRepeat = atoi(optarg); break;
+            case 's': options.spillFilename = optarg; break;
+            case 'o': options.maxOverlap = atof(optarg); break;
+            case 'g': goldens.push_back(optarg); break;
+            case 'p': options.minPsnr = atof(optarg); break;
+            case 'j': options.jsonFilename = optarg; break;
+            case 'c': options.csvFilename = optarg; break;
+            default: usage(argv[0]); return 1;
+        }
+    }
+
+    int positional = argc - optind;
+    if (positional < 2 || positional % 2 != 0 || options.iterations < 1) {
+        usage(argv[0]);
+        return 1;
+    }
+    if (options.frameRepeat < 1) options.frameRepeat = 1;
+    if (options.warmup < 0) options.warmup = 0;
+
+    std::vector<Dataset> datasets(positional / 2);
+    for (size_t d = 0; d < datasets.size(); d++) {
+        datasets[d].basename = argv[optind + 2 * d];
+        datasets[d].outputFilename = argv[optind + 2 * d + 1];
+        datasets[d].goldenFilename = d < goldens.size() ? goldens[d] : NULL;
+        datasets[d].numFrames = 0;
+        datasets[d].keptFrames = 0;
+        datasets[d].mosaicWidth = 0;
+        datasets[d].mosaicHeight = 0;
+        datasets[d].psnr = 0;
+        datasets[d].goldenPassed = false;
+    }
+
+    bool passed = true;
+    for (size_t d = 0; d < datasets.size(); d++) {
+        if (!runDataset(datasets[d], options)) passed = false;
+    }
+
+    for (size_t d = 0; d < datasets.size(); d++) {
+        printSummary(datasets[d]);
+    }
+
+    if (options.jsonFilename != NULL && !writeJson(options.jsonFilename, datasets, options)) {
+        printf("Cannot write %s\n", options.jsonFilename);
+        passed = false;
+    }
+    if (options.csvFilename != NULL && !writeCsv(options.csvFilename, datasets)) {
+        printf("Cannot write %s\n", options.csvFilename);
+        passed = false;
     }
-    printf("Total elapsed time: %.2f seconds\n", totalElapsedTime);
 
-    return 0;
+    return passed ? 0 : 1;
 }
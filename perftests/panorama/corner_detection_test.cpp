@@ -0,0 +1,399 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Checks that db_CornerDetector_u finds the corners of the per-pixel Harris
+// detector it replaced, which is kept below as the reference, with 1 to 4
+// threads, on the frames of a dataset, and prints the corners per second of
+// both.
+//
+//   corner_detection_test [-n iterations] [-t max threads] input_basename
+//
+// The detector is set up as the alignment does it. Exits with 1 if fewer than
+// MIN_MATCHING of the reference corners are found at the same place.
+
+#include <float.h>
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/stat.h>
+#include <time.h>
+#include <unistd.h>
+
+#include "db_feature_detection.h"
+#include "db_utilities.h"
+#include "db_utilities_constants.h"
+#include "mosaic/ImageUtils.h"
+
+#define DEFAULT_ITERATIONS 5
+#define MAX_FRAMES 200
+
+const int TARGET_NR_CORNERS = 750;     // Align::DEFAULT_NR_CORNERS
+const int REF_BORDER = 10;              // BORDER of db_feature_detection.cpp
+const double MIN_MATCHING = 0.99;       // Some float rounding may differ on ARM
+const double POSITION_TOLERANCE = 0.01; // Pixels
+
+/////////////////////////////////////////////////////////////////////////////
+// The reference detector: the Harris strength of each pixel computed on its
+// own, and the corner extraction as it was in db_feature_detection.cpp.
+
+// Harris strength of (x, y): the products of the derivatives, filtered with
+// 1 4 6 4 1 vertically and horizontally, with the integer arithmetic of the
+// C version of db_HarrisStrength_u.
+static float referenceStrength(unsigned char **img, int x, int y)
+{
+    static const int weights[5] = {1, 4, 6, 4, 1};
+    int gxx = 0, gxy = 0, gyy = 0;
+    for (int u = 0; u < 5; u++)
+    {
+        int cxx = 0, cxy = 0, cyy = 0;
+        for (int v = 0; v < 5; v++)
+        {
+            int i = y - 2 + v;
+            int j = x - 2 + u;
+            int ix = (img[i][j - 1] - img[i][j + 1]) >> 1;
+            int iy = (img[i - 1][j] - img[i + 1][j]) >> 1;
+            cxx += weights[v] * ix * ix;
+            cxy += weights[v] * ix * iy;
+            cyy += weights[v] * iy * iy;
+        }
+        gxx += weights[u] * cxx;
+        gxy += weights[u] * cxy;
+        gyy += weights[u] * cyy;
+    }
+
+    float k = 0.06f;
+    float Gxx = (float) gxx;
+    float Gxy = (float) gxy;
+    float Gyy = (float) gyy;
+    float det = Gxx * Gyy - Gxy * Gxy;
+    float trc = Gxx + Gyy;
+    return det - k * trc * trc;
+}
+
+static int CornersFromChunk(float **strength, int left, int top, int right, int bottom,
+        float threshold, double *x_temp, double *y_temp, double *s_temp)
+{
+    int i, j, nr;
+    float s;
+
+    nr = 0;
+    for (i = top; i <= bottom; i++) for (j = left; j <= right; j++)
+    {
+        s = strength[i][j];
+
+        if (s >= threshold &&
+            s > strength[i-2][j-2] && s > strength[i-2][j-1] && s > strength[i-2][j] && s > strength[i-2][j+1] && s > strength[i-2][j+2] &&
+            s > strength[i-1][j-2] && s > strength[i-1][j-1] && s > strength[i-1][j] && s > strength[i-1][j+1] && s > strength[i-1][j+2] &&
+            s > strength[  i][j-2] && s > strength[  i][j-1] &&                         s > strength[  i][j+1] && s > strength[  i][j+2] &&
+            s > strength[i+1][j-2] && s > strength[i+1][j-1] && s > strength[i+1][j] && s > strength[i+1][j+1] && s > strength[i+1][j+2] &&
+            s > strength[i+2][j-2] && s > strength[i+2][j-1] && s > strength[i+2][j] && s > strength[i+2][j+1] && s > strength[i+2][j+2])
+        {
+            x_temp[nr] = (double) j;
+            y_temp[nr] = (double) i;
+            s_temp[nr] = (double) s;
+            nr++;
+        }
+    }
+    return nr;
+}
+
+static void SubPixel(float **strength, const double xd, const double yd, double &xs, double &ys)
+{
+    int x = (int) xd;
+    int y = (int) yd;
+
+    float fxx = strength[y][x-1] - strength[y][x] - strength[y][x] + strength[y][x+1];
+    float fyy = strength[y-1][x] - strength[y][x] - strength[y][x] + strength[y+1][x];
+    float fxy = (strength[y-1][x-1] - strength[y-1][x+1] - strength[y+1][x-1] + strength[y+1][x+1])/(float)4.0;
+
+    float denom = (fxx * fyy - fxy * fxy) * (float) 2.0;
+
+    xs = xd;
+    ys = yd;
+
+    if (db_absf(denom) <= FLT_EPSILON) return;
+
+    float fx = strength[y][x+1] - strength[y][x-1];
+    float fy = strength[y+1][x] - strength[y-1][x];
+
+    float dx = (fyy * fx - fxy * fy) / denom;
+    float dy = (fxx * fy - fxy * fx) / denom;
+
+    if (db_absf(dx) > 1.0 || db_absf(dy) > 1.0) return;
+
+    xs -= dx;
+    ys -= dy;
+}
+
+static void ExtractCornersSaturated(float **strength, int left, int top, int right, int bottom,
+        int bw, int bh, unsigned long area_factor, float threshold, double *temp_d,
+        double *x_coord, double *y_coord, int *nr_corners)
+{
+    double *x_temp, *y_temp, *s_temp, *select_temp;
+    double loc_thresh;
+    unsigned long bwbh, area, saturation;
+    int x, next_x, last_x;
+    int y, next_y, last_y;
+    int nr, nr_points, i, stop;
+
+    bwbh = bw * bh;
+    x_temp = temp_d;
+    y_temp = x_temp + bwbh;
+    s_temp = y_temp + bwbh;
+    select_temp = s_temp + bwbh;
+
+    // DB_SUB_PIXEL
+    left++;
+    top++;
+    bottom--;
+    right--;
+
+    nr_points = 0;
+    for (y = top; y <= bottom; y = next_y)
+    {
+        next_y = y + bh;
+        last_y = next_y - 1;
+        if (last_y > bottom) last_y = bottom;
+        for (x = left; x <= right; x = next_x)
+        {
+            next_x = x + bw;
+            last_x = next_x - 1;
+            if (last_x > right) last_x = right;
+
+            area = (last_x - x + 1) * (last_y - y + 1);
+            saturation = (area * area_factor) / 10000;
+            nr = CornersFromChunk(strength, x, y, last_x, last_y, threshold, x_temp, y_temp, s_temp);
+            if (nr)
+            {
+                if (((unsigned long) nr) > saturation) loc_thresh = db_LeanQuickSelect(s_temp, nr, nr - saturation, select_temp);
+                else loc_thresh = threshold;
+
+                stop = nr_points + saturation;
+                for (i = 0; (i < nr) && (nr_points < stop); i++)
+                {
+                    if (s_temp[i] >= loc_thresh)
+                    {
+                        SubPixel(strength, x_temp[i], y_temp[i], x_coord[nr_points], y_coord[nr_points]);
+                        nr_points++;
+                    }
+                }
+            }
+        }
+    }
+    *nr_corners = nr_points;
+}
+
+// The settings db_CornerDetector_u::Init() derives from its arguments.
+struct ReferenceDetector
+{
+    int width, height, bw, bh;
+    unsigned long areaFactor;
+    float threshold;
+    float **strength;
+    float *strengthMem;
+    double *temp;
+
+    ReferenceDetector(int w, int h, int nrHorizontal, int nrVertical, double threshold) :
+            width(w), height(h)
+    {
+        int activeWidth = db_maxi(1, w - 10);
+        int activeHeight = db_maxi(1, h - 10);
+        bw = db_maxi(1, activeWidth / nrHorizontal);
+        bh = db_maxi(1, activeHeight / nrVertical);
+        areaFactor = db_minl(1000, db_maxl(1, (long) (10000.0 * TARGET_NR_CORNERS /
+                ((double) activeWidth * activeHeight))));
+        this->threshold = (float) (16.0 * threshold);
+        strengthMem = new float[w * h];
+        memset(strengthMem, 0, w * h * sizeof(float));
+        strength = db_SetupImageReferences_f(strengthMem, w, h);
+        temp = new double[5 * bw * bh];
+    }
+
+    ~ReferenceDetector()
+    {
+        delete [] strength;
+        delete [] strengthMem;
+        delete [] temp;
+    }
+
+    void detectCorners(unsigned char **img, double *x, double *y, int *nr)
+    {
+        for (int i = 3; i <= height - 4; i++)
+            for (int j = 3; j <= width - 4; j++)
+                strength[i][j] = referenceStrength(img, j, i);
+        ExtractCornersSaturated(strength, REF_BORDER, REF_BORDER, width - REF_BORDER - 1,
+                height - REF_BORDER - 1, bw, bh, areaFactor, threshold, temp, x, y, nr);
+    }
+};
+
+/////////////////////////////////////////////////////////////////////////////
+
+static double nowMs()
+{
+    struct timespec t;
+    clock_gettime(CLOCK_MONOTONIC, &t);
+    return t.tv_sec * 1000.0 + t.tv_nsec / 1e6;
+}
+
+// Loads the frames of basename as the gray images the alignment gets: the Y
+// plane of the YVU frames, overallocated as db_CornerDetector_u requires.
+static int loadFrames(const char *basename, unsigned char ***frames, int &width, int &height)
+{
+    char filename[512];
+    struct stat filestat;
+    int count;
+
+    for (count = 0; count < MAX_FRAMES; count++)
+    {
+        snprintf(filename, sizeof(filename), "%s_%03d.ppm", basename, count + 1);
+        if (stat(filename, &filestat) != 0) break;
+        ImageType rgb = ImageUtils::readBinaryPPM(filename, width, height);
+        ImageType yvu = ImageUtils::allocateImage(width, height, 3);
+        ImageUtils::rgb2yvu(yvu, rgb, width, height);
+        frames[count] = db_AllocImage_u(width, height);
+        for (int i = 0; i < height; i++)
+        {
+            memcpy(frames[count][i], yvu + i * width, width);
+        }
+        ImageUtils::freeImage(rgb);
+        ImageUtils::freeImage(yvu);
+    }
+    return count;
+}
+
+// Returns the number of the reference corners found at the same position.
+static int countMatching(const double *refX, const double *refY, int refNr,
+        const double *x, const double *y, int nr)
+{
+    int matching = 0;
+    for (int i = 0; i < refNr; i++)
+    {
+        for (int j = 0; j < nr; j++)
+        {
+            if (fabs(refX[i] - x[j]) <= POSITION_TOLERANCE &&
+                    fabs(refY[i] - y[j]) <= POSITION_TOLERANCE)
+            {
+                matching++;
+                break;
+            }
+        }
+    }
+    return matching;
+}
+
+static int usage(const char *name)
+{
+    printf("usage: %s [-n iterations] [-t max threads] input_basename\n", name);
+    return 1;
+}
+
+int main(int argc, char **argv)
+{
+    int iterations = DEFAULT_ITERATIONS;
+    int maxThreads = DB_MAX_THREADS;
+    int opt;
+    while ((opt = getopt(argc, argv, "n:t:")) != -1) {
+        switch (opt) {
+            case 'n': iterations = atoi(optarg); break;
+            case 't': maxThreads = atoi(optarg); break;
+            default: return usage(argv[0]);
+        }
+    }
+    if (optind != argc - 1) return usage(argv[0]);
+
+    unsigned char **frames[MAX_FRAMES];
+    int width = 0, height = 0;
+    int count = loadFrames(argv[optind], frames, width, height);
+    if (count == 0) {
+        printf("FAIL: no frames at %s\n", argv[optind]);
+        return 1;
+    }
+
+    // As db_FrameToReferenceRegistration::Init() and Align::initialize() do.
+    double threshold = DB_DEFAULT_ABS_CORNER_THRESHOLD / 500.0;
+    db_CornerDetector_u detector;
+    int maxNr = detector.Init(width, height, TARGET_NR_CORNERS, width / 48, height / 60,
+            threshold, 0.0);
+    ReferenceDetector reference(width, height, width / 48, height / 60, threshold);
+
+    double *refX = new double[maxNr];
+    double *refY = new double[maxNr];
+    double *x = new double[maxNr];
+    double *y = new double[maxNr];
+
+    // Check every frame with 1 to maxThreads threads.
+    long refCorners = 0, matching = 0, exact = 0, checked = 0;
+    for (int f = 0; f < count; f++)
+    {
+        int refNr;
+        reference.detectCorners(frames[f], refX, refY, &refNr);
+        refCorners += refNr;
+        for (int threads = 1; threads <= maxThreads; threads++)
+        {
+            int nr;
+            db_SetMaxThreads(threads);
+            detector.DetectCorners(frames[f], x, y, &nr);
+            matching += countMatching(refX, refY, refNr, x, y, nr);
+            checked += refNr;
+            if (nr == refNr && memcmp(x, refX, nr * sizeof(double)) == 0 &&
+                    memcmp(y, refY, nr * sizeof(double)) == 0) {
+                exact++;
+            }
+        }
+    }
+    bool passed = matching >= MIN_MATCHING * checked;
+    printf("%s: %.2f%% of the reference corners found, %ld of %d frame checks "
+           "bit-exact\n", passed ? "PASS" : "FAIL", 100.0 * matching / checked, exact,
+           count * maxThreads);
+
+    printf("%d frames of %dx%d, %.0f corners per frame:\n", count, width, height,
+           (double) refCorners / count);
+    double t0 = nowMs();
+    for (int i = 0; i < iterations; i++)
+    {
+        int nr;
+        for (int f = 0; f < count; f++) reference.detectCorners(frames[f], refX, refY, &nr);
+    }
+    double refMs = (nowMs() - t0) / (iterations * count);
+    printf("  reference             %7.3f ms/frame  %9.0f corners/s\n", refMs,
+           refCorners / (count * refMs) * 1000.0);
+    for (int threads = 1; threads <= maxThreads; threads *= 2)
+    {
+        db_SetMaxThreads(threads);
+        long corners = 0;
+        t0 = nowMs();
+        for (int i = 0; i < iterations; i++)
+        {
+            for (int f = 0; f < count; f++)
+            {
+                int nr;
+                detector.DetectCorners(frames[f], x, y, &nr);
+                corners += nr;
+            }
+        }
+        double ms = (nowMs() - t0) / (iterations * count);
+        printf("  db_CornerDetector_u %d %7.3f ms/frame  %9.0f corners/s\n", threads, ms,
+               corners / (iterations * count * ms) * 1000.0);
+    }
+
+    for (int f = 0; f < count; f++) db_FreeImage_u(frames[f], height);
+    delete [] refX;
+    delete [] refY;
+    delete [] x;
+    delete [] y;
+    return passed ? 0 : 1;
+}
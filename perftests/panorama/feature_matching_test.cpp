@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Compares the feature matching of the alignment with the matches looked for
+// around the motion predicted from the previous frames and within the full
+// search range, on the frames of a dataset:
+//
+//   feature_matching_test [-n iterations] input_basename
+//
+// Aligns every frame, every 2nd and every 3rd frame as Align does and prints
+// how many frames are aligned correctly, that is with MIN_NR_INLIERS inliers
+// and within MAX_CENTER_ERROR of the motion chained from the consecutive
+// frames aligned within the full search range, then the matches per second of
+// db_Matcher_u both ways. Also checks that the vectorized correlation gives
+// the scores of the C code. Exits with 1 if the scores differ or if fewer
+// frames are aligned correctly with the prediction.
+
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/stat.h>
+#include <time.h>
+#include <unistd.h>
+
+#include "dbreg/dbreg.h"
+#include "db_feature_detection.h"
+#include "db_feature_matching.h"
+#include "db_utilities.h"
+#include "db_utilities_camera.h"
+#include "db_utilities_constants.h"
+#include "mosaic/ImageUtils.h"
+
+#define DEFAULT_ITERATIONS 5
+#define MAX_FRAMES 200
+#define MAX_STEP 3
+
+// As Align::initialize() sets up db_FrameToReferenceRegistration.
+const int TARGET_NR_CORNERS = 750;      // Align::DEFAULT_NR_CORNERS
+const double MAX_DISPARITY = 0.1;       // Align::DEFAULT_MAX_DISPARITY
+const int MIN_NR_INLIERS = 10;          // Align::MIN_NR_INLIERS
+const double MAX_CENTER_ERROR = 4.0;    // Pixels
+
+static double nowMs()
+{
+    struct timespec t;
+    clock_gettime(CLOCK_MONOTONIC, &t);
+    return t.tv_sec * 1000.0 + t.tv_nsec / 1e6;
+}
+
+// Loads the frames of basename as the gray images the alignment gets: the Y
+// plane of the YVU frames, overallocated as db_CornerDetector_u requires.
+static int loadFrames(const char *basename, unsigned char ***frames, int &width, int &height)
+{
+    char filename[512];
+    struct stat filestat;
+    int count;
+
+    for (count = 0; count < MAX_FRAMES; count++)
+    {
+        snprintf(filename, sizeof(filename), "%s_%03d.ppm", basename, count + 1);
+        if (stat(filename, &filestat) != 0) break;
+        ImageType rgb = ImageUtils::readBinaryPPM(filename, width, height);
+        ImageType yvu = ImageUtils::allocateImage(width, height, 3);
+        ImageUtils::rgb2yvu(yvu, rgb, width, height);
+        frames[count] = db_AllocImage_u(width, height);
+        for (int i = 0; i < height; i++)
+        {
+            memcpy(frames[count][i], yvu + i * width, width);
+        }
+        ImageUtils::freeImage(rgb);
+        ImageUtils::freeImage(yvu);
+    }
+    return count;
+}
+
+static void initRegistration(db_FrameToReferenceRegistration &reg, int width, int height)
+{
+    reg.Init(width, height, DB_HOMOGRAPHY_TYPE_R_T, 20, false, false,
+            DB_POINT_STANDARDDEV, 1500, false, 0, DB_DEFAULT_NR_SAMPLES,
+            DB_DEFAULT_CHUNK_SIZE, TARGET_NR_CORNERS, MAX_DISPARITY, false,
+            width / 48, height / 60);
+}
+
+// Motion of the image center under H.
+static void centerMotion(const double H[9], int width, int height, double motion[2])
+{
+    double center[2] = { 0.5 * width, 0.5 * height };
+    double moved[2];
+    db_ImageHomographyInhomogenous(moved, H, center);
+    motion[0] = moved[0] - center[0];
+    motion[1] = moved[1] - center[1];
+}
+
+struct StepStats
+{
+    int frames;         // Frames after the first
+    int correct;
+    int predicted;      // Aligned with the predicted matches, without falling back
+    long matches;
+    long inliers;
+};
+
+// Aligns every step-th frame to the previous one as Align does and stores the
+// homography from frame f - step to frame f in H[f].
+static StepStats alignFrames(unsigned char ***frames, int count, int step, int width,
+        int height, bool prediction, double (*H)[9], double (*truth)[9])
+{
+    StepStats stats = { 0, 0, 0, 0, 0 };
+    db_FrameToReferenceRegistration reg;
+    initRegistration(reg, width, height);
+    reg.ResetMotionPrediction(prediction);
+
+    double Hcurr[9];
+    db_Identity3x3(Hcurr);
+    reg.AddFrame(frames[0], Hcurr, true);
+    for (int f = step; f < count; f += step)
+    {
+        db_Identity3x3(Hcurr);
+        reg.AddFrame(frames[f], Hcurr, false);
+        db_Copy9(H[f], Hcurr);
+
+        int inliers = reg.GetNrInliers();
+        stats.frames++;
+        stats.matches += reg.GetNrMatches();
+        stats.inliers += inliers;
+        if (reg.IsMotionPredicted()) stats.predicted++;
+        if (truth != NULL && inliers >= MIN_NR_INLIERS)
+        {
+            double motion[2], expected[2];
+            centerMotion(Hcurr, width, height, motion);
+            centerMotion(truth[f], width, height, expected);
+            if (fabs(motion[0] - expected[0]) <= MAX_CENTER_ERROR &&
+                    fabs(motion[1] - expected[1]) <= MAX_CENTER_ERROR) {
+                stats.correct++;
+            }
+        }
+        reg.UpdateReference(frames[f], false, false);
+    }
+    return stats;
+}
+
+static void printStepStats(const char *what, const StepStats &stats)
+{
+    printf("  %-10s correct %3d/%-3d  predicted %3d  matches %6.1f  inliers %6.1f\n",
+           what, stats.correct, stats.frames, stats.predicted,
+           (double) stats.matches / stats.frames, (double) stats.inliers / stats.frames);
+}
+
+// Returns true if the patch laid out by db_SignedSquareNormCorr11x11_PreAlign_u()
+// at (x, y) holds the 11x11 pixels around it followed by zeros, with their sum
+// and the reciprocal of 121 times the sum of squares minus the squared sum.
+static bool checkPatch(const short *patch, unsigned char **img, int x, int y,
+        float sum, float recip)
+{
+    int f2sum = 0, fsum = 0;
+    for (int r = -5; r <= 5; r++) {
+        for (int c = -5; c <= 5; c++) {
+            int f = img[y + r][x + c];
+            if (patch[(r + 5) * 11 + c + 5] != f) return false;
+            f2sum += f * f;
+            fsum += f;
+        }
+    }
+    for (int i = 121; i < 128; i++) {
+        if (patch[i] != 0) return false;
+    }
+    float den = 121.0f * f2sum - fsum * fsum;
+    float expected = (float) ((den != 0.0) ? 1.0 / den : 0.0);
+    return sum == (float) fsum && recip == expected;
+}
+
+// Checks db_SignedSquareNormCorr11x11_PreAlign_u() and
+// db_SignedSquareNormCorr11x11Aligned_Post_s() on the patches of the corners
+// of two frames against the per-pixel layout and the C scalar product; returns
+// the number of differing patches and scores.
+static int checkCorrelation(unsigned char **a, unsigned char **b, const double *xa,
+        const double *ya, int nra, const double *xb, const double *yb, int nrb)
+{
+    short *patchSpace = new short[2 * 128 + 16];
+    short *fp = db_AlignPointer_s(patchSpace, 16);
+    short *gp = fp + 128;
+    int differing = 0;
+    for (int i = 0; i < nra; i++)
+    {
+        float fsum, frecip, gsum, grecip;
+        int j = (i * 7) % nrb;
+        db_SignedSquareNormCorr11x11_PreAlign_u(fp, a, db_roundi(xa[i]), db_roundi(ya[i]),
+                &fsum, &frecip);
+        db_SignedSquareNormCorr11x11_PreAlign_u(gp, b, db_roundi(xb[j]), db_roundi(yb[j]),
+                &gsum, &grecip);
+        if (!checkPatch(fp, a, db_roundi(xa[i]), db_roundi(ya[i]), fsum, frecip)) differing++;
+        if (!checkPatch(gp, b, db_roundi(xb[j]), db_roundi(yb[j]), gsum, grecip)) differing++;
+
+        // The C version of the score.
+        float fgsum = (float) db_ScalarProduct128_s(fp, gp);
+        float fg_corr = 121.0f * fgsum - fsum * gsum;
+        float expected = fg_corr * fg_corr * (frecip * grecip);
+        if (fg_corr < 0.0) expected = -expected;
+
+        float score = db_SignedSquareNormCorr11x11Aligned_Post_s(fp, gp, fsum * gsum,
+                frecip * grecip);
+        if (score != expected) differing++;
+    }
+    delete [] patchSpace;
+    return differing;
+}
+
+static int usage(const char *name)
+{
+    printf("usage: %s [-n iterations] input_basename\n", name);
+    return 1;
+}
+
+int main(int argc, char **argv)
+{
+    int iterations = DEFAULT_ITERATIONS;
+    int opt;
+    while ((opt = getopt(argc, argv, "n:")) != -1) {
+        switch (opt) {
+            case 'n': iterations = atoi(optarg); break;
+            default: return usage(argv[0]);
+        }
+    }
+    if (optind != argc - 1) return usage(argv[0]);
+
+    unsigned char **frames[MAX_FRAMES];
+    int width = 0, height = 0;
+    int count = loadFrames(argv[optind], frames, width, height);
+    if (count < 2) {
+        printf("FAIL: fewer than 2 frames at %s\n", argv[optind]);
+        return 1;
+    }
+
+    // The motion between consecutive frames aligned within the full search
+    // range, chained to give the expected motion over 2 and 3 frames.
+    static double consecutive[MAX_FRAMES][9];
+    static double truth[MAX_STEP + 1][MAX_FRAMES][9];
+    alignFrames(frames, count, 1, width, height, false, consecutive, NULL);
+    for (int step = 1; step <= MAX_STEP; step++)
+    {
+        for (int f = step; f < count; f += step)
+        {
+            db_Copy9(truth[step][f], consecutive[f - step + 1]);
+            for (int k = f - step + 2; k <= f; k++)
+            {
+                double product[9];
+                db_Multiply3x3_3x3(product, consecutive[k], truth[step][f]);
+                db_Copy9(truth[step][f], product);
+            }
+        }
+    }
+
+    printf("Alignment of %d frames of %dx%d:\n", count, width, height);
+    static const char *steps[] = { "every frame", "every 2nd frame", "every 3rd frame" };
+    int correctFull = 0, correctPredicted = 0;
+    for (int step = 1; step <= MAX_STEP; step++)
+    {
+        static double H[MAX_FRAMES][9];
+        printf(" %s:\n", steps[step - 1]);
+        StepStats full = alignFrames(frames, count, step, width, height, false, H,
+                truth[step]);
+        StepStats predicted = alignFrames(frames, count, step, width, height, true, H,
+                truth[step]);
+        printStepStats("full", full);
+        printStepStats("predicted", predicted);
+        correctFull += full.correct;
+        correctPredicted += predicted.correct;
+    }
+
+    // Match the corners of consecutive frames as AddFrame() does, with the
+    // motion of the previous pair as the prediction.
+    db_CornerDetector_u detector;
+    int maxNr = detector.Init(width, height, TARGET_NR_CORNERS, width / 48, height / 60,
+            DB_DEFAULT_ABS_CORNER_THRESHOLD / 500.0, 0.0);
+    db_Matcher_u matcher;
+    unsigned long maxMatches = matcher.Init(width, height, MAX_DISPARITY, maxNr,
+            DB_DEFAULT_NO_DISPARITY, false, 0);
+    double *x[MAX_FRAMES], *y[MAX_FRAMES];
+    int nr[MAX_FRAMES];
+    for (int f = 0; f < count; f++)
+    {
+        x[f] = new double[maxNr];
+        y[f] = new double[maxNr];
+        detector.DetectCorners(frames[f], x[f], y[f], &nr[f]);
+    }
+    int *idRef = new int[maxMatches];
+    int *idIns = new int[maxMatches];
+
+    int differing = 0;
+    for (int f = 1; f < count; f++)
+    {
+        differing += checkCorrelation(frames[f - 1], frames[f], x[f - 1], y[f - 1],
+                nr[f - 1], x[f], y[f], nr[f]);
+    }
+
+    printf("Matching of %d frame pairs:\n", count - 1);
+    for (int predict = 0; predict <= 1; predict++)
+    {
+        long matches = 0;
+        double ms = 0.0;
+        for (int i = 0; i < iterations; i++)
+        {
+            // The fastest iteration, the others being slowed down by other tasks.
+            double t0 = nowMs();
+            matches = 0;
+            for (int f = 1; f < count; f++)
+            {
+                int nrMatches;
+                if (predict && f > 1)
+                {
+                    double motion[2];
+                    centerMotion(consecutive[f - 1], width, height, motion);
+                    matcher.SetPredictedMotion(motion[0], motion[1]);
+                }
+                matcher.Match(frames[f - 1], frames[f], x[f - 1], y[f - 1], nr[f - 1],
+                        x[f], y[f], nr[f], idRef, idIns, &nrMatches);
+                matcher.ClearPredictedMotion();
+                matches += nrMatches;
+            }
+            double t = (nowMs() - t0) / (count - 1);
+            if (i == 0 || t < ms) ms = t;
+        }
+        printf("  %-10s %7.3f ms/frame  %6.1f matches/frame  %9.0f matches/s\n",
+               predict ? "predicted" : "full", ms, (double) matches / (count - 1),
+               matches / ((count - 1) * ms) * 1000.0);
+    }
+
+    bool passed = differing == 0 && correctPredicted >= correctFull;
+    printf("%s: %d differing patches or correlation scores, %d frames aligned correctly with the "
+           "prediction, %d without\n", passed ? "PASS" : "FAIL", differing,
+           correctPredicted, correctFull);
+
+    for (int f = 0; f < count; f++)
+    {
+        db_FreeImage_u(frames[f], height);
+        delete [] x[f];
+        delete [] y[f];
+    }
+    delete [] idRef;
+    delete [] idIns;
+    return passed ? 0 : 1;
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Compares the homography estimation of the alignment with adaptive sampling
+// (guided by the match scores, stopping at DB_DEFAULT_CONFIDENCE) and with
+// the fixed DB_DEFAULT_NR_SAMPLES hypotheses, on the frames of a dataset:
+//
+//   homography_test [-n iterations] input_basename
+//
+// Aligns the frames as Align does both ways and prints the time per frame of
+// AddFrame() and of db_RobImageHomography() on the matches of every frame,
+// how far apart the two homographies move the image corners and how many
+// matches each fits within 1 pixel. Exits with 1 if a corner moves more than
+// MAX_CORNER_ERROR pixels apart or if the adaptive homographies fit fewer than
+// MIN_FIT_RATIO as many matches.
+
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/stat.h>
+#include <time.h>
+#include <unistd.h>
+
+#include "dbreg/dbreg.h"
+#include "db_rob_image_homography.h"
+#include "db_utilities.h"
+#include "db_utilities_camera.h"
+#include "db_utilities_constants.h"
+#include "mosaic/ImageUtils.h"
+
+#define DEFAULT_ITERATIONS 5
+#define MAX_FRAMES 200
+
+// As Align::initialize() sets up db_FrameToReferenceRegistration.
+const int TARGET_NR_CORNERS = 750;      // Align::DEFAULT_NR_CORNERS
+const double MAX_DISPARITY = 0.1;       // Align::DEFAULT_MAX_DISPARITY
+const int MAX_ITERATIONS = 20;
+const int MAX_NR_MATCHES = 1500;
+const double MAX_CORNER_ERROR = 2.0;    // Pixels
+const double MIN_FIT_RATIO = 0.98;
+
+static double nowMs()
+{
+    struct timespec t;
+    clock_gettime(CLOCK_MONOTONIC, &t);
+    return t.tv_sec * 1000.0 + t.tv_nsec / 1e6;
+}
+
+// Loads the frames of basename as the gray images the alignment gets: the Y
+// plane of the YVU frames, overallocated as db_CornerDetector_u requires.
+static int loadFrames(const char *basename, unsigned char ***frames, int &width, int &height)
+{
+    char filename[512];
+    struct stat filestat;
+    int count;
+
+    for (count = 0; count < MAX_FRAMES; count++)
+    {
+        snprintf(filename, sizeof(filename), "%s_%03d.ppm", basename, count + 1);
+        if (stat(filename, &filestat) != 0) break;
+        ImageType rgb = ImageUtils::readBinaryPPM(filename, width, height);
+        ImageType yvu = ImageUtils::allocateImage(width, height, 3);
+        ImageUtils::rgb2yvu(yvu, rgb, width, height);
+        frames[count] = db_AllocImage_u(width, height);
+        for (int i = 0; i < height; i++)
+        {
+            memcpy(frames[count][i], yvu + i * width, width);
+        }
+        ImageUtils::freeImage(rgb);
+        ImageUtils::freeImage(yvu);
+    }
+    return count;
+}
+
+static void initRegistration(db_FrameToReferenceRegistration &reg, int width, int height)
+{
+    reg.Init(width, height, DB_HOMOGRAPHY_TYPE_R_T, MAX_ITERATIONS, false, false,
+            DB_POINT_STANDARDDEV, MAX_NR_MATCHES, false, 0, DB_DEFAULT_NR_SAMPLES,
+            DB_DEFAULT_CHUNK_SIZE, TARGET_NR_CORNERS, MAX_DISPARITY, false,
+            width / 48, height / 60);
+    // The adaptive sampling is checked on the matches around the predicted
+    // motion, which it was tuned on; see ResetMotionPrediction().
+    reg.ResetMotionPrediction(true);
+}
+
+// The largest distance between the image corners moved by H and by G.
+static double cornerDistance(const double H[9], const double G[9], int width, int height)
+{
+    double largest = 0.0;
+    for (int k = 0; k < 4; k++)
+    {
+        double corner[2] = { (k & 1) ? width : 0.0, (k & 2) ? height : 0.0 };
+        double a[2], b[2];
+        db_ImageHomographyInhomogenous(a, H, corner);
+        db_ImageHomographyInhomogenous(b, G, corner);
+        double d = sqrt((a[0] - b[0]) * (a[0] - b[0]) + (a[1] - b[1]) * (a[1] - b[1]));
+        if (d > largest) largest = d;
+    }
+    return largest;
+}
+
+// The number of matches that H moves within 1 pixel of their position in the
+// inspection frame.
+static int fitMatches(const double H[9], const double *ref, const double *ins, int nr)
+{
+    int fit = 0;
+    for (int m = 0; m < nr; m++)
+    {
+        double moved[2];
+        db_ImageHomographyInhomogenous(moved, H, ref + 3 * m);
+        double dx = moved[0] - ins[3 * m], dy = moved[1] - ins[3 * m + 1];
+        if (dx * dx + dy * dy <= 1.0) fit++;
+    }
+    return fit;
+}
+
+// Aligns every frame to the previous one as Align does and returns the time
+// per frame of AddFrame(), the fastest of the iterations. Stores the
+// homography of every frame in H and, if ref is not NULL, its matches in the
+// order the estimation got them.
+static double alignFrames(unsigned char ***frames, int count, int width, int height,
+        bool adaptive, int iterations, double (*H)[9], double **ref, double **ins, int *nr)
+{
+    double best = 0.0;
+    for (int i = 0; i < iterations; i++)
+    {
+        db_FrameToReferenceRegistration reg;
+        initRegistration(reg, width, height);
+        reg.ResetAdaptiveSampling(adaptive);
+
+        double Hcurr[9];
+        db_Identity3x3(Hcurr);
+        reg.AddFrame(frames[0], Hcurr, true);
+        double ms = 0.0;
+        for (int f = 1; f < count; f++)
+        {
+            db_Identity3x3(Hcurr);
+            double t0 = nowMs();
+            reg.AddFrame(frames[f], Hcurr, false);
+            ms += nowMs() - t0;
+            db_Copy9(H[f], Hcurr);
+            if (ref != NULL && i == 0)
+            {
+                nr[f] = reg.GetNrMatches();
+                ref[f] = new double[3 * nr[f]];
+                ins[f] = new double[3 * nr[f]];
+                memcpy(ref[f], reg.GetRefCorners(), 3 * nr[f] * sizeof(double));
+                memcpy(ins[f], reg.GetInsCorners(), 3 * nr[f] * sizeof(double));
+            }
+            reg.UpdateReference(frames[f], false, false);
+        }
+        ms /= count - 1;
+        if (i == 0 || ms < best) best = ms;
+    }
+    return best;
+}
+
+static int usage(const char *name)
+{
+    printf("usage: %s [-n iterations] input_basename\n", name);
+    return 1;
+}
+
+int main(int argc, char **argv)
+{
+    int iterations = DEFAULT_ITERATIONS;
+    int opt;
+    while ((opt = getopt(argc, argv, "n:")) != -1) {
+        switch (opt) {
+            case 'n': iterations = atoi(optarg); break;
+            default: return usage(argv[0]);
+        }
+    }
+    if (optind != argc - 1) return usage(argv[0]);
+
+    unsigned char **frames[MAX_FRAMES];
+    int width = 0, height = 0;
+    int count = loadFrames(argv[optind], frames, width, height);
+    if (count < 2) {
+        printf("FAIL: fewer than 2 frames at %s\n", argv[optind]);
+        return 1;
+    }
+
+    static double fixedH[MAX_FRAMES][9], adaptiveH[MAX_FRAMES][9];
+    double *ref[MAX_FRAMES], *ins[MAX_FRAMES];
+    int nr[MAX_FRAMES];
+    double fixedMs = alignFrames(frames, count, width, height, false, iterations, fixedH,
+            NULL, NULL, NULL);
+    double adaptiveMs = alignFrames(frames, count, width, height, true, iterations, adaptiveH,
+            ref, ins, nr);
+
+    double alignedError = 0.0;
+    for (int f = 1; f < count; f++)
+    {
+        alignedError = fmax(alignedError, cornerDistance(fixedH[f], adaptiveH[f], width, height));
+    }
+    printf("Alignment of %d frames of %dx%d (AddFrame):\n", count, width, height);
+    printf("  fixed      %7.3f ms/frame\n", fixedMs);
+    printf("  adaptive   %7.3f ms/frame  corners %.2f pixels apart at most\n", adaptiveMs,
+            alignedError);
+
+    // The estimation alone on the same matches, in the order of the scores.
+    double K[9], Kinv[9];
+    db_Approx3DCalMat(K, Kinv, width, height);
+    double scale = 2 / (K[0] + K[4]);
+    double *tempD = new double[12 * DB_DEFAULT_NR_SAMPLES + 10 * MAX_NR_MATCHES];
+    int *tempI = new int[db_maxi(DB_DEFAULT_NR_SAMPLES, MAX_NR_MATCHES)];
+    static double H[2][MAX_FRAMES][9];
+    double ms[2];
+    for (int adaptive = 0; adaptive <= 1; adaptive++)
+    {
+        for (int i = 0; i < iterations; i++)
+        {
+            double t0 = nowMs();
+            for (int f = 1; f < count; f++)
+            {
+                db_RobImageHomography(H[adaptive][f], ref[f], ins[f], nr[f], K, K, tempD, tempI,
+                        DB_HOMOGRAPHY_TYPE_R_T, NULL, MAX_ITERATIONS, MAX_NR_MATCHES, scale,
+                        DB_DEFAULT_NR_SAMPLES, DB_DEFAULT_CHUNK_SIZE, 0, NULL, NULL, NULL, NULL,
+                        NULL, adaptive ? DB_DEFAULT_CONFIDENCE : 0.0, adaptive);
+            }
+            double t = (nowMs() - t0) / (count - 1);
+            if (i == 0 || t < ms[adaptive]) ms[adaptive] = t;
+        }
+    }
+
+    double meanError = 0.0, maxError = 0.0;
+    int fit[2] = { 0, 0 };
+    for (int f = 1; f < count; f++)
+    {
+        double error = cornerDistance(H[0][f], H[1][f], width, height);
+        meanError += error;
+        maxError = fmax(maxError, error);
+        fit[0] += fitMatches(H[0][f], ref[f], ins[f], nr[f]);
+        fit[1] += fitMatches(H[1][f], ref[f], ins[f], nr[f]);
+    }
+    meanError /= count - 1;
+    printf("Homography estimation of %d frames (db_RobImageHomography):\n", count - 1);
+    printf("  fixed      %7.3f ms/frame  %6.1f matches within 1 pixel/frame\n", ms[0],
+            (double) fit[0] / (count - 1));
+    printf("  adaptive   %7.3f ms/frame  %6.1f matches within 1 pixel/frame  corners %.2f "
+            "pixels apart on average, %.2f at most\n", ms[1], (double) fit[1] / (count - 1),
+            meanError, maxError);
+
+    bool passed = maxError <= MAX_CORNER_ERROR && alignedError <= MAX_CORNER_ERROR &&
+            fit[1] >= MIN_FIT_RATIO * fit[0];
+    printf("%s: adaptive homographies within %.2f pixels of the fixed ones, fitting %.1f%% as "
+            "many matches\n", passed ? "PASS" : "FAIL", fmax(maxError, alignedError),
+            100.0 * fit[1] / db_maxi(fit[0], 1));
+
+    for (int f = 0; f < count; f++)
+    {
+        db_FreeImage_u(frames[f], height);
+        if (f > 0) {
+            delete [] ref[f];
+            delete [] ins[f];
+        }
+    }
+    delete [] tempD;
+    delete [] tempI;
+    return passed ? 0 : 1;
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Checks that CDelaunay::triangulateSweep(), which the blender uses for the
+// frame centers of a sweep, gives the same edge list as the divide and
+// conquer triangulate(), and times both:
+//
+//   seam_sites_test [-n iterations]
+//
+// The centers are made up as the blender sees them: frames of 320x240 some
+// 30 pixels apart along a slightly curved path with some jitter, sweeping
+// right, left, up and down, and from 8 to 1000 frames. A 2-D grid of centers
+// and centers on a line must be left to triangulate().
+//
+// Exits with 1 if an edge list differs, or if a sweep is not triangulated by
+// triangulateSweep() or a grid or a line is.
+
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+
+#include "mosaic/Delaunay.h"
+
+#define DEFAULT_ITERATIONS 200
+#define MAX_SITES 1000
+
+const int FRAME_WIDTH = 320;
+const int FRAME_HEIGHT = 240;
+const double SPACING = 30.0;
+
+enum Layout { SWEEP_RIGHT, SWEEP_LEFT, SWEEP_UP, SWEEP_DOWN, GRID, LINE };
+
+struct Case
+{
+    const char *name;
+    Layout layout;
+    int sites;
+};
+
+static const Case CASES[] =
+{
+    { "sweep right", SWEEP_RIGHT, 8 },
+    { "sweep right", SWEEP_RIGHT, 34 },
+    { "sweep left", SWEEP_LEFT, 34 },
+    { "sweep up", SWEEP_UP, 34 },
+    { "sweep down", SWEEP_DOWN, 34 },
+    { "sweep right", SWEEP_RIGHT, 100 },
+    { "sweep right", SWEEP_RIGHT, 1000 },
+    { "grid", GRID, 36 },
+    { "line", LINE, 34 },
+};
+const int NR_CASES = sizeof(CASES) / sizeof(CASES[0]);
+
+static double nowMs()
+{
+    struct timespec t;
+    clock_gettime(CLOCK_MONOTONIC, &t);
+    return t.tv_sec * 1000.0 + t.tv_nsec / 1e6;
+}
+
+// Uniform in [-1, 1]
+static double jitter()
+{
+    return 2.0 * rand() / RAND_MAX - 1.0;
+}
+
+static void placeSites(CSite *sites, const Case &c)
+{
+    srand(c.sites);
+    for (int i = 0; i < c.sites; i++)
+    {
+        double along = i * SPACING + 5.0 * jitter();
+        double across = 40.0 * sin(3.0 * i / c.sites) + 2.0 * jitter();
+        SVec2d &center = sites[i].getVCenter();
+        switch (c.layout)
+        {
+            case SWEEP_RIGHT: center.x = along; center.y = across; break;
+            case SWEEP_LEFT: center.x = -along; center.y = across; break;
+            case SWEEP_UP: center.x = across; center.y = -along; break;
+            case SWEEP_DOWN: center.x = across; center.y = along; break;
+            case GRID:
+                center.x = (i % 6) * SPACING + jitter();
+                center.y = (i / 6) * SPACING + jitter();
+                break;
+            case LINE: center.x = i * SPACING; center.y = 0.0; break;
+        }
+    }
+}
+
+static int usage(const char *name)
+{
+    printf("usage: %s [-n iterations]\n", name);
+    return 1;
+}
+
+int main(int argc, char **argv)
+{
+    int iterations = DEFAULT_ITERATIONS;
+    int opt;
+    while ((opt = getopt(argc, argv, "n:")) != -1) {
+        switch (opt) {
+            case 'n': iterations = atoi(optarg); break;
+            default: return usage(argv[0]);
+        }
+    }
+    if (optind != argc || iterations < 1)
+        return usage(argv[0]);
+
+    CDelaunay triangulator;
+    SEdgeVector *sweepEdges = new SEdgeVector[6 * MAX_SITES];
+    bool passed = true;
+    printf("Triangulation of the frame centers, microseconds per call:\n");
+    for (int k = 0; k < NR_CASES; k++)
+    {
+        const Case &c = CASES[k];
+        CSite *sites = triangulator.allocMemory(c.sites);
+        placeSites(sites, c);
+
+        SEdgeVector *edges;
+        int nrSweep = triangulator.triangulateSweep(&edges, c.sites, FRAME_WIDTH,
+                FRAME_HEIGHT);
+        if (nrSweep > 0)
+            memcpy(sweepEdges, edges, nrSweep * sizeof(SEdgeVector));
+        int nrGeneral = triangulator.triangulate(&edges, c.sites, FRAME_WIDTH, FRAME_HEIGHT);
+
+        bool sweep = c.layout != GRID && c.layout != LINE;
+        bool ok = sweep ? nrSweep == nrGeneral &&
+                memcmp(sweepEdges, edges, nrSweep * sizeof(SEdgeVector)) == 0 : nrSweep < 0;
+
+        double sweepUs = 1e9, generalUs = 1e9;
+        for (int i = 0; i < iterations; i++)
+        {
+            double t0 = nowMs();
+            triangulator.triangulateSweep(&edges, c.sites, FRAME_WIDTH, FRAME_HEIGHT);
+            double t1 = nowMs();
+            triangulator.triangulate(&edges, c.sites, FRAME_WIDTH, FRAME_HEIGHT);
+            double t2 = nowMs();
+            if (t1 - t0 < sweepUs) sweepUs = t1 - t0;
+            if (t2 - t1 < generalUs) generalUs = t2 - t1;
+        }
+        sweepUs *= 1e3;
+        generalUs *= 1e3;
+
+        if (nrSweep < 0)
+            printf("  %-12s %4d sites: %4d edges, divide and conquer %8.1f, sweep declined"
+                    " in %.1f%s\n", c.name, c.sites, nrGeneral, generalUs, sweepUs,
+                    ok ? "" : "  FAIL");
+        else
+            printf("  %-12s %4d sites: %4d edges, divide and conquer %8.1f, sweep %8.1f"
+                    " (%.2fx)%s%s\n", c.name, c.sites, nrGeneral, generalUs, sweepUs,
+                    generalUs / sweepUs, ok || !sweep ? "" : ", edges differ",
+                    ok ? "" : "  FAIL");
+        passed &= ok;
+        triangulator.freeMemory();
+    }
+    printf("%s: sweep triangulation same as divide and conquer\n", passed ? "PASS" : "FAIL");
+
+    delete[] sweepEdges;
+    return passed ? 0 : 1;
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Stabilizes a shaky video made from a frame of a dataset and measures how
+// much of the shake is left:
+//
+//   stabilization_test [-n iterations] input_basename
+//
+// The video is a window moved over the middle frame of the dataset along a
+// slow sway plus a random shake of up to SHAKE_X x SHAKE_Y pixels per frame,
+// with noise added, and converted to NV21 as the preview frames are. The path
+// of the window is known, so the path of the stabilized video is too: the
+// point of the frame shown at the center of the crop window. The test prints
+// the shake of both, as the RMS of the second differences of the paths, and
+// the time per frame of Stabilizer::addFrame().
+//
+// The video is then stabilized again with a budget of half the mean time per
+// frame, which drops frames from the feature alignment and only translates
+// them, and the frames dropped, the time spent per frame and the shake left
+// are printed. Exits with 1 if the stabilized shake is more than
+// MAX_SHAKE_RATIO of the input shake (MAX_DROPPED_SHAKE_RATIO with the
+// budget), if a warped crop window leaves the frame, or if the budget is not
+// kept.
+
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/stat.h>
+#include <time.h>
+#include <unistd.h>
+
+#include "mosaic/ImageUtils.h"
+#include "mosaic/Stabilizer.h"
+
+#define DEFAULT_ITERATIONS 5
+#define MAX_FRAMES 200
+
+const int VIDEO_WIDTH = 512;
+const int VIDEO_HEIGHT = 288;
+const int NR_FRAMES = 90;           // 3 seconds at 30 fps
+const int SWAY_X = 40;              // Pixels
+const int SWAY_Y = 20;
+const int SHAKE_X = 6;
+const int SHAKE_Y = 4;
+const int NOISE = 3;                // Gray levels
+const double MAX_SHAKE_RATIO = 0.5;
+const double MAX_DROPPED_SHAKE_RATIO = 0.4;
+// The budget is kept on average; the frames dropped in a row are capped, and
+// the timing on a loaded host is noisy.
+const double MAX_BUDGET_RATIO = 1.25;
+
+static double nowMs()
+{
+    struct timespec t;
+    clock_gettime(CLOCK_MONOTONIC, &t);
+    return t.tv_sec * 1000.0 + t.tv_nsec / 1e6;
+}
+
+// A small generator of its own, so that the video is the same everywhere.
+static unsigned int sSeed = 1;
+
+static int randomIn(int range)
+{
+    sSeed = sSeed * 1103515245 + 12345;
+    return (int) ((sSeed >> 16) % (2 * range + 1)) - range;
+}
+
+struct Video
+{
+    ImageType frames[NR_FRAMES];    // NV21
+    int x[NR_FRAMES];               // Position of the window in the scene
+    int y[NR_FRAMES];
+};
+
+// Makes the video from the YVU scene of sceneWidth x sceneHeight.
+static void makeVideo(Video &video, ImageType yvu, int sceneWidth, int sceneHeight)
+{
+    const int sceneSize = sceneWidth * sceneHeight;
+    const int marginX = sceneWidth - VIDEO_WIDTH;
+    const int marginY = sceneHeight - VIDEO_HEIGHT;
+    sSeed = 1;
+    for (int k = 0; k < NR_FRAMES; k++)
+    {
+        int x = marginX / 2 + (int) lrint(SWAY_X * sin(2 * M_PI * k / NR_FRAMES)) +
+                randomIn(SHAKE_X);
+        int y = marginY / 2 + (int) lrint(SWAY_Y * sin(4 * M_PI * k / NR_FRAMES)) +
+                randomIn(SHAKE_Y);
+        x = x < 0 ? 0 : (x > marginX ? marginX : x) & ~1;
+        y = y < 0 ? 0 : (y > marginY ? marginY : y) & ~1;
+        video.x[k] = x;
+        video.y[k] = y;
+
+        ImageType nv21 = ImageUtils::allocateImage(VIDEO_WIDTH, VIDEO_HEIGHT * 3 / 2, 1);
+        for (int j = 0; j < VIDEO_HEIGHT; j++)
+        {
+            for (int i = 0; i < VIDEO_WIDTH; i++)
+            {
+                int value = yvu[(y + j) * sceneWidth + x + i] + randomIn(NOISE);
+                nv21[j * VIDEO_WIDTH + i] = value < 0 ? 0 : (value > 255 ? 255 : value);
+            }
+        }
+        ImageType vu = nv21 + VIDEO_WIDTH * VIDEO_HEIGHT;
+        for (int j = 0; j < VIDEO_HEIGHT / 2; j++)
+        {
+            for (int i = 0; i < VIDEO_WIDTH / 2; i++)
+            {
+                int s = (y + 2 * j) * sceneWidth + x + 2 * i;
+                vu[j * VIDEO_WIDTH + 2 * i] = yvu[sceneSize + s];
+                vu[j * VIDEO_WIDTH + 2 * i + 1] = yvu[2 * sceneSize + s];
+            }
+        }
+        video.frames[k] = nv21;
+    }
+}
+
+// The RMS of the second differences of a path of NR_FRAMES points.
+static double shake(const double *x, const double *y)
+{
+    double sum = 0.0;
+    for (int k = 2; k < NR_FRAMES; k++)
+    {
+        double dx = x[k] - 2 * x[k - 1] + x[k - 2];
+        double dy = y[k] - 2 * y[k - 1] + y[k - 2];
+        sum += dx * dx + dy * dy;
+    }
+    return sqrt(sum / (NR_FRAMES - 2));
+}
+
+struct Result
+{
+    double shake;           // Of the stabilized path
+    double meanMs;          // Per frame, including the dropped frames
+    double maxMs;
+    int dropped;
+    bool inside;            // Every warped crop window is in the frame
+};
+
+static Result stabilize(const Video &video, double budgetMs)
+{
+    Stabilizer stabilizer;
+    stabilizer.initialize(VIDEO_WIDTH, VIDEO_HEIGHT, Stabilizer::DEFAULT_SMOOTHING,
+            Stabilizer::DEFAULT_CROP_RATIO, budgetMs);
+
+    Result result = { 0.0, 0.0, 0.0, 0, true };
+    double x[NR_FRAMES], y[NR_FRAMES];
+    for (int k = 0; k < NR_FRAMES; k++)
+    {
+        double t0 = nowMs();
+        int ret = stabilizer.addFrame(video.frames[k]);
+        double ms = nowMs() - t0;
+        result.meanMs += ms;
+        if (ms > result.maxMs) result.maxMs = ms;
+        if (ret == Stabilizer::STAB_RET_DROPPED) result.dropped++;
+
+        double transform[Stabilizer::TRANSFORM_SIZE];
+        stabilizer.getTransform(transform);
+        const double *crop = transform + Stabilizer::TRANSFORM_CROP_INDEX;
+        for (int c = 0; c < 5; c++)
+        {
+            // The 4 corners of the crop window, then its center.
+            double point[2] = { c == 4 ? 0.5 * (crop[0] + crop[2]) : crop[(c & 1) ? 2 : 0],
+                    c == 4 ? 0.5 * (crop[1] + crop[3]) : crop[(c & 2) ? 3 : 1] };
+            double moved[2];
+            db_ImageHomographyInhomogenous(moved, transform, point);
+            if (c == 4)
+            {
+                x[k] = video.x[k] + moved[0];
+                y[k] = video.y[k] + moved[1];
+            }
+            else if (moved[0] < -0.5 || moved[0] > VIDEO_WIDTH - 0.5 ||
+                    moved[1] < -0.5 || moved[1] > VIDEO_HEIGHT - 0.5)
+            {
+                result.inside = false;
+            }
+        }
+    }
+    result.shake = shake(x, y);
+    result.meanMs /= NR_FRAMES;
+    return result;
+}
+
+static int usage(const char *name)
+{
+    printf("usage: %s [-n iterations] input_basename\n", name);
+    return 1;
+}
+
+int main(int argc, char **argv)
+{
+    int iterations = DEFAULT_ITERATIONS;
+    int opt;
+    while ((opt = getopt(argc, argv, "n:")) != -1) {
+        switch (opt) {
+            case 'n': iterations = atoi(optarg); break;
+            default: return usage(argv[0]);
+        }
+    }
+    if (optind != argc - 1) return usage(argv[0]);
+
+    char filename[512];
+    struct stat filestat;
+    int count = 0;
+    do {
+        snprintf(filename, sizeof(filename), "%s_%03d.ppm", argv[optind], ++count);
+    } while (count <= MAX_FRAMES && stat(filename, &filestat) == 0);
+    count--;
+    if (count < 1) {
+        printf("FAIL: no frames at %s\n", argv[optind]);
+        return 1;
+    }
+
+    int width, height;
+    snprintf(filename, sizeof(filename), "%s_%03d.ppm", argv[optind], (count + 1) / 2);
+    ImageType rgb = ImageUtils::readBinaryPPM(filename, width, height);
+    if (width < VIDEO_WIDTH + 2 * (SWAY_X + SHAKE_X) ||
+            height < VIDEO_HEIGHT + 2 * (SWAY_Y + SHAKE_Y)) {
+        printf("FAIL: %s is %dx%d, too small for a %dx%d video\n", filename, width, height,
+                VIDEO_WIDTH, VIDEO_HEIGHT);
+        return 1;
+    }
+    ImageType yvu = ImageUtils::allocateImage(width, height, 3);
+    ImageUtils::rgb2yvu(yvu, rgb, width, height);
+
+    Video video;
+    makeVideo(video, yvu, width, height);
+    double x[NR_FRAMES], y[NR_FRAMES];
+    for (int k = 0; k < NR_FRAMES; k++)
+    {
+        x[k] = video.x[k] + 0.5 * VIDEO_WIDTH;
+        y[k] = video.y[k] + 0.5 * VIDEO_HEIGHT;
+    }
+    double inputShake = shake(x, y);
+
+    // Without a budget to keep, every frame is aligned.
+    Result full = stabilize(video, 1e9);
+    for (int i = 1; i < iterations; i++)
+    {
+        Result again = stabilize(video, 1e9);
+        if (again.meanMs < full.meanMs) full = again;
+    }
+    printf("Stabilization of %d %dx%d frames of %s:\n", NR_FRAMES, VIDEO_WIDTH,
+            VIDEO_HEIGHT, filename);
+    printf("  input                           shake %5.2f pixels\n", inputShake);
+    printf("  all frames aligned  %6.3f ms/frame (max %6.3f)  shake %5.2f pixels\n",
+            full.meanMs, full.maxMs, full.shake);
+
+    double budgetMs = 0.5 * full.meanMs;
+    Result budget = stabilize(video, budgetMs);
+    printf("  budget %6.3f ms    %6.3f ms/frame (max %6.3f)  shake %5.2f pixels, "
+            "%d frames dropped\n", budgetMs, budget.meanMs, budget.maxMs, budget.shake,
+            budget.dropped);
+
+    bool passed = full.shake <= MAX_SHAKE_RATIO * inputShake &&
+            budget.shake <= MAX_DROPPED_SHAKE_RATIO * inputShake &&
+            full.inside && budget.inside && full.dropped == 0 && budget.dropped > 0 &&
+            budget.meanMs <= MAX_BUDGET_RATIO * budgetMs;
+    printf("%s: %.0f%% of the shake left, %.0f%% with %d of %d frames dropped to keep "
+            "%.3f ms/frame in a budget of %.3f%s\n", passed ? "PASS" : "FAIL",
+            100.0 * full.shake / inputShake, 100.0 * budget.shake / inputShake,
+            budget.dropped, NR_FRAMES, budget.meanMs, budgetMs,
+            full.inside && budget.inside ? "" : ", crop window out of the frame");
+
+    for (int k = 0; k < NR_FRAMES; k++)
+    {
+        ImageUtils::freeImage(video.frames[k]);
+    }
+    ImageUtils::freeImage(rgb);
+    ImageUtils::freeImage(yvu);
+    return passed ? 0 : 1;
+}
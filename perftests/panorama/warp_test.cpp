@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Compares db_HomographyWarper with the exact warp, the source position of
+// every pixel computed in double precision and sampled bilinearly as
+// db_WarpImageLutBilinear_rgb() does, on the middle frame of a dataset:
+//
+//   warp_test [-n iterations] [-t max_threads] input_basename
+//
+// For an affine warp, a mild and a strong perspective, prints the largest
+// grid error of the warper, the tiles it maps exactly, and the largest and
+// mean difference of a sample from the exact warp and the share of samples
+// within 1 gray level, with 1 to max_threads threads. Then prints the
+// megapixels per second of db_GenerateHomographyLut() plus
+// db_WarpImageLutBilinear_rgb(), and of the warper with the grid computed
+// every time and found in its cache. Exits with 1 if an affine warp differs by
+// more than the weight rounding (1 gray level), if fewer than MIN_CLOSE_RATIO
+// of the samples of any warp are within 1 gray level or their mean difference
+// is above MAX_MEAN_DIFFERENCE, or if the output depends on the number of
+// threads. The position errors of a perspective, up to DB_WARP_MAX_GRID_ERROR
+// pixels, move a few samples on sharp edges by more.
+
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/stat.h>
+#include <time.h>
+#include <unistd.h>
+
+#include "dbreg/dbreg.h"
+#include "dbreg/dbwarp.h"
+#include "db_utilities.h"
+#include "mosaic/ImageUtils.h"
+
+#define DEFAULT_ITERATIONS 10
+#define DEFAULT_MAX_THREADS 4
+#define MAX_FRAMES 200
+
+const int MAX_AFFINE_DIFFERENCE = 1;
+const double MIN_CLOSE_RATIO = 0.99;
+const double MAX_MEAN_DIFFERENCE = 0.5;
+
+struct Warp
+{
+    const char *name;
+    double H[9];
+};
+
+// Destination to source homographies of a 640x360 frame, centered on it.
+static const Warp WARPS[] =
+{
+    { "affine", { 0.95, -0.06, 40.0, 0.05, 0.96, 10.0, 0.0, 0.0, 1.0 } },
+    { "perspective", { 0.9, -0.05, 50.0, 0.04, 0.95, 15.0, 1.5e-4, 5e-5, 1.0 } },
+    { "strong perspective", { 0.8, -0.1, 60.0, 0.1, 0.7, 40.0, 1.2e-3, 3e-4, 1.0 } },
+};
+const int NR_WARPS = sizeof(WARPS) / sizeof(WARPS[0]);
+
+static double nowMs()
+{
+    struct timespec t;
+    clock_gettime(CLOCK_MONOTONIC, &t);
+    return t.tv_sec * 1000.0 + t.tv_nsec / 1e6;
+}
+
+// The exact warp of a packed image of the given channels.
+static void exactWarp(const unsigned char * const *src, unsigned char **dst, int width,
+        int height, int channels, const double H[9])
+{
+    for (int j = 0; j < height; j++)
+    {
+        for (int i = 0; i < width; i++)
+        {
+            double z = H[6] * i + H[7] * j + H[8];
+            double x = (H[0] * i + H[1] * j + H[2]) / z;
+            double y = (H[3] * i + H[4] * j + H[5]) / z;
+            unsigned char *out = dst[j] + channels * i;
+            if (z <= 0.0 || x < 0.0 || y < 0.0 || x > width - 2 || y > height - 2)
+            {
+                memset(out, 0, channels);
+                continue;
+            }
+            int xi = (int) x, yi = (int) y;
+            double fx = x - xi, fy = y - yi;
+            for (int c = 0; c < channels; c++)
+            {
+                const unsigned char *r0 = src[yi] + channels * xi + c;
+                const unsigned char *r1 = src[yi + 1] + channels * xi + c;
+                out[c] = (unsigned char) (r0[0] * (1 - fx) * (1 - fy) + r0[channels] * fx * (1 - fy) +
+                        r1[0] * (1 - fx) * fy + r1[channels] * fx * fy);
+            }
+        }
+    }
+}
+
+// Rows of a packed image of width * channels by height.
+static unsigned char **rows(ImageType image, int width, int height, int channels)
+{
+    unsigned char **r = new unsigned char *[height];
+    for (int j = 0; j < height; j++)
+        r[j] = image + j * width * channels;
+    return r;
+}
+
+static int usage(const char *name)
+{
+    printf("usage: %s [-n iterations] [-t max_threads] input_basename\n", name);
+    return 1;
+}
+
+int main(int argc, char **argv)
+{
+    int iterations = DEFAULT_ITERATIONS;
+    int maxThreads = DEFAULT_MAX_THREADS;
+    int opt;
+    while ((opt = getopt(argc, argv, "n:t:")) != -1) {
+        switch (opt) {
+            case 'n': iterations = atoi(optarg); break;
+            case 't': maxThreads = atoi(optarg); break;
+            default: return usage(argv[0]);
+        }
+    }
+    if (optind != argc - 1 || iterations < 1 || maxThreads < 1 || maxThreads > DB_MAX_THREADS)
+        return usage(argv[0]);
+
+    char filename[512];
+    struct stat filestat;
+    int count = 0;
+    do {
+        snprintf(filename, sizeof(filename), "%s_%03d.ppm", argv[optind], ++count);
+    } while (count <= MAX_FRAMES && stat(filename, &filestat) == 0);
+    count--;
+    if (count < 1) {
+        printf("FAIL: no frames at %s\n", argv[optind]);
+        return 1;
+    }
+
+    int width, height;
+    snprintf(filename, sizeof(filename), "%s_%03d.ppm", argv[optind], (count + 1) / 2);
+    ImageType rgb = ImageUtils::readBinaryPPM(filename, width, height);
+    ImageType gray = ImageUtils::allocateImage(width, height, 1);
+    for (int k = 0; k < width * height; k++)
+        gray[k] = (unsigned char) ((rgb[3 * k] + 2 * rgb[3 * k + 1] + rgb[3 * k + 2]) / 4);
+
+    ImageType expected = ImageUtils::allocateImage(width, height, 3);
+    ImageType warped = ImageUtils::allocateImage(width, height, 3);
+    ImageType first = ImageUtils::allocateImage(width, height, 3);
+    unsigned char **rgbRows = rows(rgb, width, height, 3);
+    unsigned char **grayRows = rows(gray, width, height, 1);
+    unsigned char **expectedRows[4] = { NULL, rows(expected, width, height, 1), NULL,
+            rows(expected, width, height, 3) };
+    unsigned char **warpedRows[4] = { NULL, rows(warped, width, height, 1), NULL,
+            rows(warped, width, height, 3) };
+
+    printf("Warps of %dx%d %s:\n", width, height, filename);
+    bool passed = true;
+    db_HomographyWarper warper;
+    for (int w = 0; w < NR_WARPS; w++)
+    {
+        const double *H = WARPS[w].H;
+        printf("  %-20s grid error %.4f pixels, %d of %d tiles exact\n", WARPS[w].name,
+                warper.GetGridError(width, height, H), warper.GetNrExactTiles(width, height, H),
+                ((width + DB_WARP_TILE_SIZE - 1) / DB_WARP_TILE_SIZE) *
+                ((height + DB_WARP_TILE_SIZE - 1) / DB_WARP_TILE_SIZE));
+
+        for (int channels = 1; channels <= 3; channels += 2)
+        {
+            const unsigned char * const *src = channels == 1 ? grayRows : rgbRows;
+            int size = width * height * channels;
+            exactWarp(src, expectedRows[channels], width, height, channels, H);
+            for (int threads = 1; threads <= maxThreads; threads++)
+            {
+                db_SetMaxThreads(threads);
+                memset(warped, 0, size);
+                if (channels == 1) warper.Warp_u(src, warpedRows[1], width, height, H);
+                else warper.Warp_rgb(src, warpedRows[3], width, height, H);
+
+                int largest = 0, close = 0;
+                double total = 0.0;
+                for (int k = 0; k < size; k++)
+                {
+                    int difference = abs(warped[k] - expected[k]);
+                    if (difference > largest) largest = difference;
+                    if (difference <= 1) close++;
+                    total += difference;
+                }
+                bool same = threads == 1 || memcmp(warped, first, size) == 0;
+                if (threads == 1) memcpy(first, warped, size);
+                bool affine = H[6] == 0.0 && H[7] == 0.0;
+                bool ok = (!affine || largest <= MAX_AFFINE_DIFFERENCE) &&
+                        close >= MIN_CLOSE_RATIO * size && total <= MAX_MEAN_DIFFERENCE * size &&
+                        same;
+                printf("    %s %d thread%s: largest difference %d, mean %.3f, %.2f%% within 1%s%s\n",
+                        channels == 1 ? "gray" : "rgb ", threads, threads > 1 ? "s" : " ",
+                        largest, total / size, 100.0 * close / size,
+                        same ? "" : ", differs from 1 thread", ok ? "" : "  FAIL");
+                passed &= ok;
+            }
+        }
+    }
+
+    // Throughput of the rgb warps at the default number of threads.
+    db_SetMaxThreads(maxThreads);
+    float **lutX = db_AllocImage_f(width, height);
+    float **lutY = db_AllocImage_f(width, height);
+    double megapixels = width * height / 1e6;
+    printf("Throughput, megapixels per second (%d threads at most):\n", maxThreads);
+    for (int w = 0; w < NR_WARPS; w++)
+    {
+        const double *H = WARPS[w].H;
+        double lutMs = 1e9, missMs = 1e9, hitMs = 1e9;
+        for (int i = 0; i < iterations; i++)
+        {
+            double t0 = nowMs();
+            db_GenerateHomographyLut(lutX, lutY, width, height, H);
+            db_WarpImageLutBilinear_rgb(rgbRows, warpedRows[3], width, height, lutX, lutY);
+            double t1 = nowMs();
+            warper.ClearCache();
+            warper.Warp_rgb(rgbRows, warpedRows[3], width, height, H);
+            double t2 = nowMs();
+            warper.Warp_rgb(rgbRows, warpedRows[3], width, height, H);
+            double t3 = nowMs();
+            if (t1 - t0 < lutMs) lutMs = t1 - t0;
+            if (t2 - t1 < missMs) missMs = t2 - t1;
+            if (t3 - t2 < hitMs) hitMs = t3 - t2;
+        }
+        printf("  %-20s lut %7.1f  warper %7.1f  cached %7.1f  (%.2fx)\n", WARPS[w].name,
+                megapixels / lutMs * 1e3, megapixels / missMs * 1e3, megapixels / hitMs * 1e3,
+                lutMs / hitMs);
+    }
+    printf("%s: warper within %.0f%% of 1 gray level of the exact warp\n",
+            passed ? "PASS" : "FAIL", 100.0 * MIN_CLOSE_RATIO);
+
+    db_FreeImage_f(lutX, height);
+    db_FreeImage_f(lutY, height);
+    delete[] rgbRows;
+    delete[] grayRows;
+    for (int channels = 1; channels <= 3; channels += 2)
+    {
+        delete[] expectedRows[channels];
+        delete[] warpedRows[channels];
+    }
+    ImageUtils::freeImage(rgb);
+    ImageUtils::freeImage(gray);
+    ImageUtils::freeImage(expected);
+    ImageUtils::freeImage(warped);
+    ImageUtils::freeImage(first);
+    return passed ? 0 : 1;
+}
@@ -0,0 +1,555 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Checks that the YuvConvert kernels produce exactly the output of the
+// per-pixel converters they replaced in feature_mos_jni.cpp, which are kept
+// below as the reference, and times both per frame. The low-res image, which
+// is now box filtered instead of point sampled, is checked against a
+// per-pixel box filter.
+//
+//   yuv_convert_test [-n iterations] [-t max threads] [-a input basename]
+//
+// With -a, the frames basename_001.ppm, basename_002.ppm, ... are also aligned
+// at low resolution as the JNI layer does, once point sampled and once box
+// filtered, and the alignment results and inlier counts of both are printed.
+//
+// Exits with 1 if any output differs.
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+
+#include <sys/stat.h>
+
+#include "mosaic/AlignFeatures.h"
+#include "mosaic/ImageUtils.h"
+#include "mosaic/YuvConvert.h"
+
+#define DEFAULT_ITERATIONS 50
+#define MAX_FRAMES 200
+
+const int H2L_FACTOR = 4;
+const float LR_THRESH_STILL = 5.0f;     // thresh_still[LR] of the JNI layer
+
+/////////////////////////////////////////////////////////////////////////////
+// The reference converters, as they were in feature_mos_jni.cpp.
+
+static void GenerateQuarterResImagePlanar(ImageType im, int input_w, int input_h,
+        ImageType &out)
+{
+    ImageType imp;
+    ImageType outp;
+
+    int count = 0;
+
+    for (int j = 0; j < input_h; j += H2L_FACTOR)
+    {
+        imp = im + j * input_w;
+        outp = out + (j / H2L_FACTOR) * (input_w / H2L_FACTOR);
+
+        for (int i = 0; i < input_w; i += H2L_FACTOR)
+        {
+            *outp++ = *(imp + i);
+            count++;
+        }
+    }
+
+    for (int j = input_h; j < 2 * input_h; j += H2L_FACTOR)
+    {
+        imp = im + j * input_w;
+        outp = out + (j / H2L_FACTOR) * (input_w / H2L_FACTOR);
+
+        for (int i = 0; i < input_w; i += H2L_FACTOR)
+        {
+            *outp++ = *(imp + i);
+            count++;
+        }
+    }
+
+    for (int j = 2 * input_h; j < 3 * input_h; j += H2L_FACTOR)
+    {
+        imp = im + j * input_w;
+        outp = out + (j / H2L_FACTOR) * (input_w / H2L_FACTOR);
+
+        for (int i = 0; i < input_w; i += H2L_FACTOR)
+        {
+            *outp++ = *(imp + i);
+            count++;
+        }
+    }
+}
+
+static void YUV420toYVU24_NEW(ImageType yvu24, ImageType yuv420sp, int width,
+        int height)
+{
+    int frameSize = width * height;
+
+    ImageType ovp = yvu24 + frameSize;
+    ImageType oup = yvu24 + frameSize + frameSize;
+
+    memcpy(yvu24, yuv420sp, frameSize * sizeof(unsigned char));
+
+    for (int j = 0; j < height; j += 2)
+    {
+        unsigned char u = 0, v = 0;
+        int uvp = frameSize + (j >> 1) * width;
+        ovp = yvu24 + frameSize + j * width;
+        oup = ovp + frameSize;
+
+        ImageType iuvp = yuv420sp + uvp;
+
+        for (int i = 0; i < width; i += 2)
+        {
+            v = *iuvp++;
+            u = *iuvp++;
+
+            *ovp++ = v;
+            *oup++ = u;
+
+            *ovp++ = v;
+            *oup++ = u;
+
+        }
+        memcpy(ovp, ovp - width, width * sizeof(unsigned char));
+        memcpy(oup, oup - width, width * sizeof(unsigned char));
+    }
+}
+
+static void decodeYUV444SP(unsigned char* rgb, unsigned char* yuv420sp, int width,
+        int height)
+{
+    int frameSize = width * height;
+
+    for (int j = 0, yp = 0; j < height; j++)
+    {
+        int vp = frameSize + j * width, u = 0, v = 0;
+        int up = vp + frameSize;
+
+        for (int i = 0; i < width; i++, yp++, vp++, up++)
+        {
+            int y = (0xff & ((int) yuv420sp[yp])) - 16;
+            if (y < 0) y = 0;
+
+            v = (0xff & yuv420sp[vp]) - 128;
+            u = (0xff & yuv420sp[up]) - 128;
+
+            int y1192 = 1192 * y;
+            int r = (y1192 + 1634 * v);
+            int g = (y1192 - 833 * v - 400 * u);
+            int b = (y1192 + 2066 * u);
+
+            if (r < 0) r = 0; else if (r > 262143) r = 262143;
+            if (g < 0) g = 0; else if (g > 262143) g = 262143;
+            if (b < 0) b = 0; else if (b > 262143) b = 262143;
+
+            //rgb[yp] = 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
+            int p = j*width*3+i*3;
+            rgb[p+0] = (r<<6 & 0xFF0000)>>16;
+            rgb[p+1] = (g>>2 & 0xFF00)>>8;
+            rgb[p+2] =  b>>10 & 0xFF;
+        }
+    }
+}
+
+static void ConvertYVUAiToPlanarYVU(unsigned char *planar, unsigned char *in, int width,
+        int height)
+{
+    int planeSize = width * height;
+    unsigned char* Yptr = planar;
+    unsigned char* Vptr = planar + planeSize;
+    unsigned char* Uptr = Vptr + planeSize;
+
+    for (int i = 0; i < planeSize; i++)
+    {
+        *Yptr++ = *in++;
+        *Vptr++ = *in++;
+        *Uptr++ = *in++;
+        in++;   // Alpha
+    }
+}
+
+/////////////////////////////////////////////////////////////////////////////
+// The low-res image of YuvConvert::nv21ToYvu(), pixel by pixel: the mean of
+// each 4x4 block of Y and of each 2x2 block of V and U samples.
+
+static void BoxFilterQuarterRes(ImageType out, ImageType nv21, int width, int height)
+{
+    int frameSize = width * height;
+    int lrWidth = width / H2L_FACTOR;
+    int lrSize = lrWidth * (height / H2L_FACTOR);
+
+    for (int j = 0; j < height / H2L_FACTOR; j++)
+    {
+        for (int i = 0; i < lrWidth; i++)
+        {
+            int sum = 0;
+            for (int y = 0; y < H2L_FACTOR; y++)
+                for (int x = 0; x < H2L_FACTOR; x++)
+                    sum += nv21[(j * H2L_FACTOR + y) * width + i * H2L_FACTOR + x];
+            out[j * lrWidth + i] = (sum + 8) >> 4;
+
+            int v = 0, u = 0;
+            for (int y = 0; y < 2; y++)
+            {
+                for (int x = 0; x < 2; x++)
+                {
+                    int c = frameSize + (j * 2 + y) * width + (i * 2 + x) * 2;
+                    v += nv21[c];
+                    u += nv21[c + 1];
+                }
+            }
+            out[lrSize + j * lrWidth + i] = (v + 2) >> 2;
+            out[2 * lrSize + j * lrWidth + i] = (u + 2) >> 2;
+        }
+    }
+}
+
+/////////////////////////////////////////////////////////////////////////////
+
+static double nowMs()
+{
+    struct timespec t;
+    clock_gettime(CLOCK_MONOTONIC, &t);
+    return t.tv_sec * 1000.0 + t.tv_nsec / 1e6;
+}
+
+static void fillRandom(ImageType image, int size, unsigned int seed)
+{
+    for (int i = 0; i < size; i++)
+    {
+        seed = seed * 1103515245 + 12345;
+        image[i] = (unsigned char) (seed >> 16);
+    }
+}
+
+static bool compare(const char *what, int width, int height, int threads,
+        ImageType expected, ImageType actual, size_t size)
+{
+    for (size_t i = 0; i < size; i++)
+    {
+        if (expected[i] != actual[i])
+        {
+            printf("FAIL %s %dx%d, %d threads: byte %zu is %d instead of %d\n",
+                   what, width, height, threads, i, actual[i], expected[i]);
+            return false;
+        }
+    }
+    return true;
+}
+
+// Checks every conversion of one frame size with 1 to maxThreads threads.
+// The low-res image is only compared for sizes that are multiples of 4, which
+// the reference of yvuToRgb requires.
+static bool check(int width, int height, int maxThreads)
+{
+    const size_t hrSize = (size_t) width * height * 3;
+    const int lrWidth = width / H2L_FACTOR;
+    const int lrHeight = height / H2L_FACTOR;
+    const size_t lrSize = (size_t) lrWidth * lrHeight * 3;
+    const bool lowRes = width % H2L_FACTOR == 0 && height % H2L_FACTOR == 0;
+
+    ImageType nv21 = ImageUtils::allocateImage(width, height * 3 / 2, 1);
+    ImageType yvua = ImageUtils::allocateImage(width, height, 4);
+    ImageType expectedHR = ImageUtils::allocateImage(width, height, 3);
+    ImageType expectedLR = ImageUtils::allocateImage(lrWidth, lrHeight, 3);
+    ImageType expectedRgb = ImageUtils::allocateImage(lrWidth, lrHeight, 3);
+    ImageType expectedPlanar = ImageUtils::allocateImage(width, height, 3);
+    ImageType hr = ImageUtils::allocateImage(width, height, 3);
+    ImageType lr = ImageUtils::allocateImage(lrWidth, lrHeight, 3);
+    ImageType rgb = ImageUtils::allocateImage(lrWidth, lrHeight, 3);
+
+    fillRandom(nv21, width * height * 3 / 2, width * 31 + height);
+    fillRandom(yvua, width * height * 4, width + height * 31);
+
+    YUV420toYVU24_NEW(expectedHR, nv21, width, height);
+    if (lowRes)
+    {
+        BoxFilterQuarterRes(expectedLR, nv21, width, height);
+        decodeYUV444SP(expectedRgb, expectedLR, lrWidth, lrHeight);
+    }
+    ConvertYVUAiToPlanarYVU(expectedPlanar, yvua, width, height);
+
+    bool passed = true;
+    for (int threads = 1; threads <= maxThreads; threads++)
+    {
+        YuvConvert::setMaxThreads(threads);
+
+        memset(hr, 0, hrSize);
+        YuvConvert::nv21ToYvu(hr, NULL, nv21, width, height);
+        passed &= compare("nv21ToYvu", width, height, threads, expectedHR, hr, hrSize);
+
+        if (lowRes)
+        {
+            memset(hr, 0, hrSize);
+            memset(lr, 0, lrSize);
+            YuvConvert::nv21ToYvu(hr, lr, nv21, width, height);
+            passed &= compare("nv21ToYvu HR", width, height, threads, expectedHR, hr, hrSize);
+            passed &= compare("nv21ToYvu LR", width, height, threads, expectedLR, lr, lrSize);
+
+            memset(rgb, 0, lrSize);
+            YuvConvert::yvuToRgb(rgb, lr, lrWidth, lrHeight);
+            passed &= compare("yvuToRgb", width, height, threads, expectedRgb, rgb, lrSize);
+
+            memset(lr, 0, lrSize);
+            YuvConvert::nv21ToLowResY(lr, nv21, width, height);
+            passed &= compare("nv21ToLowResY", width, height, threads, expectedLR, lr,
+                    lrWidth * lrHeight);
+        }
+
+        memset(hr, 0, hrSize);
+        YuvConvert::yvuaToYvu(hr, yvua, width, height);
+        passed &= compare("yvuaToYvu", width, height, threads, expectedPlanar, hr, hrSize);
+    }
+
+    ImageUtils::freeImage(nv21);
+    ImageUtils::freeImage(yvua);
+    ImageUtils::freeImage(expectedHR);
+    ImageUtils::freeImage(expectedLR);
+    ImageUtils::freeImage(expectedRgb);
+    ImageUtils::freeImage(expectedPlanar);
+    ImageUtils::freeImage(hr);
+    ImageUtils::freeImage(lr);
+    ImageUtils::freeImage(rgb);
+    return passed;
+}
+
+// Prints the mean time per frame of the conversions done for every preview
+// frame: NV21 to high-res, low-res and preview RGB, and the GPU readback.
+static void timeFrame(int width, int height, int iterations, int threads)
+{
+    const int lrWidth = width / H2L_FACTOR;
+    const int lrHeight = height / H2L_FACTOR;
+
+    ImageType nv21 = ImageUtils::allocateImage(width, height * 3 / 2, 1);
+    ImageType yvua = ImageUtils::allocateImage(width, height, 4);
+    ImageType hr = ImageUtils::allocateImage(width, height, 3);
+    ImageType lr = ImageUtils::allocateImage(lrWidth, lrHeight, 3);
+    ImageType rgb = ImageUtils::allocateImage(lrWidth, lrHeight, 3);
+    fillRandom(nv21, width * height * 3 / 2, 1);
+    fillRandom(yvua, width * height * 4, 2);
+
+    YuvConvert::setMaxThreads(threads);
+    double t0 = nowMs();
+    for (int i = 0; i < iterations; i++)
+    {
+        YUV420toYVU24_NEW(hr, nv21, width, height);
+        GenerateQuarterResImagePlanar(hr, width, height, lr);
+        decodeYUV444SP(rgb, lr, lrWidth, lrHeight);
+    }
+    double t1 = nowMs();
+    for (int i = 0; i < iterations; i++)
+    {
+        YuvConvert::nv21ToYvu(hr, lr, nv21, width, height);
+        YuvConvert::yvuToRgb(rgb, lr, lrWidth, lrHeight);
+    }
+    double t2 = nowMs();
+    for (int i = 0; i < iterations; i++)
+    {
+        ConvertYVUAiToPlanarYVU(hr, yvua, width, height);
+    }
+    double t3 = nowMs();
+    for (int i = 0; i < iterations; i++)
+    {
+        YuvConvert::yvuaToYvu(hr, yvua, width, height);
+    }
+    double t4 = nowMs();
+
+    printf("%4dx%-4d %d thread(s)  nv21: %7.3f -> %7.3f ms   yvua: %7.3f -> %7.3f ms\n",
+           width, height, threads, (t1 - t0) / iterations, (t2 - t1) / iterations,
+           (t3 - t2) / iterations, (t4 - t3) / iterations);
+
+    ImageUtils::freeImage(nv21);
+    ImageUtils::freeImage(yvua);
+    ImageUtils::freeImage(hr);
+    ImageUtils::freeImage(lr);
+    ImageUtils::freeImage(rgb);
+}
+
+/////////////////////////////////////////////////////////////////////////////
+// Low-res alignment.
+
+// Converts an RGB frame to NV21 with the integer coefficients of the JUnit
+// harness in tests/host, taking the chroma of the top-left pixel of each 2x2
+// block.
+static void rgbToNv21(ImageType nv21, ImageType rgb, int width, int height)
+{
+    int frameSize = width * height;
+    for (int y = 0; y < height; y++)
+    {
+        for (int x = 0; x < width; x++)
+        {
+            ImageType p = rgb + 3 * (y * width + x);
+            int r = p[0], g = p[1], b = p[2];
+            int value = (257 * r + 504 * g + 98 * b) / 1000 + 16;
+            nv21[y * width + x] = value < 0 ? 0 : (value > 255 ? 255 : value);
+            if ((x & 1) == 0 && (y & 1) == 0)
+            {
+                int c = frameSize + (y >> 1) * width + x;
+                int v = (439 * r - 368 * g - 71 * b) / 1000 + 128;
+                int u = (-148 * r - 291 * g + 439 * b) / 1000 + 128;
+                nv21[c] = v < 0 ? 0 : (v > 255 ? 255 : v);
+                nv21[c + 1] = u < 0 ? 0 : (u > 255 ? 255 : u);
+            }
+        }
+    }
+}
+
+struct AlignStats
+{
+    int frames;         // Frames after the first
+    int ok;
+    int fewInliers;
+    int still;
+    int minInliers;
+    double meanInliers;
+};
+
+// Aligns every step-th low-res frame to the last accepted one, as Mosaic does
+// with the preview frames.
+static AlignStats alignLowRes(ImageType *lrFrames, int count, int step, int lrWidth,
+        int lrHeight)
+{
+    AlignStats stats = { 0, 0, 0, 0, 0, 0.0 };
+    Align align;
+    align.initialize(lrWidth, lrHeight, false, LR_THRESH_STILL);
+    long total = 0;
+    for (int i = 0; i < count; i += step)
+    {
+        int ret = align.addFrame(lrFrames[i]);
+        if (i == 0) continue;
+
+        int inliers = align.getNumInliers();
+        stats.frames++;
+        if (ret == Align::ALIGN_RET_OK) stats.ok++;
+        else if (ret == Align::ALIGN_RET_FEW_INLIERS) stats.fewInliers++;
+        else stats.still++;
+        if (stats.frames == 1 || inliers < stats.minInliers) stats.minInliers = inliers;
+        total += inliers;
+    }
+    if (stats.frames > 0) stats.meanInliers = (double) total / stats.frames;
+    return stats;
+}
+
+static void printAlignStats(const char *what, const AlignStats &stats)
+{
+    printf("  %-14s ok %3d/%-3d  few inliers %3d  still %3d  inliers mean %6.1f min %3d\n",
+           what, stats.ok, stats.frames, stats.fewInliers, stats.still,
+           stats.meanInliers, stats.minInliers);
+}
+
+// Prints the low-res alignment results of the frames of basename, point
+// sampled and box filtered, for every frame and for every 2nd and 3rd frame,
+// which doubles and triples the motion between frames.
+static bool compareLowResAlignment(const char *basename)
+{
+    char filename[512];
+    struct stat filestat;
+    ImageType pointSampled[MAX_FRAMES];
+    ImageType boxFiltered[MAX_FRAMES];
+    int width = 0, height = 0;
+    int count;
+
+    for (count = 0; count < MAX_FRAMES; count++)
+    {
+        snprintf(filename, sizeof(filename), "%s_%03d.ppm", basename, count + 1);
+        if (stat(filename, &filestat) != 0) break;
+        ImageType rgb = ImageUtils::readBinaryPPM(filename, width, height);
+        ImageType nv21 = ImageUtils::allocateImage(width, height * 3 / 2, 1);
+        ImageType hr = ImageUtils::allocateImage(width, height, 3);
+        rgbToNv21(nv21, rgb, width, height);
+
+        pointSampled[count] = ImageUtils::allocateImage(width / H2L_FACTOR,
+                height / H2L_FACTOR, 3);
+        boxFiltered[count] = ImageUtils::allocateImage(width / H2L_FACTOR,
+                height / H2L_FACTOR, 3);
+        YUV420toYVU24_NEW(hr, nv21, width, height);
+        GenerateQuarterResImagePlanar(hr, width, height, pointSampled[count]);
+        YuvConvert::nv21ToYvu(hr, boxFiltered[count], nv21, width, height);
+
+        ImageUtils::freeImage(rgb);
+        ImageUtils::freeImage(nv21);
+        ImageUtils::freeImage(hr);
+    }
+    if (count < 2)
+    {
+        printf("FAIL: fewer than 2 frames at %s\n", basename);
+        return false;
+    }
+
+    printf("Low-res alignment of %d frames of %dx%d at %dx%d:\n", count, width,
+           height, width / H2L_FACTOR, height / H2L_FACTOR);
+    static const char *steps[] = { "every frame", "every 2nd frame", "every 3rd frame" };
+    for (int step = 1; step <= 3; step++)
+    {
+        printf(" %s:\n", steps[step - 1]);
+        printAlignStats("point sampled", alignLowRes(pointSampled, count, step,
+                width / H2L_FACTOR, height / H2L_FACTOR));
+        printAlignStats("box filtered", alignLowRes(boxFiltered, count, step,
+                width / H2L_FACTOR, height / H2L_FACTOR));
+    }
+
+    for (int i = 0; i < count; i++)
+    {
+        ImageUtils::freeImage(pointSampled[i]);
+        ImageUtils::freeImage(boxFiltered[i]);
+    }
+    return true;
+}
+
+int main(int argc, char **argv)
+{
+    int iterations = DEFAULT_ITERATIONS;
+    int maxThreads = 4;
+    const char *alignInput = NULL;
+    int opt;
+    while ((opt = getopt(argc, argv, "n:t:a:")) != -1) {
+        switch (opt) {
+            case 'n': iterations = atoi(optarg); break;
+            case 't': maxThreads = atoi(optarg); break;
+            case 'a': alignInput = optarg; break;
+            default:
+                printf("usage: %s [-n iterations] [-t max threads] [-a input basename]\n",
+                       argv[0]);
+                return 1;
+        }
+    }
+
+    // Camera preview sizes, plus sizes that leave a remainder in every SIMD
+    // loop and in the low-res decimation.
+    static const int sizes[][2] = {
+        {176, 144}, {640, 480}, {960, 720}, {1280, 720}, {1920, 1080},
+        {968, 724}, {962, 722}, {34, 6},
+    };
+    bool passed = true;
+    for (size_t i = 0; i < sizeof(sizes) / sizeof(sizes[0]); i++) {
+        passed &= check(sizes[i][0], sizes[i][1], maxThreads);
+    }
+    printf("%s: conversions are %sbit-exact\n", passed ? "PASS" : "FAIL",
+           passed ? "" : "not ");
+
+    printf("Per-frame conversion time, reference -> YuvConvert:\n");
+    for (int threads = 1; threads <= maxThreads; threads *= 2) {
+        timeFrame(960, 720, iterations, threads);
+        timeFrame(1920, 1080, iterations, threads);
+    }
+
+    if (alignInput != NULL) {
+        passed &= compareLowResAlignment(alignInput);
+    }
+    return passed ? 0 : 1;
+}
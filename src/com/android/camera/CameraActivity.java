@@ -37,6 +37,9 @@ import com.android.camera.ui.CameraSwitcher;
 import com.android.gallery3d.app.PhotoPage;
 import com.android.gallery3d.util.LightCycleHelper;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 public class CameraActivity extends ActivityBase
         implements CameraSwitcher.CameraSwitchListener {
     public static final int PHOTO_MODULE_INDEX = 0;
@@ -44,6 +47,9 @@ public class CameraActivity extends ActivityBase
     public static final int PANORAMA_MODULE_INDEX = 2;
     public static final int LIGHTCYCLE_MODULE_INDEX = 3;
 
+    // The milestone the start-up of the photo and video modules aims for.
+    public static final String FIRST_PREVIEW_FRAME = "firstPreviewFrame";
+
     CameraModule mCurrentModule;
     private FrameLayout mFrame;
     private ShutterButton mShutter;
@@ -60,6 +66,20 @@ public class CameraActivity extends ActivityBase
 
     private static final String TAG = "CAM_activity";
 
+    // Commands kept by the trace started with "dumpsys activity ... trace-start".
+    private static final int TRACE_CAPACITY = 1024;
+
+    // Shows the camera error when a camera command fails with nobody waiting
+    // for it; the camera is released by then.
+    private final CameraManager.CommandFailureListener mCommandFailureListener =
+            new CameraManager.CommandFailureListener() {
+        @Override
+        public void onCameraCommandFailed(String command, Throwable failure) {
+            if (isFinishing()) return;
+            Util.showErrorAndFinish(CameraActivity.this, R.string.cannot_connect_camera);
+        }
+    };
+
     private static final int[] DRAW_IDS = {
             R.drawable.ic_switch_camera,
             R.drawable.ic_switch_video,
@@ -70,6 +90,7 @@ public class CameraActivity extends ActivityBase
     @Override
     public void onCreate(Bundle state) {
         super.onCreate(state);
+        CameraManager.instance().setCommandFailureListener(mCommandFailureListener);
         setContentView(R.layout.camera_main);
         mFrame =(FrameLayout) findViewById(R.id.main_content);
         mDrawables = new Drawable[DRAW_IDS.length];
@@ -302,6 +323,16 @@ public class CameraActivity extends ActivityBase
         mCurrentModule.onFullScreenChanged(full);
     }
 
+    @Override
+    protected void onDestroy() {
+        CameraManager manager = CameraManager.instance();
+        // A newer activity may have set its own.
+        if (manager.getCommandFailureListener() == mCommandFailureListener) {
+            manager.setCommandFailureListener(null);
+        }
+        super.onDestroy();
+    }
+
     @Override
     protected void onStop() {
         super.onStop();
@@ -434,6 +465,40 @@ public class CameraActivity extends ActivityBase
         return (mCurrentModuleIndex == PANORAMA_MODULE_INDEX);
     }
 
+    // Traces the camera commands, with
+    // "adb shell dumpsys activity com.android.camera/.CameraActivity" and:
+    //   trace-start [capacity]  start recording the commands
+    //   trace-stop              stop recording them
+    //   trace-json              print them as a systrace-compatible JSON trace
+    //   (nothing)               print the percentiles of their latency
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        CameraManager manager = CameraManager.instance();
+        String command = (args != null && args.length > 0) ? args[0] : "";
+        if (command.equals("trace-start")) {
+            int capacity = TRACE_CAPACITY;
+            if (args.length > 1) {
+                try {
+                    capacity = Math.max(1, Integer.parseInt(args[1]));
+                } catch (NumberFormatException e) {
+                    writer.println("Bad capacity " + args[1]);
+                    return;
+                }
+            }
+            manager.startTrace(capacity);
+            writer.println("Tracing the last " + capacity + " camera commands");
+        } else if (command.equals("trace-stop")) {
+            manager.stopTrace();
+            writer.println("Camera commands not traced");
+        } else if (command.equals("trace-json")) {
+            // Nothing else, for the output to be a valid trace file.
+            manager.dumpTrace(writer, true);
+        } else {
+            super.dump(prefix, fd, writer, args);
+            manager.dumpTrace(writer, false);
+        }
+    }
+
     // Accessor methods for getting latency times used in performance testing
     public long getAutoFocusTime() {
         return (mCurrentModule instanceof PhotoModule) ?
@@ -465,6 +530,19 @@ public class CameraActivity extends ActivityBase
                 ((PhotoModule)mCurrentModule).mCaptureStartTime : -1;
     }
 
+    // The last start-up of the photo or video module, or null. It may still
+    // be running.
+    public StartupOrchestrator getStartup() {
+        if (mCurrentModule instanceof PhotoModule) {
+            PhotoModule module = (PhotoModule) mCurrentModule;
+            return module.mStartup != null ? module.mStartup : module.mLastStartup;
+        } else if (mCurrentModule instanceof VideoModule) {
+            VideoModule module = (VideoModule) mCurrentModule;
+            return module.mStartup != null ? module.mStartup : module.mLastStartup;
+        }
+        return null;
+    }
+
     public boolean isRecording() {
         return (mCurrentModule instanceof VideoModule) ?
                 ((VideoModule) mCurrentModule).isRecording() : false;
@@ -0,0 +1,436 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The thread that runs the commands of CameraManager.CameraProxy, one at a
+ * time and in the order they were submitted. Submitting never blocks: it
+ * returns a Command, which is a Future of the result. A caller that needs
+ * the command done waits for it with Command.await(), which gives up after
+ * the timeout of the command and reports what the thread was busy with, or
+ * waits for every command submitted before with barrier(). A caller that
+ * must not give up, e.g. one releasing the camera, waits with
+ * awaitUnbounded(), which reports what the thread is busy with every timeout
+ * and keeps waiting.
+ *
+ * Commands submitted from one thread run in that order; commands from
+ * different threads run in the order submit() was entered. A command that
+ * submitReplacing() or submitCoalescing() replaces does not run; it is done
+ * when the command that replaced it is, with its result.
+ */
+public class CameraCommandQueue {
+    /** Wait as long as it takes. */
+    public static final long NO_TIMEOUT = 0;
+
+    /** Thrown by await() when the command is not done within its timeout. */
+    public static class CommandTimeoutException extends RuntimeException {
+        public CommandTimeoutException(String message) {
+            super(message);
+        }
+    }
+
+    /** Called on the queue thread once the command is done. */
+    public interface Callback<T> {
+        public void onCommandDone(Command<T> command);
+    }
+
+    /** Called on the queue thread when a command throws. */
+    public interface FailureListener {
+        public void onCommandFailed(Command<?> command, Throwable failure);
+    }
+
+    /** Called on the waiting thread when awaitUnbounded() waits long. */
+    public interface SlowCommandListener {
+        public void onCommandSlow(Command<?> command, String diagnostics);
+    }
+
+    public class Command<T> extends FutureTask<T> {
+        private final String mName;
+        private final long mTimeoutMs;
+        private final long mSubmitTime = System.nanoTime();
+        private volatile long mStartTime;
+        private final ArrayList<Callback<T>> mCallbacks = new ArrayList<Callback<T>>(1);
+        private volatile boolean mReplaced;
+
+        private Command(String name, long timeoutMs, Callable<T> callable) {
+            super(callable);
+            mName = name;
+            mTimeoutMs = timeoutMs;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * Whether a later command of the same name replaced this one, which
+         * then did not run.
+         */
+        public boolean isReplaced() {
+            return mReplaced;
+        }
+
+        /**
+         * Wait for the command to be done.
+         *
+         * @return the result of the command.
+         * @throws CommandTimeoutException if it is not done within its timeout.
+         * @throws java.util.concurrent.CancellationException if it was
+         *         cancelled.
+         * Any RuntimeException or Error the command threw is thrown again; a
+         * checked exception is wrapped in a RuntimeException.
+         */
+        public T await() {
+            if (Thread.currentThread() == mThread && !isDone()) {
+                throw new IllegalStateException(mName + " awaited on the queue thread");
+            }
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        return mTimeoutMs == NO_TIMEOUT
+                                ? get() : get(mTimeoutMs, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } catch (TimeoutException e) {
+                throw new CommandTimeoutException(mName + " not done after " + mTimeoutMs
+                        + " ms; " + CameraCommandQueue.this.describe());
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                if (cause instanceof Error) throw (Error) cause;
+                throw new RuntimeException(mName + " failed", cause);
+            } finally {
+                if (interrupted) Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Wait for the command to be done, as long as it takes. Each time the
+         * timeout of the command passes, listener is told what the queue
+         * thread is busy with.
+         *
+         * @return the result of the command.
+         * Throws what the command threw, like await().
+         */
+        public T awaitUnbounded(SlowCommandListener listener) {
+            while (true) {
+                try {
+                    return await();
+                } catch (CommandTimeoutException e) {
+                    listener.onCommandSlow(this, e.getMessage());
+                }
+            }
+        }
+
+        /**
+         * Run the callback once the command is done, on the queue thread, or
+         * right away on the calling thread if it is done already.
+         */
+        public void setCallback(Callback<T> callback) {
+            synchronized (mCallbacks) {
+                if (!isDone()) {
+                    mCallbacks.add(callback);
+                    return;
+                }
+            }
+            callback.onCommandDone(this);
+        }
+
+        @Override
+        protected void done() {
+            ArrayList<Callback<T>> callbacks;
+            synchronized (mCallbacks) {
+                callbacks = new ArrayList<Callback<T>>(mCallbacks);
+                mCallbacks.clear();
+            }
+            for (Callback<T> callback : callbacks) {
+                callback.onCommandDone(this);
+            }
+        }
+
+        // Makes the command done when replacement is, the same way.
+        private void replaceWith(Command<T> replacement) {
+            mReplaced = true;
+            replacement.setCallback(new Callback<T>() {
+                @Override
+                public void onCommandDone(Command<T> command) {
+                    if (command.isCancelled()) {
+                        cancel(false);
+                        return;
+                    }
+                    try {
+                        set(command.get());
+                    } catch (ExecutionException e) {
+                        setException(e.getCause());
+                    } catch (InterruptedException e) {
+                        // Not possible: the command is done.
+                    }
+                }
+            });
+        }
+
+        // Runs the command and returns what it threw, if anything.
+        private Throwable execute() {
+            mStartTime = System.nanoTime();
+            run();
+            if (isCancelled()) return null;
+            try {
+                get();
+                return null;
+            } catch (ExecutionException e) {
+                return e.getCause();
+            } catch (InterruptedException e) {
+                return null;  // Not possible: the command is done.
+            }
+        }
+
+        private String describe(long now) {
+            long start = mStartTime;
+            long since = start != 0 ? start : mSubmitTime;
+            return mName + (start != 0 ? " running for " : " queued for ")
+                    + (now - since) / 1000000 + " ms";
+        }
+    }
+
+    // How enqueue() treats the pending commands of the same name.
+    private static final int APPEND = 0;
+    private static final int REPLACE_PENDING = 1;
+    private static final int REPLACE_LAST = 2;
+
+    private final Thread mThread;
+    private final ArrayDeque<Command<?>> mPending = new ArrayDeque<Command<?>>();
+    private Command<?> mRunning;
+    private FailureListener mFailureListener;
+    // Null unless the commands are traced.
+    private volatile CameraCommandTrace mTrace;
+
+    public CameraCommandQueue(String name) {
+        mThread = new Thread(name) {
+            @Override
+            public void run() {
+                runCommands();
+            }
+        };
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    public synchronized void setFailureListener(FailureListener listener) {
+        mFailureListener = listener;
+    }
+
+    /**
+     * Record the commands run from now on in trace, or stop recording them
+     * if it is null.
+     */
+    public void setTrace(CameraCommandTrace trace) {
+        mTrace = trace;
+    }
+
+    public CameraCommandTrace getTrace() {
+        return mTrace;
+    }
+
+    public <T> Command<T> submit(String name, long timeoutMs, Callable<T> callable) {
+        return enqueue(new Command<T>(name, timeoutMs, callable), APPEND, null);
+    }
+
+    public Command<Void> submit(String name, long timeoutMs, Runnable runnable) {
+        return submit(name, timeoutMs, callable(runnable));
+    }
+
+    /**
+     * Return a command that is already done with result, without running
+     * anything on the queue thread, e.g. for a fake camera.
+     */
+    public <T> Command<T> done(String name, final T result) {
+        Command<T> command = new Command<T>(name, NO_TIMEOUT, new Callable<T>() {
+            @Override
+            public T call() {
+                return result;
+            }
+        });
+        command.run();
+        return command;
+    }
+
+    /**
+     * Like submit(), but replaces the commands of the same name that are
+     * still pending: only the latest one runs, after the commands submitted
+     * before it. Commands of the same name must have the same result type.
+     */
+    public <T> Command<T> submitReplacing(String name, long timeoutMs, Callable<T> callable) {
+        return enqueue(new Command<T>(name, timeoutMs, callable), REPLACE_PENDING, null);
+    }
+
+    public Command<Void> submitReplacing(String name, long timeoutMs, Runnable runnable) {
+        return submitReplacing(name, timeoutMs, callable(runnable));
+    }
+
+    /**
+     * Like submit(), but replaces the last command submitted if it has the
+     * same name and is still pending: a run of such commands collapses into
+     * the latest, which keeps its place among the other commands. Commands of
+     * the same name must have the same result type.
+     */
+    public <T> Command<T> submitCoalescing(String name, long timeoutMs, Callable<T> callable) {
+        return submitCoalescing(name, timeoutMs, callable,
+                Collections.<String>emptySet());
+    }
+
+    /**
+     * Like submitCoalescing(), but the pending command replaced may be
+     * followed by commands named in independent, e.g. ones the command does
+     * not affect: the replaced command's effect is then delayed past them.
+     */
+    public <T> Command<T> submitCoalescing(String name, long timeoutMs, Callable<T> callable,
+            Collection<String> independent) {
+        return enqueue(new Command<T>(name, timeoutMs, callable), REPLACE_LAST, independent);
+    }
+
+    public Command<Void> submitCoalescing(String name, long timeoutMs, Runnable runnable) {
+        return submitCoalescing(name, timeoutMs, callable(runnable));
+    }
+
+    public Command<Void> submitCoalescing(String name, long timeoutMs, Runnable runnable,
+            Collection<String> independent) {
+        return submitCoalescing(name, timeoutMs, callable(runnable), independent);
+    }
+
+    /**
+     * Wait until every command submitted before is done.
+     *
+     * @throws CommandTimeoutException if they are not done within timeoutMs.
+     */
+    public void barrier(long timeoutMs) {
+        submit("barrier", timeoutMs, new Callable<Void>() {
+            @Override
+            public Void call() {
+                return null;
+            }
+        }).await();
+    }
+
+    /**
+     * What the queue thread is running and what is waiting, for diagnostics.
+     */
+    public synchronized String describe() {
+        long now = System.nanoTime();
+        StringBuilder builder = new StringBuilder();
+        if (mRunning != null) {
+            builder.append(mRunning.describe(now));
+        } else {
+            builder.append("idle");
+        }
+        builder.append(", ").append(mPending.size()).append(" pending");
+        if (!mPending.isEmpty()) {
+            builder.append(": ");
+            boolean first = true;
+            for (Command<?> command : mPending) {
+                if (!first) builder.append(", ");
+                builder.append(command.getName());
+                first = false;
+            }
+        }
+        return builder.toString();
+    }
+
+    // independent names the commands that REPLACE_LAST may look past.
+    @SuppressWarnings("unchecked")
+    private synchronized <T> Command<T> enqueue(Command<T> command, int mode,
+            Collection<String> independent) {
+        if (mode == REPLACE_PENDING) {
+            Iterator<Command<?>> it = mPending.iterator();
+            while (it.hasNext()) {
+                Command<?> pending = it.next();
+                if (pending.getName().equals(command.getName())) {
+                    it.remove();
+                    ((Command<T>) pending).replaceWith(command);
+                }
+            }
+        } else if (mode == REPLACE_LAST) {
+            Iterator<Command<?>> it = mPending.descendingIterator();
+            while (it.hasNext()) {
+                Command<?> pending = it.next();
+                if (pending.getName().equals(command.getName())) {
+                    it.remove();
+                    ((Command<T>) pending).replaceWith(command);
+                    break;
+                }
+                if (!independent.contains(pending.getName())) break;
+            }
+        }
+        mPending.addLast(command);
+        notifyAll();
+        return command;
+    }
+
+    private static Callable<Void> callable(final Runnable runnable) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() {
+                runnable.run();
+                return null;
+            }
+        };
+    }
+
+    private void runCommands() {
+        while (true) {
+            Command<?> command;
+            synchronized (this) {
+                mRunning = null;
+                while (mPending.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // Keep running; the queue lives as long as the process.
+                    }
+                }
+                command = mPending.removeFirst();
+                mRunning = command;
+            }
+            Throwable failure = command.execute();
+            CameraCommandTrace trace = mTrace;
+            if (trace != null) {
+                trace.record(command.getName(), command.mSubmitTime, command.mStartTime,
+                        System.nanoTime(), failure != null);
+            }
+            if (failure != null) {
+                FailureListener listener;
+                synchronized (this) {
+                    listener = mFailureListener;
+                }
+                if (listener != null) listener.onCommandFailed(command, failure);
+            }
+        }
+    }
+}
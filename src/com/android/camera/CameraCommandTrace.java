@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A lock-free ring of the last commands run by a CameraCommandQueue: when
+ * each was submitted, started and ended, and whether it failed. Once full,
+ * the oldest commands are overwritten.
+ *
+ * The commands can be written as a trace in the JSON format of chrome://tracing,
+ * which Perfetto and systrace open, or summarized as percentiles per command.
+ * The times are System.nanoTime(), the clock of systrace on Android, so the
+ * trace lines up with one taken at the same time.
+ *
+ * record() must always be called from the same thread; the other methods
+ * can be called from any thread while it records.
+ */
+public class CameraCommandTrace {
+    /** A command recorded. */
+    public static class Event {
+        public final String name;
+        public final long submitNs;
+        public final long startNs;
+        public final long endNs;
+        public final boolean failed;
+
+        Event(String name, long submitNs, long startNs, long endNs, boolean failed) {
+            this.name = name;
+            this.submitNs = submitNs;
+            this.startNs = startNs;
+            this.endNs = endNs;
+            this.failed = failed;
+        }
+    }
+
+    // Longs per entry in mTimes: submit, start and end times, and failed.
+    private static final int FIELDS = 4;
+
+    private final int mCapacity;
+    // One more than the capacity: the slot record() writes is not read.
+    private final int mSlots;
+    private final AtomicReferenceArray<String> mNames;
+    private final AtomicLongArray mTimes;
+    // Number of commands recorded.
+    private final AtomicLong mHead = new AtomicLong();
+
+    /** Keep the last capacity commands. */
+    public CameraCommandTrace(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity must be positive");
+        mCapacity = capacity;
+        mSlots = capacity + 1;
+        mNames = new AtomicReferenceArray<String>(mSlots);
+        mTimes = new AtomicLongArray(mSlots * FIELDS);
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /** Record a command that ended at endNs. */
+    public void record(String name, long submitNs, long startNs, long endNs, boolean failed) {
+        long head = mHead.get();
+        int slot = (int) (head % mSlots);
+        // Ordered, not volatile, writes: the readers see the entry before
+        // the count, which is all getEvents() needs, for a seventh of the cost.
+        mNames.lazySet(slot, name);
+        mTimes.lazySet(slot * FIELDS, submitNs);
+        mTimes.lazySet(slot * FIELDS + 1, startNs);
+        mTimes.lazySet(slot * FIELDS + 2, endNs);
+        mTimes.lazySet(slot * FIELDS + 3, failed ? 1 : 0);
+        mHead.lazySet(head + 1);
+    }
+
+    /** Number of commands recorded so far, including the overwritten ones. */
+    public long getRecordedCount() {
+        return mHead.get();
+    }
+
+    /**
+     * Return the commands in the ring, oldest first.
+     */
+    public List<Event> getEvents() {
+        long head = mHead.get();
+        long first = Math.max(0, head - mCapacity);
+        ArrayList<Event> events = new ArrayList<Event>((int) (head - first));
+        for (long i = first; i < head; i++) {
+            int slot = (int) (i % mSlots);
+            events.add(new Event(mNames.get(slot), mTimes.get(slot * FIELDS),
+                    mTimes.get(slot * FIELDS + 1), mTimes.get(slot * FIELDS + 2),
+                    mTimes.get(slot * FIELDS + 3) != 0));
+        }
+        // Command head + capacity is written over command head - 1 once
+        // head + capacity commands are counted: the commands before the last
+        // capacity ones counted by now may have been overwritten while read.
+        long overwritten = mHead.get() - mCapacity - first;
+        if (overwritten > 0) {
+            events.subList(0, (int) Math.min(overwritten, events.size())).clear();
+        }
+        return events;
+    }
+
+    /**
+     * Write the commands in the ring as a trace in the JSON format of
+     * chrome://tracing: each command is a slice on the queue thread, and the
+     * time it waited in the queue an asynchronous slice next to it.
+     */
+    public void writeJson(Writer out, int pid, int tid, String threadName) throws IOException {
+        out.write("{\"traceEvents\":[\n");
+        out.write(String.format(Locale.US,
+                "{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":%d,\"tid\":%d,"
+                + "\"args\":{\"name\":\"%s\"}}", pid, tid, escape(threadName)));
+        long id = 0;
+        for (Event event : getEvents()) {
+            String name = escape(event.name);
+            out.write(String.format(Locale.US,
+                    ",\n{\"name\":\"%s\",\"cat\":\"camera\",\"ph\":\"X\",\"pid\":%d,"
+                    + "\"tid\":%d,\"ts\":%.3f,\"dur\":%.3f,\"args\":{\"failed\":%b}}",
+                    name, pid, tid, event.startNs / 1000.0,
+                    (event.endNs - event.startNs) / 1000.0, event.failed));
+            out.write(String.format(Locale.US,
+                    ",\n{\"name\":\"%s queued\",\"cat\":\"camera\",\"ph\":\"b\",\"id\":%d,"
+                    + "\"pid\":%d,\"tid\":%d,\"ts\":%.3f}",
+                    name, id, pid, tid, event.submitNs / 1000.0));
+            out.write(String.format(Locale.US,
+                    ",\n{\"name\":\"%s queued\",\"cat\":\"camera\",\"ph\":\"e\",\"id\":%d,"
+                    + "\"pid\":%d,\"tid\":%d,\"ts\":%.3f}",
+                    name, id, pid, tid, event.startNs / 1000.0));
+            id++;
+        }
+        out.write("\n]}\n");
+        out.flush();
+    }
+
+    /**
+     * Summarize the commands in the ring, one line per command name, the
+     * ones that kept the thread busy longest first: how many ran and failed,
+     * and the 50th, 90th and 99th percentiles and the maximum of the time
+     * they ran and of the time from their submission to their end, in ms.
+     */
+    public String summarize() {
+        HashMap<String, List<Event>> byName = new HashMap<String, List<Event>>();
+        for (Event event : getEvents()) {
+            List<Event> events = byName.get(event.name);
+            if (events == null) {
+                events = new ArrayList<Event>();
+                byName.put(event.name, events);
+            }
+            events.add(event);
+        }
+
+        final HashMap<String, Long> busyNs = new HashMap<String, Long>();
+        for (List<Event> events : byName.values()) {
+            long busy = 0;
+            for (Event event : events) busy += event.endNs - event.startNs;
+            busyNs.put(events.get(0).name, busy);
+        }
+        ArrayList<String> names = new ArrayList<String>(byName.keySet());
+        Collections.sort(names, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return busyNs.get(b).compareTo(busyNs.get(a));
+            }
+        });
+
+        StringBuilder builder = new StringBuilder();
+        for (String name : names) {
+            List<Event> events = byName.get(name);
+            long[] run = new long[events.size()];
+            long[] latency = new long[events.size()];
+            int failed = 0;
+            for (int i = 0; i < run.length; i++) {
+                Event event = events.get(i);
+                run[i] = event.endNs - event.startNs;
+                latency[i] = event.endNs - event.submitNs;
+                if (event.failed) failed++;
+            }
+            builder.append(String.format(Locale.US,
+                    "%s: %d run, %d failed; run %s; latency %s\n",
+                    name, run.length, failed, percentiles(run), percentiles(latency)));
+        }
+        return builder.toString();
+    }
+
+    // Nearest-rank percentile of the sorted values.
+    static long percentile(long[] sorted, int percent) {
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private static String percentiles(long[] values) {
+        Arrays.sort(values);
+        return String.format(Locale.US, "p50 %.2f p90 %.2f p99 %.2f max %.2f ms",
+                percentile(values, 50) / 1e6, percentile(values, 90) / 1e6,
+                percentile(values, 99) / 1e6, values[values.length - 1] / 1e6);
+    }
+
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
@@ -29,267 +29,414 @@ import android.hardware.Camera.Parameters;
 import android.hardware.Camera.PictureCallback;
 import android.hardware.Camera.PreviewCallback;
 import android.hardware.Camera.ShutterCallback;
-import android.os.ConditionVariable;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Looper;
-import android.os.Message;
+import android.os.Process;
 import android.view.SurfaceHolder;
 import android.util.Log;
 
+import com.android.camera.CameraCommandQueue.Command;
 import com.android.gallery3d.common.ApiHelper;
 
 import java.io.IOException;
-
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Runs the calls to android.hardware.Camera on a CameraCommandQueue thread.
+ *
+ * Most CameraProxy methods only submit the call, so the UI thread does not
+ * wait for the camera; the calls still run in the order they were made, so
+ * e.g. autoFocus() runs with the parameters set before it. The few whose
+ * callers need them done -- release, reconnect, lock, unlock, stopPreview,
+ * refreshParameters and waitForIdle -- wait for the command as long as it
+ * takes, like the camera calls they replace, and log what the camera thread
+ * is busy with every COMMAND_TIMEOUT_MS. startPreviewAsync() and the preview
+ * callback setters return their Command, for the callers that need to know
+ * when the camera got to them; it can be waited for the same way with
+ * waitFor().
+ *
+ * A command that fails releases the camera. The failure is thrown to the
+ * caller of the methods that wait; the failures of the others are posted to
+ * the CommandFailureListener on the main thread, or thrown there if there
+ * is none.
+ *
+ * Parameters are only sent to the camera when they change something, and
+ * setParameters() calls that the camera thread did not get to yet are sent
+ * as one, unless a command that depends on the parameters was made between
+ * them; getParameterStatistics() counts both.
+ *
+ * getParameters() returns a copy of the parameters the camera last
+ * accepted, mirrored from the ones set, once the parameters sent before are
+ * set; it does not ask the camera for them again. refreshParameters() reads
+ * them from the camera, for the values the camera changes by itself: after
+ * a scene mode or a preview size change, or a recording.
+ *
+ * startTrace() records when each command was submitted, started and ended,
+ * for dumpTrace() to summarize or write as a systrace-compatible trace.
+ */
 public class CameraManager {
     private static final String TAG = "CameraManager";
+    private static final String THREAD_NAME = "Camera Handler Thread";
     private static CameraManager sCameraManager = new CameraManager();
 
-    // Thread progress signals
-    private ConditionVariable mSig = new ConditionVariable();
-
-    private Parameters mParameters;
-    private IOException mReconnectException;
-
-    private static final int RELEASE = 1;
-    private static final int RECONNECT = 2;
-    private static final int UNLOCK = 3;
-    private static final int LOCK = 4;
-    private static final int SET_PREVIEW_TEXTURE_ASYNC = 5;
-    private static final int START_PREVIEW_ASYNC = 6;
-    private static final int STOP_PREVIEW = 7;
-    private static final int SET_PREVIEW_CALLBACK_WITH_BUFFER = 8;
-    private static final int ADD_CALLBACK_BUFFER = 9;
-    private static final int AUTO_FOCUS = 10;
-    private static final int CANCEL_AUTO_FOCUS = 11;
-    private static final int SET_AUTO_FOCUS_MOVE_CALLBACK = 12;
-    private static final int SET_DISPLAY_ORIENTATION = 13;
-    private static final int SET_ZOOM_CHANGE_LISTENER = 14;
-    private static final int SET_FACE_DETECTION_LISTENER = 15;
-    private static final int START_FACE_DETECTION = 16;
-    private static final int STOP_FACE_DETECTION = 17;
-    private static final int SET_ERROR_CALLBACK = 18;
-    private static final int SET_PARAMETERS = 19;
-    private static final int GET_PARAMETERS = 20;
-    private static final int SET_PARAMETERS_ASYNC = 21;
-    private static final int WAIT_FOR_IDLE = 22;
-    private static final int SET_PREVIEW_DISPLAY_ASYNC = 23;
-    private static final int SET_PREVIEW_CALLBACK = 24;
-    private static final int ENABLE_SHUTTER_SOUND = 25;
-
-    private static final int ENABLE_SAMSUNG_ZSL_MODE = 30;
-
-    private Handler mCameraHandler;
+    // How long a caller waits for a command before what the camera thread
+    // is busy with is logged. Shorter than the 5 s after which the UI thread
+    // is reported as not responding.
+    public static final long COMMAND_TIMEOUT_MS = 3000;
+
+    // The commands of the CameraProxy methods that wait for them, whose
+    // failures are thrown to their caller.
+    private static final HashSet<String> WAITED_COMMANDS = new HashSet<String>(Arrays.asList(
+            "release", "reconnect", "unlock", "lock", "stopPreview", "getParameters",
+            "waitForIdle"));
+
+    // The commands that do not depend on the parameters, which a
+    // setParameters() may be merged across: the parameters it set are then
+    // only sent after them.
+    private static final HashSet<String> PARAMETER_INDEPENDENT_COMMANDS =
+            new HashSet<String>(Arrays.asList(
+            "setZoomChangeListener", "setFaceDetectionListener", "setErrorCallback",
+            "setAutoFocusMoveCallback", "setDisplayOrientation", "enableShutterSound"));
+
+    /** Told of a command that failed with nobody waiting for it. */
+    public interface CommandFailureListener {
+        /**
+         * Called on the main thread. The camera is released by then, so the
+         * listener should show its camera error.
+         */
+        public void onCameraCommandFailed(String command, Throwable failure);
+    }
+
+    /** Gets the parameters sendParameters() sends, in place of the camera. */
+    public interface ParametersTarget {
+        /** Called on the camera thread with the parameters to set. */
+        public void setParameters(String flattened);
+    }
+
+    private static final CameraCommandQueue.SlowCommandListener sSlowCommandListener =
+            new CameraCommandQueue.SlowCommandListener() {
+        @Override
+        public void onCommandSlow(Command<?> command, String diagnostics) {
+            Log.w(TAG, diagnostics);
+        }
+    };
+
+    private final CameraCommandQueue mQueue;
     private CameraProxy mCameraProxy;
     private android.hardware.Camera mCamera;
+    // Parameters into which setParameters() unflattens the settings, so that
+    // the caller can go on changing its own object. Used on the queue thread.
+    private Parameters mParametersScratch;
+    private final CameraParameterStore mParameterStore = new CameraParameterStore();
+    // Parameters read from the camera on the queue thread, into which
+    // getParameters() copies the mirror; null until the next one is read.
+    // Guarded by this.
+    private Parameters mSpareParameters;
+    private boolean mSpareRequested;
+    // The last commands of setParameters() and setParametersAsync().
+    private Command<Void> mLastParameters;
+    private Command<Void> mLastAsyncParameters;
+    // Linux thread id of the queue thread, for the trace.
+    private volatile int mQueueTid;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private volatile CommandFailureListener mCommandFailureListener;
 
     public static CameraManager instance() {
         return sCameraManager;
     }
 
     private CameraManager() {
-        HandlerThread ht = new HandlerThread("Camera Handler Thread");
-        ht.start();
-        mCameraHandler = new CameraHandler(ht.getLooper());
+        mQueue = new CameraCommandQueue(THREAD_NAME);
+        mQueue.setFailureListener(new CameraCommandQueue.FailureListener() {
+            @Override
+            public void onCommandFailed(Command<?> command, Throwable failure) {
+                Log.e(TAG, "Camera command " + command.getName() + " failed", failure);
+                // Once the camera is released, the commands that reach it
+                // fail too: only the first failure is reported.
+                if (mCamera == null) return;
+                if (!"release".equals(command.getName())) {
+                    try {
+                        mCamera.release();
+                    } catch (Exception ex) {
+                        Log.e(TAG, "Fail to release the camera.");
+                    }
+                    mCamera = null;
+                    mCameraProxy = null;
+                }
+                if (!WAITED_COMMANDS.contains(command.getName())) {
+                    reportFailure(command.getName(), failure);
+                }
+            }
+        });
+        submit("getTid", new Runnable() {
+            @Override
+            public void run() {
+                mQueueTid = Process.myTid();
+            }
+        });
     }
 
-    private class CameraHandler extends Handler {
-        CameraHandler(Looper looper) {
-            super(looper);
-        }
+    // Posts the failure of a command nobody waits for to the main thread.
+    private void reportFailure(final String command, final Throwable failure) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                CommandFailureListener listener = mCommandFailureListener;
+                if (listener == null) {
+                    throw new RuntimeException("Camera command " + command + " failed", failure);
+                }
+                listener.onCameraCommandFailed(command, failure);
+            }
+        });
+    }
 
-        @TargetApi(ApiHelper.VERSION_CODES.ICE_CREAM_SANDWICH)
-        private void startFaceDetection() {
-            mCamera.startFaceDetection();
+    /**
+     * Set the listener told of the commands that fail with nobody waiting
+     * for them, or remove it if listener is null.
+     */
+    public void setCommandFailureListener(CommandFailureListener listener) {
+        mCommandFailureListener = listener;
+    }
+
+    public CommandFailureListener getCommandFailureListener() {
+        return mCommandFailureListener;
+    }
+
+    /**
+     * Wait for command as long as it takes, logging what the camera thread
+     * is busy with every COMMAND_TIMEOUT_MS, and return its result. Throws
+     * what the command threw.
+     */
+    public static <T> T waitFor(Command<T> command) {
+        return command.awaitUnbounded(sSlowCommandListener);
+    }
+
+    /**
+     * Return a command that is already done, for a CameraProxy not backed by
+     * a camera, e.g. a mock in tests.
+     */
+    public Command<Void> newDoneCommand(String name) {
+        return mQueue.done(name, (Void) null);
+    }
+
+    @TargetApi(ApiHelper.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private void startFaceDetection() {
+        mCamera.startFaceDetection();
+    }
+
+    @TargetApi(ApiHelper.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private void stopFaceDetection() {
+        mCamera.stopFaceDetection();
+    }
+
+    @TargetApi(ApiHelper.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private void setFaceDetectionListener(FaceDetectionListener listener) {
+        mCamera.setFaceDetectionListener(listener);
+    }
+
+    @TargetApi(ApiHelper.VERSION_CODES.HONEYCOMB)
+    private void setPreviewTexture(Object surfaceTexture) {
+        try {
+            mCamera.setPreviewTexture((SurfaceTexture) surfaceTexture);
+        } catch(IOException e) {
+            throw new RuntimeException(e);
         }
+    }
 
-        @TargetApi(ApiHelper.VERSION_CODES.ICE_CREAM_SANDWICH)
-        private void stopFaceDetection() {
-            mCamera.stopFaceDetection();
+    @TargetApi(ApiHelper.VERSION_CODES.JELLY_BEAN_MR1)
+    private void enableShutterSound(boolean enable) {
+        mCamera.enableShutterSound(enable);
+    }
+
+    @TargetApi(ApiHelper.VERSION_CODES.JELLY_BEAN)
+    private void setAutoFocusMoveCallback(android.hardware.Camera camera,
+            Object cb) {
+        camera.setAutoFocusMoveCallback((AutoFocusMoveCallback) cb);
+    }
+
+    // Runs on the queue thread. Sends flattened to target, or to the camera
+    // if target is null.
+    private void setParameters(String flattened, ParametersTarget target) {
+        List<String> dirtyKeys = mParameterStore.getDirtyKeys(flattened);
+        if (dirtyKeys.isEmpty()) return;
+
+        try {
+            if (target != null) {
+                target.setParameters(flattened);
+            } else {
+                setCameraParameters(flattened);
+            }
+        } catch (RuntimeException e) {
+            mParameterStore.forget();
+            throw e;
         }
+        mParameterStore.onSet(flattened, dirtyKeys.size());
+        Log.v(TAG, "setParameters changed " + dirtyKeys);
+    }
 
-        @TargetApi(ApiHelper.VERSION_CODES.ICE_CREAM_SANDWICH)
-        private void setFaceDetectionListener(FaceDetectionListener listener) {
-            mCamera.setFaceDetectionListener(listener);
+    // Runs on the queue thread.
+    private void setCameraParameters(String flattened) {
+        if (mParametersScratch == null) {
+            mParametersScratch = mCamera.getParameters();
+            mParameterStore.onRead();
         }
+        mParametersScratch.unflatten(flattened);
+        mCamera.setParameters(mParametersScratch);
+    }
 
-        @TargetApi(ApiHelper.VERSION_CODES.HONEYCOMB)
-        private void setPreviewTexture(Object surfaceTexture) {
-            try {
-                mCamera.setPreviewTexture((SurfaceTexture) surfaceTexture);
-            } catch(IOException e) {
-                throw new RuntimeException(e);
+    // Runs on the queue thread. The parameters read replace the mirror.
+    private Parameters getParameters() {
+        Parameters parameters = mCamera.getParameters();
+        mParameterStore.onGet(parameters.flatten());
+        return parameters;
+    }
+
+    // Runs on the queue thread.
+    private void readSpareParameters() {
+        Parameters spare = null;
+        try {
+            if (mCamera != null) {
+                spare = mCamera.getParameters();
+                mParameterStore.onRead();
+            }
+        } finally {
+            synchronized (this) {
+                mSpareParameters = spare;
+                mSpareRequested = false;
             }
         }
+    }
 
-        @TargetApi(ApiHelper.VERSION_CODES.JELLY_BEAN_MR1)
-        private void enableShutterSound(boolean enable) {
-            mCamera.enableShutterSound(enable);
+    // Returns the spare parameters, or null if none was read yet, and has
+    // the next ones read.
+    private synchronized Parameters takeSpareParameters() {
+        Parameters spare = mSpareParameters;
+        mSpareParameters = null;
+        if (!mSpareRequested) {
+            mSpareRequested = true;
+            submit("readSpareParameters", new Runnable() {
+                @Override
+                public void run() {
+                    readSpareParameters();
+                }
+            });
         }
+        return spare;
+    }
 
-        /*
-         * This method does not deal with the build version check.  Everyone should
-         * check first before sending message to this handler.
-         */
-        @Override
-        public void handleMessage(final Message msg) {
+    private synchronized void forgetSpareParameters() {
+        mSpareParameters = null;
+    }
+
+    private synchronized Command<Void> submitParameters(Parameters params, boolean async,
+            final ParametersTarget target) {
+        final String flattened = params.flatten();
+        Runnable command = new Runnable() {
+            @Override
+            public void run() {
+                setParameters(flattened, target);
+            }
+        };
+        mParameterStore.onUpdate();
+        Command<Void> previous;
+        Command<Void> next;
+        if (async) {
+            previous = mLastAsyncParameters;
+            next = mQueue.submitReplacing("setParametersAsync", COMMAND_TIMEOUT_MS, command);
+            mLastAsyncParameters = next;
+        } else {
+            previous = mLastParameters;
+            next = mQueue.submitCoalescing("setParameters", COMMAND_TIMEOUT_MS, command,
+                    PARAMETER_INDEPENDENT_COMMANDS);
+            mLastParameters = next;
+        }
+        if (previous != null && previous.isReplaced()) mParameterStore.onCoalesced();
+        return next;
+    }
+
+    /**
+     * Submit params as CameraProxy.setParameters(), or setParametersAsync()
+     * if async, would: they are skipped, coalesced and counted the same way,
+     * but sent to target rather than to the camera. For tests that mock the
+     * CameraProxy. The Command of parameters that are coalesced is done when
+     * the parameters that replaced them are.
+     */
+    public Command<Void> sendParameters(Parameters params, boolean async,
+            ParametersTarget target) {
+        return submitParameters(params, async, target);
+    }
+
+    /**
+     * Fill statistics with the parameter updates made since the process
+     * started and the camera calls they cost; see CameraParameterStore.
+     *
+     * @param statistics array of at least CameraParameterStore.STATISTICS_SIZE
+     *        entries.
+     */
+    public void getParameterStatistics(int[] statistics) {
+        mParameterStore.getStatistics(statistics);
+    }
+
+    /**
+     * Record the last capacity commands run from now on, replacing the ones
+     * recorded so far. Recording costs an allocation-free write per command.
+     */
+    public void startTrace(int capacity) {
+        mQueue.setTrace(new CameraCommandTrace(capacity));
+    }
+
+    /** Stop recording the commands, and forget the ones recorded. */
+    public void stopTrace() {
+        mQueue.setTrace(null);
+    }
+
+    /**
+     * Print the percentiles of the time each command took, or, if json is
+     * true, the commands as a trace in the JSON format of chrome://tracing,
+     * which systrace and Perfetto open. Safe to call while the camera thread
+     * is stuck.
+     */
+    public void dumpTrace(PrintWriter writer, boolean json) {
+        CameraCommandTrace trace = mQueue.getTrace();
+        if (trace == null) {
+            writer.println("Camera commands not traced");
+        } else if (json) {
             try {
-                switch (msg.what) {
-                    case RELEASE:
-                        mCamera.release();
-                        mCamera = null;
-                        mCameraProxy = null;
-                        break;
-
-                    case RECONNECT:
-                        mReconnectException = null;
-                        try {
-                            mCamera.reconnect();
-                        } catch (IOException ex) {
-                            mReconnectException = ex;
-                        }
-                        break;
-
-                    case UNLOCK:
-                        mCamera.unlock();
-                        break;
-
-                    case LOCK:
-                        mCamera.lock();
-                        break;
-
-                    case SET_PREVIEW_TEXTURE_ASYNC:
-                        setPreviewTexture(msg.obj);
-                        return;  // no need to call mSig.open()
-
-                    case SET_PREVIEW_DISPLAY_ASYNC:
-                        try {
-                            mCamera.setPreviewDisplay((SurfaceHolder) msg.obj);
-                        } catch(IOException e) {
-                            throw new RuntimeException(e);
-                        }
-                        return;  // no need to call mSig.open()
-
-                    case START_PREVIEW_ASYNC:
-                        mCamera.startPreview();
-                        return;  // no need to call mSig.open()
-
-                    case STOP_PREVIEW:
-                        mCamera.stopPreview();
-                        break;
-
-                    case SET_PREVIEW_CALLBACK_WITH_BUFFER:
-                        mCamera.setPreviewCallbackWithBuffer(
-                            (PreviewCallback) msg.obj);
-                        break;
-
-                    case ADD_CALLBACK_BUFFER:
-                        mCamera.addCallbackBuffer((byte[]) msg.obj);
-                        break;
-
-                    case AUTO_FOCUS:
-                        mCamera.autoFocus((AutoFocusCallback) msg.obj);
-                        break;
-
-                    case CANCEL_AUTO_FOCUS:
-                        mCamera.cancelAutoFocus();
-                        break;
-
-                    case SET_AUTO_FOCUS_MOVE_CALLBACK:
-                        setAutoFocusMoveCallback(mCamera, msg.obj);
-                        break;
-
-                    case SET_DISPLAY_ORIENTATION:
-                        mCamera.setDisplayOrientation(msg.arg1);
-                        break;
-
-                    case SET_ZOOM_CHANGE_LISTENER:
-                        mCamera.setZoomChangeListener(
-                            (OnZoomChangeListener) msg.obj);
-                        break;
-
-                    case SET_FACE_DETECTION_LISTENER:
-                        setFaceDetectionListener((FaceDetectionListener) msg.obj);
-                        break;
-
-                    case START_FACE_DETECTION:
-                        startFaceDetection();
-                        break;
-
-                    case STOP_FACE_DETECTION:
-                        stopFaceDetection();
-                        break;
-
-                    case SET_ERROR_CALLBACK:
-                        mCamera.setErrorCallback((ErrorCallback) msg.obj);
-                        break;
-
-                    case SET_PARAMETERS:
-                        mCamera.setParameters((Parameters) msg.obj);
-                        break;
-
-                    case GET_PARAMETERS:
-                        mParameters = mCamera.getParameters();
-                        break;
-
-                    case SET_PARAMETERS_ASYNC:
-                        mCamera.setParameters((Parameters) msg.obj);
-                        return;  // no need to call mSig.open()
-
-                    case SET_PREVIEW_CALLBACK:
-                        mCamera.setPreviewCallback((PreviewCallback) msg.obj);
-                        break;
-
-                    case ENABLE_SHUTTER_SOUND:
-                        enableShutterSound((msg.arg1 == 1) ? true : false);
-                        break;
-
-                    case WAIT_FOR_IDLE:
-                        // do nothing
-                        break;
-
-                    case ENABLE_SAMSUNG_ZSL_MODE:
-                        // I don't know the significance of 1508, it was discovered
-                        // by reading logs and reverse engineering.
-                        mCamera.sendRawCommand(1508, 0, 0);
-                        break;
-
-                    default:
-                        throw new RuntimeException("Invalid CameraProxy message=" + msg.what);
-                }
-            } catch (RuntimeException e) {
-                if (msg.what != RELEASE && mCamera != null) {
-                    try {
-                        mCamera.release();
-                    } catch (Exception ex) {
-                        Log.e(TAG, "Fail to release the camera.");
-                    }
-                    mCamera = null;
-                    mCameraProxy = null;
-                }
-                throw e;
+                trace.writeJson(writer, Process.myPid(), mQueueTid, THREAD_NAME);
+            } catch (IOException e) {
+                // Not thrown by a PrintWriter.
             }
-            mSig.open();
+        } else {
+            writer.println("Camera commands, " + trace.getRecordedCount()
+                    + " run since the trace started, last " + trace.getCapacity() + " kept:");
+            writer.print(trace.summarize());
+            writer.println("Now " + mQueue.describe());
         }
+        writer.flush();
     }
 
-    @TargetApi(ApiHelper.VERSION_CODES.JELLY_BEAN)
-    private void setAutoFocusMoveCallback(android.hardware.Camera camera,
-            Object cb) {
-        camera.setAutoFocusMoveCallback((AutoFocusMoveCallback) cb);
+    private Command<Void> submit(String name, Runnable command) {
+        return mQueue.submit(name, COMMAND_TIMEOUT_MS, command);
     }
 
     // Open camera synchronously. This method is invoked in the context of a
     // background thread.
     CameraProxy cameraOpen(int cameraId) {
-        // Cannot open camera in mCameraHandler, otherwise all camera events
-        // will be routed to mCameraHandler looper, which in turn will call
+        // Cannot open camera in the queue thread, otherwise all camera events
+        // would be routed to its looper, which in turn would call
         // event handler like Camera.onFaceDetection, which in turn will modify
         // UI and cause exception like this:
         // CalledFromWrongThreadException: Only the original thread that created
         // a view hierarchy can touch its views.
         mCamera = android.hardware.Camera.open(cameraId);
         if (mCamera != null) {
+            mParametersScratch = null;
+            forgetSpareParameters();
+            mParameterStore.forget();
             mCameraProxy = new CameraProxy();
             return mCameraProxy;
         } else {
@@ -307,108 +454,174 @@ public class CameraManager {
         }
 
         public void release() {
-            mSig.close();
-            mCameraHandler.sendEmptyMessage(RELEASE);
-            mSig.block();
+            waitFor(submit("release", new Runnable() {
+                @Override
+                public void run() {
+                    mCamera.release();
+                    mCamera = null;
+                    mCameraProxy = null;
+                    mParametersScratch = null;
+                    forgetSpareParameters();
+                    mParameterStore.forget();
+                }
+            }));
         }
 
         public void reconnect() throws IOException {
-            mSig.close();
-            mCameraHandler.sendEmptyMessage(RECONNECT);
-            mSig.block();
-            if (mReconnectException != null) {
-                throw mReconnectException;
+            IOException e = waitFor(mQueue.submit("reconnect", COMMAND_TIMEOUT_MS,
+                    new Callable<IOException>() {
+                @Override
+                public IOException call() {
+                    try {
+                        mCamera.reconnect();
+                    } catch (IOException ex) {
+                        return ex;
+                    }
+                    return null;
+                }
+            }));
+            if (e != null) {
+                throw e;
             }
         }
 
         public void unlock() {
-            mSig.close();
-            mCameraHandler.sendEmptyMessage(UNLOCK);
-            mSig.block();
+            waitFor(submit("unlock", new Runnable() {
+                @Override
+                public void run() {
+                    mCamera.unlock();
+                    // MediaRecorder changes the parameters while it has the
+                    // camera.
+                    mParameterStore.forget();
+                }
+            }));
         }
 
         public void lock() {
-            mSig.close();
-            mCameraHandler.sendEmptyMessage(LOCK);
-            mSig.block();
+            waitFor(submit("lock", new Runnable() {
+                @Override
+                public void run() {
+                    mCamera.lock();
+                }
+            }));
         }
 
         @TargetApi(ApiHelper.VERSION_CODES.HONEYCOMB)
         public void setPreviewTextureAsync(final SurfaceTexture surfaceTexture) {
-            mCameraHandler.obtainMessage(SET_PREVIEW_TEXTURE_ASYNC, surfaceTexture).sendToTarget();
+            submit("setPreviewTexture", new Runnable() {
+                @Override
+                public void run() {
+                    CameraManager.this.setPreviewTexture(surfaceTexture);
+                }
+            });
         }
 
         public void setPreviewDisplayAsync(final SurfaceHolder surfaceHolder) {
-            mCameraHandler.obtainMessage(SET_PREVIEW_DISPLAY_ASYNC, surfaceHolder).sendToTarget();
+            submit("setPreviewDisplay", new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        mCamera.setPreviewDisplay(surfaceHolder);
+                    } catch(IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
         }
 
-        public void startPreviewAsync() {
-            mCameraHandler.sendEmptyMessage(START_PREVIEW_ASYNC);
+        public Command<Void> startPreviewAsync() {
+            return submit("startPreview", new Runnable() {
+                @Override
+                public void run() {
+                    mCamera.startPreview();
+                }
+            });
         }
 
         public void stopPreview() {
-            mSig.close();
-            mCameraHandler.sendEmptyMessage(STOP_PREVIEW);
-            mSig.block();
+            waitFor(submit("stopPreview", new Runnable() {
+                @Override
+                public void run() {
+                    mCamera.stopPreview();
+                }
+            }));
         }
 
-        public void setPreviewCallback(final PreviewCallback cb) {
-            mSig.close();
-            mCameraHandler.obtainMessage(SET_PREVIEW_CALLBACK, cb).sendToTarget();
-            mSig.block();
+        /**
+         * The callback may still be called with the previous callback until
+         * the command is done; await() it before freeing what the callback
+         * uses.
+         */
+        public Command<Void> setPreviewCallback(final PreviewCallback cb) {
+            return submit("setPreviewCallback", new Runnable() {
+                @Override
+                public void run() {
+                    mCamera.setPreviewCallback(cb);
+                }
+            });
         }
 
-        public void setPreviewCallbackWithBuffer(final PreviewCallback cb) {
-            mSig.close();
-            mCameraHandler.obtainMessage(SET_PREVIEW_CALLBACK_WITH_BUFFER, cb).sendToTarget();
-            mSig.block();
+        /** See setPreviewCallback(). */
+        public Command<Void> setPreviewCallbackWithBuffer(final PreviewCallback cb) {
+            return submit("setPreviewCallbackWithBuffer", new Runnable() {
+                @Override
+                public void run() {
+                    mCamera.setPreviewCallbackWithBuffer(cb);
+                }
+            });
         }
 
-        public void addCallbackBuffer(byte[] callbackBuffer) {
-            mSig.close();
-            mCameraHandler.obtainMessage(ADD_CALLBACK_BUFFER, callbackBuffer).sendToTarget();
-            mSig.block();
+        public void addCallbackBuffer(final byte[] callbackBuffer) {
+            submit("addCallbackBuffer", new Runnable() {
+                @Override
+                public void run() {
+                    mCamera.addCallbackBuffer(callbackBuffer);
+                }
+            });
         }
 
-        public void autoFocus(AutoFocusCallback cb) {
-            mSig.close();
-            mCameraHandler.obtainMessage(AUTO_FOCUS, cb).sendToTarget();
-            mSig.block();
+        public void autoFocus(final AutoFocusCallback cb) {
+            submit("autoFocus", new Runnable() {
+                @Override
+                public void run() {
+                    mCamera.autoFocus(cb);
+                }
+            });
         }
 
         public void cancelAutoFocus() {
-            mSig.close();
-            mCameraHandler.sendEmptyMessage(CANCEL_AUTO_FOCUS);
-            mSig.block();
+            submit("cancelAutoFocus", new Runnable() {
+                @Override
+                public void run() {
+                    mCamera.cancelAutoFocus();
+                }
+            });
         }
 
         @TargetApi(ApiHelper.VERSION_CODES.JELLY_BEAN)
-        public void setAutoFocusMoveCallback(AutoFocusMoveCallback cb) {
-            mSig.close();
-            mCameraHandler.obtainMessage(SET_AUTO_FOCUS_MOVE_CALLBACK, cb).sendToTarget();
-            mSig.block();
+        public void setAutoFocusMoveCallback(final AutoFocusMoveCallback cb) {
+            submit("setAutoFocusMoveCallback", new Runnable() {
+                @Override
+                public void run() {
+                    CameraManager.this.setAutoFocusMoveCallback(mCamera, cb);
+                }
+            });
         }
 
         public void takePicture(final ShutterCallback shutter, final PictureCallback raw,
                 final PictureCallback postview, final PictureCallback jpeg) {
-            mSig.close();
-            // Too many parameters, so use post for simplicity
-            mCameraHandler.post(new Runnable() {
+            submit("takePicture", new Runnable() {
                 @Override
                 public void run() {
                     mCamera.takePicture(shutter, raw, postview, jpeg);
-                    mSig.open();
                 }
             });
-            mSig.block();
         }
 
         public void takePicture2(final ShutterCallback shutter, final PictureCallback raw,
                 final PictureCallback postview, final PictureCallback jpeg,
                 final int cameraState, final int focusState) {
-            mSig.close();
-            // Too many parameters, so use post for simplicity
-            mCameraHandler.post(new Runnable() {
+            submit("takePicture", new Runnable() {
                 @Override
                 public void run() {
                     try {
@@ -418,87 +631,172 @@ public class CameraManager {
                             + ", focusState:" + focusState);
                         throw e;
                     }
-                    mSig.open();
                 }
             });
-            mSig.block();
         }
 
-        public void setDisplayOrientation(int degrees) {
-            mSig.close();
-            mCameraHandler.obtainMessage(SET_DISPLAY_ORIENTATION, degrees, 0)
-                    .sendToTarget();
-            mSig.block();
+        public void setDisplayOrientation(final int degrees) {
+            submit("setDisplayOrientation", new Runnable() {
+                @Override
+                public void run() {
+                    mCamera.setDisplayOrientation(degrees);
+                }
+            });
         }
 
-        public void setZoomChangeListener(OnZoomChangeListener listener) {
-            mSig.close();
-            mCameraHandler.obtainMessage(SET_ZOOM_CHANGE_LISTENER, listener).sendToTarget();
-            mSig.block();
+        public void setZoomChangeListener(final OnZoomChangeListener listener) {
+            submit("setZoomChangeListener", new Runnable() {
+                @Override
+                public void run() {
+                    mCamera.setZoomChangeListener(listener);
+                }
+            });
         }
 
         @TargetApi(ApiHelper.VERSION_CODES.ICE_CREAM_SANDWICH)
-        public void setFaceDetectionListener(FaceDetectionListener listener) {
-            mSig.close();
-            mCameraHandler.obtainMessage(SET_FACE_DETECTION_LISTENER, listener).sendToTarget();
-            mSig.block();
+        public void setFaceDetectionListener(final FaceDetectionListener listener) {
+            submit("setFaceDetectionListener", new Runnable() {
+                @Override
+                public void run() {
+                    CameraManager.this.setFaceDetectionListener(listener);
+                }
+            });
         }
 
         public void startFaceDetection() {
-            mSig.close();
-            mCameraHandler.sendEmptyMessage(START_FACE_DETECTION);
-            mSig.block();
+            submit("startFaceDetection", new Runnable() {
+                @Override
+                public void run() {
+                    CameraManager.this.startFaceDetection();
+                }
+            });
         }
 
         public void stopFaceDetection() {
-            mSig.close();
-            mCameraHandler.sendEmptyMessage(STOP_FACE_DETECTION);
-            mSig.block();
+            submit("stopFaceDetection", new Runnable() {
+                @Override
+                public void run() {
+                    CameraManager.this.stopFaceDetection();
+                }
+            });
         }
 
-        public void setErrorCallback(ErrorCallback cb) {
-            mSig.close();
-            mCameraHandler.obtainMessage(SET_ERROR_CALLBACK, cb).sendToTarget();
-            mSig.block();
+        public void setErrorCallback(final ErrorCallback cb) {
+            submit("setErrorCallback", new Runnable() {
+                @Override
+                public void run() {
+                    mCamera.setErrorCallback(cb);
+                }
+            });
         }
 
+        /**
+         * The parameters are copied before this returns, so the caller can
+         * change params right away. If the camera did not get to the last
+         * setParameters() yet, and only commands that do not depend on the
+         * parameters were made since, it is replaced by the new one.
+         */
         public void setParameters(Parameters params) {
-            mSig.close();
-            mCameraHandler.obtainMessage(SET_PARAMETERS, params).sendToTarget();
-            mSig.block();
+            submitParameters(params, false, null);
         }
 
+        /**
+         * Like setParameters(), but replaces the parameters of the previous
+         * setParametersAsync() if the camera did not get to them yet, even if
+         * other commands were submitted since.
+         */
         public void setParametersAsync(Parameters params) {
-            mCameraHandler.removeMessages(SET_PARAMETERS_ASYNC);
-            mCameraHandler.obtainMessage(SET_PARAMETERS_ASYNC, params).sendToTarget();
+            submitParameters(params, true, null);
         }
 
+        /**
+         * Return a copy of the parameters the camera accepted, once the
+         * parameters set before are set. The camera is only asked for them if
+         * they are not known, or if no Parameters object was read ahead to
+         * copy them into.
+         */
         public Parameters getParameters() {
-            mSig.close();
-            mCameraHandler.sendEmptyMessage(GET_PARAMETERS);
-            mSig.block();
-            Parameters parameters = mParameters;
-            mParameters = null;
+            waitForParameters();
+            String mirror = mParameterStore.getMirror();
+            Parameters parameters = takeSpareParameters();
+            if (mirror != null && parameters != null) {
+                long start = System.nanoTime();
+                parameters.unflatten(mirror);
+                mParameterStore.onMirrored(System.nanoTime() - start);
+                return parameters;
+            }
+            return refreshParameters();
+        }
+
+        // Waits for the parameters sent so far to be set. A failure is
+        // reported like that of any command nobody waits for.
+        private void waitForParameters() {
+            Command<Void> parameters;
+            Command<Void> asyncParameters;
+            synchronized (CameraManager.this) {
+                parameters = mLastParameters;
+                asyncParameters = mLastAsyncParameters;
+            }
+            if ((parameters == null || parameters.isDone())
+                    && (asyncParameters == null || asyncParameters.isDone())) {
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                if (parameters != null) waitFor(parameters);
+                if (asyncParameters != null) waitFor(asyncParameters);
+            } catch (RuntimeException e) {
+                // Reported to the CommandFailureListener; the mirror is gone.
+            }
+            mParameterStore.onGetWaited(System.nanoTime() - start);
+        }
+
+        /**
+         * Read the parameters from the camera, once the commands submitted
+         * before are done, and mirror them.
+         */
+        public Parameters refreshParameters() {
+            long start = System.nanoTime();
+            Parameters parameters = waitFor(mQueue.submit("getParameters", COMMAND_TIMEOUT_MS,
+                    new Callable<Parameters>() {
+                @Override
+                public Parameters call() {
+                    return CameraManager.this.getParameters();
+                }
+            }));
+            mParameterStore.onGetWaited(System.nanoTime() - start);
             return parameters;
         }
 
-        public void enableShutterSound(boolean enable) {
-            mSig.close();
-            mCameraHandler.obtainMessage(
-                    ENABLE_SHUTTER_SOUND, (enable ? 1 : 0), 0).sendToTarget();
-            mSig.block();
+        public void enableShutterSound(final boolean enable) {
+            submit("enableShutterSound", new Runnable() {
+                @Override
+                public void run() {
+                    CameraManager.this.enableShutterSound(enable);
+                }
+            });
         }
 
+        /**
+         * Wait until every command submitted before is done.
+         */
         public void waitForIdle() {
-            mSig.close();
-            mCameraHandler.sendEmptyMessage(WAIT_FOR_IDLE);
-            mSig.block();
+            waitFor(submit("waitForIdle", new Runnable() {
+                @Override
+                public void run() {
+                }
+            }));
         }
 
         public void sendMagicSamsungZSLCommand() {
-            mSig.close();
-            mCameraHandler.sendEmptyMessage(ENABLE_SAMSUNG_ZSL_MODE);
-            mSig.block();
+            submit("sendMagicSamsungZSLCommand", new Runnable() {
+                @Override
+                public void run() {
+                    // I don't know the significance of 1508, it was discovered
+                    // by reading logs and reverse engineering.
+                    mCamera.sendRawCommand(1508, 0, 0);
+                }
+            });
         }
     }
 }
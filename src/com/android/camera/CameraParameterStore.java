@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The camera parameters last sent to or read from the camera, kept in the
+ * flattened "key=value;key=value" form of Camera.Parameters, so that
+ * CameraManager only sends the parameters when they change something. It
+ * also counts the parameter updates and the camera calls they cost, for
+ * tests to check what a user action does.
+ *
+ * The parameters sent are compared with the ones last sent rather than with
+ * the ones the camera reports: sending the same values again would not
+ * change what the camera made of them.
+ *
+ * Besides, the store mirrors the parameters the camera last accepted, so
+ * that CameraManager can return them without asking the camera again. The
+ * mirror is only replaced once a set succeeded or the parameters were read,
+ * so it never holds values the camera rejected. It is an immutable string
+ * read without locking. It does not know about the values the camera changes
+ * by itself, e.g. the focus mode that goes with a scene mode; those are only
+ * seen once the parameters are read from the camera again.
+ */
+public class CameraParameterStore {
+    /**
+     * Layout of the statistics filled by getStatistics(): the updates asked
+     * for, the ones replaced by a later update before they reached the
+     * camera, the ones that changed nothing, the Camera.setParameters() and
+     * Camera.getParameters() calls made, and the keys changed by the
+     * setParameters() calls.
+     */
+    public static final int STATISTICS_SIZE = 9;
+    public static final int STATISTICS_UPDATE_COUNT_INDEX = 0;
+    public static final int STATISTICS_COALESCED_COUNT_INDEX = 1;
+    public static final int STATISTICS_SKIPPED_COUNT_INDEX = 2;
+    public static final int STATISTICS_SET_COUNT_INDEX = 3;
+    public static final int STATISTICS_GET_COUNT_INDEX = 4;
+    public static final int STATISTICS_DIRTY_KEY_COUNT_INDEX = 5;
+    /**
+     * The parameters returned from the mirror, and the time, in microseconds,
+     * spent copying them and waiting for the camera thread to set or read
+     * them.
+     */
+    public static final int STATISTICS_MIRRORED_COUNT_INDEX = 6;
+    public static final int STATISTICS_MIRROR_COPY_US_INDEX = 7;
+    public static final int STATISTICS_GET_WAIT_US_INDEX = 8;
+
+    // The parameters of the camera, or null if they are not known.
+    private HashMap<String, String> mParameters;
+    private volatile String mMirror;
+    private final int[] mStatistics = new int[STATISTICS_SIZE];
+    private long mMirrorCopyNs;
+    private long mGetWaitNs;
+
+    /** An update was asked for. */
+    public synchronized void onUpdate() {
+        mStatistics[STATISTICS_UPDATE_COUNT_INDEX]++;
+    }
+
+    /**
+     * Return the parameters the camera last accepted, or null if they are not
+     * known.
+     */
+    public String getMirror() {
+        return mMirror;
+    }
+
+    /** The parameters were returned from the mirror, in copyNs. */
+    public synchronized void onMirrored(long copyNs) {
+        mStatistics[STATISTICS_MIRRORED_COUNT_INDEX]++;
+        mMirrorCopyNs += copyNs;
+    }
+
+    /** The caller waited waitNs for the parameters read from the camera. */
+    public synchronized void onGetWaited(long waitNs) {
+        mGetWaitNs += waitNs;
+    }
+
+    /** An update was replaced by a later one before it was sent. */
+    public synchronized void onCoalesced() {
+        mStatistics[STATISTICS_COALESCED_COUNT_INDEX]++;
+    }
+
+    /**
+     * Return the keys whose value differs in flattened, including the ones
+     * missing from it: all of them if the parameters of the camera are not
+     * known. An empty list means that sending flattened would change nothing;
+     * the update is counted as skipped.
+     */
+    public synchronized List<String> getDirtyKeys(String flattened) {
+        HashMap<String, String> parameters = unflatten(flattened);
+        ArrayList<String> dirty = new ArrayList<String>();
+        if (mParameters == null) {
+            dirty.addAll(parameters.keySet());
+        } else {
+            for (Map.Entry<String, String> entry : parameters.entrySet()) {
+                if (!entry.getValue().equals(mParameters.get(entry.getKey()))) {
+                    dirty.add(entry.getKey());
+                }
+            }
+            for (String key : mParameters.keySet()) {
+                if (!parameters.containsKey(key)) dirty.add(key);
+            }
+        }
+        if (dirty.isEmpty()) mStatistics[STATISTICS_SKIPPED_COUNT_INDEX]++;
+        return dirty;
+    }
+
+    /**
+     * The camera accepted flattened, which changed dirtyKeyCount keys. It
+     * replaces the mirror.
+     */
+    public synchronized void onSet(String flattened, int dirtyKeyCount) {
+        mParameters = unflatten(flattened);
+        mMirror = flattened;
+        mStatistics[STATISTICS_SET_COUNT_INDEX]++;
+        mStatistics[STATISTICS_DIRTY_KEY_COUNT_INDEX] += dirtyKeyCount;
+    }
+
+    /** flattened was read from the camera. It replaces the mirror. */
+    public synchronized void onGet(String flattened) {
+        mParameters = unflatten(flattened);
+        mMirror = flattened;
+        mStatistics[STATISTICS_GET_COUNT_INDEX]++;
+    }
+
+    /**
+     * The parameters were read from the camera only for the Parameters
+     * object, to be filled with other values; they are counted as a get.
+     */
+    public synchronized void onRead() {
+        mStatistics[STATISTICS_GET_COUNT_INDEX]++;
+    }
+
+    /**
+     * Forget the parameters of the camera and the mirror, when it is opened,
+     * released or unlocked, or when sending parameters failed. The statistics
+     * are kept.
+     */
+    public synchronized void forget() {
+        mParameters = null;
+        mMirror = null;
+    }
+
+    /**
+     * Fill statistics with the counts since the store was created.
+     *
+     * @param statistics array of at least STATISTICS_SIZE entries.
+     */
+    public synchronized void getStatistics(int[] statistics) {
+        mStatistics[STATISTICS_MIRROR_COPY_US_INDEX] = (int) (mMirrorCopyNs / 1000);
+        mStatistics[STATISTICS_GET_WAIT_US_INDEX] = (int) (mGetWaitNs / 1000);
+        System.arraycopy(mStatistics, 0, statistics, 0, STATISTICS_SIZE);
+    }
+
+    // Same parsing as Camera.Parameters.unflatten().
+    static HashMap<String, String> unflatten(String flattened) {
+        HashMap<String, String> parameters = new HashMap<String, String>();
+        int start = 0;
+        int length = flattened.length();
+        while (start < length) {
+            int end = flattened.indexOf(';', start);
+            if (end < 0) end = length;
+            int equals = flattened.indexOf('=', start);
+            if (equals >= 0 && equals < end) {
+                parameters.put(flattened.substring(start, equals),
+                        flattened.substring(equals + 1, end));
+            }
+            start = end + 1;
+        }
+        return parameters;
+    }
+}
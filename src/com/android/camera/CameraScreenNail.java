@@ -68,6 +68,8 @@ public class CameraScreenNail extends SurfaceTextureScreenNail {
     private Object mLock = new Object();
 
     private OnFrameDrawnListener mOneTimeFrameDrawnListener;
+    // Run on the next first frame of a surface texture.
+    private Runnable mOneTimeFirstFrameListener;
     private int mRenderWidth;
     private int mRenderHeight;
     // This represents the scaled, uncropped size of the texture
@@ -79,6 +81,9 @@ public class CameraScreenNail extends SurfaceTextureScreenNail {
     private boolean mEnableAspectRatioClamping = false;
     private float mAlpha = 1f;
     private Runnable mOnFrameDrawnListener;
+    // Texture matrix of the software video stabilization, or null.
+    private float[] mStabilizationMatrix;
+    private final float[] mStabilizedTransformMatrix = new float[16];
 
     public interface Listener {
         void requestRender();
@@ -274,9 +279,31 @@ public class CameraScreenNail extends SurfaceTextureScreenNail {
         }
     }
 
+    /**
+     * Sets the texture matrix that shows the preview frame stabilized, from
+     * VideoStabilizer.getTextureMatrix(), or null to show the frame as it is.
+     */
+    public void setStabilizationMatrix(float[] matrix) {
+        synchronized (mLock) {
+            if (matrix == null) {
+                mStabilizationMatrix = null;
+            } else {
+                if (mStabilizationMatrix == null) mStabilizationMatrix = new float[16];
+                System.arraycopy(matrix, 0, mStabilizationMatrix, 0, 16);
+            }
+        }
+    }
+
     @Override
     protected void updateTransformMatrix(float[] matrix) {
         super.updateTransformMatrix(matrix);
+        synchronized (mLock) {
+            if (mStabilizationMatrix != null) {
+                Matrix.multiplyMM(mStabilizedTransformMatrix, 0, matrix, 0,
+                        mStabilizationMatrix, 0);
+                System.arraycopy(mStabilizedTransformMatrix, 0, matrix, 0, 16);
+            }
+        }
         Matrix.translateM(matrix, 0, .5f, .5f, 0);
         Matrix.scaleM(matrix, 0, mScaleX, mScaleY, 1f);
         Matrix.translateM(matrix, 0, -.5f, -.5f, 0);
@@ -393,6 +420,10 @@ public class CameraScreenNail extends SurfaceTextureScreenNail {
             if (getSurfaceTexture() != surfaceTexture) {
                 return;
             }
+            if (!mFirstFrameArrived && mOneTimeFirstFrameListener != null) {
+                mOneTimeFirstFrameListener.run();
+                mOneTimeFirstFrameListener = null;
+            }
             mFirstFrameArrived = true;
             if (mVisible) {
                 if (mAnimState == ANIM_SWITCH_WAITING_FIRST_FRAME) {
@@ -416,6 +447,16 @@ public class CameraScreenNail extends SurfaceTextureScreenNail {
         }
     }
 
+    /**
+     * Run listener once the preview frames start to arrive, on the thread of
+     * onFrameAvailable(). It should only take note of the time.
+     */
+    public void setOneTimeFirstFrameListener(Runnable listener) {
+        synchronized (mLock) {
+            mOneTimeFirstFrameListener = listener;
+        }
+    }
+
     public void setOneTimeOnFrameDrawnListener(OnFrameDrawnListener l) {
         synchronized (mLock) {
             mFirstFrameArrived = false;
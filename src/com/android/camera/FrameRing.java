@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free ring of the arrival times of the frames that one thread hands
+ * to another, which only processes the newest frame: the frames that a newer
+ * one arrived after are dropped when it is taken. Neither side waits for the
+ * other; when the consumer falls behind by more than the capacity, the
+ * oldest entries are overwritten.
+ *
+ * put() must always be called from the same thread, and takeLatest() and
+ * clear() must not run concurrently with each other.
+ */
+public class FrameRing {
+    /** Returned by takeLatest() when no frame arrived since the last one. */
+    public static final long EMPTY = Long.MIN_VALUE;
+
+    private final AtomicLongArray mTimes;
+    // Number of frames put, and number of frames taken or dropped.
+    private final AtomicLong mHead = new AtomicLong();
+    private final AtomicLong mTail = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+
+    public FrameRing(int capacity) {
+        if (capacity < 2) throw new IllegalArgumentException("capacity must be at least 2");
+        mTimes = new AtomicLongArray(capacity);
+    }
+
+    /**
+     * Hand a frame over.
+     *
+     * @param time arrival time of the frame, anything but EMPTY.
+     */
+    public void put(long time) {
+        long head = mHead.get();
+        mTimes.set((int) (head % mTimes.length()), time);
+        mHead.set(head + 1);
+    }
+
+    /**
+     * Take the newest frame and drop the ones before it.
+     *
+     * @return the arrival time of the newest frame, or EMPTY.
+     */
+    public long takeLatest() {
+        long tail = mTail.get();
+        long head;
+        long time;
+        do {
+            head = mHead.get();
+            if (head == tail) return EMPTY;
+            time = mTimes.get((int) ((head - 1) % mTimes.length()));
+            // put() writes the slot before counting the frame, so the slot
+            // read is only overwritten once capacity - 1 more frames are put.
+        } while (mHead.get() - head >= mTimes.length() - 1);
+        mDropped.addAndGet(head - 1 - tail);
+        mTail.set(head);
+        return time;
+    }
+
+    /**
+     * Forget the frames not taken, without counting them as dropped.
+     */
+    public void clear() {
+        mTail.set(mHead.get());
+    }
+
+    /** Number of frames put so far. */
+    public long getPutCount() {
+        return mHead.get();
+    }
+
+    /** Number of frames dropped by takeLatest() so far. */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+}
@@ -16,6 +16,11 @@
 
 package com.android.camera;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
 /**
  * The Java interface to JNI calls regarding mosaic stitching.
  *
@@ -25,13 +30,20 @@ package com.android.camera;
  * mosaic.setSourceImageDimensions(width, height);
  * mosaic.reset(blendType);
  *
+ * float[] frameData = new float[Mosaic.FRAME_DATA_SIZE];
  * while ((pixels = hasNextImage()) != null) {
- *    mosaic.setSourceImage(pixels);
+ *    mosaic.setSourceImage(pixels, frameData);
  * }
  *
  * mosaic.createMosaic(highRes);
- * byte[] result = mosaic.getFinalMosaic();
+ * mosaic.writeFinalMosaicJpeg(quality, new FileOutputStream(file).getChannel());
+ * mosaic.freeMosaicMemory();
+ * mosaic.release();
  *
+ * Every instance has its own native state, so a finished mosaic can be
+ * rendered on a background thread while another instance captures the next
+ * one. A single instance must not be used from several threads at once, except
+ * for cancelCreateMosaic() and reportProgress() while createMosaic() is running.
  */
 public class Mosaic {
     /**
@@ -90,19 +102,169 @@ public class Mosaic {
     public static final int MOSAIC_RET_CANCELLED = -2;
     public static final int MOSAIC_RET_LOW_TEXTURE = -3;
     public static final int MOSAIC_RET_FEW_INLIERS = 2;
+    public static final int MOSAIC_RET_NO_FRAME = -4;
+
+    /**
+     * Layout of the frame data filled by setSourceImage() and
+     * setSourceImageFromGPU(): the first 9 entries are the 3x3 transformation
+     * matrix between the first frame and the passed frame, followed by the
+     * frame count and the return code.
+     */
+    public static final int FRAME_DATA_SIZE = 11;
+    public static final int FRAME_DATA_FRAME_COUNT_INDEX = 9;
+    public static final int FRAME_DATA_RET_CODE_INDEX = 10;
+
+    /**
+     * Receives the progress of createMosaic().
+     */
+    public interface ProgressListener {
+        /**
+         * Called on the thread running createMosaic() whenever the progress
+         * has advanced by at least the step given to setProgressListener(),
+         * and once at 100 when the mosaic is done. Keep this short, as the
+         * computation waits for it.
+         *
+         * @param progress the progress from 0 to 100.
+         */
+        public void onMosaicProgress(int progress);
+    }
 
+    // Size of the chunks in which the JPEG encoded mosaic is handed to Java.
+    private static final int JPEG_CHUNK_SIZE = 64 * 1024;
 
     static {
         System.loadLibrary("jni_mosaic");
     }
 
+    // Address of the native state of this mosaic; 0 once released.
+    private long mNativeContext;
+
+    public Mosaic() {
+        mNativeContext = createContext();
+    }
+
+    /**
+     * Free the native state of this mosaic, including the frame memory and any
+     * final mosaic that has not been read. The mosaic cannot be used afterwards;
+     * its native methods then throw IllegalStateException. Calling release()
+     * more than once is harmless.
+     */
+    public synchronized void release() {
+        if (mNativeContext != 0) {
+            destroyContext(mNativeContext);
+            mNativeContext = 0;
+        }
+    }
+
+    @Override
+    protected void finalize() throws Throwable {
+        try {
+            release();
+        } finally {
+            super.finalize();
+        }
+    }
+
+    private static native long createContext();
+
+    private static native void destroyContext(long context);
+
+    /**
+     * Store the high-resolution frames in a memory-mapped file instead of in
+     * memory. The frames are paged back in only during the final blending,
+     * which allows capturing many more frames than the in-memory limit. This
+     * takes effect on the next call to allocateMosaicMemory; the file is
+     * deleted by freeMosaicMemory.
+     *
+     * @param path path of the spill file, or null to keep all the frames in memory
+     * @param maxFrames the number of frames to reserve in the spill file
+     */
+    public void setSpillFile(String path, int maxFrames) {
+        setSpillFile(path, maxFrames, false);
+    }
+
+    /**
+     * Same as setSpillFile(String, int), but a persistent spill file stays in
+     * the file system while it is in use, so that saveSession() can keep the
+     * frames in it instead of copying them. Every mosaic that may exist at
+     * the same time then needs a spill file of its own.
+     *
+     * @param persistent whether the spill file stays in the file system.
+     */
+    public native void setSpillFile(String path, int maxFrames, boolean persistent);
+
+    /**
+     * @return true if the high-resolution frames are in a spill file.
+     */
+    public native boolean isSpilled();
+
+    /**
+     * Suffix of the spill file kept next to a session, see saveSession().
+     */
+    public static final String SESSION_FRAMES_SUFFIX = ".frames";
+
+    /**
+     * Save the frames captured since reset() to a session file, so that the
+     * sweep can be resumed or rendered by loadSession(), e.g. after the
+     * process died. The file holds the transformation of every frame, the
+     * low-resolution frames if asked for, and the high-resolution frames,
+     * unless they are in a persistent spill file: that file is then moved to
+     * the path of the session followed by SESSION_FRAMES_SUFFIX and kept
+     * after freeMosaicMemory(). A session saved before is replaced. Capture
+     * can go on afterwards. Call this before createMosaic(false), which
+     * changes the transformations.
+     *
+     * @param path path of the session file.
+     * @param lowRes whether to save the low-resolution frames too, which are
+     *        needed to resume capturing or to create the low-resolution mosaic.
+     * @return true if the session was saved; false if no frame has been
+     *         captured or it could not be written.
+     */
+    public native boolean saveSession(String path, boolean lowRes);
+
+    /**
+     * Replace the frames of this mosaic with those of a session saved by
+     * saveSession(), like allocateMosaicMemory() followed by reset() but with
+     * the frames of the session already captured. The session is mapped into
+     * memory and its frames are only read when they are used, so this takes
+     * the same time whatever the length of the sweep. The spill file of the
+     * session, if any, is used for the new frames too.
+     *
+     * @param path path of the session file.
+     * @param width the width of the frames to be captured, as for
+     *        allocateMosaicMemory(); 0, with a height of 0, accepts the
+     *        frames of any size if resume is false.
+     * @param height the height of the frames to be captured.
+     * @param resume true to go on capturing, in which case the transformation
+     *        of the next frames continues from the last frame of the session
+     *        and this mosaic takes over the preview like
+     *        allocateMosaicMemory(); false to only create the mosaic of the
+     *        session.
+     * @return the maximum number of frames, including those of the session,
+     *         or 0 if the file is not a session of frames of that size, or
+     *         cannot be resumed because its low-resolution frames were left
+     *         out. The memory of this mosaic has been freed either way.
+     */
+    public native int loadSession(String path, int width, int height, boolean resume);
+
+    /**
+     * Delete a session file and the spill file kept next to it. A mosaic that
+     * has loaded the session can still use its frames until freeMosaicMemory().
+     */
+    public static void deleteSession(String path) {
+        new File(path).delete();
+        new File(path + SESSION_FRAMES_SUFFIX).delete();
+    }
+
     /**
      * Allocate memory for the image frames at the given resolution.
      *
      * @param width width of the input frames in pixels
      * @param height height of the input frames in pixels
+     * @return the maximum number of frames that can be captured, which is larger
+     *         if a spill file has been set and could be created
      */
-    public native void allocateMosaicMemory(int width, int height);
+    public native int allocateMosaicMemory(int width, int height);
 
     /**
      * Free memory allocated by allocateMosaicMemory.
@@ -115,29 +277,36 @@ public class Mosaic {
      * source image t is set, the transformation matrix from the first source
      * image to t is computed and returned.
      *
-     * @param pixels source image of NV21 format.
-     * @return Float array of length 11; first 9 entries correspond to the 3x3
-     *         transformation matrix between the first frame and the passed frame;
-     *         the 10th entry is the number of the passed frame, where the counting
-     *         starts from 1; and the 11th entry is the returning code, whose value
-     *         is one of those MOSAIC_RET_* returning flags defined above.
+     * @param pixels direct buffer holding the source image of NV21 format. It
+     *        is read in place and can be reused for the next frame.
+     * @param frameData array of at least FRAME_DATA_SIZE entries which is
+     *        filled with the 3x3 transformation matrix between the first frame
+     *        and the passed frame; the number of the passed frame, where the
+     *        counting starts from 1; and the returning code.
+     * @return the returning code, which is one of those MOSAIC_RET_* returning
+     *         flags defined above.
+     * @throws IllegalArgumentException if pixels is not a direct buffer large
+     *         enough for a frame.
      */
-    public native float[] setSourceImage(byte[] pixels);
+    public native int setSourceImage(ByteBuffer pixels, float[] frameData);
 
     /**
      * This is an alternative to the setSourceImage function above. This should
      * be called when the image data is already on the native side in a fixed
      * byte array. In implementation, this array is filled by the GL thread
      * using glReadPixels directly from GPU memory (where it is accessed by
-     * an associated SurfaceTexture).
+     * an associated SurfaceTexture). Each frame read back is taken once; if
+     * there is none, as for the first frame of a sweep when the renderer reads
+     * the frames back one frame late (see MosaicRenderer.transferGPUtoCPU()),
+     * MOSAIC_RET_NO_FRAME is returned with the transformation of the last
+     * frame, or the identity at the start of a sweep.
      *
-     * @return Float array of length 11; first 9 entries correspond to the 3x3
-     *         transformation matrix between the first frame and the passed frame;
-     *         the 10th entry is the number of the passed frame, where the counting
-     *         starts from 1; and the 11th entry is the returning code, whose value
-     *         is one of those MOSAIC_RET_* returning flags defined above.
+     * @param frameData array of at least FRAME_DATA_SIZE entries; see
+     *        setSourceImage().
+     * @return the returning code, which is one of those MOSAIC_RET_* returning
+     *         flags defined above.
      */
-    public native float[] setSourceImageFromGPU();
+    public native int setSourceImageFromGPU(float[] frameData);
 
     /**
      * Set the type of blending.
@@ -154,6 +323,30 @@ public class Mosaic {
      */
     public native void setStripType(int type);
 
+    /**
+     * Default of setMaxFrameOverlap(): only the frames of a still camera are
+     * rejected.
+     */
+    public static final float DEFAULT_MAX_FRAME_OVERLAP = 1.0f;
+
+    /**
+     * Set the largest overlap of a frame with the last frame kept. A frame
+     * that shares more than this fraction of its width and of its height with
+     * that frame is rejected once aligned at low resolution: it would add too
+     * thin a strip to the mosaic to be worth a high-res frame and its
+     * alignment and blending. setSourceImage*() then return MOSAIC_RET_ERROR
+     * for it and the frame count does not change. Its high-res copy is only
+     * kept until the next frame, as createMosaic() adds the last frame of the
+     * sweep if it was rejected that way, so that the mosaic reaches the end
+     * of the sweep. Takes effect at once and is kept across reset().
+     *
+     * @param overlap fraction between 0.9 and 1, where 1 keeps every frame
+     *        the camera moved for; frames further apart are not aligned
+     *        reliably.
+     * @throws IllegalArgumentException if overlap is out of that range.
+     */
+    public native void setMaxFrameOverlap(float overlap);
+
     /**
      * Tell the native layer to create the final mosaic after all the input frame
      * data have been collected.
@@ -178,14 +371,69 @@ public class Mosaic {
     public native int[] getFinalMosaic();
 
     /**
-     * Get the data for the created mosaic.
+     * @return the width of the mosaic created by the last createMosaic() call.
+     */
+    public native int getMosaicWidth();
+
+    /**
+     * @return the height of the mosaic created by the last createMosaic() call.
+     */
+    public native int getMosaicHeight();
+
+    /**
+     * Copy the created mosaic in the NV21 format into the given buffer, starting
+     * at its position, which is left unchanged. The buffer must have at least
+     * getMosaicWidth() * getMosaicHeight() * 3 / 2 bytes remaining. Direct
+     * buffers are filled without any intermediate copy in the Java heap. Once
+     * copied, the native copy of the mosaic is released, so this succeeds only
+     * once per createMosaic().
      *
-     * @return Returns a byte array which contains the final mosaic in the NV21 format.
-     *         The first MosaicWidth*MosaicHeight*1.5 values contain the image data, followed by
-     *         8 bytes which pack the MosaicWidth and MosaicHeight integers into 4 bytes each
-     *         respectively.
+     * @param buffer a direct or array-backed buffer to receive the mosaic.
+     * @return true if the mosaic was copied; false if there is no mosaic or the
+     *         buffer is too small, in which case the mosaic is kept and the
+     *         call can be retried with a larger buffer.
      */
-    public native byte[] getFinalMosaicNV21();
+    public native boolean getFinalMosaicNV21(ByteBuffer buffer);
+
+    /**
+     * Compress the created mosaic to JPEG and write it to the given channel.
+     * The mosaic is encoded a strip of rows at a time while it is written, so
+     * neither the raw image nor the whole compressed image is ever copied into
+     * the Java heap. As with getFinalMosaicNV21(), the native copy of the
+     * mosaic is released afterwards.
+     *
+     * @param quality the JPEG quality, from 1 to 100.
+     * @param channel the channel to write to, e.g. of a FileOutputStream.
+     * @return true if the whole JPEG was written; false if there is no mosaic
+     *         or the encoder ran out of memory.
+     * @throws IOException if writing to the channel fails.
+     */
+    public boolean writeFinalMosaicJpeg(int quality, WritableByteChannel channel)
+            throws IOException {
+        if (!startFinalMosaicJpeg(quality)) return false;
+        try {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(JPEG_CHUNK_SIZE);
+            int count;
+            while ((count = readFinalMosaicJpeg(buffer)) > 0) {
+                buffer.clear();
+                buffer.limit(count);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            return count == 0;
+        } finally {
+            endFinalMosaicJpeg();
+        }
+    }
+
+    private native boolean startFinalMosaicJpeg(int quality);
+
+    // Fills the direct buffer from index 0 and returns the number of bytes;
+    // 0 once the whole JPEG has been read, -1 on error.
+    private native int readFinalMosaicJpeg(ByteBuffer buffer);
+
+    private native void endFinalMosaicJpeg();
 
     /**
      * Reset the state of the frame arrays which maintain the captured frame data.
@@ -193,6 +441,25 @@ public class Mosaic {
      */
     public native void reset();
 
+    /**
+     * Set the listener to be told about the progress of createMosaic(), which
+     * replaces polling with reportProgress(). An exception thrown by the
+     * listener cancels the computation and is rethrown by createMosaic().
+     *
+     * @param listener the listener, or null to remove it.
+     * @param step the minimum advance in percent between two calls.
+     */
+    public native void setProgressListener(ProgressListener listener, int step);
+
+    /**
+     * Ask a running createMosaic() to stop, in which case it returns
+     * MOSAIC_RET_CANCELLED within about the time it takes to blend one frame.
+     * If no computation is running, the next one is cancelled right away. The
+     * request stays in effect until reset(). This can be called from any
+     * thread.
+     */
+    public native void cancelCreateMosaic();
+
     /**
      * Get the progress status of the mosaic computation process.
      * @param hires Boolean flag to select whether to report progress of the
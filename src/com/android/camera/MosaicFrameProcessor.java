@@ -16,31 +16,67 @@
 
 package com.android.camera;
 
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.locks.LockSupport;
+
 /**
  * Class to handle the processing of each frame by Mosaicer.
+ *
+ * The frames are aligned on a worker thread, which processFrame() hands them
+ * to through a FrameRing without waiting; when the worker falls behind, only
+ * the newest frame is aligned and the older ones are dropped. The progress is
+ * delivered to the ProgressListener on the main thread.
  */
 public class MosaicFrameProcessor {
     private static final String TAG = "MosaicFrameProcessor";
-    private static final int NUM_FRAMES_IN_BUFFER = 2;
+    // The worker only aligns the newest frame, so a few entries are enough.
+    private static final int FRAME_RING_CAPACITY = 4;
     private static final int MAX_NUMBER_OF_FRAMES = 100;
-    private static final int MOSAIC_RET_CODE_INDEX = 10;
-    private static final int FRAME_COUNT_INDEX = 9;
+    // Upper bound on the number of frames when the high-res frames are spilled
+    // to a file. The actual limit also depends on the free space of the file system.
+    private static final int MAX_NUMBER_OF_SPILLED_FRAMES = 400;
     private static final int X_COORD_INDEX = 2;
     private static final int Y_COORD_INDEX = 5;
     private static final int HR_TO_LR_DOWNSAMPLE_FACTOR = 4;
     private static final int WINDOW_SIZE = 3;
-
+    // Frames that overlap the last frame kept by more than this are dropped
+    // before their high-res copy. On the perftests/panorama sweep this keeps
+    // 18 of 38 frames, and the mosaic stays within 1% of the size of the one
+    // made of every frame.
+    private static final float MAX_FRAME_OVERLAP = 0.95f;
+
+    /**
+     * Layout of the statistics filled by getStatistics(): the frames handed
+     * to processFrame() since reset() and those dropped for a newer one, and
+     * the mean and largest time from processFrame() to the end of the
+     * alignment of a frame, in ms.
+     */
+    public static final int STATISTICS_SIZE = 4;
+    public static final int STATISTICS_FRAME_COUNT_INDEX = 0;
+    public static final int STATISTICS_DROPPED_COUNT_INDEX = 1;
+    public static final int STATISTICS_MEAN_LATENCY_MS_INDEX = 2;
+    public static final int STATISTICS_MAX_LATENCY_MS_INDEX = 3;
+
+    // The mosaic, and everything below up to mFrameData, is only used under
+    // mAlignLock once the worker has started.
+    private final Object mAlignLock = new Object();
     private Mosaic mMosaicer;
-    private boolean mIsMosaicMemoryAllocated = false;
+    private volatile boolean mIsMosaicMemoryAllocated = false;
+    private int mMaxNumberOfFrames = MAX_NUMBER_OF_FRAMES;
+    private File mSpillFile;
+    private int mSpillFileNumber;
+    private boolean mStaleSpillFilesDeleted;
     private float mTranslationLastX;
     private float mTranslationLastY;
 
-    private int mFillIn = 0;
     private int mTotalFrameCount = 0;
-    private int mLastProcessFrameIdx = -1;
-    private int mCurrProcessFrameIdx = -1;
     private boolean mFirstRun;
 
     // Panning rate is in unit of percentage of image content translation per
@@ -54,7 +90,49 @@ public class MosaicFrameProcessor {
     private float mTotalTranslationX = 0f;
     private float mTotalTranslationY = 0f;
 
-    private ProgressListener mProgressListener;
+    // Reused for every frame instead of allocating a new array per frame.
+    private final float[] mFrameData = new float[Mosaic.FRAME_DATA_SIZE];
+
+    private final FrameRing mFrameRing = new FrameRing(FRAME_RING_CAPACITY);
+    private final Thread mAlignThread;
+
+    // The last progress of the worker, delivered by mDeliverProgress on the
+    // main thread, and the statistics; guarded by mResultLock. A progress
+    // not delivered yet is replaced by a newer one.
+    private final Object mResultLock = new Object();
+    private boolean mProgressPosted;
+    private boolean mProgressFinished;
+    private float mProgressRateX;
+    private float mProgressRateY;
+    private float mProgressX;
+    private float mProgressY;
+    private long mRingPutBase;
+    private long mRingDroppedBase;
+    private int mAlignedFrameCount;
+    private double mLatencySumMs;
+    private double mLatencyMaxMs;
+
+    private volatile ProgressListener mProgressListener;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mDeliverProgress = new Runnable() {
+        @Override
+        public void run() {
+            boolean finished;
+            float rateX, rateY, progressX, progressY;
+            synchronized (mResultLock) {
+                mProgressPosted = false;
+                finished = mProgressFinished;
+                rateX = mProgressRateX;
+                rateY = mProgressRateY;
+                progressX = mProgressX;
+                progressY = mProgressY;
+            }
+            ProgressListener listener = mProgressListener;
+            if (listener != null) {
+                listener.onProgress(finished, rateX, rateY, progressX, progressY);
+            }
+        }
+    };
 
     private int mPreviewWidth;
     private int mPreviewHeight;
@@ -76,33 +154,94 @@ public class MosaicFrameProcessor {
 
     private MosaicFrameProcessor() {
         mMosaicer = new Mosaic();
+        mAlignThread = new Thread("MosaicAligner") {
+            @Override
+            public void run() {
+                while (true) {
+                    boolean aligned;
+                    synchronized (mAlignLock) {
+                        aligned = alignLatestFrame();
+                    }
+                    // processFrame() unparks the worker after every frame.
+                    if (!aligned) LockSupport.park(this);
+                }
+            }
+        };
+        mAlignThread.setDaemon(true);
+        mAlignThread.start();
     }
 
     public void setProgressListener(ProgressListener listener) {
         mProgressListener = listener;
     }
 
-    public int reportProgress(boolean hires, boolean cancel) {
-        return mMosaicer.reportProgress(hires, cancel);
+    /**
+     * Sets the file used to spill the high-res frames of the following sweeps.
+     * Takes effect on the next call to initialize(). Every sweep appends a
+     * number of its own to the name of the file, which stays in the file
+     * system while the sweep is in memory so that saveSession() does not copy
+     * the frames. The first call deletes the files that a process which died
+     * left behind.
+     *
+     * @param spillFile the spill file, or null to keep all the frames in memory.
+     */
+    public void setSpillFile(File spillFile) {
+        if (spillFile != null && !mStaleSpillFilesDeleted) {
+            File[] files = spillFile.getParentFile().listFiles();
+            String prefix = spillFile.getName() + '.';
+            if (files != null) {
+                for (File file : files) {
+                    if (file.getName().startsWith(prefix)) file.delete();
+                }
+            }
+            mStaleSpillFilesDeleted = true;
+        }
+        mSpillFile = spillFile;
     }
 
     public void initialize(int previewWidth, int previewHeight, int bufSize) {
-        mPreviewWidth = previewWidth;
-        mPreviewHeight = previewHeight;
-        mPreviewBufferSize = bufSize;
-        setupMosaicer(mPreviewWidth, mPreviewHeight, mPreviewBufferSize);
-        setStripType(Mosaic.STRIPTYPE_WIDE);
-        reset();
+        synchronized (mAlignLock) {
+            mPreviewWidth = previewWidth;
+            mPreviewHeight = previewHeight;
+            mPreviewBufferSize = bufSize;
+            setupMosaicer(mPreviewWidth, mPreviewHeight, mPreviewBufferSize);
+            setStripType(Mosaic.STRIPTYPE_WIDE);
+            mMosaicer.setMaxFrameOverlap(MAX_FRAME_OVERLAP);
+            reset();
+        }
     }
 
     public void clear() {
-        if (mIsMosaicMemoryAllocated) {
-            mMosaicer.freeMosaicMemory();
+        synchronized (mAlignLock) {
+            mFrameRing.clear();
+            if (mIsMosaicMemoryAllocated) {
+                mMosaicer.freeMosaicMemory();
+                mIsMosaicMemoryAllocated = false;
+            }
+        }
+        synchronized (this) {
+            notify();
+        }
+    }
+
+    /**
+     * Hands the mosaic holding the current sweep over to the caller, e.g. to
+     * render it in the background, and continues with a new mosaic. The caller
+     * becomes responsible for calling freeMosaicMemory() and release() on the
+     * returned mosaic. initialize() must be called before the next sweep.
+     */
+    public Mosaic detachMosaic() {
+        Mosaic mosaic;
+        synchronized (mAlignLock) {
+            mFrameRing.clear();
+            mosaic = mMosaicer;
+            mMosaicer = new Mosaic();
             mIsMosaicMemoryAllocated = false;
         }
         synchronized (this) {
             notify();
         }
+        return mosaic;
     }
 
     public boolean isMosaicMemoryAllocated() {
@@ -118,41 +257,157 @@ public class MosaicFrameProcessor {
 
         if (mIsMosaicMemoryAllocated) throw new RuntimeException("MosaicFrameProcessor in use!");
         mIsMosaicMemoryAllocated = true;
-        mMosaicer.allocateMosaicMemory(previewWidth, previewHeight);
+
+        String spillPath = null;
+        int spillFrames = 0;
+        if (mSpillFile != null) {
+            // The spill file reserves the space of all its frames up front.
+            long frameSize = (long) previewWidth * previewHeight * 3;
+            long usableSpace = mSpillFile.getParentFile().getUsableSpace();
+            spillFrames = (int) Math.min(MAX_NUMBER_OF_SPILLED_FRAMES, usableSpace / frameSize);
+            if (spillFrames > MAX_NUMBER_OF_FRAMES) {
+                spillPath = mSpillFile.getPath() + '.' + mSpillFileNumber++;
+            }
+        }
+        mMosaicer.setSpillFile(spillPath, spillFrames, true);
+        mMaxNumberOfFrames = mMosaicer.allocateMosaicMemory(previewWidth, previewHeight);
+        Log.v(TAG, "setupMosaicer max frames=" + mMaxNumberOfFrames);
     }
 
     public void reset() {
         // reset() can be called even if MosaicFrameProcessor is not initialized.
         // Only counters will be changed.
+        synchronized (mAlignLock) {
+            resetCounters();
+            mMosaicer.reset();
+        }
+        resetStatistics();
+    }
+
+    // Called with mAlignLock held.
+    private void resetCounters() {
+        // The frames of the last sweep are not aligned into this one.
+        mFrameRing.clear();
         mFirstRun = true;
         mTotalFrameCount = 0;
-        mFillIn = 0;
         mTotalTranslationX = 0;
         mTranslationLastX = 0;
         mTotalTranslationY = 0;
         mTranslationLastY = 0;
         mPanningRateX = 0;
         mPanningRateY = 0;
-        mLastProcessFrameIdx = -1;
-        mCurrProcessFrameIdx = -1;
         for (int i = 0; i < WINDOW_SIZE; ++i) {
             mDeltaX[i] = 0f;
             mDeltaY[i] = 0f;
         }
-        mMosaicer.reset();
+    }
+
+    private void resetStatistics() {
+        // Nor is the progress of the last sweep delivered.
+        mMainHandler.removeCallbacks(mDeliverProgress);
+        synchronized (mResultLock) {
+            mProgressPosted = false;
+            mRingPutBase = mFrameRing.getPutCount();
+            mRingDroppedBase = mFrameRing.getDroppedCount();
+            mAlignedFrameCount = 0;
+            mLatencySumMs = 0;
+            mLatencyMaxMs = 0;
+        }
+    }
+
+    /**
+     * Saves the frames of the current sweep to a session file, from which
+     * resumeSession() continues the sweep. Only the low-res frames are
+     * written; a sweep whose high-res frames are not in a spill file is not
+     * saved, as writing them would take seconds. Until the session is resumed
+     * or deleted, no new sweep must be captured, as it would overwrite the
+     * frames of the session in the spill file.
+     *
+     * @return false if the sweep was not saved.
+     */
+    public boolean saveSession(File session) {
+        synchronized (mAlignLock) {
+            mFrameRing.clear();
+            if (!mIsMosaicMemoryAllocated || !mMosaicer.isSpilled()) return false;
+            return mMosaicer.saveSession(session.getPath(), true);
+        }
+    }
+
+    /**
+     * Continues the sweep saved by saveSession() instead of starting a new
+     * one, if it was captured at the current preview size. Call after
+     * initialize() and before the frames of the sweep are processed. The
+     * session must stay until the sweep is over.
+     *
+     * @return false if the session cannot be resumed, in which case a new
+     *         sweep starts.
+     */
+    public boolean resumeSession(File session) {
+        synchronized (mAlignLock) {
+            if (!mIsMosaicMemoryAllocated) return false;
+            mFrameRing.clear();
+            int maxFrames = mMosaicer.loadSession(session.getPath(),
+                    mPreviewWidth, mPreviewHeight, true);
+            if (maxFrames == 0) {
+                // The memory of the new sweep has been freed.
+                mIsMosaicMemoryAllocated = false;
+                setupMosaicer(mPreviewWidth, mPreviewHeight, mPreviewBufferSize);
+                reset();
+                return false;
+            }
+            mMaxNumberOfFrames = maxFrames;
+            // The counters start over, but not the frames.
+            resetCounters();
+        }
+        resetStatistics();
+        return true;
     }
 
     public int createMosaic(boolean highRes) {
+        synchronized (mAlignLock) {
+            // The sweep is over; wait for the frame being aligned, if any.
+            mFrameRing.clear();
+        }
         return mMosaicer.createMosaic(highRes);
     }
 
-    public byte[] getFinalMosaicNV21() {
-        return mMosaicer.getFinalMosaicNV21();
+    /**
+     * Fills the statistics of the alignment since reset(). Can be called from
+     * any thread.
+     *
+     * @param statistics array of at least STATISTICS_SIZE entries.
+     */
+    public void getStatistics(float[] statistics) {
+        synchronized (mResultLock) {
+            statistics[STATISTICS_FRAME_COUNT_INDEX] = mFrameRing.getPutCount() - mRingPutBase;
+            statistics[STATISTICS_DROPPED_COUNT_INDEX] =
+                    mFrameRing.getDroppedCount() - mRingDroppedBase;
+            statistics[STATISTICS_MEAN_LATENCY_MS_INDEX] = mAlignedFrameCount > 0 ?
+                    (float) (mLatencySumMs / mAlignedFrameCount) : 0f;
+            statistics[STATISTICS_MAX_LATENCY_MS_INDEX] = (float) mLatencyMaxMs;
+        }
+    }
+
+    public int getMosaicWidth() {
+        return mMosaicer.getMosaicWidth();
     }
 
-    // Processes the last filled image frame through the mosaicer and
-    // updates the UI to show progress.
-    // When done, processes and displays the final mosaic.
+    public int getMosaicHeight() {
+        return mMosaicer.getMosaicHeight();
+    }
+
+    public boolean getFinalMosaicNV21(ByteBuffer buffer) {
+        return mMosaicer.getFinalMosaicNV21(buffer);
+    }
+
+    public boolean writeFinalMosaicJpeg(int quality, WritableByteChannel channel)
+            throws IOException {
+        return mMosaicer.writeFinalMosaicJpeg(quality, channel);
+    }
+
+    // Hands the frame just read back by the renderer to the worker, which
+    // processes it through the mosaicer and publishes the progress to the
+    // listener on the main thread. Does not wait for the worker.
     public void processFrame() {
         if (!mIsMosaicMemoryAllocated) {
             // clear() is called and buffers are cleared, stop computation.
@@ -160,42 +415,56 @@ public class MosaicFrameProcessor {
             // are not processed yet and thus the callback may be invoked.
             return;
         }
+        mFrameRing.put(System.nanoTime());
+        LockSupport.unpark(mAlignThread);
+    }
 
-        mCurrProcessFrameIdx = mFillIn;
-        mFillIn = ((mFillIn + 1) % NUM_FRAMES_IN_BUFFER);
-
-        // Check that we are trying to process a frame different from the
-        // last one processed (useful if this class was running asynchronously)
-        if (mCurrProcessFrameIdx != mLastProcessFrameIdx) {
-            mLastProcessFrameIdx = mCurrProcessFrameIdx;
-
-            // TODO: make the termination condition regarding reaching
-            // MAX_NUMBER_OF_FRAMES solely determined in the library.
-            if (mTotalFrameCount < MAX_NUMBER_OF_FRAMES) {
-                // If we are still collecting new frames for the current mosaic,
-                // process the new frame.
-                calculateTranslationRate();
-
-                // Publish progress of the ongoing processing
-                if (mProgressListener != null) {
-                    mProgressListener.onProgress(false, mPanningRateX, mPanningRateY,
-                            mTranslationLastX * HR_TO_LR_DOWNSAMPLE_FACTOR / mPreviewWidth,
-                            mTranslationLastY * HR_TO_LR_DOWNSAMPLE_FACTOR / mPreviewHeight);
-                }
-            } else {
-                if (mProgressListener != null) {
-                    mProgressListener.onProgress(true, mPanningRateX, mPanningRateY,
-                            mTranslationLastX * HR_TO_LR_DOWNSAMPLE_FACTOR / mPreviewWidth,
-                            mTranslationLastY * HR_TO_LR_DOWNSAMPLE_FACTOR / mPreviewHeight);
-                }
+    // Aligns the newest frame handed to processFrame(), if any, on the worker
+    // with mAlignLock held. Returns false if there was none.
+    private boolean alignLatestFrame() {
+        long arrival = mFrameRing.takeLatest();
+        if (arrival == FrameRing.EMPTY) return false;
+        if (!mIsMosaicMemoryAllocated) return true;
+
+        // TODO: make the termination condition regarding reaching
+        // mMaxNumberOfFrames solely determined in the library.
+        if (mTotalFrameCount < mMaxNumberOfFrames) {
+            // If we are still collecting new frames for the current mosaic,
+            // process the new frame.
+            if (!calculateTranslationRate()) return true;
+
+            double latencyMs = (System.nanoTime() - arrival) / 1e6;
+            synchronized (mResultLock) {
+                mAlignedFrameCount++;
+                mLatencySumMs += latencyMs;
+                if (latencyMs > mLatencyMaxMs) mLatencyMaxMs = latencyMs;
             }
+            publishProgress(false);
+        } else {
+            publishProgress(true);
+        }
+        return true;
+    }
+
+    private void publishProgress(boolean isFinished) {
+        synchronized (mResultLock) {
+            mProgressFinished = isFinished;
+            mProgressRateX = mPanningRateX;
+            mProgressRateY = mPanningRateY;
+            mProgressX = mTranslationLastX * HR_TO_LR_DOWNSAMPLE_FACTOR / mPreviewWidth;
+            mProgressY = mTranslationLastY * HR_TO_LR_DOWNSAMPLE_FACTOR / mPreviewHeight;
+            if (mProgressPosted) return;
+            mProgressPosted = true;
         }
+        mMainHandler.post(mDeliverProgress);
     }
 
-    public void calculateTranslationRate() {
-        float[] frameData = mMosaicer.setSourceImageFromGPU();
-        int ret_code = (int) frameData[MOSAIC_RET_CODE_INDEX];
-        mTotalFrameCount  = (int) frameData[FRAME_COUNT_INDEX];
+    // Returns false if the renderer had no frame for the mosaicer.
+    private boolean calculateTranslationRate() {
+        float[] frameData = mFrameData;
+        int ret_code = mMosaicer.setSourceImageFromGPU(frameData);
+        if (ret_code == Mosaic.MOSAIC_RET_NO_FRAME) return false;
+        mTotalFrameCount  = (int) frameData[Mosaic.FRAME_DATA_FRAME_COUNT_INDEX];
         float translationCurrX = frameData[X_COORD_INDEX];
         float translationCurrY = frameData[Y_COORD_INDEX];
 
@@ -204,7 +473,7 @@ public class MosaicFrameProcessor {
             mTranslationLastX = translationCurrX;
             mTranslationLastY = translationCurrY;
             mFirstRun = false;
-            return;
+            return true;
         }
 
         // Moving average: remove the oldest translation/deltaTime and
@@ -232,5 +501,6 @@ public class MosaicFrameProcessor {
         mTranslationLastX = translationCurrX;
         mTranslationLastY = translationCurrY;
         mOldestIdx = (mOldestIdx + 1) % WINDOW_SIZE;
+        return true;
     }
 }
@@ -133,10 +133,23 @@ public class MosaicPreviewRenderer {
             } else {
                 Log.v(TAG, "EGL version: " + version[0] + '.' + version[1]);
             }
-            int[] attribList = {EGL_CONTEXT_CLIENT_VERSION, 2, EGL10.EGL_NONE };
-            mEglConfig = chooseConfig(mEgl, mEglDisplay);
-            mEglContext = mEgl.eglCreateContext(mEglDisplay, mEglConfig, EGL10.EGL_NO_CONTEXT,
-                                                attribList);
+            // An OpenGL ES 3.0 context, where there is one, lets MosaicRenderer
+            // read the frames back through pixel buffer objects.
+            mEglConfig = chooseConfig(mEgl, mEglDisplay, CONFIG_SPEC_ES3);
+            if (mEglConfig != null) {
+                int[] attribList = {EGL_CONTEXT_CLIENT_VERSION, 3, EGL10.EGL_NONE };
+                mEglContext = mEgl.eglCreateContext(mEglDisplay, mEglConfig,
+                        EGL10.EGL_NO_CONTEXT, attribList);
+            }
+            if (mEglContext == null || mEglContext == EGL10.EGL_NO_CONTEXT) {
+                int[] attribList = {EGL_CONTEXT_CLIENT_VERSION, 2, EGL10.EGL_NONE };
+                mEglConfig = chooseConfig(mEgl, mEglDisplay, CONFIG_SPEC);
+                if (mEglConfig == null) {
+                    throw new IllegalArgumentException("No configs match configSpec");
+                }
+                mEglContext = mEgl.eglCreateContext(mEglDisplay, mEglConfig,
+                        EGL10.EGL_NO_CONTEXT, attribList);
+            }
 
             if (mEglContext == null || mEglContext == EGL10.EGL_NO_CONTEXT) {
                 throw new RuntimeException("failed to createContext");
@@ -234,6 +247,7 @@ public class MosaicPreviewRenderer {
     }
 
     private static final int EGL_OPENGL_ES2_BIT = 4;
+    private static final int EGL_OPENGL_ES3_BIT_KHR = 0x40;
     private static final int[] CONFIG_SPEC = new int[] {
             EGL10.EGL_RENDERABLE_TYPE, EGL_OPENGL_ES2_BIT,
             EGL10.EGL_RED_SIZE, 8,
@@ -241,21 +255,31 @@ public class MosaicPreviewRenderer {
             EGL10.EGL_BLUE_SIZE, 8,
             EGL10.EGL_NONE
     };
+    private static final int[] CONFIG_SPEC_ES3 = new int[] {
+            EGL10.EGL_RENDERABLE_TYPE, EGL_OPENGL_ES3_BIT_KHR,
+            EGL10.EGL_RED_SIZE, 8,
+            EGL10.EGL_GREEN_SIZE, 8,
+            EGL10.EGL_BLUE_SIZE, 8,
+            EGL10.EGL_NONE
+    };
 
-    private static EGLConfig chooseConfig(EGL10 egl, EGLDisplay display) {
+    // Returns null if no config matches configSpec.
+    private static EGLConfig chooseConfig(EGL10 egl, EGLDisplay display, int[] configSpec) {
         int[] numConfig = new int[1];
-        if (!egl.eglChooseConfig(display, CONFIG_SPEC, null, 0, numConfig)) {
+        if (!egl.eglChooseConfig(display, configSpec, null, 0, numConfig)) {
+            // EGL before 1.5 may reject EGL_OPENGL_ES3_BIT_KHR as a bad attribute.
+            if (configSpec == CONFIG_SPEC_ES3) return null;
             throw new IllegalArgumentException("eglChooseConfig failed");
         }
 
         int numConfigs = numConfig[0];
         if (numConfigs <= 0) {
-            throw new IllegalArgumentException("No configs match configSpec");
+            return null;
         }
 
         EGLConfig[] configs = new EGLConfig[numConfigs];
         if (!egl.eglChooseConfig(
-                display, CONFIG_SPEC, configs, numConfigs, numConfig)) {
+                display, configSpec, configs, numConfigs, numConfig)) {
             throw new IllegalArgumentException("eglChooseConfig#2 failed");
         }
 
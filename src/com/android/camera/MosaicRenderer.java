@@ -57,12 +57,39 @@ public class MosaicRenderer
      public static native void preprocess(float[] stMatrix);
 
      /**
-      * This function calls glReadPixels to transfer both the low-res and high-res
-      * data from the GPU memory to the CPU memory for further processing by the
-      * mosaicing library.
+      * Layout of the statistics filled by getTransferStatistics(): the frames
+      * read back and those the mosaicing library never took, the mean and
+      * largest time between two calls to transferGPUtoCPU() in a sweep and
+      * spent in it, in ms, and the frames by which the read back lags (0 or 1).
+      */
+     public static final int TRANSFER_STATISTICS_SIZE = 7;
+     public static final int TRANSFER_STATISTICS_FRAME_COUNT_INDEX = 0;
+     public static final int TRANSFER_STATISTICS_DROPPED_COUNT_INDEX = 1;
+     public static final int TRANSFER_STATISTICS_MEAN_INTERVAL_MS_INDEX = 2;
+     public static final int TRANSFER_STATISTICS_MAX_INTERVAL_MS_INDEX = 3;
+     public static final int TRANSFER_STATISTICS_MEAN_TRANSFER_MS_INDEX = 4;
+     public static final int TRANSFER_STATISTICS_MAX_TRANSFER_MS_INDEX = 5;
+     public static final int TRANSFER_STATISTICS_LATENCY_FRAMES_INDEX = 6;
+
+     /**
+      * This function transfers both the low-res and high-res data from the
+      * GPU memory to the CPU memory for further processing by the mosaicing
+      * library. On OpenGL ES 3.0 contexts, glReadPixels fills a pixel buffer
+      * object without waiting for the GPU, and the frame is handed to the
+      * library on the next call, while this one is read; otherwise the frame
+      * is read at once with a blocking glReadPixels. A frame the library has
+      * not taken by then, or is still reading, is dropped.
       */
      public static native void transferGPUtoCPU();
 
+     /**
+      * Fill the statistics of transferGPUtoCPU() since the last reset(). Can
+      * be called from any thread.
+      *
+      * @param statistics array of at least TRANSFER_STATISTICS_SIZE entries.
+      */
+     public static native void getTransferStatistics(float[] statistics);
+
      /**
       * Function to be called in onDrawFrame() to update the screen with
       * the new frame data.
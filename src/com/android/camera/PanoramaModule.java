@@ -25,22 +25,17 @@ import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
-import android.graphics.ImageFormat;
 import android.graphics.Matrix;
 import android.graphics.PixelFormat;
 import android.graphics.Rect;
 import android.graphics.SurfaceTexture;
-import android.graphics.YuvImage;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.hardware.Camera.Parameters;
 import android.hardware.Camera.Size;
-import android.media.ExifInterface;
-import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.Message;
-import android.os.PowerManager;
 import android.util.Log;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
@@ -60,16 +55,15 @@ import com.android.camera.ui.LayoutNotifyView;
 import com.android.camera.ui.PopupManager;
 import com.android.camera.ui.Rotatable;
 import com.android.camera.ui.RotateLayout;
+import com.android.camera.ui.RotateTextToast;
 import com.android.gallery3d.common.ApiHelper;
 import com.android.gallery3d.ui.GLRootView;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.nio.channels.Channels;
 import java.util.List;
-import java.util.TimeZone;
 
 /**
  * Activity to handle panorama capturing.
@@ -97,9 +91,23 @@ public class PanoramaModule implements CameraModule,
     private static final int CAPTURE_STATE_VIEWFINDER = 0;
     private static final int CAPTURE_STATE_MOSAIC = 1;
 
-    private static final String GPS_DATE_FORMAT_STR = "yyyy:MM:dd";
-    private static final String GPS_TIME_FORMAT_STR = "kk/1,mm/1,ss/1";
-    private static final String DATETIME_FORMAT_STR = "yyyy:MM:dd kk:mm:ss";
+    // How long the low-res mosaic is reviewed before returning to the
+    // viewfinder while the high-res one is rendered in the background.
+    private static final int REVIEW_DURATION = 2000;
+
+    // The high-res frames are spilled to this file in the cache directory so
+    // that long sweeps do not need to keep all of them in memory.
+    private static final String SPILL_FILE_NAME = "panorama_frames.tmp";
+
+    // A sweep interrupted by onPause() is saved to this session in the cache
+    // directory, and continued by the next capture if it starts within
+    // SWEEP_SESSION_MAX_AGE milliseconds, even in another process.
+    private static final String SWEEP_SESSION_NAME = "panorama_sweep.session";
+    private static final long SWEEP_SESSION_MAX_AGE = 10 * 60 * 1000;
+
+    // JPEG quality of the low-res review image, which is also saved as the
+    // placeholder of the panorama.
+    private static final int JPEG_QUALITY = 100;
 
     // The unit of speed is degrees per frame.
     private static final float PANNING_SPEED_THRESHOLD = 2.5f;
@@ -116,17 +124,16 @@ public class PanoramaModule implements CameraModule,
     private PanoProgressBar mSavingProgressBar;
     private Matrix mProgressDirectionMatrix = new Matrix();
     private float[] mProgressAngle = new float[2];
+    private final float[] mTransferStatistics =
+            new float[MosaicRenderer.TRANSFER_STATISTICS_SIZE];
+    private final float[] mAlignmentStatistics =
+            new float[MosaicFrameProcessor.STATISTICS_SIZE];
     private LayoutNotifyView mPreviewArea;
     private View mLeftIndicator;
     private View mRightIndicator;
     private MosaicPreviewRenderer mMosaicPreviewRenderer;
     private TextView mTooFastPrompt;
     private ShutterButton mShutterButton;
-    private Object mWaitObject = new Object();
-
-    private DateFormat mGPSDateStampFormat;
-    private DateFormat mGPSTimeStampFormat;
-    private DateFormat mDateTimeStampFormat;
 
     private String mPreparePreviewString;
     private String mDialogTitle;
@@ -142,15 +149,18 @@ public class PanoramaModule implements CameraModule,
     private int mPreviewHeight;
     private int mCameraState;
     private int mCaptureState;
-    private PowerManager.WakeLock mPartialWakeLock;
     private MosaicFrameProcessor mMosaicFrameProcessor;
+    private PanoramaRenderQueue mRenderQueue;
+    // The last sweep submitted, kept until the render queue reports it
+    // finished so it can still be cancelled after its review; set by the
+    // background thread that submits it.
+    private volatile PanoramaRenderQueue.Job mRenderJob;
     private boolean mMosaicFrameProcessorInitialized;
     private AsyncTask <Void, Void, Void> mWaitProcessorTask;
     private long mTimeTaken;
     private Handler mMainHandler;
     private SurfaceTexture mCameraTexture;
     private boolean mThreadRunning;
-    private boolean mCancelComputation;
     private float mHorizontalViewAngle;
     private float mVerticalViewAngle;
 
@@ -257,19 +267,10 @@ public class PanoramaModule implements CameraModule,
             }
         };
 
-        mGPSDateStampFormat = new SimpleDateFormat(GPS_DATE_FORMAT_STR);
-        mGPSTimeStampFormat = new SimpleDateFormat(GPS_TIME_FORMAT_STR);
-        mDateTimeStampFormat = new SimpleDateFormat(DATETIME_FORMAT_STR);
-        TimeZone tzUTC = TimeZone.getTimeZone("UTC");
-        mGPSDateStampFormat.setTimeZone(tzUTC);
-        mGPSTimeStampFormat.setTimeZone(tzUTC);
-
-        PowerManager pm = (PowerManager) mActivity.getSystemService(Context.POWER_SERVICE);
-        mPartialWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "Panorama");
-
         mOrientationEventListener = new PanoOrientationEventListener(mActivity);
 
         mMosaicFrameProcessor = MosaicFrameProcessor.getInstance();
+        mRenderQueue = PanoramaRenderQueue.getInstance(mActivity);
 
         Resources appRes = mActivity.getResources();
         mPreparePreviewString = appRes.getString(R.string.pano_dialog_prepare_preview);
@@ -287,7 +288,7 @@ public class PanoramaModule implements CameraModule,
                     case MSG_LOW_RES_FINAL_MOSAIC_READY:
                         onBackgroundThreadFinished();
                         showFinalMosaic((Bitmap) msg.obj);
-                        saveHighResMosaic();
+                        onRenderJobSubmitted();
                         break;
                     case MSG_GENERATE_FINAL_MOSAIC_ERROR:
                         onBackgroundThreadFinished();
@@ -488,7 +489,6 @@ public class PanoramaModule implements CameraModule,
 
     public void startCapture() {
         // Reset values so we can do this again.
-        mCancelComputation = false;
         mTimeTaken = System.currentTimeMillis();
         mActivity.setSwipingEnabled(false);
         mActivity.hideSwitcher();
@@ -496,6 +496,7 @@ public class PanoramaModule implements CameraModule,
         mCaptureState = CAPTURE_STATE_MOSAIC;
         mCaptureIndicator.setVisibility(View.VISIBLE);
         showDirectionIndicators(PanoProgressBar.DIRECTION_NONE);
+        resumeInterruptedSweep();
 
         mMosaicFrameProcessor.setProgressListener(new MosaicFrameProcessor.ProgressListener() {
             @Override
@@ -528,6 +529,23 @@ public class PanoramaModule implements CameraModule,
         setupProgressDirectionMatrix();
     }
 
+    private File getSweepSessionFile() {
+        return new File(mActivity.getCacheDir(), SWEEP_SESSION_NAME);
+    }
+
+    // Continues the sweep saved by onPauseAfterSuper(), if any. The session
+    // is deleted once the sweep is over.
+    private void resumeInterruptedSweep() {
+        File session = getSweepSessionFile();
+        if (!session.exists()) return;
+        if (System.currentTimeMillis() - session.lastModified() < SWEEP_SESSION_MAX_AGE
+                && mMosaicFrameProcessor.resumeSession(session)) {
+            Log.v(TAG, "Resuming the interrupted sweep");
+        } else {
+            Mosaic.deleteSession(session.getPath());
+        }
+    }
+
     void setupProgressDirectionMatrix() {
         int degrees = Util.getDisplayRotation(mActivity);
         int cameraId = CameraHolder.instance().getBackCameraId();
@@ -547,6 +565,23 @@ public class PanoramaModule implements CameraModule,
 
         mCameraTexture.setOnFrameAvailableListener(null);
 
+        MosaicRenderer.getTransferStatistics(mTransferStatistics);
+        Log.v(TAG, String.format("frames read back: %.0f, dropped %.0f, every %.1f ms"
+                + " (at most %.1f), taking %.1f ms (at most %.1f), %.0f frame late",
+                mTransferStatistics[MosaicRenderer.TRANSFER_STATISTICS_FRAME_COUNT_INDEX],
+                mTransferStatistics[MosaicRenderer.TRANSFER_STATISTICS_DROPPED_COUNT_INDEX],
+                mTransferStatistics[MosaicRenderer.TRANSFER_STATISTICS_MEAN_INTERVAL_MS_INDEX],
+                mTransferStatistics[MosaicRenderer.TRANSFER_STATISTICS_MAX_INTERVAL_MS_INDEX],
+                mTransferStatistics[MosaicRenderer.TRANSFER_STATISTICS_MEAN_TRANSFER_MS_INDEX],
+                mTransferStatistics[MosaicRenderer.TRANSFER_STATISTICS_MAX_TRANSFER_MS_INDEX],
+                mTransferStatistics[MosaicRenderer.TRANSFER_STATISTICS_LATENCY_FRAMES_INDEX]));
+        mMosaicFrameProcessor.getStatistics(mAlignmentStatistics);
+        Log.v(TAG, String.format("frames aligned: %.0f, dropped %.0f, in %.1f ms (at most %.1f)",
+                mAlignmentStatistics[MosaicFrameProcessor.STATISTICS_FRAME_COUNT_INDEX],
+                mAlignmentStatistics[MosaicFrameProcessor.STATISTICS_DROPPED_COUNT_INDEX],
+                mAlignmentStatistics[MosaicFrameProcessor.STATISTICS_MEAN_LATENCY_MS_INDEX],
+                mAlignmentStatistics[MosaicFrameProcessor.STATISTICS_MAX_LATENCY_MS_INDEX]));
+
         if (!aborted && !mThreadRunning) {
             mRotateDialog.showWaitingDialog(mPreparePreviewString);
             // Hide shutter button, shutter icon, etc when waiting for
@@ -560,12 +595,21 @@ public class PanoramaModule implements CameraModule,
                     if (jpeg != null && jpeg.isValid) {
                         Bitmap bitmap = null;
                         bitmap = BitmapFactory.decodeByteArray(jpeg.data, 0, jpeg.data.length);
+                        // Hand the sweep over to the render queue, which saves
+                        // the low-res mosaic as a placeholder right away.
+                        String title = PanoUtil.createName(mActivity.getResources().getString(
+                                R.string.pano_file_name_format), mTimeTaken);
+                        mRenderJob = mRenderQueue.submit(mMosaicFrameProcessor.detachMosaic(),
+                                title, mTimeTaken, getCaptureOrientation(),
+                                jpeg.data, jpeg.width, jpeg.height);
                         mMainHandler.sendMessage(mMainHandler.obtainMessage(
                                 MSG_LOW_RES_FINAL_MOSAIC_READY, bitmap));
                     } else {
                         mMainHandler.sendMessage(mMainHandler.obtainMessage(
                                 MSG_RESET_TO_PREVIEW));
                     }
+                    // The sweep is over, including the one that was resumed.
+                    Mosaic.deleteSession(getSweepSessionFile().getPath());
                 }
             });
         }
@@ -691,6 +735,11 @@ public class PanoramaModule implements CameraModule,
         switch (mCaptureState) {
             case CAPTURE_STATE_VIEWFINDER:
                 if(mActivity.getStorageSpace() <= Storage.LOW_STORAGE_THRESHOLD) return;
+                if (mRenderQueue.isFull()) {
+                    new RotateTextToast(mActivity, R.string.pano_dialog_waiting_previous,
+                            mOrientationCompensation).show();
+                    return;
+                }
                 mSoundPlayer.play(SoundClips.START_VIDEO_RECORDING);
                 startCapture();
                 break;
@@ -704,36 +753,6 @@ public class PanoramaModule implements CameraModule,
     public void onShutterButtonFocus(boolean pressed) {
     }
 
-    public void reportProgress() {
-        mSavingProgressBar.reset();
-        mSavingProgressBar.setRightIncreasing(true);
-        Thread t = new Thread() {
-            @Override
-            public void run() {
-                while (mThreadRunning) {
-                    final int progress = mMosaicFrameProcessor.reportProgress(
-                            true, mCancelComputation);
-
-                    try {
-                        synchronized (mWaitObject) {
-                            mWaitObject.wait(50);
-                        }
-                    } catch (InterruptedException e) {
-                        throw new RuntimeException("Panorama reportProgress failed", e);
-                    }
-                    // Update the progress bar
-                    mActivity.runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            mSavingProgressBar.setProgress(progress);
-                        }
-                    });
-                }
-            }
-        };
-        t.start();
-    }
-
     private int getCaptureOrientation() {
         // The panorama image returned from the library is oriented based on the
         // natural orientation of a camera. We need to set an orientation for the image
@@ -752,36 +771,46 @@ public class PanoramaModule implements CameraModule,
         return orientation;
     }
 
-    public void saveHighResMosaic() {
-        runBackgroundThread(new Thread() {
-            @Override
-            public void run() {
-                mPartialWakeLock.acquire();
-                MosaicJpeg jpeg;
-                try {
-                    jpeg = generateFinalMosaic(true);
-                } finally {
-                    mPartialWakeLock.release();
-                }
+    // Called when the low-res mosaic is shown and the sweep is being rendered
+    // in the background. The next sweep can be captured right away.
+    private void onRenderJobSubmitted() {
+        mSavingProgressBar.reset();
+        mSavingProgressBar.setRightIncreasing(true);
+        if (mRenderJob != null) {
+            mActivity.addSecureAlbumItemIfNeeded(false, mRenderJob.getUri());
+            mSavingProgressBar.setProgress(mRenderJob.getProgress());
+        }
+        if (!mMosaicFrameProcessor.isMosaicMemoryAllocated()) {
+            initMosaicFrameProcessorIfNeeded();
+        }
+        mMainHandler.sendEmptyMessageDelayed(MSG_RESET_TO_PREVIEW, REVIEW_DURATION);
+    }
 
-                if (jpeg == null) {  // Cancelled by user.
-                    mMainHandler.sendEmptyMessage(MSG_RESET_TO_PREVIEW);
-                } else if (!jpeg.isValid) {  // Error when generating mosaic.
-                    mMainHandler.sendEmptyMessage(MSG_GENERATE_FINAL_MOSAIC_ERROR);
-                } else {
-                    int orientation = getCaptureOrientation();
-                    Uri uri = savePanorama(jpeg.data, jpeg.width, jpeg.height, orientation);
-                    if (uri != null) {
-                        mActivity.addSecureAlbumItemIfNeeded(false, uri);
-                        Util.broadcastNewPicture(mActivity, uri);
-                    }
-                    mMainHandler.sendMessage(
-                            mMainHandler.obtainMessage(MSG_RESET_TO_PREVIEW));
-                }
+    private final PanoramaRenderQueue.Listener mRenderListener =
+            new PanoramaRenderQueue.Listener() {
+        @Override
+        public void onRenderProgress(PanoramaRenderQueue.Job job, int progress) {
+            if (job == mRenderJob) mSavingProgressBar.setProgress(progress);
+        }
+
+        @Override
+        public void onRenderFinished(PanoramaRenderQueue.Job job, int result) {
+            if (job != mRenderJob) return;
+            mRenderJob = null;
+            // The result is shown only while the sweep is being reviewed.
+            if (!mMainHandler.hasMessages(MSG_RESET_TO_PREVIEW)) return;
+            if (result == Mosaic.MOSAIC_RET_CANCELLED) {  // Cancelled by user.
+                mMainHandler.removeMessages(MSG_RESET_TO_PREVIEW);
+                mMainHandler.sendEmptyMessage(MSG_RESET_TO_PREVIEW);
+            } else if (result != Mosaic.MOSAIC_RET_OK) {
+                // Error when generating mosaic. The low-res placeholder is kept.
+                mMainHandler.removeMessages(MSG_RESET_TO_PREVIEW);
+                mMainHandler.sendEmptyMessage(MSG_GENERATE_FINAL_MOSAIC_ERROR);
+            } else {
+                mSavingProgressBar.setProgress(100);
             }
-        });
-        reportProgress();
-    }
+        }
+    };
 
     private void runBackgroundThread(Thread thread) {
         mThreadRunning = true;
@@ -794,15 +823,13 @@ public class PanoramaModule implements CameraModule,
     }
 
     private void cancelHighResComputation() {
-        mCancelComputation = true;
-        synchronized (mWaitObject) {
-            mWaitObject.notify();
-        }
+        if (mRenderJob != null) mRenderJob.cancel();
     }
 
     // This function will be called upon the first camera frame is available.
     private void reset() {
         mCaptureState = CAPTURE_STATE_VIEWFINDER;
+        mMainHandler.removeMessages(MSG_RESET_TO_PREVIEW);
 
         mActivity.getOrientationManager().unlockOrientation();
         // We should set mGLRootView visible too. However, since there might be no
@@ -862,50 +889,6 @@ public class PanoramaModule implements CameraModule,
         mReviewLayout.setVisibility(View.VISIBLE);
     }
 
-    private Uri savePanorama(byte[] jpegData, int width, int height, int orientation) {
-        if (jpegData != null) {
-            String filename = PanoUtil.createName(
-                    mActivity.getResources().getString(R.string.pano_file_name_format), mTimeTaken);
-            String filepath = Storage.getStorage().writeFile(filename, jpegData);
-
-            // Add Exif tags.
-            try {
-                ExifInterface exif = new ExifInterface(filepath);
-                exif.setAttribute(ExifInterface.TAG_GPS_DATESTAMP,
-                        mGPSDateStampFormat.format(mTimeTaken));
-                exif.setAttribute(ExifInterface.TAG_GPS_TIMESTAMP,
-                        mGPSTimeStampFormat.format(mTimeTaken));
-                exif.setAttribute(ExifInterface.TAG_DATETIME,
-                        mDateTimeStampFormat.format(mTimeTaken));
-                exif.setAttribute(ExifInterface.TAG_ORIENTATION,
-                        getExifOrientation(orientation));
-                exif.saveAttributes();
-            } catch (IOException e) {
-                Log.e(TAG, "Cannot set EXIF for " + filepath, e);
-            }
-
-            int jpegLength = (int) (new File(filepath).length());
-            return Storage.getStorage().addImage(mContentResolver, filename, mTimeTaken,
-                    null, orientation, jpegLength, filepath, width, height);
-        }
-        return null;
-    }
-
-    private static String getExifOrientation(int orientation) {
-        switch (orientation) {
-            case 0:
-                return String.valueOf(ExifInterface.ORIENTATION_NORMAL);
-            case 90:
-                return String.valueOf(ExifInterface.ORIENTATION_ROTATE_90);
-            case 180:
-                return String.valueOf(ExifInterface.ORIENTATION_ROTATE_180);
-            case 270:
-                return String.valueOf(ExifInterface.ORIENTATION_ROTATE_270);
-            default:
-                throw new AssertionError("invalid: " + orientation);
-        }
-    }
-
     private void clearMosaicFrameProcessorIfNeeded() {
         if (!mPaused || mThreadRunning) return;
         // Only clear the processor if it is initialized by this activity
@@ -918,6 +901,7 @@ public class PanoramaModule implements CameraModule,
 
     private void initMosaicFrameProcessorIfNeeded() {
         if (mPaused || mThreadRunning) return;
+        mMosaicFrameProcessor.setSpillFile(new File(mActivity.getCacheDir(), SPILL_FILE_NAME));
         mMosaicFrameProcessor.initialize(
                 mPreviewWidth, mPreviewHeight, getPreviewBufSize());
         mMosaicFrameProcessorInitialized = true;
@@ -931,13 +915,15 @@ public class PanoramaModule implements CameraModule,
     @Override
     public void onPauseAfterSuper() {
         mOrientationEventListener.disable();
+        mRenderQueue.removeListener(mRenderListener);
         if (mCameraDevice == null) {
             // Camera open failed. Nothing should be done here.
             return;
         }
-        // Stop the capturing first.
+        // Stop the capturing first, and keep the sweep for the next capture.
         if (mCaptureState == CAPTURE_STATE_MOSAIC) {
             stopCapture(true);
+            mMosaicFrameProcessor.saveSession(getSweepSessionFile());
             reset();
         }
 
@@ -1005,6 +991,9 @@ public class PanoramaModule implements CameraModule,
     @Override
     public void onResumeAfterSuper() {
         mOrientationEventListener.enable();
+        mRenderQueue.addListener(mRenderListener);
+        // The listener missed the sweep that finished while paused.
+        if (mRenderJob != null && mRenderJob.isDone()) mRenderJob = null;
 
         mCaptureState = CAPTURE_STATE_VIEWFINDER;
 
@@ -1057,43 +1046,52 @@ public class PanoramaModule implements CameraModule,
      *         is an error in generating the final mosaic.
      */
     public MosaicJpeg generateFinalMosaic(boolean highRes) {
-        int mosaicReturnCode = mMosaicFrameProcessor.createMosaic(highRes);
+        int mosaicReturnCode = createFinalMosaic(highRes);
         if (mosaicReturnCode == Mosaic.MOSAIC_RET_CANCELLED) {
             return null;
-        } else if (mosaicReturnCode == Mosaic.MOSAIC_RET_ERROR) {
+        } else if (mosaicReturnCode != Mosaic.MOSAIC_RET_OK) {
             return new MosaicJpeg();
         }
 
-        byte[] imageData = mMosaicFrameProcessor.getFinalMosaicNV21();
-        if (imageData == null) {
-            Log.e(TAG, "getFinalMosaicNV21() returned null.");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            if (!mMosaicFrameProcessor.writeFinalMosaicJpeg(
+                    JPEG_QUALITY, Channels.newChannel(out))) {
+                Log.e(TAG, "writeFinalMosaicJpeg() failed.");
+                return new MosaicJpeg();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Exception in storing final mosaic", e);
             return new MosaicJpeg();
         }
+        return new MosaicJpeg(out.toByteArray(), mMosaicFrameProcessor.getMosaicWidth(),
+                mMosaicFrameProcessor.getMosaicHeight());
+    }
+
+    /**
+     * Create the final mosaic, ready to be compressed with writeFinalMosaicJpeg().
+     *
+     * @param highRes flag to indicate whether we want to get a high-res version.
+     * @return Mosaic.MOSAIC_RET_OK if successful, Mosaic.MOSAIC_RET_CANCELLED if the generation
+     *         process is cancelled, and Mosaic.MOSAIC_RET_ERROR otherwise.
+     */
+    private int createFinalMosaic(boolean highRes) {
+        int mosaicReturnCode = mMosaicFrameProcessor.createMosaic(highRes);
+        if (mosaicReturnCode == Mosaic.MOSAIC_RET_CANCELLED
+                || mosaicReturnCode == Mosaic.MOSAIC_RET_ERROR) {
+            return mosaicReturnCode;
+        }
 
-        int len = imageData.length - 8;
-        int width = (imageData[len + 0] << 24) + ((imageData[len + 1] & 0xFF) << 16)
-                + ((imageData[len + 2] & 0xFF) << 8) + (imageData[len + 3] & 0xFF);
-        int height = (imageData[len + 4] << 24) + ((imageData[len + 5] & 0xFF) << 16)
-                + ((imageData[len + 6] & 0xFF) << 8) + (imageData[len + 7] & 0xFF);
-        Log.v(TAG, "ImLength = " + (len) + ", W = " + width + ", H = " + height);
+        int width = mMosaicFrameProcessor.getMosaicWidth();
+        int height = mMosaicFrameProcessor.getMosaicHeight();
+        Log.v(TAG, "W = " + width + ", H = " + height);
 
         if (width <= 0 || height <= 0) {
             // TODO: pop up an error message indicating that the final result is not generated.
-            Log.e(TAG, "width|height <= 0!!, len = " + (len) + ", W = " + width + ", H = " +
-                    height);
-            return new MosaicJpeg();
-        }
-
-        YuvImage yuvimage = new YuvImage(imageData, ImageFormat.NV21, width, height, null);
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        yuvimage.compressToJpeg(new Rect(0, 0, width, height), 100, out);
-        try {
-            out.close();
-        } catch (Exception e) {
-            Log.e(TAG, "Exception in storing final mosaic", e);
-            return new MosaicJpeg();
+            Log.e(TAG, "width|height <= 0!!, W = " + width + ", H = " + height);
+            return Mosaic.MOSAIC_RET_ERROR;
         }
-        return new MosaicJpeg(out.toByteArray(), width, height);
+        return Mosaic.MOSAIC_RET_OK;
     }
 
     private void startCameraPreview() {
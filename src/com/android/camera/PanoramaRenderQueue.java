@@ -0,0 +1,515 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Properties;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Renders the high-resolution mosaics of finished panorama sweeps in the
+ * background, so that the next sweep can be captured right away.
+ *
+ * A sweep is submitted with its low-resolution mosaic, which is saved at once
+ * as a placeholder for the panorama. The high-resolution mosaic replaces the
+ * placeholder file when it has been rendered.
+ *
+ * The sweeps whose high-resolution frames are in a spill file are also saved
+ * as sessions (see Mosaic.saveSession()) until they are rendered, so that the
+ * sweeps left when the process dies are rendered the next time the queue is
+ * created.
+ */
+public class PanoramaRenderQueue {
+    private static final String TAG = "PanoramaRenderQueue";
+
+    // Number of sweeps rendered at the same time.
+    private static final int MAX_CONCURRENT_RENDERS = 1;
+    // Number of sweeps queued or being rendered. Each of them holds its frames
+    // until it is rendered, so no new sweep should be captured above this.
+    private static final int MAX_QUEUED_SWEEPS = 3;
+    // Listeners are told about every advance of at least this many percent.
+    private static final int PROGRESS_STEP = 1;
+
+    // JPEG quality of the saved panorama.
+    private static final int JPEG_QUALITY = 100;
+
+    private static final String GPS_DATE_FORMAT_STR = "yyyy:MM:dd";
+    private static final String GPS_TIME_FORMAT_STR = "kk/1,mm/1,ss/1";
+    private static final String DATETIME_FORMAT_STR = "yyyy:MM:dd kk:mm:ss";
+
+    // Sessions of the sweeps to render, in the cache directory, each with a
+    // file describing the job.
+    private static final String SESSION_PREFIX = "panorama_render_";
+    private static final String SESSION_SUFFIX = ".session";
+    private static final String JOB_SUFFIX = ".job";
+    private static final String JOB_TITLE = "title";
+    private static final String JOB_TIME_TAKEN = "timeTaken";
+    private static final String JOB_ORIENTATION = "orientation";
+    private static final String JOB_URI = "uri";
+
+    public interface Listener {
+        /**
+         * Called on the main thread while a sweep is being rendered.
+         *
+         * @param progress the progress from 0 to 100.
+         */
+        public void onRenderProgress(Job job, int progress);
+
+        /**
+         * Called on the main thread when a sweep is done.
+         *
+         * @param result Mosaic.MOSAIC_RET_OK if the panorama has been saved to
+         *        job.getUri(); Mosaic.MOSAIC_RET_CANCELLED if the job has been
+         *        cancelled, which deletes the placeholder; Mosaic.MOSAIC_RET_ERROR
+         *        if rendering or saving failed, which keeps the placeholder.
+         */
+        public void onRenderFinished(Job job, int result);
+    }
+
+    /**
+     * A sweep submitted for rendering.
+     */
+    public static class Job {
+        private final Mosaic mMosaic;
+        private final String mTitle;
+        private final long mTimeTaken;
+        private final int mOrientation;
+        private volatile Uri mUri;
+        private volatile int mProgress;
+        private volatile boolean mCancelled;
+        private volatile boolean mDone;
+        private boolean mReleased;
+        // The session of the sweep, or null if it is not saved.
+        private File mSession;
+
+        private Job(Mosaic mosaic, String title, long timeTaken, int orientation) {
+            mMosaic = mosaic;
+            mTitle = title;
+            mTimeTaken = timeTaken;
+            mOrientation = orientation;
+        }
+
+        /**
+         * @return the Uri of the placeholder, which is also the Uri of the
+         *         panorama once it is rendered; null if it could not be saved.
+         */
+        public Uri getUri() {
+            return mUri;
+        }
+
+        public int getProgress() {
+            return mProgress;
+        }
+
+        /**
+         * Stops rendering this sweep. The job still finishes through
+         * Listener.onRenderFinished(), with Mosaic.MOSAIC_RET_CANCELLED unless
+         * it was already done.
+         */
+        public synchronized void cancel() {
+            mCancelled = true;
+            if (!mReleased) mMosaic.cancelCreateMosaic();
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        /**
+         * @return true once the job has finished and its listeners have been
+         *         told, e.g. for a listener that was removed in the meantime.
+         */
+        public boolean isDone() {
+            return mDone;
+        }
+
+        private synchronized void releaseMosaic() {
+            mMosaic.freeMosaicMemory();
+            mMosaic.release();
+            mReleased = true;
+        }
+    }
+
+    private static PanoramaRenderQueue sInstance;
+
+    private final ContentResolver mContentResolver;
+    private final Context mContext;
+    private final Handler mMainHandler;
+    private final PowerManager.WakeLock mWakeLock;
+    private final ExecutorService mExecutor;
+    private final File mSessionDir;
+
+    // Jobs that are queued or being rendered. Guarded by itself.
+    private final ArrayList<Job> mJobs = new ArrayList<Job>();
+    // Accessed on the main thread only.
+    private final ArrayList<Listener> mListeners = new ArrayList<Listener>();
+
+    private final DateFormat mGPSDateStampFormat;
+    private final DateFormat mGPSTimeStampFormat;
+    private final DateFormat mDateTimeStampFormat;
+
+    public static synchronized PanoramaRenderQueue getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PanoramaRenderQueue(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PanoramaRenderQueue(Context context) {
+        mContext = context;
+        mContentResolver = context.getContentResolver();
+        mMainHandler = new Handler(Looper.getMainLooper());
+
+        PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "PanoramaRender");
+        mExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_RENDERS);
+        mSessionDir = context.getCacheDir();
+
+        mGPSDateStampFormat = new SimpleDateFormat(GPS_DATE_FORMAT_STR);
+        mGPSTimeStampFormat = new SimpleDateFormat(GPS_TIME_FORMAT_STR);
+        mDateTimeStampFormat = new SimpleDateFormat(DATETIME_FORMAT_STR);
+        TimeZone tzUTC = TimeZone.getTimeZone("UTC");
+        mGPSDateStampFormat.setTimeZone(tzUTC);
+        mGPSTimeStampFormat.setTimeZone(tzUTC);
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                restoreSessions();
+            }
+        });
+    }
+
+    // Queues the sweeps saved before the process died. Runs on a render
+    // thread; the sessions are only mapped, so this is quick.
+    private void restoreSessions() {
+        File[] files = mSessionDir.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(SESSION_PREFIX)) continue;
+            if (!name.endsWith(JOB_SUFFIX)) {
+                // Delete what a save cut short left: a session without its
+                // job, or a spill file without its session.
+                int end = name.indexOf(SESSION_SUFFIX) + SESSION_SUFFIX.length();
+                if (end < SESSION_SUFFIX.length() || name.endsWith(".tmp")
+                        || !new File(mSessionDir, name.substring(0, end) + JOB_SUFFIX).exists()) {
+                    file.delete();
+                }
+                continue;
+            }
+
+            File session = new File(mSessionDir,
+                    name.substring(0, name.length() - JOB_SUFFIX.length()));
+            Job job = loadJob(file, session);
+            if (job == null) {
+                Log.w(TAG, "Cannot restore " + session);
+                deleteSession(session);
+                continue;
+            }
+            Log.v(TAG, "Restored " + session);
+            synchronized (mJobs) {
+                mJobs.add(job);
+            }
+            execute(job);
+        }
+    }
+
+    private static Job loadJob(File jobFile, File session) {
+        Properties properties = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(jobFile);
+            properties.load(in);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            Util.closeSilently(in);
+        }
+
+        Job job;
+        try {
+            job = new Job(new Mosaic(), properties.getProperty(JOB_TITLE),
+                    Long.parseLong(properties.getProperty(JOB_TIME_TAKEN)),
+                    Integer.parseInt(properties.getProperty(JOB_ORIENTATION)));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        String uri = properties.getProperty(JOB_URI);
+        if (uri != null) job.mUri = Uri.parse(uri);
+        job.mSession = session;
+
+        if (job.mTitle == null || job.mMosaic.loadSession(session.getPath(), 0, 0, false) == 0) {
+            job.releaseMosaic();
+            return null;
+        }
+        return job;
+    }
+
+    // Saves the sweep of the job, whose high-res frames are in a spill file
+    // that is kept rather than copied. Sweeps held in memory are not saved:
+    // writing their frames would take about as long as rendering them.
+    private void saveSession(Job job) {
+        File session = new File(mSessionDir, SESSION_PREFIX + job.mTimeTaken + SESSION_SUFFIX);
+        if (!job.mMosaic.saveSession(session.getPath(), false)) return;
+
+        Properties properties = new Properties();
+        properties.setProperty(JOB_TITLE, job.mTitle);
+        properties.setProperty(JOB_TIME_TAKEN, String.valueOf(job.mTimeTaken));
+        properties.setProperty(JOB_ORIENTATION, String.valueOf(job.mOrientation));
+        if (job.mUri != null) properties.setProperty(JOB_URI, job.mUri.toString());
+
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(session.getPath() + JOB_SUFFIX);
+            properties.store(out, null);
+            job.mSession = session;
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot save " + session, e);
+            deleteSession(session);
+        } finally {
+            Util.closeSilently(out);
+        }
+    }
+
+    private static void deleteSession(File session) {
+        new File(session.getPath() + JOB_SUFFIX).delete();
+        Mosaic.deleteSession(session.getPath());
+    }
+
+    // Must be called on the main thread.
+    public void addListener(Listener listener) {
+        if (!mListeners.contains(listener)) mListeners.add(listener);
+    }
+
+    // Must be called on the main thread.
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * @return true if as many sweeps as allowed are waiting to be rendered, in
+     *         which case no new sweep should be captured.
+     */
+    public boolean isFull() {
+        synchronized (mJobs) {
+            return mJobs.size() >= MAX_QUEUED_SWEEPS;
+        }
+    }
+
+    /**
+     * Saves the low-resolution mosaic of a finished sweep as a placeholder and
+     * queues the sweep for rendering. This does I/O, so call it on a background
+     * thread. The sweep is always accepted; check isFull() before capturing.
+     *
+     * @param mosaic the mosaic holding the frames of the sweep, e.g. from
+     *        MosaicFrameProcessor.detachMosaic(). The queue frees and releases it.
+     * @param title the title of the panorama, which also names its file.
+     * @param timeTaken the capture time in milliseconds since the epoch.
+     * @param orientation the clockwise rotation of the panorama in degrees.
+     * @param lowResJpeg the low-resolution mosaic in JPEG format.
+     */
+    public Job submit(Mosaic mosaic, String title, long timeTaken, int orientation,
+            byte[] lowResJpeg, int lowResWidth, int lowResHeight) {
+        final Job job = new Job(mosaic, title, timeTaken, orientation);
+        job.mUri = Storage.getStorage().addImage(mContentResolver, title, timeTaken,
+                null, orientation, lowResJpeg, lowResWidth, lowResHeight);
+
+        if (mosaic.isSpilled()) saveSession(job);
+
+        synchronized (mJobs) {
+            mJobs.add(job);
+        }
+        execute(job);
+        return job;
+    }
+
+    private void execute(final Job job) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                render(job);
+            }
+        });
+    }
+
+    // Runs on a render thread.
+    private void render(final Job job) {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        int result = Mosaic.MOSAIC_RET_CANCELLED;
+
+        mWakeLock.acquire();
+        try {
+            if (!job.isCancelled()) {
+                job.mMosaic.setProgressListener(new Mosaic.ProgressListener() {
+                    @Override
+                    public void onMosaicProgress(int progress) {
+                        notifyProgress(job, progress);
+                    }
+                }, PROGRESS_STEP);
+                result = createMosaic(job.mMosaic);
+                // The mosaic is compressed while it is written to the file, so
+                // keep the wake lock until it is saved.
+                if (result == Mosaic.MOSAIC_RET_OK) {
+                    Uri uri = savePanorama(job);
+                    if (uri != null) {
+                        job.mUri = uri;
+                    } else {
+                        result = Mosaic.MOSAIC_RET_ERROR;
+                    }
+                }
+            }
+        } finally {
+            job.releaseMosaic();
+            if (job.mSession != null) deleteSession(job.mSession);
+            mWakeLock.release();
+        }
+
+        if (result == Mosaic.MOSAIC_RET_CANCELLED && job.mUri != null) {
+            Storage.getStorage().deleteImage(mContentResolver, job.mUri);
+            job.mUri = null;
+        } else if (result == Mosaic.MOSAIC_RET_OK) {
+            Util.broadcastNewPicture(mContext, job.mUri);
+        }
+
+        final int finalResult = result;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mJobs) {
+                    mJobs.remove(job);
+                }
+                job.mDone = true;
+                for (Listener listener : mListeners) {
+                    listener.onRenderFinished(job, finalResult);
+                }
+            }
+        });
+    }
+
+    // Called on the render thread by the native code as the mosaic advances.
+    private void notifyProgress(final Job job, final int progress) {
+        job.mProgress = progress;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Listener listener : mListeners) {
+                    listener.onRenderProgress(job, progress);
+                }
+            }
+        });
+    }
+
+    // Returns Mosaic.MOSAIC_RET_OK if the high-res mosaic is ready to be
+    // compressed, Mosaic.MOSAIC_RET_CANCELLED or Mosaic.MOSAIC_RET_ERROR.
+    private static int createMosaic(Mosaic mosaic) {
+        int mosaicReturnCode = mosaic.createMosaic(true);
+        if (mosaicReturnCode == Mosaic.MOSAIC_RET_CANCELLED
+                || mosaicReturnCode == Mosaic.MOSAIC_RET_ERROR) {
+            return mosaicReturnCode;
+        }
+
+        int width = mosaic.getMosaicWidth();
+        int height = mosaic.getMosaicHeight();
+        Log.v(TAG, "W = " + width + ", H = " + height);
+
+        if (width <= 0 || height <= 0) {
+            Log.e(TAG, "width|height <= 0!!, W = " + width + ", H = " + height);
+            return Mosaic.MOSAIC_RET_ERROR;
+        }
+        return Mosaic.MOSAIC_RET_OK;
+    }
+
+    // Compresses the final mosaic straight into the panorama file, replacing
+    // the placeholder.
+    private Uri savePanorama(Job job) {
+        final Mosaic mosaic = job.mMosaic;
+        int width = mosaic.getMosaicWidth();
+        int height = mosaic.getMosaicHeight();
+        String filepath = Storage.getStorage().writeFile(job.mTitle,
+                new Storage.ChannelWriter() {
+                    @Override
+                    public boolean writeTo(WritableByteChannel channel) throws IOException {
+                        return mosaic.writeFinalMosaicJpeg(JPEG_QUALITY, channel);
+                    }
+                });
+        if (filepath == null) {
+            Log.e(TAG, "Cannot write the final mosaic");
+            return null;
+        }
+
+        // Add Exif tags.
+        try {
+            ExifInterface exif = new ExifInterface(filepath);
+            exif.setAttribute(ExifInterface.TAG_GPS_DATESTAMP,
+                    mGPSDateStampFormat.format(job.mTimeTaken));
+            exif.setAttribute(ExifInterface.TAG_GPS_TIMESTAMP,
+                    mGPSTimeStampFormat.format(job.mTimeTaken));
+            exif.setAttribute(ExifInterface.TAG_DATETIME,
+                    mDateTimeStampFormat.format(job.mTimeTaken));
+            exif.setAttribute(ExifInterface.TAG_ORIENTATION,
+                    getExifOrientation(job.mOrientation));
+            exif.saveAttributes();
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot set EXIF for " + filepath, e);
+        }
+
+        int jpegLength = (int) (new File(filepath).length());
+        if (job.mUri != null && Storage.getStorage().updateImage(
+                mContentResolver, job.mUri, jpegLength, width, height)) {
+            return job.mUri;
+        }
+        return Storage.getStorage().addImage(mContentResolver, job.mTitle, job.mTimeTaken,
+                null, job.mOrientation, jpegLength, filepath, width, height);
+    }
+
+    private static String getExifOrientation(int orientation) {
+        switch (orientation) {
+            case 0:
+                return String.valueOf(ExifInterface.ORIENTATION_NORMAL);
+            case 90:
+                return String.valueOf(ExifInterface.ORIENTATION_ROTATE_90);
+            case 180:
+                return String.valueOf(ExifInterface.ORIENTATION_ROTATE_180);
+            case 270:
+                return String.valueOf(ExifInterface.ORIENTATION_ROTATE_270);
+            default:
+                throw new AssertionError("invalid: " + orientation);
+        }
+    }
+}
@@ -38,7 +38,6 @@ import android.location.Location;
 import android.media.CameraProfile;
 import android.net.Uri;
 import android.os.Bundle;
-import android.os.ConditionVariable;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
@@ -62,6 +61,7 @@ import android.widget.ImageView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.android.camera.CameraCommandQueue.Command;
 import com.android.camera.CameraManager.CameraProxy;
 import com.android.camera.ui.AbstractSettingPopup;
 import com.android.camera.ui.FaceView;
@@ -85,6 +85,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Formatter;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 public class PhotoModule
     implements CameraModule,
@@ -112,7 +113,6 @@ public class PhotoModule
     private static final int SHOW_TAP_TO_FOCUS_TOAST = 6;
     private static final int SWITCH_CAMERA = 7;
     private static final int SWITCH_CAMERA_START_ANIMATION = 8;
-    private static final int CAMERA_OPEN_DONE = 9;
     private static final int START_PREVIEW_DONE = 10;
     private static final int OPEN_CAMERA_FAIL = 11;
     private static final int CAMERA_DISABLED = 12;
@@ -320,47 +320,159 @@ public class PhotoModule
     private boolean mQuickCapture;
     protected int mCaptureMode;
 
-    CameraStartUpThread mCameraStartUpThread;
-    ConditionVariable mStartPreviewPrerequisiteReady = new ConditionVariable();
+    // The start-up of the camera and the preview, or null once the preview
+    // is started. mLastStartup is kept to report the phases of the last one.
+    volatile StartupOrchestrator mStartup;
+    volatile StartupOrchestrator mLastStartup;
+    // Set while the steps of a start-up cancelled by onPause are running;
+    // the camera is released once they have ended.
+    private boolean mStartupStopping;
 
     private PreviewGestures mGestures;
 
-    // The purpose is not to block the main thread in onCreate and onResume.
-    private class CameraStartUpThread extends Thread {
-        private volatile boolean mCancelled;
-
-        public void cancel() {
-            mCancelled = true;
-        }
-
+    // Runs the UI steps of the start-up, right away on the UI thread.
+    private final Executor mUiExecutor = new Executor() {
         @Override
-        public void run() {
-            try {
-                // We need to check whether the activity is paused before long
-                // operations to ensure that onPause() can be done ASAP.
-                if (mCancelled) return;
-                mCameraDevice = Util.openCamera(mActivity, mCameraId);
-                mParameters = mCameraDevice.getParameters();
-                // Wait until all the initialization needed by startPreview are
-                // done.
-                mStartPreviewPrerequisiteReady.block();
+        public void execute(Runnable step) {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                step.run();
+            } else {
+                mHandler.post(step);
+            }
+        }
+    };
 
+    // The purpose is not to block the main thread in onCreate and onResume:
+    // the camera is opened and set up on background threads, while the UI
+    // is set up. The steps that follow start as soon as the ones they need
+    // are done. prerequisites are the steps, added to startup before, that
+    // setting the parameters needs, and uiPrerequisites the ones that the UI
+    // needs.
+    private void addCameraSteps(final StartupOrchestrator startup,
+            String[] prerequisites, String[] uiPrerequisites) {
+        startup.setListener(new StartupOrchestrator.Listener() {
+            @Override
+            public void onStepFailed(String step, final Throwable failure) {
+                // Fail as loudly as the start-up thread used to.
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        throw new RuntimeException("Camera start-up failed", failure);
+                    }
+                });
+            }
+        });
+        final int[] statistics = new int[CameraParameterStore.STATISTICS_SIZE];
+        startup.addStep("openCamera", false, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    CameraManager.instance().getParameterStatistics(statistics);
+                    mCameraDevice = Util.openCamera(mActivity, mCameraId);
+                    mParameters = mCameraDevice.getParameters();
+                } catch (CameraHardwareException e) {
+                    startup.cancel();
+                    mHandler.sendEmptyMessage(OPEN_CAMERA_FAIL);
+                } catch (CameraDisabledException e) {
+                    startup.cancel();
+                    mHandler.sendEmptyMessage(CAMERA_DISABLED);
+                }
+            }
+        });
+        startup.addStep("initializeCapabilities", false, new Runnable() {
+            @Override
+            public void run() {
                 initializeCapabilities();
                 if (mFocusManager == null) initializeFocusManager();
-                if (mCancelled) return;
+            }
+        }, concat(prerequisites, "openCamera"));
+        // Inflating the preferences resets the invalid values stored, which
+        // setCameraParameters() reads, so the parameters are set after.
+        startup.addStep("loadPreferences", false, new Runnable() {
+            @Override
+            public void run() {
+                loadCameraPreferences();
+            }
+        }, "initializeCapabilities");
+        startup.addStep("setParameters", false, new Runnable() {
+            @Override
+            public void run() {
                 setCameraParameters(UPDATE_PARAM_ALL);
-                mHandler.sendEmptyMessage(CAMERA_OPEN_DONE);
-                if (mCancelled) return;
-                startPreview();
-                mHandler.sendEmptyMessage(START_PREVIEW_DONE);
+                logParameterReads("Camera opened", statistics);
+            }
+        }, "initializeCapabilities", "loadPreferences");
+        startup.addStep("startPreview", false, new Runnable() {
+            @Override
+            public void run() {
+                if (ApiHelper.HAS_SURFACE_TEXTURE) {
+                    ((CameraScreenNail) mActivity.mCameraScreenNail)
+                            .setOneTimeFirstFrameListener(new Runnable() {
+                        @Override
+                        public void run() {
+                            onFirstPreviewFrame(startup);
+                        }
+                    });
+                }
+                Command<Void> started = startPreview();
+                // Until the camera started the preview, for the phase to
+                // cover it. A failure reaches the camera error of the
+                // activity through CameraManager.
+                try {
+                    CameraManager.waitFor(started);
+                } catch (RuntimeException e) {
+                    startup.cancel();
+                    return;
+                }
+                if (!ApiHelper.HAS_SURFACE_TEXTURE) onFirstPreviewFrame(startup);
                 mOnResumeTime = SystemClock.uptimeMillis();
                 mHandler.sendEmptyMessage(CHECK_DISPLAY_ROTATION);
-            } catch (CameraHardwareException e) {
-                mHandler.sendEmptyMessage(OPEN_CAMERA_FAIL);
-            } catch (CameraDisabledException e) {
-                mHandler.sendEmptyMessage(CAMERA_DISABLED);
             }
-        }
+        }, "setParameters");
+        startup.addMilestone(CameraActivity.FIRST_PREVIEW_FRAME, "startPreview");
+        // The renderers do not need the camera.
+        startup.addStep("createRenderers", true, new Runnable() {
+            @Override
+            public void run() {
+                createRenderers();
+            }
+        }, uiPrerequisites);
+        startup.addStep("initializeAfterCameraOpen", true, new Runnable() {
+            @Override
+            public void run() {
+                initializeAfterCameraOpen();
+            }
+        }, "setParameters", "createRenderers");
+        startup.addStep("previewStarted", true, new Runnable() {
+            @Override
+            public void run() {
+                mLastStartup = mStartup;
+                mStartup = null;
+                onPreviewStarted();
+            }
+        }, "startPreview", "initializeAfterCameraOpen");
+    }
+
+    private StartupOrchestrator newStartup() {
+        return new StartupOrchestrator(mUiExecutor, StartupOrchestrator.BACKGROUND);
+    }
+
+    private static String[] concat(String[] steps, String step) {
+        String[] all = new String[steps.length + 1];
+        System.arraycopy(steps, 0, all, 0, steps.length);
+        all[steps.length] = step;
+        return all;
+    }
+
+    // Called on the thread of the first preview frame.
+    private void onFirstPreviewFrame(final StartupOrchestrator startup) {
+        startup.reached(CameraActivity.FIRST_PREVIEW_FRAME);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Log.v(TAG, "Camera start-up:\n"
+                        + startup.summarize(CameraActivity.FIRST_PREVIEW_FRAME));
+            }
+        });
     }
 
     /**
@@ -422,25 +534,14 @@ public class PhotoModule
                     break;
                 }
 
-                case CAMERA_OPEN_DONE: {
-                    initializeAfterCameraOpen();
-                    break;
-                }
-
                 case START_PREVIEW_DONE: {
-                    mCameraStartUpThread = null;
-                    setCameraState(IDLE);
-                    if (!ApiHelper.HAS_SURFACE_TEXTURE) {
-                        // This may happen if surfaceCreated has arrived.
-                        mCameraDevice.setPreviewDisplayAsync(mCameraSurfaceHolder);
-                    }
-                    startFaceDetection();
-                    locationFirstRun();
+                    onPreviewStarted();
                     break;
                 }
 
                 case OPEN_CAMERA_FAIL: {
-                    mCameraStartUpThread = null;
+                    mLastStartup = mStartup;
+                    mStartup = null;
                     mOpenCameraFail = true;
                     Util.showErrorAndFinish(mActivity,
                             R.string.cannot_connect_camera);
@@ -448,7 +549,8 @@ public class PhotoModule
                 }
 
                 case CAMERA_DISABLED: {
-                    mCameraStartUpThread = null;
+                    mLastStartup = mStartup;
+                    mStartup = null;
                     mCameraDisabled = true;
                     Util.showErrorAndFinish(mActivity,
                             R.string.camera_disabled);
@@ -465,7 +567,7 @@ public class PhotoModule
     }
 
     @Override
-    public void init(CameraActivity activity, View parent, boolean reuseNail) {
+    public void init(CameraActivity activity, View parent, final boolean reuseNail) {
         mActivity = activity;
         mRootView = parent;
         mPreferences = new ComboPreferences(mActivity);
@@ -474,36 +576,51 @@ public class PhotoModule
 
         mContentResolver = mActivity.getContentResolver();
 
-        // To reduce startup time, open the camera and start the preview in
-        // another thread.
-        mCameraStartUpThread = new CameraStartUpThread();
-        mCameraStartUpThread.start();
-
-        mActivity.getLayoutInflater().inflate(R.layout.photo_module, (ViewGroup) mRootView);
-
-        // Surface texture is from camera screen nail and startPreview needs it.
-        // This must be done before startPreview.
-        mIsImageCaptureIntent = isImageCaptureIntent();
-        if (reuseNail) {
-            mActivity.reuseCameraScreenNail(!mIsImageCaptureIntent);
-        } else {
-            mActivity.createCameraScreenNail(!mIsImageCaptureIntent);
-        }
-
-        mPreferences.setLocalId(mActivity, mCameraId);
-        CameraSettings.upgradeLocalPreferences(mPreferences.getLocal());
-        mActivity.setStoragePath(mPreferences);
-        // we need to reset exposure for the preview
-        resetExposureCompensation();
-        // Starting the preview needs preferences, camera screen nail, and
-        // focus area indicator.
-        mStartPreviewPrerequisiteReady.open();
-
-        initializeControlByIntent();
-        mQuickCapture = mActivity.getIntent().getBooleanExtra(EXTRA_QUICK_CAPTURE, false);
-        initializeMiscControls();
-        mLocationManager = new LocationManager(mActivity, this);
-        initOnScreenIndicator();
+        // The UI steps run before start() returns, while the camera opens.
+        final StartupOrchestrator startup = newStartup();
+        startup.addStep("inflateLayout", true, new Runnable() {
+            @Override
+            public void run() {
+                mActivity.getLayoutInflater().inflate(
+                        R.layout.photo_module, (ViewGroup) mRootView);
+
+                // Surface texture is from camera screen nail and startPreview
+                // needs it. This must be done before startPreview.
+                mIsImageCaptureIntent = isImageCaptureIntent();
+                if (reuseNail) {
+                    mActivity.reuseCameraScreenNail(!mIsImageCaptureIntent);
+                } else {
+                    mActivity.createCameraScreenNail(!mIsImageCaptureIntent);
+                }
+            }
+        });
+        startup.addStep("localPreferences", true, new Runnable() {
+            @Override
+            public void run() {
+                mPreferences.setLocalId(mActivity, mCameraId);
+                CameraSettings.upgradeLocalPreferences(mPreferences.getLocal());
+                mActivity.setStoragePath(mPreferences);
+                // we need to reset exposure for the preview
+                resetExposureCompensation();
+            }
+        });
+        startup.addStep("initializeControls", true, new Runnable() {
+            @Override
+            public void run() {
+                initializeControlByIntent();
+                mQuickCapture = mActivity.getIntent().getBooleanExtra(
+                        EXTRA_QUICK_CAPTURE, false);
+                initializeMiscControls();
+                mLocationManager = new LocationManager(mActivity, PhotoModule.this);
+                initOnScreenIndicator();
+            }
+        }, "inflateLayout");
+        // Setting the parameters and starting the preview needs the
+        // preferences, camera screen nail, and focus area indicator.
+        addCameraSteps(startup, new String[] {"inflateLayout", "localPreferences"},
+                new String[] {"initializeControls"});
+        mStartup = startup;
+        startup.start();
     }
 
     // Prompt the user to pick to record location for the very first run of
@@ -579,7 +696,7 @@ public class PhotoModule
         mRenderOverlay.requestLayout();
     }
 
-    private void initializeAfterCameraOpen() {
+    private void createRenderers() {
         if (mPieRenderer == null) {
             mPieRenderer = new PieRenderer(mActivity);
             mPhotoControl = new PhotoController(mActivity, this, mPieRenderer);
@@ -593,14 +710,18 @@ public class PhotoModule
             // this will handle gesture disambiguation and dispatching
             mGestures = new PreviewGestures(mActivity, this, mZoomRenderer, mPieRenderer);
         }
+    }
+
+    // The preferences are loaded by the start-up.
+    private void initializeAfterCameraOpen() {
         initializeRenderOverlay();
-        initializePhotoControl();
+        mPhotoControl.initialize(mPreferenceGroup);
+        updateSceneModeUI();
 
         // These depend on camera parameters.
         setPreviewFrameLayoutAspectRatio();
         mFocusManager.setPreviewSize(mPreviewFrameLayout.getWidth(),
                 mPreviewFrameLayout.getHeight());
-        loadCameraPreferences();
 
         mPhotoControl.restoreNoHandsShutter();
 
@@ -724,9 +845,10 @@ public class PhotoModule
             // Set zoom parameters asynchronously
             mParameters.setZoom(mZoomValue);
             mCameraDevice.setParametersAsync(mParameters);
+            // Show the zoom asked for rather than wait for the camera to
+            // report the zoom it took.
             if (mZoomRenderer != null) {
-                Parameters p = mCameraDevice.getParameters();
-                mZoomRenderer.setZoomValue(mZoomRatios.get(p.getZoom()));
+                mZoomRenderer.setZoomValue(mZoomRatios.get(mZoomValue));
             }
         }else{
             mZoomSetByKey = false;
@@ -1483,7 +1605,7 @@ public class PhotoModule
         Log.v(TAG, "surfaceCreated: " + holder);
         mCameraSurfaceHolder = holder;
         // Do not access the camera if camera start up thread is not finished.
-        if (mCameraDevice == null || mCameraStartUpThread != null) return;
+        if (mCameraDevice == null || mStartup != null) return;
 
         mCameraDevice.setPreviewDisplayAsync(holder);
         // This happens when onConfigurationChanged arrives, surface has been
@@ -1920,12 +2042,7 @@ public class PhotoModule
         mJpegPictureCallbackTime = 0;
         mZoomValue = 0;
 
-        // Start the preview if it is not started.
-        if (mCameraState == PREVIEW_STOPPED && mCameraStartUpThread == null) {
-            resetExposureCompensation();
-            mCameraStartUpThread = new CameraStartUpThread();
-            mCameraStartUpThread.start();
-        }
+        startPreviewIfStopped();
 
         // If first time initialization is not finished, put it in the
         // message queue.
@@ -1939,34 +2056,42 @@ public class PhotoModule
         PopupManager.getInstance(mActivity).notifyShowPopup(null);
     }
 
-    void waitCameraStartUpThread() {
-        try {
-            if (mCameraStartUpThread != null) {
-                mCameraStartUpThread.cancel();
-                mCameraStartUpThread.join();
-                mCameraStartUpThread = null;
-                setCameraState(IDLE);
-            }
-        } catch (InterruptedException e) {
-            // ignore
+    // Start the preview if it is not started, unless the camera of a
+    // cancelled start-up is still to be released, which starts it after.
+    private void startPreviewIfStopped() {
+        if (mCameraState == PREVIEW_STOPPED && mStartup == null && !mStartupStopping) {
+            resetExposureCompensation();
+            mStartup = newStartup();
+            addCameraSteps(mStartup, new String[0], new String[0]);
+            mStartup.start();
         }
     }
 
-    @Override
-    public void onPauseBeforeSuper() {
-        mPaused = true;
-    }
-
-    @Override
-    public void onPauseAfterSuper() {
-        // Wait the camera start up thread to finish.
-        waitCameraStartUpThread();
-
-        // Disable no-hands mode, and kill any pending voice listeners
-        if (mPhotoControl != null) {
-            mPhotoControl.resetNoHandsShutter(true);
+    // Cancels the start-up without waiting on the UI thread for its running
+    // steps, which may be opening the camera or waiting for its commands,
+    // and releases the camera once they have ended.
+    private void stopCameraStartUp() {
+        if (mStartup == null) {
+            releaseCamera();
+            return;
         }
+        mLastStartup = mStartup;
+        mStartup = null;
+        mStartupStopping = true;
+        mLastStartup.cancel(new Runnable() {
+            @Override
+            public void run() {
+                mStartupStopping = false;
+                // A step may have started the preview.
+                setCameraState(IDLE);
+                releaseCamera();
+                // Resumed while the steps were running.
+                if (!mPaused) startPreviewIfStopped();
+            }
+        });
+    }
 
+    private void releaseCamera() {
         // When camera is started from secure lock screen for the first time
         // after screen on, the activity gets onCreate->onResume->onPause->onResume.
         // To reduce the latency, keep the camera for a short time so it does
@@ -1988,6 +2113,31 @@ public class PhotoModule
             ((CameraScreenNail) mActivity.mCameraScreenNail).releaseSurfaceTexture();
             mSurfaceTexture = null;
         }
+    }
+
+    private void onPreviewStarted() {
+        setCameraState(IDLE);
+        if (!ApiHelper.HAS_SURFACE_TEXTURE) {
+            // This may happen if surfaceCreated has arrived.
+            mCameraDevice.setPreviewDisplayAsync(mCameraSurfaceHolder);
+        }
+        startFaceDetection();
+        locationFirstRun();
+    }
+
+    @Override
+    public void onPauseBeforeSuper() {
+        mPaused = true;
+    }
+
+    @Override
+    public void onPauseAfterSuper() {
+        // Disable no-hands mode, and kill any pending voice listeners
+        if (mPhotoControl != null) {
+            mPhotoControl.resetNoHandsShutter(true);
+        }
+
+        stopCameraStartUp();
         resetScreenOn();
 
         // Load the power shutter
@@ -2018,7 +2168,6 @@ public class PhotoModule
         mHandler.removeMessages(CHECK_DISPLAY_ROTATION);
         mHandler.removeMessages(SWITCH_CAMERA);
         mHandler.removeMessages(SWITCH_CAMERA_START_ANIMATION);
-        mHandler.removeMessages(CAMERA_OPEN_DONE);
         mHandler.removeMessages(START_PREVIEW_DONE);
         mHandler.removeMessages(OPEN_CAMERA_FAIL);
         mHandler.removeMessages(CAMERA_DISABLED);
@@ -2359,9 +2508,10 @@ public class PhotoModule
         startFaceDetection();
     }
 
-    // This can be called by UI Thread or CameraStartUpThread. So this should
-    // not modify the views.
-    private void startPreview() {
+    // This can be called by UI Thread or a start-up thread. So this should
+    // not modify the views. Returns the command that starts the preview on
+    // the camera thread.
+    private Command<Void> startPreview() {
         mCameraDevice.setErrorCallback(mErrorCallback);
 
         // ICS camera frameworks has a bug. Face detection state is not cleared
@@ -2414,17 +2564,14 @@ public class PhotoModule
         }
 
         Log.v(TAG, "startPreview");
-        mCameraDevice.startPreviewAsync();
+        Command<Void> started = mCameraDevice.startPreviewAsync();
 
         mFocusManager.onPreviewStarted();
 
-        // Set camera mode
-        CameraSettings.setVideoMode(mParameters, false);
-        mCameraDevice.setParameters(mParameters);
-
         if (mSnapshotOnIdle && (mBurstShotsDone > 0 && !mHDRShotInProgress)) {
             mHandler.post(mDoSnapRunnable);
         }
+        return started;
     }
 
     private void stopPreview() {
@@ -2532,7 +2679,7 @@ public class PhotoModule
             // Zoom related settings will be changed for different preview
             // sizes, so set and read the parameters to get latest values
             mCameraDevice.setParameters(mParameters);
-            mParameters = mCameraDevice.getParameters();
+            mParameters = mCameraDevice.refreshParameters();
             Log.v(TAG, "Preview Size changed. Restart Preview");
             mRestartPreview = true;
         }
@@ -2566,7 +2713,7 @@ public class PhotoModule
                 // white balance, and focus mode. Here we read back the
                 // parameters, so we can know those settings.
                 mCameraDevice.setParameters(mParameters);
-                mParameters = mCameraDevice.getParameters();
+                mParameters = mCameraDevice.refreshParameters();
             }
         } else {
             mSceneMode = mParameters.getSceneMode();
@@ -2810,6 +2957,21 @@ public class PhotoModule
         }
     }
 
+    // Log the parameter reads made since the statistics were taken, to see
+    // the waits for the camera thread that the mirrored parameters save.
+    private static void logParameterReads(String event, int[] before) {
+        int[] after = new int[CameraParameterStore.STATISTICS_SIZE];
+        CameraManager.instance().getParameterStatistics(after);
+        int mirrored = CameraParameterStore.STATISTICS_MIRRORED_COUNT_INDEX;
+        int copyUs = CameraParameterStore.STATISTICS_MIRROR_COPY_US_INDEX;
+        int read = CameraParameterStore.STATISTICS_GET_COUNT_INDEX;
+        int waitUs = CameraParameterStore.STATISTICS_GET_WAIT_US_INDEX;
+        Log.v(TAG, event + ": " + (after[mirrored] - before[mirrored])
+                + " parameters mirrored in " + (after[copyUs] - before[copyUs]) + " us, "
+                + (after[read] - before[read]) + " read from the camera in "
+                + (after[waitUs] - before[waitUs]) + " us");
+    }
+
     private void switchCamera() {
         if (mPaused) return;
 
@@ -2818,6 +2980,9 @@ public class PhotoModule
         mPendingSwitchCameraId = -1;
         mPhotoControl.setCameraId(mCameraId);
 
+        int[] statistics = new int[CameraParameterStore.STATISTICS_SIZE];
+        CameraManager.instance().getParameterStatistics(statistics);
+
         // from onPause
         closeCamera();
         collapseCameraControls();
@@ -2851,6 +3016,7 @@ public class PhotoModule
         initializeZoom();
         updateOnScreenIndicators();
         showTapToFocusToastIfNeeded();
+        logParameterReads("Camera switched", statistics);
 
         if (ApiHelper.HAS_SURFACE_TEXTURE) {
             // Start switch camera animation. Post a message because
@@ -0,0 +1,382 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the steps of a module start-up as a dependency graph: each step runs
+ * once the steps it depends on are done, on the UI thread or on a background
+ * thread, so that opening the camera, loading the preferences and inflating
+ * the UI overlap instead of running one after the other.
+ *
+ * A milestone is a step that something outside the graph reaches, e.g. the
+ * first preview frame. The time each step became ready, started and ended
+ * is kept, to report the phases of the start-up and the critical path to a
+ * milestone.
+ *
+ * A step that throws stops its dependants and is reported to the Listener.
+ * cancel() stops the steps that did not start yet without waiting for the
+ * running ones, which may check isCancelled() to end early; what needs them
+ * ended, e.g. releasing the camera, is passed to cancel(Runnable).
+ */
+public class StartupOrchestrator {
+    /** Called on the thread of the step that threw, before the step ends. */
+    public interface Listener {
+        public void onStepFailed(String step, Throwable failure);
+    }
+
+    /** When a step ran, in nanoseconds since start(). */
+    public static class Phase {
+        public final String name;
+        public final boolean onUiThread;
+        public final boolean failed;
+        // When the last of its dependencies was done.
+        public final long readyNs;
+        public final long startNs;
+        public final long endNs;
+
+        Phase(String name, boolean onUiThread, boolean failed,
+                long readyNs, long startNs, long endNs) {
+            this.name = name;
+            this.onUiThread = onUiThread;
+            this.failed = failed;
+            this.readyNs = readyNs;
+            this.startNs = startNs;
+            this.endNs = endNs;
+        }
+
+        public long getDurationNs() {
+            return endNs - startNs;
+        }
+    }
+
+    /**
+     * A pool for the background steps of all the start-ups, so that its
+     * threads are reused when the camera is switched or the activity resumed.
+     */
+    public static final ExecutorService BACKGROUND = Executors.newCachedThreadPool(
+            new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable,
+                            "CameraStartUp-" + mCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private static final int WAITING = 0;
+    private static final int RUNNING = 1;
+    private static final int DONE = 2;
+    private static final int FAILED = 3;
+
+    private class Step implements Runnable {
+        final String name;
+        // Null for a milestone.
+        final Runnable body;
+        final boolean onUiThread;
+        final ArrayList<Step> dependants = new ArrayList<Step>();
+        int pendingDependencies;
+        int state = WAITING;
+        long readyNs;
+        long startNs;
+        long endNs;
+
+        Step(String name, Runnable body, boolean onUiThread) {
+            this.name = name;
+            this.body = body;
+            this.onUiThread = onUiThread;
+        }
+
+        @Override
+        public void run() {
+            runStep(this);
+        }
+    }
+
+    private final Executor mUiExecutor;
+    private final Executor mBackgroundExecutor;
+    private final LinkedHashMap<String, Step> mSteps = new LinkedHashMap<String, Step>();
+    // The dependencies of each step, by name, in the order they were added.
+    private final LinkedHashMap<String, String[]> mDependencies =
+            new LinkedHashMap<String, String[]>();
+    private Listener mListener;
+    private long mStartTime;
+    private boolean mStarted;
+    private boolean mCancelled;
+    // Number of steps running.
+    private int mRunning;
+    // Run on the UI executor once the running steps of a cancelled start-up
+    // have ended.
+    private Runnable mWhenStopped;
+
+    /**
+     * @param uiExecutor runs the UI steps; it may run them right away when
+     *        called on the UI thread.
+     * @param backgroundExecutor runs the other steps, e.g. BACKGROUND.
+     */
+    public StartupOrchestrator(Executor uiExecutor, Executor backgroundExecutor) {
+        mUiExecutor = uiExecutor;
+        mBackgroundExecutor = backgroundExecutor;
+    }
+
+    public synchronized void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Add a step that runs once the dependencies are done. They must have
+     * been added before, which keeps the graph free of cycles.
+     */
+    public void addStep(String name, boolean onUiThread, Runnable body,
+            String... dependencies) {
+        add(new Step(name, body, onUiThread), dependencies);
+    }
+
+    /**
+     * Add a milestone, which is done when reached() is called. The time it
+     * takes is counted from when the dependencies are done.
+     */
+    public void addMilestone(String name, String... dependencies) {
+        add(new Step(name, null, false), dependencies);
+    }
+
+    private synchronized void add(Step step, String[] dependencies) {
+        if (mStarted) throw new IllegalStateException("already started");
+        if (mSteps.containsKey(step.name)) {
+            throw new IllegalArgumentException("duplicate step " + step.name);
+        }
+        for (String dependency : dependencies) {
+            Step before = mSteps.get(dependency);
+            if (before == null) {
+                throw new IllegalArgumentException(step.name + " depends on unknown step "
+                        + dependency);
+            }
+            before.dependants.add(step);
+        }
+        step.pendingDependencies = dependencies.length;
+        mSteps.put(step.name, step);
+        mDependencies.put(step.name, dependencies);
+    }
+
+    /**
+     * Start the steps without dependencies. The UI ones run before this
+     * returns if the UI executor runs them right away.
+     */
+    public void start() {
+        ArrayList<Step> ready = new ArrayList<Step>();
+        synchronized (this) {
+            if (mStarted) throw new IllegalStateException("already started");
+            mStarted = true;
+            mStartTime = System.nanoTime();
+            for (Step step : mSteps.values()) {
+                if (step.pendingDependencies == 0 && step.body != null) ready.add(step);
+            }
+        }
+        dispatch(ready);
+    }
+
+    /** The milestone was reached. Later calls are ignored. */
+    public void reached(String milestone) {
+        ArrayList<Step> ready;
+        synchronized (this) {
+            Step step = mSteps.get(milestone);
+            if (step == null || step.body != null) {
+                throw new IllegalArgumentException(milestone + " is not a milestone");
+            }
+            if (!mStarted || mCancelled || step.state != WAITING) return;
+            long now = System.nanoTime() - mStartTime;
+            // Reached before its dependencies were done: it took no time.
+            if (step.pendingDependencies > 0) step.readyNs = now;
+            step.startNs = step.readyNs;
+            step.endNs = now;
+            ready = onDone(step, DONE);
+        }
+        dispatch(ready);
+    }
+
+    /** Stop the steps that did not start yet. */
+    public synchronized void cancel() {
+        mCancelled = true;
+    }
+
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Cancel without waiting for the running steps. whenStopped runs once
+     * they have ended: before this returns if none is running, otherwise on
+     * the UI executor after the last one.
+     *
+     * @return true if no step was running, and whenStopped has run.
+     */
+    public boolean cancel(Runnable whenStopped) {
+        synchronized (this) {
+            mCancelled = true;
+            if (mRunning > 0) {
+                mWhenStopped = whenStopped;
+                return false;
+            }
+        }
+        whenStopped.run();
+        return true;
+    }
+
+    public synchronized boolean isDone(String name) {
+        Step step = mSteps.get(name);
+        return step != null && step.state == DONE;
+    }
+
+    /** Return the steps that ran, in the order they started. */
+    public synchronized List<Phase> getPhases() {
+        ArrayList<Phase> phases = new ArrayList<Phase>();
+        for (Step step : mSteps.values()) {
+            if (step.state == DONE || step.state == FAILED) {
+                phases.add(new Phase(step.name, step.onUiThread,
+                        step.state == FAILED, step.readyNs, step.startNs, step.endNs));
+            }
+        }
+        Collections.sort(phases, new Comparator<Phase>() {
+            @Override
+            public int compare(Phase a, Phase b) {
+                return a.startNs < b.startNs ? -1 : (a.startNs > b.startNs ? 1 : 0);
+            }
+        });
+        return phases;
+    }
+
+    /**
+     * Return the steps that delayed target, first to last: target, the
+     * dependency of target that was done last, and so on. Empty if target
+     * is not done.
+     */
+    public synchronized List<String> getCriticalPath(String target) {
+        ArrayList<String> path = new ArrayList<String>();
+        Step step = mSteps.get(target);
+        if (step == null || step.state != DONE) return path;
+        while (step != null) {
+            path.add(0, step.name);
+            Step last = null;
+            for (String dependency : mDependencies.get(step.name)) {
+                Step before = mSteps.get(dependency);
+                if (last == null || before.endNs > last.endNs) last = before;
+            }
+            step = last;
+        }
+        return path;
+    }
+
+    /**
+     * Describe the phases, one line each, and the critical path to target,
+     * in milliseconds since start().
+     */
+    public String summarize(String target) {
+        StringBuilder builder = new StringBuilder();
+        for (Phase phase : getPhases()) {
+            builder.append(String.format(Locale.US,
+                    "%s: ready %.1f, ran %.1f to %.1f ms on the %s thread%s\n",
+                    phase.name, phase.readyNs / 1e6, phase.startNs / 1e6, phase.endNs / 1e6,
+                    phase.onUiThread ? "UI" : "background", phase.failed ? ", failed" : ""));
+        }
+        List<String> path = getCriticalPath(target);
+        if (path.isEmpty()) {
+            builder.append(target).append(" not reached\n");
+        } else {
+            builder.append("critical path to ").append(target).append(":");
+            for (String name : path) builder.append(' ').append(name);
+            builder.append('\n');
+        }
+        return builder.toString();
+    }
+
+    // Starts the background steps first, since the UI ones may run right away.
+    private void dispatch(List<Step> ready) {
+        for (Step step : ready) {
+            if (!step.onUiThread) mBackgroundExecutor.execute(step);
+        }
+        for (Step step : ready) {
+            if (step.onUiThread) mUiExecutor.execute(step);
+        }
+    }
+
+    private void runStep(Step step) {
+        synchronized (this) {
+            if (mCancelled) return;
+            step.state = RUNNING;
+            step.startNs = System.nanoTime() - mStartTime;
+            mRunning++;
+        }
+        Throwable failure = null;
+        try {
+            step.body.run();
+        } catch (RuntimeException e) {
+            failure = e;
+        } catch (Error e) {
+            failure = e;
+        }
+        long endNs = System.nanoTime() - mStartTime;
+        if (failure != null) {
+            Listener listener;
+            synchronized (this) {
+                listener = mListener;
+            }
+            // Before the step ends, so that whenStopped runs after it.
+            if (listener != null) listener.onStepFailed(step.name, failure);
+        }
+        ArrayList<Step> ready;
+        Runnable whenStopped = null;
+        synchronized (this) {
+            step.endNs = endNs;
+            mRunning--;
+            ready = onDone(step, failure == null ? DONE : FAILED);
+            if (mRunning == 0) {
+                whenStopped = mWhenStopped;
+                mWhenStopped = null;
+            }
+        }
+        dispatch(ready);
+        if (whenStopped != null) mUiExecutor.execute(whenStopped);
+    }
+
+    // Marks step as done or failed and returns the steps that became ready.
+    private ArrayList<Step> onDone(Step step, int state) {
+        step.state = state;
+        ArrayList<Step> ready = new ArrayList<Step>();
+        if (state != DONE) return ready;
+        for (Step dependant : step.dependants) {
+            if (--dependant.pendingDependencies == 0 && dependant.state == WAITING) {
+                dependant.readyNs = step.endNs;
+                if (!mCancelled && dependant.body != null) ready.add(dependant);
+            }
+        }
+        return ready;
+    }
+}
@@ -33,6 +33,8 @@ import com.android.gallery3d.common.ApiHelper;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
 
 public class Storage {
     private static final String TAG = "CameraStorage";
@@ -42,6 +44,17 @@ public class Storage {
     public static final long UNKNOWN_SIZE = -3L;
     public static final long LOW_STORAGE_THRESHOLD= 50000000;
 
+    /**
+     * Produces the content of a file that is written by streaming rather than
+     * from a byte array, e.g. an image too large to hold in memory as a whole.
+     */
+    public interface ChannelWriter {
+        /**
+         * @return true if the whole content was written.
+         */
+        boolean writeTo(WritableByteChannel channel) throws IOException;
+    }
+
     private String mRoot = Environment.getExternalStorageDirectory().toString();
     private static Storage sStorage;
 
@@ -85,6 +98,35 @@ public class Storage {
         return path;
     }
 
+    // Returns the path of the written file, or null if writing failed.
+    public String writeFile(String title, ChannelWriter writer) {
+        String path = generateFilepath(title);
+        String tmpPath = path + ".tmp";
+        FileOutputStream out = null;
+        boolean written = false;
+        try {
+            // Write to a temporary file and rename it to the final name. This
+            // avoids other apps reading incomplete data.
+            out = new FileOutputStream(tmpPath);
+            written = writer.writeTo(out.getChannel());
+            out.close();
+            out = null;
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to write data", e);
+        } finally {
+            try {
+                if (out != null) out.close();
+            } catch (Exception e) {
+            }
+        }
+
+        if (!written || !new File(tmpPath).renameTo(new File(path))) {
+            new File(tmpPath).delete();
+            return null;
+        }
+        return path;
+    }
+
     // Save the image and add it to media store.
     public Uri addImage(ContentResolver resolver, String title,
             long date, Location location, int orientation, byte[] jpeg,
@@ -217,6 +259,23 @@ public class Storage {
         return true;
     }
 
+    // Updates the size of an image whose file has been replaced, e.g. by
+    // writeFile(). Returns true if the update is successful.
+    public boolean updateImage(ContentResolver resolver, Uri uri, int jpegLength,
+            int width, int height) {
+        ContentValues values = new ContentValues(3);
+        values.put(ImageColumns.SIZE, jpegLength);
+
+        setImageSize(values, width, height);
+
+        try {
+            return resolver.update(uri, values, null, null) > 0;
+        } catch (Throwable th) {
+            Log.e(TAG, "Failed to update image" + th);
+            return false;
+        }
+    }
+
     public void deleteImage(ContentResolver resolver, Uri uri) {
         try {
             resolver.delete(uri, null, null);
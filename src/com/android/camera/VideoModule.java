@@ -35,6 +35,7 @@ import android.graphics.Bitmap;
 import android.hardware.Camera.CameraInfo;
 import android.hardware.Camera.Parameters;
 import android.hardware.Camera.PictureCallback;
+import android.hardware.Camera.PreviewCallback;
 import android.hardware.Camera.Size;
 import android.location.Location;
 import android.media.CamcorderProfile;
@@ -44,6 +45,7 @@ import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.Message;
 import android.os.ParcelFileDescriptor;
 import android.os.SystemClock;
@@ -67,6 +69,7 @@ import android.widget.LinearLayout;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.android.camera.CameraCommandQueue.Command;
 import com.android.camera.ui.AbstractSettingPopup;
 import com.android.camera.ui.PieRenderer;
 import com.android.camera.ui.PopupManager;
@@ -86,6 +89,7 @@ import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 public class VideoModule implements CameraModule,
     CameraPreference.OnPreferenceChangedListener,
@@ -122,6 +126,11 @@ public class VideoModule implements CameraModule,
             "android.intent.extra.quickCapture";
 
     private static final int MIN_THUMB_SIZE = 64;
+
+    // Stabilize the preview in software on cameras without video-stabilization.
+    // Off: MediaRecorder records the frames from the camera as they are, so
+    // the recorded video would not be framed as the stabilized preview.
+    private static final boolean SOFTWARE_STABILIZATION = false;
     // module fields
     private CameraActivity mActivity;
     private View mRootView;
@@ -202,6 +211,12 @@ public class VideoModule implements CameraModule,
     private int mDesiredPreviewHeight;
 
     boolean mPreviewing = false; // True if preview is started.
+
+    // Software stabilization of the preview; see SOFTWARE_STABILIZATION.
+    private boolean mSoftwareStabilization;
+    private VideoStabilizer mStabilizer;
+    private final float[] mStabilizerTransform = new float[VideoStabilizer.TRANSFORM_SIZE];
+    private final float[] mStabilizerMatrix = new float[16];
     // The display rotation in degrees. This is only valid when mPreviewing is
     // true.
     private int mDisplayRotation;
@@ -231,6 +246,28 @@ public class VideoModule implements CameraModule,
 
     private final Handler mHandler = new MainHandler();
 
+    // The start-up of the camera and the preview, or null once it is done.
+    // mLastStartup is kept to report the phases of the last one.
+    volatile StartupOrchestrator mStartup;
+    volatile StartupOrchestrator mLastStartup;
+    // Set while the steps of a start-up cancelled by onPause are running;
+    // the camera is released once they have ended.
+    private boolean mStartupStopping;
+    // True once initializeAfterPreview() ran.
+    private boolean mAfterPreviewInitialized;
+
+    // Runs the UI steps of the start-up, right away on the UI thread.
+    private final Executor mUiExecutor = new Executor() {
+        @Override
+        public void execute(Runnable step) {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                step.run();
+            } else {
+                mHandler.post(step);
+            }
+        }
+    };
+
     // The degrees of the device rotated clockwise from its natural orientation.
     private int mOrientation = OrientationEventListener.ORIENTATION_UNKNOWN;
 
@@ -244,13 +281,6 @@ public class VideoModule implements CameraModule,
     private int mVideoWidth;
     private int mVideoHeight;
 
-    protected class CameraOpenThread extends Thread {
-        @Override
-        public void run() {
-            openCamera();
-        }
-    }
-
     private void openCamera() {
         try {
             mActivity.mCameraDevice = Util.openCamera(mActivity, mCameraId);
@@ -421,7 +451,7 @@ public class VideoModule implements CameraModule,
     }
 
     @Override
-    public void init(CameraActivity activity, View root, boolean reuseScreenNail) {
+    public void init(CameraActivity activity, View root, final boolean reuseScreenNail) {
         mActivity = activity;
         mRootView = root;
         mPreferences = new ComboPreferences(mActivity);
@@ -443,88 +473,163 @@ public class VideoModule implements CameraModule,
         // we need to reset exposure for the preview
         resetExposureCompensation();
 
-        /*
-         * To reduce startup time, we start the preview in another thread.
-         * We make sure the preview is started at the end of onCreate.
-         */
-        CameraOpenThread cameraOpenThread = new CameraOpenThread();
-        cameraOpenThread.start();
-
         mContentResolver = mActivity.getContentResolver();
+        mPendingSwitchCameraId = -1;
 
-        mActivity.getLayoutInflater().inflate(R.layout.video_module, (ViewGroup) mRootView);
-
-        // Surface texture is from camera screen nail and startPreview needs it.
-        // This must be done before startPreview.
-        mIsVideoCaptureIntent = isVideoCaptureIntent();
-        if (reuseScreenNail) {
-            mActivity.reuseCameraScreenNail(!mIsVideoCaptureIntent);
-        } else {
-            mActivity.createCameraScreenNail(!mIsVideoCaptureIntent);
-        }
-        initializeSurfaceView();
-
-        // Make sure camera device is opened.
-        try {
-            cameraOpenThread.join();
-            if (mActivity.mOpenCameraFail) {
-                Util.showErrorAndFinish(mActivity, R.string.cannot_connect_camera);
-                return;
-            } else if (mActivity.mCameraDisabled) {
-                Util.showErrorAndFinish(mActivity, R.string.camera_disabled);
-                return;
+        // To reduce startup time, the camera is opened and the preview
+        // started on background threads while the UI is set up; the UI steps
+        // run before start() returns, and nothing waits for the camera.
+        final StartupOrchestrator startup = new StartupOrchestrator(
+                mUiExecutor, StartupOrchestrator.BACKGROUND);
+        startup.setListener(new StartupOrchestrator.Listener() {
+            @Override
+            public void onStepFailed(String step, final Throwable failure) {
+                // Fail as loudly as the start-up threads used to.
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        throw new RuntimeException("Camera start-up failed", failure);
+                    }
+                });
             }
-        } catch (InterruptedException ex) {
-            // ignore
-        }
-
-        Thread startPreviewThread = new Thread(new Runnable() {
+        });
+        startup.addStep("openCamera", false, new Runnable() {
             @Override
             public void run() {
-                readVideoPreferences();
-                startPreview();
+                openCamera();
+                if (mActivity.mOpenCameraFail || mActivity.mCameraDisabled) {
+                    startup.cancel();
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            Util.showErrorAndFinish(mActivity, mActivity.mOpenCameraFail
+                                    ? R.string.cannot_connect_camera
+                                    : R.string.camera_disabled);
+                        }
+                    });
+                }
             }
         });
-        startPreviewThread.start();
-
-        initializeControlByIntent();
-        initializeOverlay();
-        initializeMiscControls();
-
-        mQuickCapture = mActivity.getIntent().getBooleanExtra(EXTRA_QUICK_CAPTURE, false);
-        mLocationManager = new LocationManager(mActivity, null);
-
-        setOrientationIndicator(0, false);
-        setDisplayOrientation();
-
-        // Make sure preview is started.
-        try {
-            startPreviewThread.join();
-            if (mActivity.mOpenCameraFail) {
-                Util.showErrorAndFinish(mActivity, R.string.cannot_connect_camera);
-                return;
-            } else if (mActivity.mCameraDisabled) {
-                Util.showErrorAndFinish(mActivity, R.string.camera_disabled);
-                return;
+        startup.addStep("inflateLayout", true, new Runnable() {
+            @Override
+            public void run() {
+                mActivity.getLayoutInflater().inflate(
+                        R.layout.video_module, (ViewGroup) mRootView);
+
+                // Surface texture is from camera screen nail and startPreview
+                // needs it. This must be done before startPreview.
+                mIsVideoCaptureIntent = isVideoCaptureIntent();
+                if (reuseScreenNail) {
+                    mActivity.reuseCameraScreenNail(!mIsVideoCaptureIntent);
+                } else {
+                    mActivity.createCameraScreenNail(!mIsVideoCaptureIntent);
+                }
+                initializeSurfaceView();
             }
-        } catch (InterruptedException ex) {
-            // ignore
-        }
-
+        });
+        startup.addStep("initializeControls", true, new Runnable() {
+            @Override
+            public void run() {
+                initializeControlByIntent();
+                initializeOverlay();
+                initializeMiscControls();
+                // Until the preview is started.
+                mShutterButton.setEnabled(false);
+
+                mQuickCapture = mActivity.getIntent().getBooleanExtra(
+                        EXTRA_QUICK_CAPTURE, false);
+                mLocationManager = new LocationManager(mActivity, null);
+
+                setOrientationIndicator(0, false);
+                setDisplayOrientation();
+            }
+        }, "inflateLayout");
+        // Inflating the preferences resets the invalid values stored, which
+        // readVideoPreferences() reads, so the preview is started after.
+        startup.addStep("loadPreferences", false, new Runnable() {
+            @Override
+            public void run() {
+                loadCameraPreferences(mActivity.mCameraDevice.getParameters());
+            }
+        }, "openCamera");
+        startup.addStep("startPreview", false, new Runnable() {
+            @Override
+            public void run() {
+                readVideoPreferences();
+                if (ApiHelper.HAS_SURFACE_TEXTURE) {
+                    ((CameraScreenNail) mActivity.mCameraScreenNail)
+                            .setOneTimeFirstFrameListener(new Runnable() {
+                        @Override
+                        public void run() {
+                            onFirstPreviewFrame(startup);
+                        }
+                    });
+                }
+                Command<Void> started = startPreview();
+                // Until the camera started the preview, for the phase to
+                // cover it. A failure reaches the camera error of the
+                // activity through CameraManager.
+                if (started != null) {
+                    try {
+                        CameraManager.waitFor(started);
+                    } catch (RuntimeException e) {
+                        startup.cancel();
+                        return;
+                    }
+                }
+                if (!ApiHelper.HAS_SURFACE_TEXTURE) onFirstPreviewFrame(startup);
+            }
+        }, "loadPreferences", "inflateLayout");
+        startup.addMilestone(CameraActivity.FIRST_PREVIEW_FRAME, "startPreview");
+        startup.addStep("initializeAfterPreview", true, new Runnable() {
+            @Override
+            public void run() {
+                mLastStartup = mStartup;
+                mStartup = null;
+                initializeAfterPreview();
+                // What onResume() left for the start-up to do.
+                initializeZoom();
+                if (!effectsActive()) mShutterButton.setEnabled(true);
+                mOnResumeTime = SystemClock.uptimeMillis();
+                mHandler.sendEmptyMessageDelayed(CHECK_DISPLAY_ROTATION, 100);
+            }
+        }, "startPreview", "initializeControls");
+        mStartup = startup;
+        startup.start();
+    }
+
+    // The part of the start-up that needs the preview started.
+    private void initializeAfterPreview() {
+        mAfterPreviewInitialized = true;
         showTimeLapseUI(mCaptureTimeLapse);
         initializeVideoSnapshot();
         resizeForPreviewAspectRatio();
 
-        initializeVideoControl();
-        mPendingSwitchCameraId = -1;
+        initializeVideoControl(mPreferenceGroup);
         updateOnScreenIndicators();
     }
 
+    // Called on the thread of the first preview frame.
+    private void onFirstPreviewFrame(final StartupOrchestrator startup) {
+        startup.reached(CameraActivity.FIRST_PREVIEW_FRAME);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Log.v(TAG, "Video start-up:\n"
+                        + startup.summarize(CameraActivity.FIRST_PREVIEW_FRAME));
+            }
+        });
+    }
+
     @Override
     public void onStop() {}
 
     private void loadCameraPreferences() {
-        CameraSettings settings = new CameraSettings(mActivity, mParameters,
+        loadCameraPreferences(mParameters);
+    }
+
+    private void loadCameraPreferences(Parameters parameters) {
+        CameraSettings settings = new CameraSettings(mActivity, parameters,
                 mCameraId, CameraHolder.instance().getCameraInfo());
         // Remove the video quality preference setting when the quality is given in the intent.
         mPreferenceGroup = filterPreferenceScreenByIntent(
@@ -560,7 +665,11 @@ public class VideoModule implements CameraModule,
 
     private void initializeVideoControl() {
         loadCameraPreferences();
-        mVideoControl.initialize(mPreferenceGroup);
+        initializeVideoControl(mPreferenceGroup);
+    }
+
+    private void initializeVideoControl(PreferenceGroup group) {
+        mVideoControl.initialize(group);
         if (effectsActive()) {
             mVideoControl.overrideSettings(
                     CameraSettings.KEY_VIDEO_QUALITY,
@@ -702,7 +811,7 @@ public class VideoModule implements CameraModule,
 
     @Override
     public void onShutterButtonClick() {
-        if (collapseCameraControls() || mSwitchingCamera) return;
+        if (collapseCameraControls() || mSwitchingCamera || mStartup != null) return;
 
         boolean stop = mMediaRecorderRecording;
 
@@ -871,27 +980,15 @@ public class VideoModule implements CameraModule,
         showVideoSnapshotUI(false);
 
 
-        if (!mPreviewing) {
-            if (resetEffect()) {
-                mBgLearningMessageFrame.setVisibility(View.GONE);
-            }
-            resetExposureCompensation();
-            openCamera();
-            if (mActivity.mOpenCameraFail) {
-                Util.showErrorAndFinish(mActivity,
-                        R.string.cannot_connect_camera);
-                return;
-            } else if (mActivity.mCameraDisabled) {
-                Util.showErrorAndFinish(mActivity, R.string.camera_disabled);
-                return;
-            }
-            readVideoPreferences();
-            resizeForPreviewAspectRatio();
-            startPreview();
+        // The start-up of init() starts the preview on its own, and so does
+        // a cancelled one once its camera is released.
+        boolean startingUp = mStartup != null || mStartupStopping;
+        if (!mPreviewing && !startingUp) {
+            if (!openCameraAndStartPreview()) return;
         }
 
         // Initializing it here after the preview is started.
-        initializeZoom();
+        if (!startingUp) initializeZoom();
 
         keepScreenOnAwhile();
 
@@ -910,6 +1007,33 @@ public class VideoModule implements CameraModule,
         mVideoNamer = new VideoNamer();
     }
 
+    // Returns false if the camera could not be opened.
+    private boolean openCameraAndStartPreview() {
+        if (resetEffect()) {
+            mBgLearningMessageFrame.setVisibility(View.GONE);
+        }
+        resetExposureCompensation();
+        openCamera();
+        if (mActivity.mOpenCameraFail) {
+            Util.showErrorAndFinish(mActivity,
+                    R.string.cannot_connect_camera);
+            return false;
+        } else if (mActivity.mCameraDisabled) {
+            Util.showErrorAndFinish(mActivity, R.string.camera_disabled);
+            return false;
+        }
+        readVideoPreferences();
+        resizeForPreviewAspectRatio();
+        startPreview();
+        // The start-up was paused before it got there.
+        if (!mAfterPreviewInitialized) {
+            loadCameraPreferences();
+            initializeAfterPreview();
+            if (!effectsActive()) mShutterButton.setEnabled(true);
+        }
+        return true;
+    }
+
     private void setDisplayOrientation() {
         mDisplayRotation = Util.getDisplayRotation(mActivity);
         if (ApiHelper.HAS_SURFACE_TEXTURE) {
@@ -923,7 +1047,9 @@ public class VideoModule implements CameraModule,
         mActivity.getGLRoot().requestLayoutContentPane();
     }
 
-    private void startPreview() {
+    // Returns the command that starts the preview on the camera thread, or
+    // null if the effects recorder starts it.
+    private Command<Void> startPreview() {
         Log.v(TAG, "startPreview");
 
         mActivity.mCameraDevice.setErrorCallback(mErrorCallback);
@@ -939,6 +1065,7 @@ public class VideoModule implements CameraModule,
         mActivity.mCameraDevice.setDisplayOrientation(mCameraDisplayOrientation);
         setCameraParameters();
 
+        Command<Void> started = null;
         try {
             if (!effectsActive()) {
                 if (ApiHelper.HAS_SURFACE_TEXTURE) {
@@ -947,7 +1074,8 @@ public class VideoModule implements CameraModule,
                 } else {
                     mActivity.mCameraDevice.setPreviewDisplayAsync(mPreviewSurfaceView.getHolder());
                 }
-                mActivity.mCameraDevice.startPreviewAsync();
+                started = mActivity.mCameraDevice.startPreviewAsync();
+                if (mSoftwareStabilization) startSoftwareStabilization();
             } else {
                 initializeEffectsPreview();
                 mEffectsRecorder.startPreview();
@@ -958,13 +1086,58 @@ public class VideoModule implements CameraModule,
         }
 
         mPreviewing = true;
+        return started;
     }
 
     private void stopPreview() {
+        stopSoftwareStabilization();
         mActivity.mCameraDevice.stopPreview();
         mPreviewing = false;
     }
 
+    private void startSoftwareStabilization() {
+        if (mStabilizer == null) mStabilizer = new VideoStabilizer();
+        try {
+            mStabilizer.initialize(mDesiredPreviewWidth, mDesiredPreviewHeight,
+                    VideoStabilizer.DEFAULT_SMOOTHING, VideoStabilizer.DEFAULT_CROP_RATIO,
+                    VideoStabilizer.DEFAULT_BUDGET_MS);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Cannot stabilize " + mDesiredPreviewWidth + "x"
+                    + mDesiredPreviewHeight + " preview", e);
+            stopSoftwareStabilization();
+            return;
+        }
+        // Two buffers, so that the camera fills one while the other is read.
+        int size = mDesiredPreviewWidth * mDesiredPreviewHeight * 3 / 2;
+        mActivity.mCameraDevice.addCallbackBuffer(new byte[size]);
+        mActivity.mCameraDevice.addCallbackBuffer(new byte[size]);
+        mActivity.mCameraDevice.setPreviewCallbackWithBuffer(mStabilizerCallback);
+    }
+
+    private void stopSoftwareStabilization() {
+        if (mStabilizer == null) return;
+        if (mActivity.mCameraDevice != null) {
+            // The callback must be gone before the stabilizer is released.
+            CameraManager.waitFor(mActivity.mCameraDevice.setPreviewCallbackWithBuffer(null));
+        }
+        mStabilizer.release();
+        mStabilizer = null;
+        ((CameraScreenNail) mActivity.mCameraScreenNail).setStabilizationMatrix(null);
+    }
+
+    private final PreviewCallback mStabilizerCallback = new PreviewCallback() {
+        @Override
+        public void onPreviewFrame(byte[] data, android.hardware.Camera camera) {
+            if (mStabilizer == null) return;
+            mStabilizer.addFrame(data, mStabilizerTransform);
+            VideoStabilizer.getTextureMatrix(mStabilizerTransform, mDesiredPreviewWidth,
+                    mDesiredPreviewHeight, mStabilizerMatrix);
+            ((CameraScreenNail) mActivity.mCameraScreenNail)
+                    .setStabilizationMatrix(mStabilizerMatrix);
+            camera.addCallbackBuffer(data);
+        }
+    };
+
     // Closing the effects out. Will shut down the effects graph.
     private void closeEffects() {
         Log.v(TAG, "Closing effects");
@@ -1008,6 +1181,7 @@ public class VideoModule implements CameraModule,
             mEffectsRecorder.disconnectCamera();
         }
         if (closeEffectsAlso) closeEffects();
+        stopSoftwareStabilization();
         mActivity.mCameraDevice.setZoomChangeListener(null);
         mActivity.mCameraDevice.setErrorCallback(null);
         CameraHolder.instance().release();
@@ -1033,20 +1207,8 @@ public class VideoModule implements CameraModule,
     public void onPauseBeforeSuper() {
         mPaused = true;
 
-        if (mMediaRecorderRecording) {
-            // Camera will be released in onStopVideoRecording.
-            onStopVideoRecording();
-        } else {
-            closeCamera();
-            if (!effectsActive()) releaseMediaRecorder();
-        }
-        if (effectsActive()) {
-            // If the effects are active, make sure we tell the graph that the
-            // surfacetexture is not valid anymore. Disconnect the graph from
-            // the display. This should be done before releasing the surface
-            // texture.
-            mEffectsRecorder.disconnectDisplay();
-        } else {
+        stopCameraStartUp();
+        if (!effectsActive()) {
             // Close the file descriptor and clear the video namer only if the
             // effects are not active. If effects are active, we need to wait
             // till we get the callback from the Effects that the graph is done
@@ -1058,8 +1220,6 @@ public class VideoModule implements CameraModule,
             clearVideoNamer();
         }
 
-        releasePreviewResources();
-
         if (mReceiver != null) {
             mActivity.unregisterReceiver(mReceiver);
             mReceiver = null;
@@ -1077,6 +1237,51 @@ public class VideoModule implements CameraModule,
         // released as soon as possible.
     }
 
+    // Cancels the start-up without waiting on the UI thread for its running
+    // steps, which may be opening the camera or waiting for its commands,
+    // and releases the camera once they have ended.
+    private void stopCameraStartUp() {
+        if (mStartup == null) {
+            releaseCamera();
+            return;
+        }
+        mLastStartup = mStartup;
+        mStartup = null;
+        mStartupStopping = true;
+        mLastStartup.cancel(new Runnable() {
+            @Override
+            public void run() {
+                mStartupStopping = false;
+                releaseCamera();
+                // Resumed while the steps were running.
+                if (!mPaused && openCameraAndStartPreview()) {
+                    initializeZoom();
+                    mOnResumeTime = SystemClock.uptimeMillis();
+                    mHandler.sendEmptyMessageDelayed(CHECK_DISPLAY_ROTATION, 100);
+                }
+            }
+        });
+    }
+
+    private void releaseCamera() {
+        if (mMediaRecorderRecording) {
+            // Camera will be released in onStopVideoRecording.
+            onStopVideoRecording();
+        } else {
+            closeCamera();
+            if (!effectsActive()) releaseMediaRecorder();
+        }
+        if (effectsActive()) {
+            // If the effects are active, make sure we tell the graph that the
+            // surfacetexture is not valid anymore. Disconnect the graph from
+            // the display. This should be done before releasing the surface
+            // texture.
+            mEffectsRecorder.disconnectDisplay();
+        }
+
+        releasePreviewResources();
+    }
+
     @Override
     public void onPauseAfterSuper() {
     }
@@ -1104,8 +1309,8 @@ public class VideoModule implements CameraModule,
 
     @Override
     public boolean onKeyDown(int keyCode, KeyEvent event) {
-        // Do not handle any key if the activity is paused.
-        if (mPaused) {
+        // Do not handle any key if the activity is paused or starting up.
+        if (mPaused || mStartup != null) {
             return true;
         }
 
@@ -1662,7 +1867,7 @@ public class VideoModule implements CameraModule,
         // zoom. To reduce latency when setting the parameters during zoom, we
         // update mParameters here once.
         if (ApiHelper.HAS_ZOOM_WHEN_RECORDING) {
-            mParameters = mActivity.mCameraDevice.getParameters();
+            mParameters = mActivity.mCameraDevice.refreshParameters();
         }
 
         enableCameraControls(false);
@@ -1831,7 +2036,7 @@ public class VideoModule implements CameraModule,
         }
         // Update the parameters here because the parameters might have been altered
         // by MediaRecorder.
-        if (!mPaused) mParameters = mActivity.mCameraDevice.getParameters();
+        if (!mPaused) mParameters = mActivity.mCameraDevice.refreshParameters();
         return fail;
     }
 
@@ -2020,6 +2225,8 @@ public class VideoModule implements CameraModule,
         if ("true".equals(vstabSupported)) {
             mParameters.set("video-stabilization", "true");
         }
+        mSoftwareStabilization = SOFTWARE_STABILIZATION && ApiHelper.HAS_SURFACE_TEXTURE
+                && !"true".equals(vstabSupported) && !effectsActive();
 
         // Set picture size.
         // The logic here is different from the logic in still-mode camera.
@@ -2063,7 +2270,7 @@ public class VideoModule implements CameraModule,
 
         mActivity.mCameraDevice.setParameters(mParameters);
         // Keep preview size up to date.
-        mParameters = mActivity.mCameraDevice.getParameters();
+        mParameters = mActivity.mCameraDevice.refreshParameters();
 
         updateCameraScreenNailSize(mDesiredPreviewWidth, mDesiredPreviewHeight);
     }
@@ -2322,6 +2529,12 @@ public class VideoModule implements CameraModule,
         initializeSurfaceView();
         initializeMiscControls();
         showTimeLapseUI(mCaptureTimeLapse);
+        // The start-up does the rest once the preview is started.
+        if (mStartup != null) {
+            mShutterButton.setEnabled(false);
+            onFullScreenChanged(mActivity.isInCameraApp());
+            return;
+        }
         initializeVideoSnapshot();
         resizeForPreviewAspectRatio();
 
@@ -2352,7 +2565,7 @@ public class VideoModule implements CameraModule,
         synchronized (mPreferences) {
             // If mCameraDevice is not ready then we can set the parameter in
             // startPreview().
-            if (mActivity.mCameraDevice == null) return;
+            if (mActivity.mCameraDevice == null || mStartup != null) return;
 
             boolean recordLocation = RecordLocationPreference.get(
                     mPreferences, mContentResolver);
@@ -2518,7 +2731,7 @@ public class VideoModule implements CameraModule,
 
     @Override
     public boolean dispatchTouchEvent(MotionEvent m) {
-        if (mSwitchingCamera) return true;
+        if (mSwitchingCamera || mStartup != null) return true;
         if (mPopup == null && mGestures != null && mRenderOverlay != null) {
             return mGestures.dispatchTouch(m);
         } else if (mPopup != null) {
@@ -2543,9 +2756,10 @@ public class VideoModule implements CameraModule,
             // Set zoom parameters asynchronously
             mParameters.setZoom(mZoomValue);
             mActivity.mCameraDevice.setParametersAsync(mParameters);
+            // Show the zoom asked for rather than wait for the camera to
+            // report the zoom it took.
             if (mZoomRenderer != null) {
-                Parameters p = mActivity.mCameraDevice.getParameters();
-                mZoomRenderer.setZoomValue(mZoomRatios.get(p.getZoom()));
+                mZoomRenderer.setZoomValue(mZoomRatios.get(mZoomValue));
             }
         }else{
             mZoomSetByKey = false;
@@ -2899,7 +3113,7 @@ public class VideoModule implements CameraModule,
     // required by OnPreferenceChangedListener
     @Override
     public void onCameraPickerClicked(int cameraId) {
-        if (mPaused || mPendingSwitchCameraId != -1) return;
+        if (mPaused || mPendingSwitchCameraId != -1 || mStartup != null) return;
 
         mPendingSwitchCameraId = cameraId;
         if (ApiHelper.HAS_SURFACE_TEXTURE) {
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+/**
+ * The Java interface to the native real-time video stabilizer.
+ *
+ * Every preview frame is aligned to the one before it on a low-res copy, and
+ * the motion is smoothed into a display reference that follows the camera
+ * without its shake. The transform returned for a frame maps the crop window
+ * of the display reference into the frame, so that drawing that part of the
+ * frame shows it stabilized.
+ *
+ * A high-level usage is:
+ *
+ * VideoStabilizer stabilizer = new VideoStabilizer();
+ * stabilizer.initialize(width, height, VideoStabilizer.DEFAULT_SMOOTHING,
+ *         VideoStabilizer.DEFAULT_CROP_RATIO, VideoStabilizer.DEFAULT_BUDGET_MS);
+ *
+ * float[] transform = new float[VideoStabilizer.TRANSFORM_SIZE];
+ * float[] matrix = new float[16];
+ * // In onPreviewFrame():
+ * stabilizer.addFrame(nv21, transform);
+ * VideoStabilizer.getTextureMatrix(transform, width, height, matrix);
+ *
+ * stabilizer.release();
+ *
+ * The time spent per frame is held to a budget: while the frames before took
+ * longer than theirs, frames are only translated, which is much cheaper than
+ * aligning them. A single instance must not be used from several threads at
+ * once.
+ */
+public class VideoStabilizer {
+    /**
+     * Return codes of addFrame().
+     */
+    public static final int STAB_RET_ERROR = -1;
+    public static final int STAB_RET_OK = 0;
+    // Only translated, to keep within the budget.
+    public static final int STAB_RET_DROPPED = 1;
+    // Too few features matched; the frame is shown as the one before it.
+    public static final int STAB_RET_LOST = 2;
+
+    /**
+     * Defaults of initialize(): the fraction of the offset between the display
+     * reference and the frame that is kept at every frame, the fraction of the
+     * frame cropped on every side and the time budget per frame in ms.
+     */
+    public static final float DEFAULT_SMOOTHING = 0.9f;
+    public static final float DEFAULT_CROP_RATIO = 0.1f;
+    public static final float DEFAULT_BUDGET_MS = 11.0f;
+
+    /**
+     * The transform filled by addFrame(): the 3x3 homography from the display
+     * reference to the frame in pixels of the frame, in row-major order,
+     * followed by the crop window in the display reference (left, top, right,
+     * bottom).
+     */
+    public static final int TRANSFORM_SIZE = 13;
+    public static final int TRANSFORM_CROP_INDEX = 9;
+
+    /**
+     * The statistics filled by getStatistics(): the frames added and dropped,
+     * and the mean and largest time spent on the frames not dropped, in ms.
+     */
+    public static final int STATISTICS_SIZE = 4;
+    public static final int STATISTICS_FRAME_COUNT_INDEX = 0;
+    public static final int STATISTICS_DROPPED_COUNT_INDEX = 1;
+    public static final int STATISTICS_MEAN_FRAME_MS_INDEX = 2;
+    public static final int STATISTICS_MAX_FRAME_MS_INDEX = 3;
+
+    static {
+        System.loadLibrary("jni_mosaic");
+    }
+
+    // Address of the native state of this stabilizer; 0 once released.
+    private long mNativeContext;
+
+    public VideoStabilizer() {
+        mNativeContext = createContext();
+    }
+
+    /**
+     * Free the native state of this stabilizer. The instance cannot be used
+     * afterwards: its native methods then throw IllegalStateException. Calling
+     * release() again has no effect.
+     */
+    public synchronized void release() {
+        if (mNativeContext != 0) {
+            destroyContext(mNativeContext);
+            mNativeContext = 0;
+        }
+    }
+
+    @Override
+    protected void finalize() throws Throwable {
+        try {
+            release();
+        } finally {
+            super.finalize();
+        }
+    }
+
+    private static native long createContext();
+
+    private static native void destroyContext(long context);
+
+    /**
+     * Set up the stabilization of NV21 frames of the given size, dropping the
+     * state of any earlier frames.
+     *
+     * @param width width of the frames in pixels, at least 192
+     * @param height height of the frames in pixels, at least 240
+     * @param smoothing fraction of the offset between the display reference and
+     *        the frame kept at every frame; the closer to 1, the smoother
+     * @param cropRatio fraction of the width and height cropped on every side,
+     *        below 0.5
+     * @param budgetMs time budget per frame in ms
+     * @throws IllegalArgumentException if the size or crop ratio is not supported.
+     */
+    public native void initialize(int width, int height, float smoothing, float cropRatio,
+            float budgetMs);
+
+    /**
+     * Start over at the next frame, as at a cut of the video.
+     */
+    public native void reset();
+
+    /**
+     * Stabilize one preview frame.
+     *
+     * @param nv21 the frame in NV21 format. It is only read, and can be handed
+     *        back to the camera as soon as this returns.
+     * @param transform array of at least TRANSFORM_SIZE entries which is filled
+     *        with the transform of the frame, or null.
+     * @return one of the STAB_RET_* codes above.
+     * @throws IllegalStateException if initialize() has not succeeded.
+     * @throws IllegalArgumentException if nv21 is too short for a frame.
+     */
+    public native int addFrame(byte[] nv21, float[] transform);
+
+    /**
+     * Fill statistics, of at least STATISTICS_SIZE entries, with the counts and
+     * times of the frames added since the last initialize() or reset().
+     */
+    public native void getStatistics(float[] statistics);
+
+    /**
+     * Compute the texture matrix which shows a frame stabilized, to be applied
+     * after the transform matrix of its SurfaceTexture. It maps the texture
+     * coordinates of the output to the crop window of the display reference,
+     * then by the homography to the frame. Texture coordinates have their
+     * origin at the bottom left and frame pixels at the top left.
+     *
+     * @param transform the transform of the frame filled by addFrame().
+     * @param width width of the frame in pixels
+     * @param height height of the frame in pixels
+     * @param matrix array of at least 16 entries which is filled with the 4x4
+     *        matrix in OpenGL column-major order.
+     */
+    public static void getTextureMatrix(float[] transform, int width, int height,
+            float[] matrix) {
+        float left = transform[TRANSFORM_CROP_INDEX];
+        float top = transform[TRANSFORM_CROP_INDEX + 1];
+        float right = transform[TRANSFORM_CROP_INDEX + 2];
+        float bottom = transform[TRANSFORM_CROP_INDEX + 3];
+
+        // From the output texture coordinates to the centers of the pixels of
+        // the display reference: flip y, scale to the crop window and move
+        // from the pixel edges to their centers.
+        float[] toReference = {
+            right - left, 0f, left - 0.5f,
+            0f, top - bottom, bottom - 0.5f,
+            0f, 0f, 1f };
+        // From the centers of the pixels of the frame to its texture
+        // coordinates.
+        float[] toTexture = {
+            1f / width, 0f, 0.5f / width,
+            0f, -1f / height, 1f - 0.5f / height,
+            0f, 0f, 1f };
+
+        float[] temp = new float[9];
+        float[] result = new float[9];
+        multiply3x3(temp, transform, toReference);
+        multiply3x3(result, toTexture, temp);
+
+        // The homographies of the stabilizer are affine, so that the last row
+        // stays (0, 0, 1) once normalized and the texture coordinates need no
+        // division.
+        float scale = 1f / result[8];
+        for (int i = 0; i < 16; i++) {
+            matrix[i] = 0f;
+        }
+        matrix[0] = result[0] * scale;
+        matrix[1] = result[3] * scale;
+        matrix[3] = result[6] * scale;
+        matrix[4] = result[1] * scale;
+        matrix[5] = result[4] * scale;
+        matrix[7] = result[7] * scale;
+        matrix[10] = 1f;
+        matrix[12] = result[2] * scale;
+        matrix[13] = result[5] * scale;
+        matrix[15] = 1f;
+    }
+
+    // out = a * b for row-major 3x3 matrices; out must not be a or b.
+    private static void multiply3x3(float[] out, float[] a, float[] b) {
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                out[i * 3 + j] = a[i * 3] * b[j] + a[i * 3 + 1] * b[3 + j]
+                        + a[i * 3 + 2] * b[6 + j];
+            }
+        }
+    }
+}
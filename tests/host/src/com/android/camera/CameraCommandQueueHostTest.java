@@ -0,0 +1,435 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import com.android.camera.CameraCommandQueue.Command;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks com.android.camera.CameraCommandQueue, which runs the commands of
+ * CameraManager.CameraProxy, against a fake camera that records its calls.
+ * Run with "make -C jni/host test".
+ */
+public class CameraCommandQueueHostTest extends TestCase {
+    private static final long TIMEOUT_MS = 5000;
+    private static final int NR_THREADS = 4;
+    private static final int NR_COMMANDS = 500;
+
+    // Records the calls made to it, in order; a call to hold() blocks the
+    // queue thread until release().
+    private static class FakeCamera {
+        private final List<String> mCalls = new ArrayList<String>();
+        private final CountDownLatch mHeld = new CountDownLatch(1);
+        private final CountDownLatch mReleased = new CountDownLatch(1);
+
+        synchronized void call(String name) {
+            mCalls.add(name);
+        }
+
+        synchronized List<String> getCalls() {
+            return new ArrayList<String>(mCalls);
+        }
+
+        void hold() throws InterruptedException {
+            mHeld.countDown();
+            mReleased.await();
+        }
+
+        void awaitHeld() throws InterruptedException {
+            assertTrue(mHeld.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        }
+
+        void release() {
+            mReleased.countDown();
+        }
+    }
+
+    private CameraCommandQueue mQueue;
+    private FakeCamera mCamera;
+
+    @Override
+    protected void setUp() {
+        mQueue = new CameraCommandQueue("CameraCommandQueueHostTest");
+        mCamera = new FakeCamera();
+    }
+
+    @Override
+    protected void tearDown() {
+        mCamera.release();
+    }
+
+    private Command<Void> submitCall(final String name) {
+        return mQueue.submit(name, TIMEOUT_MS, new Runnable() {
+            @Override
+            public void run() {
+                mCamera.call(name);
+            }
+        });
+    }
+
+    private Command<Void> submitHold() {
+        return mQueue.submit("hold", TIMEOUT_MS, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mCamera.hold();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+    }
+
+    public void testSubmitDoesNotWaitForTheCamera() throws Exception {
+        submitHold();
+        mCamera.awaitHeld();
+        // The camera is busy, yet these return.
+        Command<Void> autoFocus = submitCall("autoFocus");
+        submitCall("setParameters");
+        assertFalse(autoFocus.isDone());
+        assertTrue(mCamera.getCalls().isEmpty());
+
+        mCamera.release();
+        mQueue.barrier(TIMEOUT_MS);
+        assertTrue(autoFocus.isDone());
+        assertEquals(Arrays.asList("autoFocus", "setParameters"), mCamera.getCalls());
+    }
+
+    public void testCommandsRunInSubmitOrder() {
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < NR_COMMANDS; i++) {
+            String name = "command" + i;
+            submitCall(name);
+            expected.add(name);
+        }
+        mQueue.barrier(TIMEOUT_MS);
+        assertEquals(expected, mCamera.getCalls());
+    }
+
+    public void testCommandsOfEachThreadRunInOrder() throws Exception {
+        Thread[] threads = new Thread[NR_THREADS];
+        for (int t = 0; t < NR_THREADS; t++) {
+            final int thread = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < NR_COMMANDS; i++) submitCall(thread + ":" + i);
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) thread.join();
+        mQueue.barrier(TIMEOUT_MS);
+
+        List<String> calls = mCamera.getCalls();
+        assertEquals(NR_THREADS * NR_COMMANDS, calls.size());
+        int[] next = new int[NR_THREADS];
+        for (String call : calls) {
+            int colon = call.indexOf(':');
+            int thread = Integer.parseInt(call.substring(0, colon));
+            assertEquals(call, next[thread]++, Integer.parseInt(call.substring(colon + 1)));
+        }
+    }
+
+    public void testAwaitedCommandSeesEarlierCommands() {
+        submitCall("setParameters");
+        submitCall("startPreview");
+        List<String> seen = mQueue.submit("getParameters", TIMEOUT_MS,
+                new Callable<List<String>>() {
+            @Override
+            public List<String> call() {
+                return mCamera.getCalls();
+            }
+        }).await();
+        assertEquals(Arrays.asList("setParameters", "startPreview"), seen);
+    }
+
+    public void testReplacingReplacesOnlyPendingCommands() throws Exception {
+        submitHold();
+        mCamera.awaitHeld();
+        Command<Void> zoom1 = mQueue.submitReplacing("zoom", TIMEOUT_MS, call("zoom1"));
+        Command<Void> zoom2 = mQueue.submitReplacing("zoom", TIMEOUT_MS, call("zoom2"));
+        submitCall("autoFocus");
+        Command<Void> zoom3 = mQueue.submitReplacing("zoom", TIMEOUT_MS, call("zoom3"));
+        mCamera.release();
+        zoom3.await();
+
+        assertTrue(zoom1.isReplaced());
+        assertTrue(zoom2.isReplaced());
+        assertFalse(zoom3.isReplaced());
+        // The replaced commands are done with zoom3.
+        assertTrue(zoom1.isDone());
+        assertFalse(zoom1.isCancelled());
+        zoom1.await();
+        assertEquals(Arrays.asList("autoFocus", "zoom3"), mCamera.getCalls());
+
+        // Once it ran, a command is not replaced.
+        mQueue.submitReplacing("zoom", TIMEOUT_MS, call("zoom4")).await();
+        assertEquals(Arrays.asList("autoFocus", "zoom3", "zoom4"), mCamera.getCalls());
+    }
+
+    public void testCoalescingReplacesOnlyTheLastCommand() throws Exception {
+        submitHold();
+        mCamera.awaitHeld();
+        Command<Void> set1 = mQueue.submitCoalescing("set", TIMEOUT_MS, call("set1"));
+        Command<Void> set2 = mQueue.submitCoalescing("set", TIMEOUT_MS, call("set2"));
+        submitCall("startPreview");
+        Command<Void> set3 = mQueue.submitCoalescing("set", TIMEOUT_MS, call("set3"));
+        Command<Void> set4 = mQueue.submitCoalescing("set", TIMEOUT_MS, call("set4"));
+        mCamera.release();
+        set4.await();
+
+        assertTrue(set1.isReplaced());
+        assertFalse(set2.isReplaced());
+        assertTrue(set3.isReplaced());
+        // set2 still reaches the camera before startPreview.
+        assertEquals(Arrays.asList("set2", "startPreview", "set4"), mCamera.getCalls());
+    }
+
+    public void testCoalescingLooksPastIndependentCommands() throws Exception {
+        List<String> independent = Arrays.asList("setErrorCallback");
+        submitHold();
+        mCamera.awaitHeld();
+        Command<Void> set1 = mQueue.submitCoalescing("set", TIMEOUT_MS, call("set1"),
+                independent);
+        submitCall("setErrorCallback");
+        Command<Void> set2 = mQueue.submitCoalescing("set", TIMEOUT_MS, call("set2"),
+                independent);
+        submitCall("startPreview");
+        Command<Void> set3 = mQueue.submitCoalescing("set", TIMEOUT_MS, call("set3"),
+                independent);
+        mCamera.release();
+        set3.await();
+
+        assertTrue(set1.isReplaced());
+        assertFalse(set2.isReplaced());
+        assertEquals(Arrays.asList("setErrorCallback", "set2", "startPreview", "set3"),
+                mCamera.getCalls());
+    }
+
+    public void testAwaitingACoalescedCommandGetsTheResultOfTheLast() throws Exception {
+        submitHold();
+        mCamera.awaitHeld();
+        Command<String> set1 = mQueue.submitCoalescing("set", TIMEOUT_MS, result("set1"));
+        final List<String> called = new ArrayList<String>();
+        final CountDownLatch calledBack = new CountDownLatch(1);
+        set1.setCallback(new CameraCommandQueue.Callback<String>() {
+            @Override
+            public void onCommandDone(Command<String> command) {
+                called.add(command.await());
+                calledBack.countDown();
+            }
+        });
+        Command<String> set2 = mQueue.submitCoalescing("set", TIMEOUT_MS, result("set2"));
+        Command<String> set3 = mQueue.submitCoalescing("set", TIMEOUT_MS, result("set3"));
+        assertFalse(set1.isDone());
+
+        mCamera.release();
+        // Replaced twice, set1 is done with set3.
+        assertEquals("set3", set1.await());
+        assertEquals("set3", set2.await());
+        // The callbacks run once the waiters are released.
+        assertTrue(calledBack.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(Arrays.asList("set3"), called);
+        assertEquals(Arrays.asList("set3"), mCamera.getCalls());
+    }
+
+    public void testCoalescedCommandFailsWithTheLast() throws Exception {
+        submitHold();
+        mCamera.awaitHeld();
+        Command<Void> set1 = mQueue.submitCoalescing("set", TIMEOUT_MS, call("set1"));
+        mQueue.submitCoalescing("set", TIMEOUT_MS, new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalArgumentException("bad parameters");
+            }
+        });
+        mCamera.release();
+
+        try {
+            set1.await();
+            fail("failure not thrown");
+        } catch (IllegalArgumentException e) {
+            assertEquals("bad parameters", e.getMessage());
+        }
+    }
+
+    public void testTimeoutDescribesTheBusyCommand() throws Exception {
+        submitHold();
+        mCamera.awaitHeld();
+        Command<Void> stopPreview = mQueue.submit("stopPreview", 50, call("stopPreview"));
+        try {
+            stopPreview.await();
+            fail("no timeout");
+        } catch (CameraCommandQueue.CommandTimeoutException e) {
+            String message = e.getMessage();
+            assertTrue(message, message.startsWith("stopPreview not done after 50 ms"));
+            assertTrue(message, message.contains("hold running for"));
+            assertTrue(message, message.contains("1 pending: stopPreview"));
+        }
+
+        // The command is still run once the camera is free.
+        mCamera.release();
+        mQueue.barrier(TIMEOUT_MS);
+        assertTrue(stopPreview.isDone());
+        assertEquals(Arrays.asList("stopPreview"), mCamera.getCalls());
+    }
+
+    public void testUnboundedAwaitOutlastsTheTimeout() throws Exception {
+        submitHold();
+        mCamera.awaitHeld();
+        Command<String> release = mQueue.submit("release", 50, new Callable<String>() {
+            @Override
+            public String call() {
+                mCamera.call("release");
+                return "released";
+            }
+        });
+        Thread releaser = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    // Release anyway.
+                }
+                mCamera.release();
+            }
+        };
+        releaser.start();
+        final List<String> slow = new ArrayList<String>();
+        String result = release.awaitUnbounded(new CameraCommandQueue.SlowCommandListener() {
+            @Override
+            public void onCommandSlow(Command<?> command, String diagnostics) {
+                slow.add(diagnostics);
+            }
+        });
+        releaser.join();
+
+        // Waited past several timeouts, told what held the camera each time.
+        assertEquals("released", result);
+        assertTrue(slow.toString(), slow.size() >= 2);
+        for (String diagnostics : slow) {
+            assertTrue(diagnostics, diagnostics.startsWith("release not done after 50 ms"));
+            assertTrue(diagnostics, diagnostics.contains("hold running for"));
+        }
+        assertEquals(Arrays.asList("release"), mCamera.getCalls());
+    }
+
+    public void testDoneCommandRunsNothing() {
+        Command<String> done = mQueue.done("startPreview", "started");
+        assertTrue(done.isDone());
+        assertEquals("started", done.await());
+        final List<String> called = new ArrayList<String>();
+        done.setCallback(new CameraCommandQueue.Callback<String>() {
+            @Override
+            public void onCommandDone(Command<String> command) {
+                called.add(command.getName());
+            }
+        });
+        assertEquals(Arrays.asList("startPreview"), called);
+        assertEquals("idle, 0 pending", mQueue.describe());
+    }
+
+    public void testFailureReachesTheCallerOnly() {
+        final List<String> failed = new ArrayList<String>();
+        mQueue.setFailureListener(new CameraCommandQueue.FailureListener() {
+            @Override
+            public void onCommandFailed(Command<?> command, Throwable failure) {
+                failed.add(command.getName() + ": " + failure.getMessage());
+            }
+        });
+        Command<Void> lock = mQueue.submit("lock", TIMEOUT_MS, new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("camera busy");
+            }
+        });
+        submitCall("startPreview");
+        mQueue.barrier(TIMEOUT_MS);
+
+        try {
+            lock.await();
+            fail("failure not thrown");
+        } catch (IllegalStateException e) {
+            assertEquals("camera busy", e.getMessage());
+        }
+        assertEquals(Arrays.asList("lock: camera busy"), failed);
+        assertEquals(Arrays.asList("startPreview"), mCamera.getCalls());
+    }
+
+    public void testCallbacksRunInCommandOrder() {
+        final List<String> done = new ArrayList<String>();
+        CameraCommandQueue.Callback<Void> callback = new CameraCommandQueue.Callback<Void>() {
+            @Override
+            public void onCommandDone(Command<Void> command) {
+                // Run on the queue thread, before the next command.
+                done.add(command.getName() + " after " + mCamera.getCalls().size());
+            }
+        };
+        submitCall("autoFocus").setCallback(callback);
+        submitCall("takePicture").setCallback(callback);
+        Command<Void> last = submitCall("startPreview");
+        last.await();
+        last.setCallback(callback);
+        assertEquals(Arrays.asList("autoFocus after 1", "takePicture after 2",
+                "startPreview after 3"), done);
+    }
+
+    public void testAwaitOnTheQueueThreadThrows() {
+        final Throwable[] thrown = new Throwable[1];
+        mQueue.submit("callback", TIMEOUT_MS, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // Would wait for itself forever.
+                    submitCall("pending").await();
+                } catch (IllegalStateException e) {
+                    thrown[0] = e;
+                }
+            }
+        }).await();
+        assertNotNull("await did not throw", thrown[0]);
+    }
+
+    private Callable<String> result(final String name) {
+        return new Callable<String>() {
+            @Override
+            public String call() {
+                mCamera.call(name);
+                return name;
+            }
+        };
+    }
+
+    private Runnable call(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                mCamera.call(name);
+            }
+        };
+    }
+}
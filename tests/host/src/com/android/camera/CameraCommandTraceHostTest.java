@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import com.android.camera.CameraCommandTrace.Event;
+
+import junit.framework.TestCase;
+
+import java.io.StringWriter;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Checks com.android.camera.CameraCommandTrace, which records the commands
+ * run by CameraCommandQueue. Run with "make -C jni/host test".
+ */
+public class CameraCommandTraceHostTest extends TestCase {
+    private static final long TIMEOUT_MS = 5000;
+    private static final long MS = 1000000;
+
+    public void testRingKeepsTheLastCommands() {
+        CameraCommandTrace trace = new CameraCommandTrace(4);
+        for (int i = 0; i < 6; i++) {
+            trace.record("command" + i, i * MS, i * MS + 1, i * MS + 2, false);
+        }
+        assertEquals(6, trace.getRecordedCount());
+        List<Event> events = trace.getEvents();
+        assertEquals(4, events.size());
+        assertEquals("command2", events.get(0).name);
+        assertEquals("command5", events.get(3).name);
+        assertEquals(5 * MS + 1, events.get(3).startNs);
+        assertEquals(5 * MS + 2, events.get(3).endNs);
+    }
+
+    public void testPercentiles() {
+        long[] sorted = new long[100];
+        for (int i = 0; i < sorted.length; i++) sorted[i] = i + 1;
+        assertEquals(50, CameraCommandTrace.percentile(sorted, 50));
+        assertEquals(90, CameraCommandTrace.percentile(sorted, 90));
+        assertEquals(99, CameraCommandTrace.percentile(sorted, 99));
+        assertEquals(7, CameraCommandTrace.percentile(new long[] {7}, 99));
+    }
+
+    public void testSummary() {
+        CameraCommandTrace trace = new CameraCommandTrace(16);
+        // Waited 1 ms, ran 2, 4 and 6 ms; the last failed.
+        for (int i = 1; i <= 3; i++) {
+            long submit = i * 100 * MS;
+            trace.record("startPreview", submit, submit + MS, submit + (1 + 2 * i) * MS, i == 3);
+        }
+        trace.record("autoFocus", 0, 0, MS, false);
+        String summary = trace.summarize();
+        assertTrue(summary, summary.startsWith("startPreview: 3 run, 1 failed; "
+                + "run p50 4.00 p90 6.00 p99 6.00 max 6.00 ms; "
+                + "latency p50 5.00 p90 7.00 p99 7.00 max 7.00 ms\n"));
+        assertTrue(summary, summary.contains("autoFocus: 1 run, 0 failed"));
+    }
+
+    public void testJson() throws Exception {
+        CameraCommandTrace trace = new CameraCommandTrace(4);
+        trace.record("set\"Parameters", 1000, 3000, 7500, true);
+        StringWriter out = new StringWriter();
+        trace.writeJson(out, 12, 34, "Camera Handler Thread");
+        String json = out.toString();
+        assertTrue(json, json.startsWith("{\"traceEvents\":["));
+        assertTrue(json, json.trim().endsWith("]}"));
+        assertTrue(json, json.contains("\"ph\":\"M\",\"pid\":12,\"tid\":34,"
+                + "\"args\":{\"name\":\"Camera Handler Thread\"}"));
+        assertTrue(json, json.contains("{\"name\":\"set\\\"Parameters\",\"cat\":\"camera\","
+                + "\"ph\":\"X\",\"pid\":12,\"tid\":34,\"ts\":3.000,\"dur\":4.500,"
+                + "\"args\":{\"failed\":true}}"));
+        assertTrue(json, json.contains("\"ph\":\"b\",\"id\":0,\"pid\":12,\"tid\":34,\"ts\":1.000}"));
+        assertTrue(json, json.contains("\"ph\":\"e\",\"id\":0,\"pid\":12,\"tid\":34,\"ts\":3.000}"));
+    }
+
+    public void testReaderNeverSeesTornCommands() throws Exception {
+        final CameraCommandTrace trace = new CameraCommandTrace(8);
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                // Every time of command i is i, so a torn entry shows.
+                for (long i = 0; i < 200000; i++) {
+                    trace.record("command" + i, i, i, i, false);
+                }
+                done.set(true);
+            }
+        };
+        writer.start();
+        while (!done.get()) {
+            long previous = -1;
+            for (Event event : trace.getEvents()) {
+                assertEquals("command" + event.submitNs, event.name);
+                assertEquals(event.submitNs, event.startNs);
+                assertEquals(event.submitNs, event.endNs);
+                assertTrue(event.submitNs > previous);
+                previous = event.submitNs;
+            }
+        }
+        writer.join();
+    }
+
+    public void testQueueRecordsItsCommands() {
+        final CameraCommandQueue queue = new CameraCommandQueue("CameraCommandTraceHostTest");
+        queue.submit("untraced", TIMEOUT_MS, noop()).await();
+        CameraCommandTrace trace = new CameraCommandTrace(16);
+        queue.setTrace(trace);
+        queue.submit("startPreview", TIMEOUT_MS, noop());
+        queue.submit("autoFocus", TIMEOUT_MS, new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("focus failed");
+            }
+        });
+        queue.barrier(TIMEOUT_MS);
+        // A command is recorded after it is done, so stop the trace on the
+        // queue thread, once the barrier is recorded.
+        queue.submit("stopTrace", TIMEOUT_MS, new Runnable() {
+            @Override
+            public void run() {
+                queue.setTrace(null);
+            }
+        }).await();
+        queue.submit("untraced", TIMEOUT_MS, noop()).await();
+
+        List<Event> events = trace.getEvents();
+        assertEquals(3, events.size());
+        assertEquals("startPreview", events.get(0).name);
+        assertFalse(events.get(0).failed);
+        assertEquals("autoFocus", events.get(1).name);
+        assertTrue(events.get(1).failed);
+        assertEquals("barrier", events.get(2).name);
+        for (Event event : events) {
+            assertTrue(event.submitNs <= event.startNs);
+            assertTrue(event.startNs <= event.endNs);
+        }
+    }
+
+    private static Runnable noop() {
+        return new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Checks com.android.camera.CameraParameterStore, which decides which
+ * parameter updates CameraManager sends to the camera. Run with
+ * "make -C jni/host test".
+ */
+public class CameraParameterStoreHostTest extends TestCase {
+    private static final String PREVIEW =
+            "preview-size=640x480;zoom=0;flash-mode=auto;focus-mode=auto";
+
+    private CameraParameterStore mStore;
+    private int[] mStatistics;
+
+    @Override
+    protected void setUp() {
+        mStore = new CameraParameterStore();
+        mStatistics = new int[CameraParameterStore.STATISTICS_SIZE];
+    }
+
+    private int statistic(int index) {
+        mStore.getStatistics(mStatistics);
+        return mStatistics[index];
+    }
+
+    public void testUnflatten() {
+        assertEquals("640x480",
+                CameraParameterStore.unflatten(PREVIEW).get("preview-size"));
+        assertEquals(4, CameraParameterStore.unflatten(PREVIEW).size());
+        // As in Camera.Parameters: empty values are kept, entries without a
+        // value are dropped.
+        assertEquals("", CameraParameterStore.unflatten("a=;b").get("a"));
+        assertFalse(CameraParameterStore.unflatten("a=;b").containsKey("b"));
+        assertTrue(CameraParameterStore.unflatten("").isEmpty());
+    }
+
+    public void testAllKeysDirtyWhenUnknown() {
+        List<String> dirty = mStore.getDirtyKeys(PREVIEW);
+        assertEquals(new HashSet<String>(Arrays.asList(
+                "preview-size", "zoom", "flash-mode", "focus-mode")),
+                new HashSet<String>(dirty));
+    }
+
+    public void testSameParametersSkipped() {
+        mStore.onSet(PREVIEW, 4);
+        assertTrue(mStore.getDirtyKeys(PREVIEW).isEmpty());
+        // The order of the keys does not matter.
+        assertTrue(mStore.getDirtyKeys(
+                "zoom=0;focus-mode=auto;flash-mode=auto;preview-size=640x480").isEmpty());
+        assertEquals(2, statistic(CameraParameterStore.STATISTICS_SKIPPED_COUNT_INDEX));
+        assertEquals(1, statistic(CameraParameterStore.STATISTICS_SET_COUNT_INDEX));
+    }
+
+    public void testChangedAndRemovedKeysDirty() {
+        mStore.onSet(PREVIEW, 4);
+        assertEquals(Arrays.asList("zoom"), mStore.getDirtyKeys(
+                "preview-size=640x480;zoom=3;flash-mode=auto;focus-mode=auto"));
+        assertEquals(Arrays.asList("flash-mode"), mStore.getDirtyKeys(
+                "preview-size=640x480;zoom=0;focus-mode=auto"));
+        assertEquals(0, statistic(CameraParameterStore.STATISTICS_SKIPPED_COUNT_INDEX));
+    }
+
+    public void testParametersReadAreTheBaseline() {
+        mStore.onSet(PREVIEW, 4);
+        // The camera changed the flash mode along with the scene mode.
+        String read = "preview-size=640x480;zoom=0;flash-mode=off;focus-mode=auto";
+        mStore.onGet(read);
+        assertTrue(mStore.getDirtyKeys(read).isEmpty());
+        assertEquals(Arrays.asList("flash-mode"), mStore.getDirtyKeys(PREVIEW));
+    }
+
+    public void testForgetMakesEverythingDirty() {
+        mStore.onSet(PREVIEW, 4);
+        mStore.forget();
+        assertEquals(4, mStore.getDirtyKeys(PREVIEW).size());
+    }
+
+    public void testMirrorFollowsTheParametersSet() {
+        assertNull(mStore.getMirror());
+        mStore.onSet(PREVIEW, 4);
+        assertEquals(PREVIEW, mStore.getMirror());
+        // Asked for, but not accepted by the camera yet.
+        mStore.onUpdate();
+        assertEquals(PREVIEW, mStore.getMirror());
+        String zoomed = "preview-size=640x480;zoom=3;flash-mode=auto;focus-mode=auto";
+        mStore.onSet(zoomed, 1);
+        assertEquals(zoomed, mStore.getMirror());
+        // Sending parameters failed.
+        mStore.forget();
+        assertNull(mStore.getMirror());
+    }
+
+    public void testParametersReadReplaceTheMirror() {
+        mStore.onSet(PREVIEW, 4);
+        String read = "preview-size=640x480;zoom=0;flash-mode=off;focus-mode=auto";
+        mStore.onGet(read);
+        assertEquals(read, mStore.getMirror());
+    }
+
+    public void testParametersReadForAnObjectOnlyCounted() {
+        mStore.onSet(PREVIEW, 4);
+        mStore.onRead();
+        assertEquals(PREVIEW, mStore.getMirror());
+        assertTrue(mStore.getDirtyKeys(PREVIEW).isEmpty());
+        assertEquals(1, statistic(CameraParameterStore.STATISTICS_GET_COUNT_INDEX));
+    }
+
+    public void testStatistics() {
+        mStore.onUpdate();
+        mStore.onUpdate();
+        mStore.onCoalesced();
+        mStore.onSet(PREVIEW, 4);
+        mStore.onUpdate();
+        mStore.getDirtyKeys(PREVIEW);
+        mStore.onGet(PREVIEW);
+        mStore.onMirrored(2500);
+        mStore.onMirrored(1500);
+        mStore.onGetWaited(3000000);
+
+        mStore.getStatistics(mStatistics);
+        assertEquals(3, mStatistics[CameraParameterStore.STATISTICS_UPDATE_COUNT_INDEX]);
+        assertEquals(1, mStatistics[CameraParameterStore.STATISTICS_COALESCED_COUNT_INDEX]);
+        assertEquals(1, mStatistics[CameraParameterStore.STATISTICS_SKIPPED_COUNT_INDEX]);
+        assertEquals(1, mStatistics[CameraParameterStore.STATISTICS_SET_COUNT_INDEX]);
+        assertEquals(1, mStatistics[CameraParameterStore.STATISTICS_GET_COUNT_INDEX]);
+        assertEquals(4, mStatistics[CameraParameterStore.STATISTICS_DIRTY_KEY_COUNT_INDEX]);
+        assertEquals(2, mStatistics[CameraParameterStore.STATISTICS_MIRRORED_COUNT_INDEX]);
+        assertEquals(4, mStatistics[CameraParameterStore.STATISTICS_MIRROR_COPY_US_INDEX]);
+        assertEquals(3000, mStatistics[CameraParameterStore.STATISTICS_GET_WAIT_US_INDEX]);
+
+        // Forgetting the parameters keeps the counts.
+        mStore.forget();
+        assertEquals(1, statistic(CameraParameterStore.STATISTICS_SET_COUNT_INDEX));
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks com.android.camera.FrameRing, through which the preview frames reach
+ * the alignment worker of MosaicFrameProcessor. Run with
+ * "make -C jni/host test".
+ */
+public class FrameRingHostTest extends TestCase {
+    private static final int CAPACITY = 4;
+    private static final int NR_FRAMES = 200000;
+
+    public void testEmpty() {
+        FrameRing ring = new FrameRing(CAPACITY);
+        assertEquals(FrameRing.EMPTY, ring.takeLatest());
+        ring.put(1);
+        assertEquals(1, ring.takeLatest());
+        assertEquals(FrameRing.EMPTY, ring.takeLatest());
+        assertEquals(0, ring.getDroppedCount());
+    }
+
+    public void testOlderFramesDropped() {
+        FrameRing ring = new FrameRing(CAPACITY);
+        ring.put(1);
+        ring.put(2);
+        ring.put(3);
+        assertEquals(3, ring.takeLatest());
+        assertEquals(2, ring.getDroppedCount());
+    }
+
+    public void testOverwrittenFramesDropped() {
+        FrameRing ring = new FrameRing(CAPACITY);
+        for (int i = 1; i <= 3 * CAPACITY; i++) ring.put(i);
+        assertEquals(3 * CAPACITY, ring.takeLatest());
+        assertEquals(3 * CAPACITY - 1, ring.getDroppedCount());
+        assertEquals(3 * CAPACITY, ring.getPutCount());
+    }
+
+    public void testClearDoesNotDrop() {
+        FrameRing ring = new FrameRing(CAPACITY);
+        ring.put(1);
+        ring.put(2);
+        ring.clear();
+        assertEquals(FrameRing.EMPTY, ring.takeLatest());
+        assertEquals(0, ring.getDroppedCount());
+    }
+
+    public void testConcurrentFramesTakenInOrder() throws Exception {
+        final FrameRing ring = new FrameRing(CAPACITY);
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 1; i <= NR_FRAMES; i++) ring.put(i);
+            }
+        };
+        producer.start();
+
+        long last = 0;
+        int taken = 0;
+        while (last < NR_FRAMES) {
+            long time = ring.takeLatest();
+            if (time == FrameRing.EMPTY) continue;
+            assertTrue(time + " taken after " + last, time > last);
+            last = time;
+            taken++;
+        }
+        producer.join();
+
+        assertEquals(FrameRing.EMPTY, ring.takeLatest());
+        assertEquals(NR_FRAMES, taken + ring.getDroppedCount());
+    }
+}
@@ -0,0 +1,598 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+
+/**
+ * Drives the native mosaic library through com.android.camera.Mosaic on the
+ * host JVM, feeding the perftests/panorama frames as NV21 preview frames.
+ * Run with "make -C jni/host test"; the frames are read from the path given
+ * by the mosaic.input system property (e.g. .../input/test for test_001.ppm).
+ */
+public class MosaicHostTest extends TestCase {
+    private static final String INPUT_PROPERTY = "mosaic.input";
+    private static final String DEFAULT_INPUT = "perftests/panorama/input/test";
+
+    // Size of perftests/panorama/output/golden.ppm, stitched on a device.
+    private static final int GOLDEN_WIDTH = 1454;
+    private static final int GOLDEN_HEIGHT = 330;
+
+    // Upper bound on the time createMosaic() takes to return after
+    // cancelCreateMosaic(). The native code checks for cancellation once per
+    // frame, so this is a few times the longest per-frame step on the host.
+    private static final long CANCEL_LATENCY_BOUND_MS = 100;
+
+    private static List<ByteBuffer> sFrames;
+    private static int sWidth;
+    private static int sHeight;
+
+    private Mosaic mMosaic;
+    private float[] mFrameData;
+
+    @Override
+    protected void setUp() throws IOException {
+        loadFrames();
+        mMosaic = new Mosaic();
+        mMosaic.setSpillFile(null, 0);
+        mMosaic.allocateMosaicMemory(sWidth, sHeight);
+        mMosaic.setStripType(Mosaic.STRIPTYPE_WIDE);
+        mMosaic.reset();
+        mFrameData = new float[Mosaic.FRAME_DATA_SIZE];
+    }
+
+    @Override
+    protected void tearDown() {
+        mMosaic.freeMosaicMemory();
+        mMosaic.release();
+    }
+
+    public void testFrameDataCountsAlignedFrames() {
+        int aligned = 0;
+        for (ByteBuffer frame : sFrames) {
+            int ret = mMosaic.setSourceImage(frame, mFrameData);
+            assertEquals(ret, (int) mFrameData[Mosaic.FRAME_DATA_RET_CODE_INDEX]);
+            if (ret == Mosaic.MOSAIC_RET_OK || ret == Mosaic.MOSAIC_RET_FEW_INLIERS) aligned++;
+            assertEquals(aligned, (int) mFrameData[Mosaic.FRAME_DATA_FRAME_COUNT_INDEX]);
+        }
+        // Most of the sweep has to align for the mosaic to be usable.
+        assertTrue("only " + aligned + " frames aligned", aligned > sFrames.size() / 2);
+    }
+
+    public void testMaxFrameOverlapKeepsFewerFrames() {
+        addAllFrames();
+        int allFrames = (int) mFrameData[Mosaic.FRAME_DATA_FRAME_COUNT_INDEX];
+        assertEquals(Mosaic.MOSAIC_RET_OK, mMosaic.createMosaic(true));
+        int width = mMosaic.getMosaicWidth();
+        int height = mMosaic.getMosaicHeight();
+
+        mMosaic.setMaxFrameOverlap(0.95f);
+        mMosaic.reset();
+        addAllFrames();
+        int kept = (int) mFrameData[Mosaic.FRAME_DATA_FRAME_COUNT_INDEX];
+        System.out.printf("max frame overlap 0.95: %d of %d frames kept%n", kept, allFrames);
+        assertTrue(kept + " of " + allFrames + " frames kept", kept < allFrames * 3 / 4);
+
+        // The last frame rejected is added to the mosaic, which then still
+        // covers the whole sweep.
+        assertEquals(Mosaic.MOSAIC_RET_OK, mMosaic.createMosaic(true));
+        assertEquals(width, mMosaic.getMosaicWidth(), width * 0.01);
+        assertEquals(height, mMosaic.getMosaicHeight(), height * 0.01);
+    }
+
+    public void testMaxFrameOverlapOutOfRangeRejected() {
+        try {
+            mMosaic.setMaxFrameOverlap(0.8f);
+            fail("overlap 0.8 accepted");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    public void testSetSourceImageFromGPUWithoutFrameAddsNothing() {
+        for (int i = 0; i < 4; i++) {
+            mMosaic.setSourceImage(sFrames.get(i), mFrameData);
+        }
+        float[] last = mFrameData.clone();
+
+        // No frame is ever read back on the host.
+        assertEquals(Mosaic.MOSAIC_RET_NO_FRAME, mMosaic.setSourceImageFromGPU(mFrameData));
+        assertEquals(last[Mosaic.FRAME_DATA_FRAME_COUNT_INDEX],
+                mFrameData[Mosaic.FRAME_DATA_FRAME_COUNT_INDEX]);
+        for (int i = 0; i < 9; i++) {
+            assertEquals(last[i], mFrameData[i]);
+        }
+
+        // A new sweep starts at the identity, not at the last sweep.
+        mMosaic.reset();
+        assertEquals(Mosaic.MOSAIC_RET_NO_FRAME, mMosaic.setSourceImageFromGPU(mFrameData));
+        for (int i = 0; i < 9; i++) {
+            assertEquals(i % 4 == 0 ? 1f : 0f, mFrameData[i]);
+        }
+    }
+
+    public void testSetSourceImageRejectsHeapBuffer() {
+        try {
+            mMosaic.setSourceImage(ByteBuffer.allocate(sWidth * sHeight * 3 / 2), mFrameData);
+            fail("heap buffer accepted");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    public void testLowResMosaicJpeg() throws IOException {
+        addAllFrames();
+        long start = System.nanoTime();
+        assertEquals(Mosaic.MOSAIC_RET_OK, mMosaic.createMosaic(false));
+        report("createMosaic(low-res)", start);
+
+        int width = mMosaic.getMosaicWidth();
+        int height = mMosaic.getMosaicHeight();
+        assertTrue(width > sWidth / 4 && height > 0);
+
+        BufferedImage image = decodeJpeg(width, height);
+        assertEquals(width, image.getWidth());
+        assertEquals(height, image.getHeight());
+    }
+
+    public void testHighResMosaicNV21() {
+        addAllFrames();
+        long start = System.nanoTime();
+        assertEquals(Mosaic.MOSAIC_RET_OK, mMosaic.createMosaic(true));
+        report("createMosaic(high-res)", start);
+
+        // Floating point differs from the device, so only expect the size of
+        // the golden mosaic within a few percent.
+        int width = mMosaic.getMosaicWidth();
+        int height = mMosaic.getMosaicHeight();
+        assertEquals(GOLDEN_WIDTH, width, GOLDEN_WIDTH * 0.03);
+        assertEquals(GOLDEN_HEIGHT, height, GOLDEN_HEIGHT * 0.05);
+
+        ByteBuffer nv21 = ByteBuffer.allocateDirect(width * height * 3 / 2);
+        assertTrue(mMosaic.getFinalMosaicNV21(nv21));
+        // The native mosaic is released by the first call.
+        assertFalse(mMosaic.getFinalMosaicNV21(nv21));
+    }
+
+    public void testNV21RetryAfterTooSmallBuffer() {
+        addAllFrames();
+        byte[] expected = getHighRes(mMosaic);
+
+        assertEquals(Mosaic.MOSAIC_RET_OK, mMosaic.createMosaic(true));
+        int size = mMosaic.getMosaicWidth() * mMosaic.getMosaicHeight() * 3 / 2;
+        assertFalse(mMosaic.getFinalMosaicNV21(ByteBuffer.allocateDirect(size - 1)));
+        // A heap buffer is written from its position, which stays put.
+        ByteBuffer heap = ByteBuffer.allocate(size + 7);
+        heap.position(7);
+        assertTrue(mMosaic.getFinalMosaicNV21(heap));
+        assertEquals(7, heap.position());
+        byte[] bytes = new byte[size];
+        heap.get(bytes);
+        assertTrue(Arrays.equals(expected, bytes));
+    }
+
+    public void testHighResMosaicJpeg() throws IOException {
+        addAllFrames();
+        assertEquals(Mosaic.MOSAIC_RET_OK, mMosaic.createMosaic(true));
+        int width = mMosaic.getMosaicWidth();
+        int height = mMosaic.getMosaicHeight();
+
+        BufferedImage image = decodeJpeg(width, height);
+        assertEquals(width, image.getWidth());
+        assertEquals(height, image.getHeight());
+    }
+
+    public void testCancelHighResMosaic() {
+        addAllFrames();
+        mMosaic.reportProgress(true, true);
+        assertEquals(Mosaic.MOSAIC_RET_CANCELLED, mMosaic.createMosaic(true));
+    }
+
+    public void testProgressListener() {
+        addAllFrames();
+        final int step = 5;
+        final List<Integer> progress = new ArrayList<Integer>();
+        final Thread caller = Thread.currentThread();
+        mMosaic.setProgressListener(new Mosaic.ProgressListener() {
+            @Override
+            public void onMosaicProgress(int value) {
+                assertSame(caller, Thread.currentThread());
+                progress.add(value);
+            }
+        }, step);
+        assertEquals(Mosaic.MOSAIC_RET_OK, mMosaic.createMosaic(true));
+
+        assertFalse(progress.isEmpty());
+        assertEquals(100, (int) progress.get(progress.size() - 1));
+        int previous = 0;
+        for (int value : progress) {
+            assertTrue("progress " + progress, value >= previous + step || value == 100);
+            previous = value;
+        }
+    }
+
+    public void testCancelLatency() throws Exception {
+        // Cancel from another thread while aligning, blending and finishing.
+        for (final int cancelAt : new int[] {5, 50, 90}) {
+            mMosaic.reset();
+            addAllFrames();
+
+            final CountDownLatch reached = new CountDownLatch(1);
+            mMosaic.setProgressListener(new Mosaic.ProgressListener() {
+                @Override
+                public void onMosaicProgress(int value) {
+                    if (value >= cancelAt) reached.countDown();
+                }
+            }, 1);
+
+            final int[] result = new int[1];
+            final long[] returned = new long[1];
+            Thread thread = new Thread("createMosaic") {
+                @Override
+                public void run() {
+                    result[0] = mMosaic.createMosaic(true);
+                    returned[0] = System.nanoTime();
+                }
+            };
+            thread.start();
+            reached.await();
+            long cancelled = System.nanoTime();
+            mMosaic.cancelCreateMosaic();
+            thread.join();
+
+            double latency = (returned[0] - cancelled) / 1e6;
+            System.out.printf("cancel at %d%%: %.1f ms%n", cancelAt, latency);
+            assertEquals(Mosaic.MOSAIC_RET_CANCELLED, result[0]);
+            assertTrue("cancel at " + cancelAt + "% took " + latency + " ms",
+                    latency < CANCEL_LATENCY_BOUND_MS);
+        }
+    }
+
+    public void testProgressListenerExceptionCancels() {
+        addAllFrames();
+        final RuntimeException failure = new RuntimeException("listener failed");
+        mMosaic.setProgressListener(new Mosaic.ProgressListener() {
+            @Override
+            public void onMosaicProgress(int value) {
+                throw failure;
+            }
+        }, 1);
+        try {
+            mMosaic.createMosaic(true);
+            fail("listener exception swallowed");
+        } catch (RuntimeException e) {
+            assertSame(failure, e);
+        }
+    }
+
+    public void testReleasedMosaicThrows() {
+        mMosaic.release();
+        try {
+            mMosaic.getMosaicWidth();
+            fail("released mosaic used");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+        // Releasing again is harmless.
+        mMosaic.release();
+        mMosaic = new Mosaic();
+    }
+
+    public void testTwoMosaicsInParallel() throws Exception {
+        // Two different sweeps, so that any state shared between the mosaics
+        // shows up in the results: the whole input and its first two thirds.
+        final List<ByteBuffer> full = sFrames;
+        final List<ByteBuffer> partial = sFrames.subList(0, sFrames.size() * 2 / 3);
+
+        long start = System.nanoTime();
+        byte[] expectedFull = renderHighRes(new Mosaic(), full);
+        byte[] expectedPartial = renderHighRes(new Mosaic(), partial);
+        report("2 sequential high-res mosaics", start);
+        assertFalse(Arrays.equals(expectedFull, expectedPartial));
+
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        final byte[][] results = new byte[2][];
+        final Throwable[] errors = new Throwable[2];
+        Thread[] threads = new Thread[2];
+        for (int i = 0; i < 2; i++) {
+            final int index = i;
+            threads[i] = new Thread("mosaic-" + i) {
+                @Override
+                public void run() {
+                    try {
+                        Mosaic mosaic = new Mosaic();
+                        barrier.await();
+                        results[index] = renderHighRes(mosaic, index == 0 ? full : partial);
+                    } catch (Throwable t) {
+                        errors[index] = t;
+                    }
+                }
+            };
+        }
+
+        start = System.nanoTime();
+        for (Thread thread : threads) thread.start();
+        for (Thread thread : threads) thread.join();
+        report("2 parallel high-res mosaics", start);
+
+        for (Throwable error : errors) {
+            if (error != null) throw new AssertionError(error);
+        }
+        assertTrue("full sweep differs", Arrays.equals(expectedFull, results[0]));
+        assertTrue("partial sweep differs", Arrays.equals(expectedPartial, results[1]));
+    }
+
+    public void testSessionRendersSameHighResMosaic() throws IOException {
+        addAllFrames();
+        File session = File.createTempFile("mosaic", ".session");
+        Mosaic loaded = new Mosaic();
+        try {
+            long start = System.nanoTime();
+            assertTrue(mMosaic.saveSession(session.getPath(), false));
+            report("saveSession", start);
+            byte[] expected = getHighRes(mMosaic);
+
+            start = System.nanoTime();
+            assertTrue(loaded.loadSession(session.getPath(), 0, 0, false) > 0);
+            report("loadSession", start);
+            assertTrue("session differs", Arrays.equals(expected, getHighRes(loaded)));
+        } finally {
+            loaded.freeMosaicMemory();
+            loaded.release();
+            Mosaic.deleteSession(session.getPath());
+        }
+    }
+
+    public void testSessionKeepsPersistentSpillFile() throws IOException {
+        File spill = File.createTempFile("mosaic", ".spill");
+        File session = File.createTempFile("mosaic", ".session");
+        File frames = new File(session.getPath() + Mosaic.SESSION_FRAMES_SUFFIX);
+        Mosaic loaded = new Mosaic();
+        try {
+            mMosaic.setSpillFile(spill.getPath(), 2 * sFrames.size(), true);
+            mMosaic.allocateMosaicMemory(sWidth, sHeight);
+            mMosaic.reset();
+            assertTrue(mMosaic.isSpilled());
+            addAllFrames();
+            assertTrue(mMosaic.saveSession(session.getPath(), false));
+
+            // The high-res frames are not copied, but moved with their file.
+            assertFalse(spill.exists());
+            assertTrue(frames.exists());
+            assertTrue(session.length() < (long) sWidth * sHeight * 3);
+            byte[] expected = getHighRes(mMosaic);
+            mMosaic.freeMosaicMemory();
+            assertTrue(frames.exists());
+
+            assertTrue(loaded.loadSession(session.getPath(), sWidth, sHeight, false) > 0);
+            assertTrue(loaded.isSpilled());
+            assertTrue("session differs", Arrays.equals(expected, getHighRes(loaded)));
+        } finally {
+            loaded.freeMosaicMemory();
+            loaded.release();
+            spill.delete();
+            Mosaic.deleteSession(session.getPath());
+        }
+        assertFalse(session.exists());
+        assertFalse(frames.exists());
+    }
+
+    public void testResumedSessionContinuesSweep() throws IOException {
+        int half = sFrames.size() / 2;
+        for (ByteBuffer frame : sFrames.subList(0, half)) {
+            mMosaic.setSourceImage(frame, mFrameData);
+        }
+        int saved = (int) mFrameData[Mosaic.FRAME_DATA_FRAME_COUNT_INDEX];
+        float savedX = mFrameData[2];
+
+        File session = File.createTempFile("mosaic", ".session");
+        Mosaic resumed = new Mosaic();
+        try {
+            assertTrue(mMosaic.saveSession(session.getPath(), true));
+            assertTrue(resumed.loadSession(session.getPath(), sWidth, sHeight, true) > saved);
+
+            // The next frame counts and moves on from the frames of the session.
+            resumed.setSourceImage(sFrames.get(half), mFrameData);
+            assertEquals(saved + 1, (int) mFrameData[Mosaic.FRAME_DATA_FRAME_COUNT_INDEX]);
+            assertEquals(savedX, mFrameData[2], sWidth / 4);
+            for (ByteBuffer frame : sFrames.subList(half + 1, sFrames.size())) {
+                resumed.setSourceImage(frame, mFrameData);
+            }
+
+            assertEquals(Mosaic.MOSAIC_RET_OK, resumed.createMosaic(true));
+            assertEquals(GOLDEN_WIDTH, resumed.getMosaicWidth(), GOLDEN_WIDTH * 0.05);
+            assertEquals(GOLDEN_HEIGHT, resumed.getMosaicHeight(), GOLDEN_HEIGHT * 0.05);
+        } finally {
+            resumed.freeMosaicMemory();
+            resumed.release();
+            Mosaic.deleteSession(session.getPath());
+        }
+    }
+
+    public void testLoadSessionRejectsOtherSessions() throws IOException {
+        for (int i = 0; i < 4; i++) {
+            mMosaic.setSourceImage(sFrames.get(i), mFrameData);
+        }
+        File session = File.createTempFile("mosaic", ".session");
+        Mosaic loaded = new Mosaic();
+        try {
+            assertTrue(mMosaic.saveSession(session.getPath(), false));
+            // Not of the frame size asked for.
+            assertEquals(0, loaded.loadSession(session.getPath(), sWidth * 2, sHeight, false));
+            // Without the low-res frames to go on from.
+            assertEquals(0, loaded.loadSession(session.getPath(), sWidth, sHeight, true));
+
+            FileOutputStream out = new FileOutputStream(session);
+            out.write(new byte[4096]);
+            out.close();
+            assertEquals(0, loaded.loadSession(session.getPath(), sWidth, sHeight, false));
+        } finally {
+            loaded.freeMosaicMemory();
+            loaded.release();
+            Mosaic.deleteSession(session.getPath());
+        }
+    }
+
+    // Captures the frames with a new mosaic, renders it in high resolution and
+    // returns the NV21 result. The mosaic is released afterwards.
+    private static byte[] renderHighRes(Mosaic mosaic, List<ByteBuffer> frames) {
+        try {
+            mosaic.setSpillFile(null, 0);
+            mosaic.allocateMosaicMemory(sWidth, sHeight);
+            mosaic.setStripType(Mosaic.STRIPTYPE_WIDE);
+            mosaic.reset();
+
+            float[] frameData = new float[Mosaic.FRAME_DATA_SIZE];
+            for (ByteBuffer frame : frames) {
+                // The frames are shared between threads; only read them.
+                mosaic.setSourceImage(frame.duplicate(), frameData);
+            }
+            assertEquals(Mosaic.MOSAIC_RET_OK, mosaic.createMosaic(true));
+
+            int size = mosaic.getMosaicWidth() * mosaic.getMosaicHeight() * 3 / 2;
+            ByteBuffer nv21 = ByteBuffer.allocateDirect(size);
+            assertTrue(mosaic.getFinalMosaicNV21(nv21));
+            byte[] bytes = new byte[size];
+            nv21.get(bytes);
+            return bytes;
+        } finally {
+            mosaic.freeMosaicMemory();
+            mosaic.release();
+        }
+    }
+
+    // Renders the mosaic in high resolution and returns the NV21 result.
+    private static byte[] getHighRes(Mosaic mosaic) {
+        assertEquals(Mosaic.MOSAIC_RET_OK, mosaic.createMosaic(true));
+        int size = mosaic.getMosaicWidth() * mosaic.getMosaicHeight() * 3 / 2;
+        ByteBuffer nv21 = ByteBuffer.allocateDirect(size);
+        assertTrue(mosaic.getFinalMosaicNV21(nv21));
+        byte[] bytes = new byte[size];
+        nv21.get(bytes);
+        return bytes;
+    }
+
+    private void addAllFrames() {
+        long start = System.nanoTime();
+        for (ByteBuffer frame : sFrames) {
+            mMosaic.setSourceImage(frame, mFrameData);
+        }
+        report("setSourceImage x " + sFrames.size(), start);
+    }
+
+    private BufferedImage decodeJpeg(int width, int height) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long start = System.nanoTime();
+        assertTrue(mMosaic.writeFinalMosaicJpeg(90, Channels.newChannel(out)));
+        report("writeFinalMosaicJpeg " + width + "x" + height, start);
+
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+        assertNotNull("JPEG cannot be decoded", image);
+        return image;
+    }
+
+    private static void report(String what, long startNanos) {
+        System.out.printf("%s: %.1f ms%n", what, (System.nanoTime() - startNanos) / 1e6);
+    }
+
+    private static synchronized void loadFrames() throws IOException {
+        if (sFrames != null) return;
+
+        String input = System.getProperty(INPUT_PROPERTY, DEFAULT_INPUT);
+        List<ByteBuffer> frames = new ArrayList<ByteBuffer>();
+        for (int i = 1; ; i++) {
+            File file = new File(String.format("%s_%03d.ppm", input, i));
+            if (!file.exists()) break;
+            frames.add(readPpmAsNV21(file));
+        }
+        assertFalse("No frames at " + input, frames.isEmpty());
+        sFrames = frames;
+    }
+
+    // Reads a binary PPM into a direct NV21 buffer, converting the colors as
+    // ImageUtils::rgb2yvu() does for the benchmark.
+    private static ByteBuffer readPpmAsNV21(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            assertEquals("P6", readToken(in));
+            int width = Integer.parseInt(readToken(in));
+            int height = Integer.parseInt(readToken(in));
+            assertEquals("255", readToken(in));
+            sWidth = width;
+            sHeight = height;
+
+            byte[] rgb = new byte[width * height * 3];
+            for (int n = 0, count; n < rgb.length; n += count) {
+                count = in.read(rgb, n, rgb.length - n);
+                if (count < 0) throw new IOException("Truncated " + file);
+            }
+
+            ByteBuffer nv21 = ByteBuffer.allocateDirect(width * height * 3 / 2);
+            int chroma = width * height;
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int p = (y * width + x) * 3;
+                    int r = rgb[p] & 0xff;
+                    int g = rgb[p + 1] & 0xff;
+                    int b = rgb[p + 2] & 0xff;
+                    nv21.put(y * width + x, clamp((257 * r + 504 * g + 98 * b) / 1000 + 16));
+                    if ((x & 1) == 0 && (y & 1) == 0) {
+                        int c = chroma + (y / 2) * width + x;
+                        nv21.put(c, clamp((439 * r - 368 * g - 71 * b) / 1000 + 128));
+                        nv21.put(c + 1, clamp((-148 * r - 291 * g + 439 * b) / 1000 + 128));
+                    }
+                }
+            }
+            return nv21;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte clamp(int value) {
+        return (byte) Math.max(0, Math.min(255, value));
+    }
+
+    private static String readToken(InputStream in) throws IOException {
+        StringBuilder token = new StringBuilder();
+        int c = in.read();
+        while (Character.isWhitespace(c)) c = in.read();
+        while (c >= 0 && !Character.isWhitespace(c)) {
+            token.append((char) c);
+            c = in.read();
+        }
+        return token.toString();
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import com.android.camera.StartupOrchestrator.Phase;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks com.android.camera.StartupOrchestrator, which runs the start-up
+ * steps of PhotoModule and VideoModule. A single-thread executor stands for
+ * the UI thread. Run with "make -C jni/host test".
+ */
+public class StartupOrchestratorHostTest extends TestCase {
+    private static final long TIMEOUT_MS = 5000;
+
+    private ExecutorService mUiThread;
+    private StartupOrchestrator mStartup;
+    private final List<String> mRan = Collections.synchronizedList(new ArrayList<String>());
+
+    @Override
+    protected void setUp() {
+        mUiThread = Executors.newSingleThreadExecutor();
+        mStartup = new StartupOrchestrator(mUiThread, StartupOrchestrator.BACKGROUND);
+    }
+
+    @Override
+    protected void tearDown() {
+        mUiThread.shutdownNow();
+    }
+
+    private Runnable record(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                mRan.add(name);
+            }
+        };
+    }
+
+    private Runnable signal(final String name, final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                mRan.add(name);
+                latch.countDown();
+            }
+        };
+    }
+
+    private static void await(CountDownLatch latch) throws InterruptedException {
+        assertTrue("timed out", latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    // A step signals before it ends; wait until it has.
+    private void awaitDone(String step) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!mStartup.isDone(step)) {
+            assertTrue(step + " not done", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    public void testIndependentStepsOverlap() throws Exception {
+        final CountDownLatch bothRunning = new CountDownLatch(2);
+        Runnable meet = new Runnable() {
+            @Override
+            public void run() {
+                bothRunning.countDown();
+                try {
+                    // Only returns if the other step runs at the same time.
+                    assertTrue(bothRunning.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        CountDownLatch done = new CountDownLatch(1);
+        mStartup.addStep("openCamera", false, meet);
+        mStartup.addStep("inflateLayout", true, meet);
+        mStartup.addStep("startPreview", false, signal("startPreview", done),
+                "openCamera", "inflateLayout");
+        mStartup.start();
+        await(done);
+        awaitDone("startPreview");
+
+        assertEquals(Arrays.asList("startPreview"), mRan);
+        List<Phase> phases = mStartup.getPhases();
+        assertEquals(3, phases.size());
+        assertEquals("startPreview", phases.get(2).name);
+        for (Phase phase : phases.subList(0, 2)) {
+            assertTrue(phase.endNs <= phases.get(2).readyNs);
+        }
+    }
+
+    public void testUiStepsRunOnTheUiExecutor() throws Exception {
+        final Thread[] uiThread = new Thread[1];
+        final Thread[] ranOn = new Thread[2];
+        mUiThread.submit(new Runnable() {
+            @Override
+            public void run() {
+                uiThread[0] = Thread.currentThread();
+            }
+        }).get();
+        final CountDownLatch done = new CountDownLatch(1);
+        mStartup.addStep("openCamera", false, new Runnable() {
+            @Override
+            public void run() {
+                ranOn[0] = Thread.currentThread();
+            }
+        });
+        mStartup.addStep("initializeControls", true, new Runnable() {
+            @Override
+            public void run() {
+                ranOn[1] = Thread.currentThread();
+                done.countDown();
+            }
+        }, "openCamera");
+        mStartup.start();
+        await(done);
+        awaitDone("initializeControls");
+
+        assertTrue(uiThread[0] != ranOn[0]);
+        assertSame(uiThread[0], ranOn[1]);
+        assertTrue(mStartup.getPhases().get(1).onUiThread);
+    }
+
+    public void testFailureStopsOnlyTheDependants() throws Exception {
+        final List<String> failed = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch failing = new CountDownLatch(1);
+        mStartup.setListener(new StartupOrchestrator.Listener() {
+            @Override
+            public void onStepFailed(String step, Throwable failure) {
+                failed.add(step + ": " + failure.getMessage());
+                failing.countDown();
+            }
+        });
+        CountDownLatch done = new CountDownLatch(1);
+        mStartup.addStep("openCamera", false, new Runnable() {
+            @Override
+            public void run() {
+                throw new RuntimeException("camera busy");
+            }
+        });
+        mStartup.addStep("startPreview", false, record("startPreview"), "openCamera");
+        mStartup.addStep("inflateLayout", true, record("inflateLayout"));
+        mStartup.addStep("initializeControls", true, signal("initializeControls", done),
+                "inflateLayout");
+        mStartup.start();
+        await(done);
+        await(failing);
+        CountDownLatch stopped = new CountDownLatch(1);
+        mStartup.cancel(signal("stopped", stopped));
+        await(stopped);
+        mRan.remove("stopped");
+
+        assertEquals(Arrays.asList("inflateLayout", "initializeControls"), mRan);
+        assertEquals(Arrays.asList("openCamera: camera busy"), failed);
+        assertFalse(mStartup.isDone("openCamera"));
+        assertFalse(mStartup.isDone("startPreview"));
+        assertTrue(mStartup.getPhases().get(0).failed);
+    }
+
+    public void testCancelDoesNotWaitForTheRunningStep() throws Exception {
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        mStartup.addStep("openCamera", false, new Runnable() {
+            @Override
+            public void run() {
+                running.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                mRan.add("openCamera");
+            }
+        });
+        mStartup.addStep("startPreview", false, record("startPreview"), "openCamera");
+        mStartup.start();
+        await(running);
+
+        final Thread[] uiThread = new Thread[1];
+        mUiThread.submit(new Runnable() {
+            @Override
+            public void run() {
+                uiThread[0] = Thread.currentThread();
+            }
+        }).get();
+        final Thread[] stoppedOn = new Thread[1];
+        final CountDownLatch stopped = new CountDownLatch(1);
+        assertFalse(mStartup.cancel(new Runnable() {
+            @Override
+            public void run() {
+                mRan.add("stopped");
+                stoppedOn[0] = Thread.currentThread();
+                stopped.countDown();
+            }
+        }));
+        assertTrue(mStartup.isCancelled());
+        assertEquals(1, stopped.getCount());
+
+        // Told on the UI thread once the running step ended; the next one
+        // never starts.
+        release.countDown();
+        await(stopped);
+        assertSame(uiThread[0], stoppedOn[0]);
+        Thread.sleep(50);
+        assertEquals(Arrays.asList("openCamera", "stopped"), mRan);
+
+        // Nothing runs any more: told right away.
+        assertTrue(mStartup.cancel(record("stoppedAgain")));
+        assertEquals(Arrays.asList("openCamera", "stopped", "stoppedAgain"), mRan);
+    }
+
+    public void testCriticalPathToTheMilestone() throws Exception {
+        final CountDownLatch previewStarted = new CountDownLatch(1);
+        mStartup.addStep("openCamera", false, sleep(30));
+        mStartup.addStep("inflateLayout", true, sleep(1));
+        mStartup.addStep("loadPreferences", false, sleep(1), "openCamera");
+        mStartup.addStep("setParameters", false, sleep(20), "openCamera", "inflateLayout");
+        mStartup.addStep("startPreview", false, signal("startPreview", previewStarted),
+                "setParameters");
+        mStartup.addMilestone("firstPreviewFrame", "startPreview");
+        assertTrue(mStartup.getCriticalPath("firstPreviewFrame").isEmpty());
+        mStartup.start();
+        await(previewStarted);
+        awaitDone("startPreview");
+        Thread.sleep(10);
+        mStartup.reached("firstPreviewFrame");
+        mStartup.reached("firstPreviewFrame");
+
+        assertTrue(mStartup.isDone("firstPreviewFrame"));
+        assertEquals(Arrays.asList("openCamera", "setParameters", "startPreview",
+                "firstPreviewFrame"), mStartup.getCriticalPath("firstPreviewFrame"));
+        Phase frame = mStartup.getPhases().get(mStartup.getPhases().size() - 1);
+        assertEquals("firstPreviewFrame", frame.name);
+        assertTrue(frame.getDurationNs() >= 10000000);
+
+        String summary = mStartup.summarize("firstPreviewFrame");
+        assertTrue(summary, summary.contains("openCamera: ready 0.0, ran "));
+        assertTrue(summary, summary.contains("inflateLayout: ready 0.0, ran "));
+        assertTrue(summary, summary.contains("ms on the UI thread\n"));
+        assertTrue(summary, summary.endsWith("critical path to firstPreviewFrame: "
+                + "openCamera setParameters startPreview firstPreviewFrame\n"));
+    }
+
+    public void testMilestoneReachedEarlyTakesNoTime() throws Exception {
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        mStartup.addStep("startPreview", false, new Runnable() {
+            @Override
+            public void run() {
+                running.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        mStartup.addMilestone("firstPreviewFrame", "startPreview");
+        mStartup.start();
+        await(running);
+        mStartup.reached("firstPreviewFrame");
+        release.countDown();
+        awaitDone("startPreview");
+
+        Phase frame = mStartup.getPhases().get(1);
+        assertEquals("firstPreviewFrame", frame.name);
+        assertEquals(0, frame.getDurationNs());
+        assertEquals(frame.startNs, frame.readyNs);
+    }
+
+    public void testDependenciesMustBeAddedFirst() {
+        try {
+            mStartup.addStep("startPreview", false, record("startPreview"), "openCamera");
+            fail("unknown dependency accepted");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        mStartup.addMilestone("firstPreviewFrame");
+        try {
+            mStartup.reached("unknown");
+            fail("unknown milestone accepted");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    private static Runnable sleep(final long ms) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(ms);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Drives the native video stabilizer through com.android.camera.VideoStabilizer
+ * on the host JVM, with NV21 frames cut out of a random texture. Run with
+ * "make -C jni/host test"; perftests/panorama/stabilization_test measures how
+ * much of the shake of a video is removed.
+ */
+public class VideoStabilizerHostTest extends TestCase {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    // The texture is larger than the frames by this much on every side.
+    private static final int MARGIN = 16;
+    private static final int NR_FRAMES = 30;
+
+    private static byte[] sScene;
+
+    private VideoStabilizer mStabilizer;
+    private float[] mTransform;
+
+    @Override
+    protected void setUp() {
+        if (sScene == null) {
+            // Blocks of 4x4 pixels, so that the low-res frames have corners.
+            int sceneWidth = WIDTH + 2 * MARGIN;
+            int sceneHeight = HEIGHT + 2 * MARGIN;
+            Random random = new Random(1);
+            byte[] blocks = new byte[(sceneWidth / 4) * (sceneHeight / 4)];
+            random.nextBytes(blocks);
+            sScene = new byte[sceneWidth * sceneHeight];
+            for (int y = 0; y < sceneHeight; y++) {
+                for (int x = 0; x < sceneWidth; x++) {
+                    sScene[y * sceneWidth + x] = blocks[(y / 4) * (sceneWidth / 4) + x / 4];
+                }
+            }
+        }
+        mStabilizer = new VideoStabilizer();
+        mStabilizer.initialize(WIDTH, HEIGHT, VideoStabilizer.DEFAULT_SMOOTHING,
+                VideoStabilizer.DEFAULT_CROP_RATIO, 1e9f);
+        mTransform = new float[VideoStabilizer.TRANSFORM_SIZE];
+    }
+
+    @Override
+    protected void tearDown() {
+        mStabilizer.release();
+    }
+
+    // The frame at (x, y) in the scene, with gray chroma.
+    private static byte[] frameAt(int x, int y) {
+        int sceneWidth = WIDTH + 2 * MARGIN;
+        byte[] nv21 = new byte[WIDTH * HEIGHT * 3 / 2];
+        for (int j = 0; j < HEIGHT; j++) {
+            System.arraycopy(sScene, (MARGIN + y + j) * sceneWidth + MARGIN + x, nv21,
+                    j * WIDTH, WIDTH);
+        }
+        for (int i = WIDTH * HEIGHT; i < nv21.length; i++) {
+            nv21[i] = (byte) 128;
+        }
+        return nv21;
+    }
+
+    public void testStillFramesKeepTheIdentity() {
+        byte[] frame = frameAt(0, 0);
+        for (int k = 0; k < NR_FRAMES; k++) {
+            assertEquals(VideoStabilizer.STAB_RET_OK, mStabilizer.addFrame(frame, mTransform));
+        }
+        float[] identity = { 1, 0, 0, 0, 1, 0, 0, 0, 1 };
+        for (int i = 0; i < 9; i++) {
+            assertEquals(identity[i], mTransform[i], 1e-3f);
+        }
+        int crop = VideoStabilizer.TRANSFORM_CROP_INDEX;
+        assertEquals(VideoStabilizer.DEFAULT_CROP_RATIO * WIDTH, mTransform[crop], 1e-3f);
+        assertEquals(VideoStabilizer.DEFAULT_CROP_RATIO * HEIGHT, mTransform[crop + 1], 1e-3f);
+        assertEquals(WIDTH - mTransform[crop], mTransform[crop + 2], 1e-3f);
+        assertEquals(HEIGHT - mTransform[crop + 1], mTransform[crop + 3], 1e-3f);
+    }
+
+    public void testShakeIsFollowed() {
+        mStabilizer.addFrame(frameAt(0, 0), mTransform);
+        // A jump to the right: the content moves left in the frame, and the
+        // display reference stays with it but for the part smoothed out.
+        assertEquals(VideoStabilizer.STAB_RET_OK, mStabilizer.addFrame(frameAt(8, 0), mTransform));
+        assertTrue("x translation " + mTransform[2], mTransform[2] < -4f);
+        assertEquals(0f, mTransform[5], 1f);
+    }
+
+    public void testIdentityTextureMatrix() {
+        float[] transform = { 1, 0, 0, 0, 1, 0, 0, 0, 1, 0, 0, WIDTH, HEIGHT };
+        float[] matrix = new float[16];
+        VideoStabilizer.getTextureMatrix(transform, WIDTH, HEIGHT, matrix);
+        for (int i = 0; i < 16; i++) {
+            assertEquals("matrix[" + i + "]", i % 5 == 0 ? 1f : 0f, matrix[i], 1e-6f);
+        }
+    }
+
+    public void testTextureMatrixMapsTheCropWindow() {
+        // Half the frame cropped away, moved right by 10 pixels.
+        float[] transform = { 1, 0, 10, 0, 1, 0, 0, 0, 1,
+                WIDTH / 4, HEIGHT / 4, WIDTH * 3 / 4, HEIGHT * 3 / 4 };
+        float[] matrix = new float[16];
+        VideoStabilizer.getTextureMatrix(transform, WIDTH, HEIGHT, matrix);
+        // The bottom left and top right corners of the output.
+        assertEquals(0.25f + 10f / WIDTH, matrix[12], 1e-6f);
+        assertEquals(0.25f, matrix[13], 1e-6f);
+        assertEquals(0.75f + 10f / WIDTH, matrix[0] + matrix[4] + matrix[12], 1e-6f);
+        assertEquals(0.75f, matrix[1] + matrix[5] + matrix[13], 1e-6f);
+    }
+
+    public void testFramesDroppedToKeepTheBudget() {
+        mStabilizer.initialize(WIDTH, HEIGHT, VideoStabilizer.DEFAULT_SMOOTHING,
+                VideoStabilizer.DEFAULT_CROP_RATIO, 1e-6f);
+        for (int k = 0; k < NR_FRAMES; k++) {
+            mStabilizer.addFrame(frameAt(k % 4, 0), mTransform);
+        }
+        float[] statistics = new float[VideoStabilizer.STATISTICS_SIZE];
+        mStabilizer.getStatistics(statistics);
+        assertEquals(NR_FRAMES, (int) statistics[VideoStabilizer.STATISTICS_FRAME_COUNT_INDEX]);
+        // Every aligned frame overruns the budget and is followed by the most
+        // frames that can be dropped in a row.
+        int dropped = (int) statistics[VideoStabilizer.STATISTICS_DROPPED_COUNT_INDEX];
+        assertTrue(dropped + " frames dropped", dropped >= NR_FRAMES / 2);
+        assertTrue(dropped + " frames dropped", dropped < NR_FRAMES);
+        assertTrue(statistics[VideoStabilizer.STATISTICS_MEAN_FRAME_MS_INDEX] > 0f);
+        assertTrue(statistics[VideoStabilizer.STATISTICS_MAX_FRAME_MS_INDEX]
+                >= statistics[VideoStabilizer.STATISTICS_MEAN_FRAME_MS_INDEX]);
+    }
+
+    public void testShortFrameRejected() {
+        try {
+            mStabilizer.addFrame(new byte[WIDTH * HEIGHT], mTransform);
+            fail("short frame accepted");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    public void testUnsupportedSizeRejected() {
+        try {
+            mStabilizer.initialize(64, 48, VideoStabilizer.DEFAULT_SMOOTHING,
+                    VideoStabilizer.DEFAULT_CROP_RATIO, VideoStabilizer.DEFAULT_BUDGET_MS);
+            fail("64x48 accepted");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        try {
+            mStabilizer.addFrame(frameAt(0, 0), mTransform);
+            fail("frame added after a failed initialize()");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+    }
+
+    public void testReleasedStabilizerThrows() {
+        mStabilizer.release();
+        mStabilizer.release();
+        try {
+            mStabilizer.addFrame(frameAt(0, 0), mTransform);
+            fail("released stabilizer used");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+    }
+}
@@ -18,14 +18,18 @@ package com.android.camera;
 
 import android.app.Activity;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.test.LaunchPerformanceBase;
 
+import com.android.camera.StartupOrchestrator.Phase;
+
 /**
  * Instrumentation class for Camera launch performance testing.
  */
 public class CameraLaunchPerformance extends LaunchPerformanceBase {
     @SuppressWarnings("unused")
     private static final String TAG = "CameraLaunchPerformance";
+    private static final long TIMEOUT_MS = 5000;
 
     @Override
     public void onCreate(Bundle arguments) {
@@ -36,12 +40,36 @@ public class CameraLaunchPerformance extends LaunchPerformanceBase {
     }
 
     /**
-     * Calls LaunchApp and finish.
+     * Calls LaunchApp and finish, adding the phases of the camera start-up to
+     * the results: for each, "startup_<phase>_ms", the time it took, and
+     * "startup_<phase>_done_ms", the time it was done after the start-up
+     * began, and "startup_critical_path", the phases that delayed the first
+     * preview frame.
      */
     @Override
     public void onStart() {
         super.onStart();
+        ActivityMonitor monitor = addMonitor(CameraActivity.class.getName(), null, false);
         LaunchApp();
+        Activity activity = monitor.waitForActivityWithTimeout(TIMEOUT_MS);
+        if (activity != null) addStartupPhases((CameraActivity) activity);
         finish(Activity.RESULT_OK, mResults);
     }
+
+    private void addStartupPhases(CameraActivity activity) {
+        long deadline = SystemClock.uptimeMillis() + TIMEOUT_MS;
+        StartupOrchestrator startup = activity.getStartup();
+        while ((startup == null || !startup.isDone(CameraActivity.FIRST_PREVIEW_FRAME))
+                && SystemClock.uptimeMillis() < deadline) {
+            SystemClock.sleep(10);
+            startup = activity.getStartup();
+        }
+        if (startup == null) return;
+        for (Phase phase : startup.getPhases()) {
+            mResults.putLong("startup_" + phase.name + "_ms", phase.getDurationNs() / 1000000);
+            mResults.putLong("startup_" + phase.name + "_done_ms", phase.endNs / 1000000);
+        }
+        mResults.putString("startup_critical_path",
+                startup.getCriticalPath(CameraActivity.FIRST_PREVIEW_FRAME).toString());
+    }
 }
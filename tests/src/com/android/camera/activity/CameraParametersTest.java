@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.activity;
+
+import android.hardware.Camera.Parameters;
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.view.KeyEvent;
+
+import com.android.camera.CameraActivity;
+import com.android.camera.CameraCommandQueue.Command;
+import com.android.camera.CameraHolder;
+import com.android.camera.CameraManager;
+import com.android.camera.CameraParameterStore;
+import com.android.camera.StartupOrchestrator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the parameters PhotoModule sets on the mock camera through
+ * CameraManager, and checks what the parameter statistics count for a
+ * burst of zoom changes.
+ */
+public class CameraParametersTest extends CameraTestCase <CameraActivity> {
+    private static final long TIMEOUT_MS = 10000;
+    // Zoom in and out, ending zoomed in: 1, 0, 1, ..., 1.
+    private static final int BURST = 9;
+
+    private final Object mLock = new Object();
+    private final List<Command<Void>> mCommands = new ArrayList<Command<Void>>();
+    private final List<String> mSent = new ArrayList<String>();
+    private int mUpdates;
+    private String mLastFlattened;
+    // Set to hold the camera thread in the next parameters sent.
+    private volatile CountDownLatch mRelease;
+    private final CountDownLatch mHeld = new CountDownLatch(1);
+
+    private final CameraManager.ParametersTarget mTarget = new CameraManager.ParametersTarget() {
+        @Override
+        public void setParameters(String flattened) {
+            synchronized (mLock) {
+                mSent.add(flattened);
+            }
+            CountDownLatch release = mRelease;
+            if (release == null) return;
+            mRelease = null;
+            mHeld.countDown();
+            try {
+                release.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    };
+
+    public CameraParametersTest() {
+        super(CameraActivity.class);
+    }
+
+    @Override
+    protected void setParameters(Parameters params, boolean async) {
+        synchronized (mLock) {
+            mCommands.add(CameraManager.instance().sendParameters(params, async, mTarget));
+            mUpdates++;
+            mLastFlattened = params.flatten();
+        }
+    }
+
+    @LargeTest
+    public void testZoomBurstIsCoalesced() throws Exception {
+        CameraHolder.injectMockCamera(mCameraInfo, mOneMockCamera);
+        CameraActivity activity = getActivity();
+        waitForStartup(activity);
+        getInstrumentation().waitForIdleSync();
+        waitForParameters();
+
+        int[] before;
+        int updatesBefore, sentBefore;
+        synchronized (mLock) {
+            before = getStatistics();
+            updatesBefore = mUpdates;
+            sentBefore = mSent.size();
+        }
+
+        // The camera thread holds the first zoom while the others arrive.
+        CountDownLatch release = new CountDownLatch(1);
+        mRelease = release;
+        getInstrumentation().sendKeyDownUpSync(KeyEvent.KEYCODE_VOLUME_UP);
+        assertTrue(mHeld.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        for (int i = 1; i < BURST; i++) {
+            getInstrumentation().sendKeyDownUpSync((i % 2 == 0)
+                    ? KeyEvent.KEYCODE_VOLUME_UP : KeyEvent.KEYCODE_VOLUME_DOWN);
+        }
+        release.countDown();
+        waitForParameters();
+
+        synchronized (mLock) {
+            int[] after = getStatistics();
+            int updates = count(before, after,
+                    CameraParameterStore.STATISTICS_UPDATE_COUNT_INDEX);
+            int coalesced = count(before, after,
+                    CameraParameterStore.STATISTICS_COALESCED_COUNT_INDEX);
+            int skipped = count(before, after,
+                    CameraParameterStore.STATISTICS_SKIPPED_COUNT_INDEX);
+            int set = count(before, after, CameraParameterStore.STATISTICS_SET_COUNT_INDEX);
+            // Every update is counted once, as set, skipped or coalesced.
+            assertEquals(mUpdates - updatesBefore, updates);
+            assertTrue("only " + updates + " updates", updates >= BURST);
+            assertEquals(updates, set + skipped + coalesced);
+            assertEquals(mSent.size() - sentBefore, set);
+            // The zooms that arrived while the camera was held are replaced
+            // by the last one, which zooms in as the first one did.
+            assertTrue("only " + coalesced + " coalesced", coalesced >= BURST - 2);
+            assertTrue("none skipped", skipped >= 1);
+            assertEquals(mLastFlattened, mSent.get(mSent.size() - 1));
+        }
+
+        getActivity().finish();
+        getInstrumentation().waitForIdleSync();
+    }
+
+    private void waitForStartup(CameraActivity activity) {
+        long deadline = SystemClock.uptimeMillis() + TIMEOUT_MS;
+        StartupOrchestrator startup = activity.getStartup();
+        while (startup == null || !startup.isDone("previewStarted")) {
+            assertTrue("start-up not done", SystemClock.uptimeMillis() < deadline);
+            SystemClock.sleep(10);
+            startup = activity.getStartup();
+        }
+    }
+
+    // Waits until the camera thread ran the parameters sent so far; those
+    // coalesced are done with the ones that replaced them.
+    private void waitForParameters() {
+        List<Command<Void>> commands;
+        synchronized (mLock) {
+            commands = new ArrayList<Command<Void>>(mCommands);
+        }
+        for (Command<Void> command : commands) {
+            CameraManager.waitFor(command);
+        }
+    }
+
+    private static int[] getStatistics() {
+        int[] statistics = new int[CameraParameterStore.STATISTICS_SIZE];
+        CameraManager.instance().getParameterStatistics(statistics);
+        return statistics;
+    }
+
+    private static int count(int[] before, int[] after, int index) {
+        return after[index] - before[index];
+    }
+}
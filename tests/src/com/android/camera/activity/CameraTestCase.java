@@ -23,13 +23,16 @@ import android.hardware.Camera.AutoFocusCallback;
 import android.hardware.Camera.CameraInfo;
 import android.hardware.Camera.Parameters;
 import android.hardware.Camera.PictureCallback;
+import android.hardware.Camera.PreviewCallback;
 import android.hardware.Camera.ShutterCallback;
 import android.test.ActivityInstrumentationTestCase2;
 import android.view.KeyEvent;
 import android.view.MotionEvent;
 import android.view.View;
 
+import com.android.camera.CameraCommandQueue.Command;
 import com.android.camera.CameraHolder;
+import com.android.camera.CameraManager;
 import com.android.camera.CameraManager.CameraProxy;
 import com.android.camera.R;
 import com.android.camera.Util;
@@ -64,8 +67,15 @@ public class CameraTestCase<T extends Activity> extends ActivityInstrumentationT
     @Captor private ArgumentCaptor<PictureCallback> mRawPictureCallback;
     @Captor private ArgumentCaptor<PictureCallback> mJpegPictureCallback;
     @Captor private ArgumentCaptor<AutoFocusCallback> mAutoFocusCallback;
+    @Captor private ArgumentCaptor<Parameters> mSetParameters;
+    @Captor private ArgumentCaptor<Parameters> mSetParametersAsync;
     Callable<Object> mAutoFocusCallable = new AutoFocusCallable();
     Callable<Object> mTakePictureCallable = new TakePictureCallable();
+    Callable<Object> mSetParametersCallable = new SetParametersCallable(false);
+    Callable<Object> mSetParametersAsyncCallable = new SetParametersCallable(true);
+    // What the mocks return for the commands the modules wait for.
+    private final Command<Void> mDoneCommand =
+            CameraManager.instance().newDoneCommand("mock");
 
     private class TakePictureCallable implements Callable<Object> {
         @Override
@@ -104,6 +114,21 @@ public class CameraTestCase<T extends Activity> extends ActivityInstrumentationT
         }
    }
 
+    private class SetParametersCallable implements Callable<Object> {
+        private final boolean mAsync;
+
+        SetParametersCallable(boolean async) {
+            mAsync = async;
+        }
+
+        @Override
+        public Object call() throws Exception {
+            setParameters(mAsync ? mSetParametersAsync.getValue()
+                    : mSetParameters.getValue(), mAsync);
+            return null;
+        }
+    }
+
     public CameraTestCase(Class<T> activityClass) {
         super(activityClass);
     }
@@ -129,6 +154,8 @@ public class CameraTestCase<T extends Activity> extends ActivityInstrumentationT
         mMockCamera[1] = mMockFrontCamera;
         doReturn(getParameters()).when(mMockCamera[0]).getParameters();
         doReturn(getParameters()).when(mMockCamera[1]).getParameters();
+        doReturn(getParameters()).when(mMockCamera[0]).refreshParameters();
+        doReturn(getParameters()).when(mMockCamera[1]).refreshParameters();
 
         mOneCameraInfo = new CameraInfo[1];
         mOneCameraInfo[0] = new CameraInfo();
@@ -136,6 +163,10 @@ public class CameraTestCase<T extends Activity> extends ActivityInstrumentationT
         mOneMockCamera = new CameraProxy[1];
         mOneMockCamera[0] = mMockBackCamera;
         doReturn(getParameters()).when(mOneMockCamera[0]).getParameters();
+        doReturn(getParameters()).when(mOneMockCamera[0]).refreshParameters();
+
+        stubCommands(mMockBackCamera);
+        stubCommands(mMockFrontCamera);
 
         // Mock takePicture call.
         doAnswer(mTakePictureCallable).when(mMockBackCamera).takePicture(
@@ -145,6 +176,26 @@ public class CameraTestCase<T extends Activity> extends ActivityInstrumentationT
         // Mock autoFocus call.
         doAnswer(mAutoFocusCallable).when(mMockBackCamera).autoFocus(
                 mAutoFocusCallback.capture());
+
+        // Mock setParameters and setParametersAsync calls.
+        doAnswer(mSetParametersCallable).when(mMockBackCamera).setParameters(
+                mSetParameters.capture());
+        doAnswer(mSetParametersAsyncCallable).when(mMockBackCamera).setParametersAsync(
+                mSetParametersAsync.capture());
+    }
+
+    // Called for the parameters set on the back camera, setParametersAsync()
+    // if async. Tests override it to send them through CameraManager.
+    protected void setParameters(Parameters params, boolean async) {
+    }
+
+    // The modules wait for the preview to start, and for the preview
+    // callback to be changed: the mocks return a command that is done.
+    private void stubCommands(CameraProxy camera) {
+        doReturn(mDoneCommand).when(camera).startPreviewAsync();
+        doReturn(mDoneCommand).when(camera).setPreviewCallback((PreviewCallback) anyObject());
+        doReturn(mDoneCommand).when(camera).setPreviewCallbackWithBuffer(
+                (PreviewCallback) anyObject());
     }
 
     private void readBlankJpeg() {
@@ -17,11 +17,14 @@
 package com.android.camera.stress;
 
 import com.android.camera.CameraActivity;
+import com.android.camera.StartupOrchestrator;
+import com.android.camera.StartupOrchestrator.Phase;
 
 import android.app.Activity;
 import android.app.Instrumentation;
 import android.content.Intent;
 import android.os.Environment;
+import android.os.SystemClock;
 import android.provider.MediaStore;
 import android.test.InstrumentationTestCase;
 import android.test.suitebuilder.annotation.LargeTest;
@@ -29,6 +32,9 @@ import android.util.Log;
 
 import java.io.FileWriter;
 import java.io.BufferedWriter;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
 
 /**
  * Test cases to measure the camera and video recorder startup time.
@@ -42,6 +48,53 @@ public class CameraStartUp extends InstrumentationTestCase {
             Environment.getExternalStorageDirectory().toString() + "/mediaStressOut.txt";
     private static int WAIT_TIME_FOR_PREVIEW = 1500; //1.5 second
 
+    // The phases of the start-ups since the last call to takePhases(), by
+    // name: the total time they took, the total time they were done after
+    // their start-up began, and how many there were.
+    private LinkedHashMap<String, long[]> mPhases = new LinkedHashMap<String, long[]>();
+    private String mCriticalPath;
+
+    // Wait for the first preview frame of the start-up of activity, and add
+    // its phases.
+    private void addStartupPhases(Activity activity) {
+        long deadline = SystemClock.uptimeMillis() + WAIT_TIME_FOR_PREVIEW;
+        StartupOrchestrator startup = ((CameraActivity) activity).getStartup();
+        while ((startup == null || !startup.isDone(CameraActivity.FIRST_PREVIEW_FRAME))
+                && SystemClock.uptimeMillis() < deadline) {
+            SystemClock.sleep(10);
+            startup = ((CameraActivity) activity).getStartup();
+        }
+        if (startup == null) return;
+        Log.v(TAG, startup.summarize(CameraActivity.FIRST_PREVIEW_FRAME));
+        for (Phase phase : startup.getPhases()) {
+            long[] total = mPhases.get(phase.name);
+            if (total == null) {
+                total = new long[3];
+                mPhases.put(phase.name, total);
+            }
+            total[0] += phase.getDurationNs();
+            total[1] += phase.endNs;
+            total[2]++;
+        }
+        mCriticalPath = startup.getCriticalPath(CameraActivity.FIRST_PREVIEW_FRAME).toString();
+    }
+
+    // Describe the average of the phases added since the last call, and the
+    // critical path of the last start-up.
+    private String takePhases() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, long[]> entry : mPhases.entrySet()) {
+            long[] total = entry.getValue();
+            builder.append(String.format(Locale.US, "%s: ran %.1f ms, done at %.1f ms\n",
+                    entry.getKey(), total[0] / 1e6 / total[2], total[1] / 1e6 / total[2]));
+        }
+        builder.append(mCriticalPath == null ? "No first preview frame\n"
+                : "Critical path to the first preview frame: " + mCriticalPath + "\n");
+        mPhases.clear();
+        mCriticalPath = null;
+        return builder.toString();
+    }
+
     private long launchCamera() {
         long startupTime = 0;
         try {
@@ -53,6 +106,7 @@ public class CameraStartUp extends InstrumentationTestCase {
             Activity cameraActivity = inst.startActivitySync(intent);
             long cameraStarted = System.currentTimeMillis();
             Thread.sleep(WAIT_TIME_FOR_PREVIEW);
+            addStartupPhases(cameraActivity);
             cameraActivity.finish();
             startupTime = cameraStarted - beforeStart;
             Thread.sleep(1000);
@@ -75,6 +129,7 @@ public class CameraStartUp extends InstrumentationTestCase {
             Instrumentation inst = getInstrumentation();
             Activity recorderActivity = inst.startActivitySync(intent);
             long cameraStarted = System.currentTimeMillis();
+            addStartupPhases(recorderActivity);
             recorderActivity.finish();
             startupTime = cameraStarted - beforeStart;
             Log.v(TAG, "Video Startup Time = " + startupTime);
@@ -98,12 +153,14 @@ public class CameraStartUp extends InstrumentationTestCase {
             BufferedWriter out = new BufferedWriter(fstream);
             if (firstStartUp) {
                 out.write("First " + Type + " Startup: " + totalStartupTime + "\n");
+                out.write("First " + Type + " startup phases:\n" + takePhases() + "\n");
             } else {
                 long averageStartupTime = totalStartupTime / (TOTAL_NUMBER_OF_STARTUP -1);
                 out.write(Type + "startup time: " + "\n");
                 out.write("Number of loop: " + (TOTAL_NUMBER_OF_STARTUP -1)  + "\n");
                 out.write(individualStartupTime + "\n\n");
                 out.write(Type + " average startup time: " + averageStartupTime + " ms\n\n");
+                out.write(Type + " average startup phases:\n" + takePhases() + "\n");
             }
             out.close();
             fstream.close();